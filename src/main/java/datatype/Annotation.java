@@ -12,23 +12,35 @@ public class Annotation {
 	public Roi shape;
 	public String label;
 	public String author;
+	// WDZT id of the annotation ("wdzt" - "id" in the JSON file) or ""
+	public String id;
+	// JSON "fillRule" of the shape (FILL_RULE_NONZERO or FILL_RULE_EVENODD)
+	public int fillRule;
 	
 	public static String RECTANGLE = new String("Rectangle");
 	public static String CIRCLE = new String("Circle");
 	public static String FREEHAND = new String("Freehand");
 	
+	// fill rules of the shapes (JSON "fillRule" field), the default is the ImageJ evenodd fill
+	public static final int FILL_RULE_NONZERO = 0;
+	public static final int FILL_RULE_EVENODD = 1;
+	
 	public Annotation() {
 		shape = new Roi(0,0,100,100);
 		shape.setFillColor(Color.BLACK);
 		shape.setName(RECTANGLE);
 		label = new String("");
 		author = new String("");
+		id = new String("");
+		fillRule = FILL_RULE_EVENODD;
 	}
 	
 	public Annotation(Roi r, String s) {
 		shape = r;
 		label = s;
 		author = new String("");
+		id = new String("");
+		fillRule = FILL_RULE_EVENODD;
 	}
 	
 
@@ -36,6 +48,22 @@ public class Annotation {
 		this.shape = a.shape;
 		this.label = a.label;
 		this.author = a.author;
+		this.id = a.id;
+		this.fillRule = a.fillRule;
+	}
+
+	/**
+	 * This method converts the JSON "fillRule" string to one of the FILL_RULE constants
+	 * (a missing or unknown fill rule is the ImageJ evenodd fill)
+	 *
+	 * @param fillRule - "nonzero" or "evenodd"
+	 * @return FILL_RULE_NONZERO or FILL_RULE_EVENODD
+	 */
+	public static int parseFillRule(String fillRule){
+		if(fillRule != null && fillRule.equalsIgnoreCase("nonzero")){
+			return FILL_RULE_NONZERO;
+		}
+		return FILL_RULE_EVENODD;
 	}
 
 	public void setFillColor(Color shapeColor) {
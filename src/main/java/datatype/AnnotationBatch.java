@@ -0,0 +1,532 @@
+package datatype;
+
+import java.awt.Color;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import ij.gui.OvalRoi;
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+import ij.process.FloatPolygon;
+
+/**
+ * This class is a compact (struct-of-arrays) container of annotations.
+ * Instead of one Annotation object (ImageJ Roi + Color + Strings) per annotation,
+ * all annotations are stored in primitive arrays:
+ * shape type, class id (label), author id, packed ARGB color, fill rule, bounding box
+ * and the offsets of the fill polygon vertices in one shared pool of coordinates.
+ *
+ * The fill polygon of each annotation is the polygon traced by the ScanlineRasterizer,
+ * i.e., the corners of the integer bounds for rectangles, the ImageJ oval polygon for circles
+ * and the float vertices for the freehand shapes, so that the masks are identical to the masks
+ * rendered from the Annotation objects.
+ *
+ * The method toAnnotation creates an Annotation for the legacy callers.
+ *
+ * @author pnb
+ *
+ */
+public class AnnotationBatch {
+
+	public static final byte SHAPE_RECTANGLE = 0;
+	public static final byte SHAPE_OVAL = 1;
+	public static final byte SHAPE_POLYGON = 2;
+
+	private int _size = 0;
+	private byte[] _shapeTypes = new byte[16];
+	// ImageJ ROI type of the polygons (e.g., Roi.FREEROI)
+	private byte[] _roiTypes = new byte[16];
+	private byte[] _fillRules = new byte[16];
+	private int[] _classIds = new int[16];
+	private int[] _authorIds = new int[16];
+	private int[] _colors = new int[16];
+	// WDZT ids of the annotations (null if not set)
+	private String[] _ids = new String[16];
+	// 4 values per annotation (x, y, width, height) as defined in the JSON file
+	private double[] _bounds = new double[4 * 16];
+	// the vertices of annotation i are [_vertexOffsets[i], _vertexOffsets[i+1])
+	private int[] _vertexOffsets = new int[16 + 1];
+	private int _numVertices = 0;
+	private float[] _xs = new float[256];
+	private float[] _ys = new float[256];
+
+	// interned labels and authors
+	private ArrayList<String> _labels = new ArrayList<String>();
+	private HashMap<String, Integer> _labelIndex = new HashMap<String, Integer>();
+	private ArrayList<String> _authors = new ArrayList<String>();
+	private HashMap<String, Integer> _authorIndex = new HashMap<String, Integer>();
+
+	/**
+	 * This method creates a batch from an array of Annotation objects
+	 *
+	 * @param annotations - input annotations
+	 * @return batch with the annotations in the same order
+	 */
+	public static AnnotationBatch fromAnnotations(ArrayList<Annotation> annotations){
+		AnnotationBatch batch = new AnnotationBatch();
+		for(Annotation a : annotations){
+			batch.add(a);
+		}
+		return batch;
+	}
+
+	/**
+	 * This method adds an Annotation
+	 *
+	 * @param a - annotation
+	 * @return index of the annotation in the batch
+	 */
+	public int add(Annotation a){
+		Roi roi = a.shape;
+		Color color = roi.getFillColor();
+		int argb = (color == null) ? Color.BLACK.getRGB() : color.getRGB();
+		int type = roi.getType();
+		int i;
+		if(type == Roi.RECTANGLE && roi.getCornerDiameter() == 0){
+			java.awt.geom.Rectangle2D.Double bounds = roi.getFloatBounds();
+			i = addRectangle(roi.getBounds(), bounds.x, bounds.y, bounds.width, bounds.height, argb, a.label, a.author);
+		}else if(type == Roi.OVAL){
+			java.awt.geom.Rectangle2D.Double bounds = roi.getFloatBounds();
+			i = addOval(roi.getBounds(), bounds.x, bounds.y, bounds.width, bounds.height, argb, a.label, a.author);
+		}else{
+			FloatPolygon fp = roi.getFloatPolygon();
+			i = addPolygon(fp.xpoints, fp.ypoints, fp.npoints, type, a.fillRule, argb, a.label, a.author);
+		}
+		setId(i, a.id);
+		return i;
+	}
+
+	/**
+	 * This method adds a rectangle
+	 *
+	 * @param x - left
+	 * @param y - top
+	 * @param width - width
+	 * @param height - height
+	 * @param argb - fill color as a packed ARGB int
+	 * @param label - textual label
+	 * @param author - author
+	 * @return index of the annotation in the batch
+	 */
+	public int addRectangle(double x, double y, double width, double height, int argb, String label, String author){
+		// the same integer bounds as new Roi(x, y, width, height) without creating the ROI
+		return addRectangle(new Rectangle((int)x, (int)y, getRoiSize(width), getRoiSize(height)), x, y, width, height, argb, label, author);
+	}
+
+	private int addRectangle(Rectangle r, double x, double y, double width, double height, int argb, String label, String author){
+		// the rectangles are filled with their integer bounds
+		int i = addShape(SHAPE_RECTANGLE, Roi.RECTANGLE, Annotation.FILL_RULE_EVENODD, argb, label, author, x, y, width, height);
+		ensureVertexCapacity(4);
+		addVertex(r.x, r.y);
+		addVertex(r.x + r.width, r.y);
+		addVertex(r.x + r.width, r.y + r.height);
+		addVertex(r.x, r.y + r.height);
+		_vertexOffsets[i + 1] = _numVertices;
+		return i;
+	}
+
+	/**
+	 * This method adds an oval (circle)
+	 *
+	 * @param x - left of the bounding box
+	 * @param y - top of the bounding box
+	 * @param width - width of the bounding box
+	 * @param height - height of the bounding box
+	 * @param argb - fill color as a packed ARGB int
+	 * @param label - textual label
+	 * @param author - author
+	 * @return index of the annotation in the batch
+	 */
+	public int addOval(double x, double y, double width, double height, int argb, String label, String author){
+		// the same integer bounds as new OvalRoi(x, y, width, height) without creating the ROI
+		return addOval(new Rectangle((int)x, (int)y, getRoiSize(width), getRoiSize(height)), x, y, width, height, argb, label, author);
+	}
+
+	private int addOval(Rectangle r, double x, double y, double width, double height, int argb, String label, String author){
+		int i = addShape(SHAPE_OVAL, Roi.OVAL, Annotation.FILL_RULE_EVENODD, argb, label, author, x, y, width, height);
+		addOvalVertices(r.x, r.y, r.width, r.height);
+		_vertexOffsets[i + 1] = _numVertices;
+		return i;
+	}
+
+	/**
+	 * This is a helper method that returns the integer width or height of an ImageJ ROI created with double bounds
+	 */
+	private static int getRoiSize(double size){
+		return Math.max(1, (int)Math.ceil(size));
+	}
+
+	/**
+	 * This is a helper method that adds the outline of the ImageJ oval mask (OvalRoi.getMask) as a polygon
+	 * through the pixel corners, i.e., the same pixels as the polygon traced by OvalRoi.getPolygon.
+	 * A pixel (col, row) of the bounds is inside if dx*dx/a2 + dy*dy/b2 <= 1 with the same
+	 * arithmetic as ImageJ. The rows of the oval are contiguous and each row is one span
+	 * that is symmetric about the center.
+	 */
+	private void addOvalVertices(int x, int y, int width, int height){
+		double a = width / 2.0;
+		double b = height / 2.0;
+		double a2 = a * a;
+		double b2 = b * b;
+		double xCenter = a - 0.5;
+		double yCenter = b - 0.5;
+		// the right end (exclusive) of the span of each row, 0 for an empty row
+		int[] rightEnds = new int[height];
+		int centerColumn = width / 2;
+		int top = -1, bottom = -1;
+		for(int row = 0; row < height; row++){
+			double dy = row - yCenter;
+			double dy2 = dy * dy / b2;
+			double dx = centerColumn - xCenter;
+			if(dx * dx / a2 + dy2 > 1.0){
+				continue;
+			}
+			// estimate the end of the span and correct it with the exact test
+			int right = (int)(xCenter + a * Math.sqrt(Math.max(0, 1.0 - dy2)));
+			right = Math.max(centerColumn, Math.min(width - 1, right));
+			while(right + 1 < width && isInsideOval(right + 1 - xCenter, dy2, a2)){
+				right++;
+			}
+			while(right > centerColumn && !isInsideOval(right - xCenter, dy2, a2)){
+				right--;
+			}
+			rightEnds[row] = right + 1;
+			if(top < 0){
+				top = row;
+			}
+			bottom = row;
+		}
+		if(top < 0){
+			return;
+		}
+		ensureVertexCapacity(4 * (bottom - top + 1) + 4);
+		// right side from the top to the bottom
+		addVertex(x + width - rightEnds[top], y + top);
+		addVertex(x + rightEnds[top], y + top);
+		for(int row = top; row < bottom; row++){
+			if(rightEnds[row + 1] != rightEnds[row]){
+				addVertex(x + rightEnds[row], y + row + 1);
+				addVertex(x + rightEnds[row + 1], y + row + 1);
+			}
+		}
+		addVertex(x + rightEnds[bottom], y + bottom + 1);
+		// left side from the bottom to the top (the spans are symmetric)
+		addVertex(x + width - rightEnds[bottom], y + bottom + 1);
+		for(int row = bottom; row > top; row--){
+			if(rightEnds[row - 1] != rightEnds[row]){
+				addVertex(x + width - rightEnds[row], y + row);
+				addVertex(x + width - rightEnds[row - 1], y + row);
+			}
+		}
+	}
+
+	private static boolean isInsideOval(double dx, double dy2, double a2){
+		return dx * dx / a2 + dy2 <= 1.0;
+	}
+
+	/**
+	 * This method adds a closed polygon
+	 *
+	 * @param xs - x coordinates
+	 * @param ys - y coordinates
+	 * @param n - number of vertices
+	 * @param roiType - ImageJ ROI type used by toAnnotation (e.g., Roi.FREEROI)
+	 * @param fillRule - Annotation.FILL_RULE_NONZERO or FILL_RULE_EVENODD
+	 * @param argb - fill color as a packed ARGB int
+	 * @param label - textual label
+	 * @param author - author
+	 * @return index of the annotation in the batch
+	 */
+	public int addPolygon(float[] xs, float[] ys, int n, int roiType, int fillRule, int argb, String label, String author){
+		float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY;
+		float maxX = Float.NEGATIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY;
+		for(int v = 0; v < n; v++){
+			minX = Math.min(minX, xs[v]);
+			minY = Math.min(minY, ys[v]);
+			maxX = Math.max(maxX, xs[v]);
+			maxY = Math.max(maxY, ys[v]);
+		}
+		if(n == 0){
+			minX = minY = maxX = maxY = 0;
+		}
+		int i = addShape(SHAPE_POLYGON, roiType, fillRule, argb, label, author, minX, minY, maxX - minX, maxY - minY);
+		ensureVertexCapacity(n);
+		System.arraycopy(xs, 0, _xs, _numVertices, n);
+		System.arraycopy(ys, 0, _ys, _numVertices, n);
+		_numVertices += n;
+		_vertexOffsets[i + 1] = _numVertices;
+		return i;
+	}
+
+	/**
+	 * This method adds an annotation with its precomputed fill polygon
+	 * (e.g., when reading a batch back from a binary store)
+	 *
+	 * @param shapeType - SHAPE_RECTANGLE, SHAPE_OVAL or SHAPE_POLYGON
+	 * @param roiType - ImageJ ROI type used by toAnnotation
+	 * @param fillRule - Annotation.FILL_RULE_NONZERO or FILL_RULE_EVENODD
+	 * @param argb - fill color as a packed ARGB int
+	 * @param label - textual label
+	 * @param author - author
+	 * @param x - left of the bounding box
+	 * @param y - top of the bounding box
+	 * @param width - width of the bounding box
+	 * @param height - height of the bounding box
+	 * @param xs - x coordinates of the fill polygon
+	 * @param ys - y coordinates of the fill polygon
+	 * @param offset - index of the first vertex in xs and ys
+	 * @param n - number of vertices
+	 * @return index of the annotation in the batch
+	 */
+	public int add(byte shapeType, int roiType, int fillRule, int argb, String label, String author,
+			double x, double y, double width, double height, float[] xs, float[] ys, int offset, int n){
+		int i = addShape(shapeType, roiType, fillRule, argb, label, author, x, y, width, height);
+		ensureVertexCapacity(n);
+		System.arraycopy(xs, offset, _xs, _numVertices, n);
+		System.arraycopy(ys, offset, _ys, _numVertices, n);
+		_numVertices += n;
+		_vertexOffsets[i + 1] = _numVertices;
+		return i;
+	}
+
+	/**
+	 * This method copies annotation i of another batch (e.g., to select a subset of the annotations)
+	 *
+	 * @param source - batch with the annotation
+	 * @param i - index of the annotation in the source batch
+	 * @return index of the annotation in this batch
+	 */
+	public int add(AnnotationBatch source, int i){
+		int index = add(source._shapeTypes[i], source._roiTypes[i], source._fillRules[i], source._colors[i], source.getLabel(i), source.getAuthor(i),
+				source.getX(i), source.getY(i), source.getWidth(i), source.getHeight(i), source._xs, source._ys, source.getVertexOffset(i), source.getNumVertices(i));
+		_ids[index] = source._ids[i];
+		return index;
+	}
+
+	/**
+	 * This method cleans up the labels of all annotations as AnnotationLoader.cleanupLabels
+	 * (see LabelDictionary.cleanupLabel). The labels that become equal share one class id.
+	 */
+	public void cleanupLabels(){
+		ArrayList<String> labels = _labels;
+		_labels = new ArrayList<String>(labels.size());
+		_labelIndex = new HashMap<String, Integer>();
+		// the class ids keep the order of the first occurrence
+		int[] classIds = new int[labels.size()];
+		for(int c = 0; c < labels.size(); c++){
+			classIds[c] = intern(_labels, _labelIndex, LabelDictionary.cleanupLabel(labels.get(c)));
+		}
+		for(int i = 0; i < _size; i++){
+			_classIds[i] = classIds[_classIds[i]];
+		}
+	}
+
+	/**
+	 * This is a helper method that appends the per-annotation values
+	 */
+	private int addShape(byte shapeType, int roiType, int fillRule, int argb, String label, String author, double x, double y, double width, double height){
+		if(_size == _shapeTypes.length){
+			int capacity = 2 * _size;
+			_shapeTypes = Arrays.copyOf(_shapeTypes, capacity);
+			_roiTypes = Arrays.copyOf(_roiTypes, capacity);
+			_fillRules = Arrays.copyOf(_fillRules, capacity);
+			_classIds = Arrays.copyOf(_classIds, capacity);
+			_authorIds = Arrays.copyOf(_authorIds, capacity);
+			_colors = Arrays.copyOf(_colors, capacity);
+			_ids = Arrays.copyOf(_ids, capacity);
+			_bounds = Arrays.copyOf(_bounds, 4 * capacity);
+			_vertexOffsets = Arrays.copyOf(_vertexOffsets, capacity + 1);
+		}
+		int i = _size++;
+		_shapeTypes[i] = shapeType;
+		_roiTypes[i] = (byte) roiType;
+		_fillRules[i] = (byte) fillRule;
+		_classIds[i] = intern(_labels, _labelIndex, label == null ? "" : label);
+		_authorIds[i] = intern(_authors, _authorIndex, author == null ? "" : author);
+		_colors[i] = argb;
+		_bounds[4 * i] = x;
+		_bounds[4 * i + 1] = y;
+		_bounds[4 * i + 2] = width;
+		_bounds[4 * i + 3] = height;
+		_vertexOffsets[i] = _numVertices;
+		_vertexOffsets[i + 1] = _numVertices;
+		return i;
+	}
+
+	private static int intern(ArrayList<String> values, HashMap<String, Integer> ids, String value){
+		Integer id = ids.get(value);
+		if(id == null){
+			id = values.size();
+			values.add(value);
+			ids.put(value, id);
+		}
+		return id;
+	}
+
+	private void ensureVertexCapacity(int n){
+		if(_numVertices + n > _xs.length){
+			int capacity = Math.max(_numVertices + n, 2 * _xs.length);
+			_xs = Arrays.copyOf(_xs, capacity);
+			_ys = Arrays.copyOf(_ys, capacity);
+		}
+	}
+
+	private void addVertex(float x, float y){
+		_xs[_numVertices] = x;
+		_ys[_numVertices] = y;
+		_numVertices++;
+	}
+
+	/////////////////////////////////////////////////////
+	public int size(){
+		return _size;
+	}
+	public byte getShapeType(int i){
+		return _shapeTypes[i];
+	}
+	public int getRoiType(int i){
+		return _roiTypes[i];
+	}
+	public int getFillRule(int i){
+		return _fillRules[i];
+	}
+	public int getColor(int i){
+		return _colors[i];
+	}
+	public int getClassId(int i){
+		return _classIds[i];
+	}
+	public String getLabel(int i){
+		return _labels.get(_classIds[i]);
+	}
+	public String getAuthor(int i){
+		return _authors.get(_authorIds[i]);
+	}
+	/**
+	 * @return WDZT id of annotation i or "" if it is not set
+	 */
+	public String getId(int i){
+		return _ids[i] == null ? "" : _ids[i];
+	}
+	public void setId(int i, String id){
+		_ids[i] = id;
+	}
+	/**
+	 * @return shape name of annotation i (Annotation.RECTANGLE, CIRCLE or FREEHAND as in toAnnotation)
+	 */
+	public String getShapeName(int i){
+		switch(_shapeTypes[i]){
+		case SHAPE_RECTANGLE:
+			return Annotation.RECTANGLE;
+		case SHAPE_OVAL:
+			return Annotation.CIRCLE;
+		default:
+			return Annotation.FREEHAND;
+		}
+	}
+	/**
+	 * @return number of distinct labels (class ids are 0 ... getNumClasses()-1)
+	 */
+	public int getNumClasses(){
+		return _labels.size();
+	}
+	public String getClassLabel(int classId){
+		return _labels.get(classId);
+	}
+	public double getX(int i){
+		return _bounds[4 * i];
+	}
+	public double getY(int i){
+		return _bounds[4 * i + 1];
+	}
+	public double getWidth(int i){
+		return _bounds[4 * i + 2];
+	}
+	public double getHeight(int i){
+		return _bounds[4 * i + 3];
+	}
+	/**
+	 * @return offset of the first fill polygon vertex of annotation i in getXPool() and getYPool()
+	 */
+	public int getVertexOffset(int i){
+		return _vertexOffsets[i];
+	}
+	public int getNumVertices(int i){
+		return _vertexOffsets[i + 1] - _vertexOffsets[i];
+	}
+	public float[] getXPool(){
+		return _xs;
+	}
+	public float[] getYPool(){
+		return _ys;
+	}
+
+	/**
+	 * This method bulk-loads a packed R-tree over the bounding boxes of the annotations
+	 *
+	 * @return spatial index where the item i is the annotation i of the batch
+	 */
+	public PackedRTree buildSpatialIndex(){
+		double[] minX = new double[_size];
+		double[] minY = new double[_size];
+		double[] maxX = new double[_size];
+		double[] maxY = new double[_size];
+		for(int i = 0; i < _size; i++){
+			minX[i] = _bounds[4 * i];
+			minY[i] = _bounds[4 * i + 1];
+			maxX[i] = _bounds[4 * i] + _bounds[4 * i + 2];
+			maxY[i] = _bounds[4 * i + 1] + _bounds[4 * i + 3];
+		}
+		return new PackedRTree(minX, minY, maxX, maxY, _size);
+	}
+
+	/**
+	 * This method creates an Annotation object (ImageJ Roi) from annotation i
+	 *
+	 * @param i - index of the annotation in the batch
+	 * @return Annotation
+	 */
+	public Annotation toAnnotation(int i){
+		Roi roi;
+		String shapeName;
+		switch(_shapeTypes[i]){
+		case SHAPE_RECTANGLE:
+			roi = new Roi(getX(i), getY(i), getWidth(i), getHeight(i));
+			shapeName = Annotation.RECTANGLE;
+			break;
+		case SHAPE_OVAL:
+			roi = new OvalRoi(getX(i), getY(i), getWidth(i), getHeight(i));
+			shapeName = Annotation.CIRCLE;
+			break;
+		default:
+			int offset = _vertexOffsets[i];
+			int n = getNumVertices(i);
+			roi = new PolygonRoi(Arrays.copyOfRange(_xs, offset, offset + n), Arrays.copyOfRange(_ys, offset, offset + n), _roiTypes[i]);
+			shapeName = Annotation.FREEHAND;
+			break;
+		}
+		roi.setFillColor(new Color(_colors[i], true));
+		Annotation a = new Annotation(roi, getLabel(i));
+		a.setShapeName(shapeName);
+		a.author = getAuthor(i);
+		a.id = getId(i);
+		a.fillRule = _fillRules[i];
+		return a;
+	}
+
+	/**
+	 * This method creates the Annotation objects of all annotations in the batch
+	 *
+	 * @return array of Annotation objects in the batch order
+	 */
+	public ArrayList<Annotation> toAnnotations(){
+		ArrayList<Annotation> annotations = new ArrayList<Annotation>(_size);
+		for(int i = 0; i < _size; i++){
+			annotations.add(toAnnotation(i));
+		}
+		return annotations;
+	}
+
+}
@@ -0,0 +1,209 @@
+package datatype;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * This class is a dictionary of annotation labels that interns each label to an int id
+ * and maps the ids to mask gray values via a dense array.
+ *
+ * The labels are normalized once when they are added or first looked up:
+ * the clean-up rules of AnnotationLoader.cleanupLabels (punctuation except . and - becomes _,
+ * spaces are removed), case folding and removal of underscores.
+ * For example, "Paste_damage", "paste damage" and "PasteDamage" are the same label.
+ *
+ * The lookups of repeated label strings go through a hash index of the raw strings
+ * so that no new strings are created for them.
+ *
+ * Note: one instance should not be shared by multiple threads.
+ *
+ * @author pnb
+ *
+ */
+public class LabelDictionary {
+
+	// normalized label -> id
+	private HashMap<String, Integer> _index = new HashMap<String, Integer>();
+	// raw label -> id or -1 if the label is not in the dictionary
+	private HashMap<String, Integer> _rawIndex = new HashMap<String, Integer>();
+	// id -> label as it was first added
+	private ArrayList<String> _labels = new ArrayList<String>();
+	// id -> gray value
+	private int[] _grayValues = new int[16];
+
+	public LabelDictionary() {
+	}
+
+	/**
+	 * copy constructor
+	 * @param other - dictionary to copy
+	 */
+	public LabelDictionary(LabelDictionary other) {
+		_index.putAll(other._index);
+		_rawIndex.putAll(other._rawIndex);
+		_labels.addAll(other._labels);
+		_grayValues = Arrays.copyOf(other._grayValues, other._grayValues.length);
+	}
+
+	/**
+	 * This method applies the label clean-up rules in one pass:
+	 * punctuation except . and - is replaced by _ and spaces are removed
+	 *
+	 * @param label - raw label
+	 * @return cleaned label (the same instance if nothing changed)
+	 */
+	public static String cleanupLabel(String label){
+		if(label == null){
+			return null;
+		}
+		int length = label.length();
+		int i = 0;
+		while(i < length && !isCleanupChar(label.charAt(i))){
+			i++;
+		}
+		if(i == length){
+			return label;
+		}
+		StringBuilder sb = new StringBuilder(length);
+		sb.append(label, 0, i);
+		for(; i < length; i++){
+			char c = label.charAt(i);
+			if(c == ' '){
+				continue;
+			}
+			sb.append(isCleanupChar(c) ? '_' : c);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * This method converts a label to the key used for matching:
+	 * the clean-up rules, case folding and removal of underscores
+	 *
+	 * @param label - raw label
+	 * @return normalized label
+	 */
+	public static String normalize(String label){
+		if(label == null){
+			return "";
+		}
+		int length = label.length();
+		StringBuilder sb = new StringBuilder(length);
+		for(int i = 0; i < length; i++){
+			char c = label.charAt(i);
+			// spaces are removed and punctuation becomes an underscore, which is removed too
+			if(isCleanupChar(c)){
+				continue;
+			}
+			sb.append(Character.toLowerCase(Character.toUpperCase(c)));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * This is a helper method for the POSIX punctuation characters except . and -, and the space
+	 */
+	private static boolean isCleanupChar(char c){
+		if(c == ' '){
+			return true;
+		}
+		if(c == '.' || c == '-'){
+			return false;
+		}
+		return (c >= '!' && c <= '/') || (c >= ':' && c <= '@') || (c >= '[' && c <= '`') || (c >= '{' && c <= '~');
+	}
+
+	/**
+	 * This method finds the id of a label
+	 *
+	 * @param label - raw label
+	 * @return id or -1 if the label is not in the dictionary
+	 */
+	public int lookup(String label){
+		Integer id = _rawIndex.get(label);
+		if(id != null){
+			return id;
+		}
+		id = _index.get(normalize(label));
+		int result = (id == null) ? -1 : id;
+		_rawIndex.put(label, result);
+		return result;
+	}
+
+	/**
+	 * This method adds a label with its gray value or updates the gray value of the same label.
+	 * A different label with the same normalized label (e.g., "Paste_damage" and "pastedamage")
+	 * is a collision: it is reported and the dictionary is not changed.
+	 *
+	 * @param label - raw label
+	 * @param grayValue - mask gray value
+	 * @return id of the label or -1 if the label collides with another label of the dictionary
+	 */
+	public int put(String label, int grayValue){
+		int id = lookup(label);
+		if(id >= 0 && !_labels.get(id).equals(label)){
+			System.err.println("ERROR: the label " + label + " collides with the label " + _labels.get(id)
+					+ " (same normalized label " + normalize(label) + "), the gray value " + _grayValues[id] + " is kept");
+			return -1;
+		}
+		if(id < 0){
+			id = _labels.size();
+			_labels.add(label);
+			_index.put(normalize(label), id);
+			if(id == _grayValues.length){
+				_grayValues = Arrays.copyOf(_grayValues, 2 * id);
+			}
+			// the cached misses might be matched by the new label
+			_rawIndex.clear();
+			_rawIndex.put(label, id);
+		}
+		_grayValues[id] = grayValue;
+		return id;
+	}
+
+	/**
+	 * @param id - label id
+	 * @return gray value of the label
+	 */
+	public int getGrayValue(int id){
+		return _grayValues[id];
+	}
+
+	/**
+	 * @param id - label id
+	 * @return label as it was first added
+	 */
+	public String getLabel(int id){
+		return _labels.get(id);
+	}
+
+	public int size(){
+		return _labels.size();
+	}
+
+	public boolean isEmpty(){
+		return _labels.isEmpty();
+	}
+
+	public void clear(){
+		_index.clear();
+		_rawIndex.clear();
+		_labels.clear();
+	}
+
+	/**
+	 * This method returns the label to gray mapping as a HashMap
+	 * (a copy; changes of the map do not change the dictionary)
+	 *
+	 * @return HashMap of labels and gray values
+	 */
+	public HashMap<String, Integer> toLabel2grayMapping(){
+		HashMap<String, Integer> mapping = new HashMap<String, Integer>();
+		for(int id = 0; id < _labels.size(); id++){
+			mapping.put(_labels.get(id), _grayValues[id]);
+		}
+		return mapping;
+	}
+
+}
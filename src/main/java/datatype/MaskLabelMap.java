@@ -16,7 +16,7 @@ import java.util.Iterator;
 
 abstract public class MaskLabelMap {
 
-	private HashMap<String, Integer> _label2grayMapping = new HashMap<String, Integer>();
+	private LabelDictionary _labelDictionary = new LabelDictionary();
 
 	abstract public void MaskLabelMapInit(ArrayList<String> uniqueLabels);
 	
@@ -29,24 +29,39 @@ abstract public class MaskLabelMap {
 		int gray = 1;
 		for (Iterator<String> k = uniqueLabels.iterator(); k.hasNext();) {
 			String uniqueString = k.next();
-			_label2grayMapping.put(uniqueString, gray);
+			_labelDictionary.put(uniqueString, gray);
 			gray++;
 		}
 	}
 	/////////////////////////////////////////////////////
 	public HashMap<String, Integer> getLabel2grayMapping(){
-		return _label2grayMapping;
+		return _labelDictionary.toLabel2grayMapping();
+	}
+	public LabelDictionary getLabelDictionary(){
+		return _labelDictionary;
+	}
+	/**
+	 * This method finds the gray value of a label in constant time
+	 * (the label is matched ignoring case, spaces, underscores and punctuation)
+	 * 
+	 * @param label - annotation label
+	 * @return gray value or 0 (background) if the label is not in the mapping
+	 */
+	public int getGrayValue(String label){
+		int id = _labelDictionary.lookup(label);
+		return (id < 0) ? 0 : _labelDictionary.getGrayValue(id);
 	}
 	public void resetLabel2grayMapping(){
-		_label2grayMapping.clear();
+		_labelDictionary.clear();
 	}	
 	public String printLabel2grayMapping(){
-		if(_label2grayMapping.isEmpty()){
+		if(_labelDictionary.isEmpty()){
 			System.out.println("INFO: there is no Label 2 gray mapping ");
 			return "NA";
 		}
-		System.out.println("label 2 gray mapping: " + _label2grayMapping.toString());	
-		return ("label 2 gray mapping, " + _label2grayMapping.toString());
+		HashMap<String, Integer> mapping = _labelDictionary.toLabel2grayMapping();
+		System.out.println("label 2 gray mapping: " + mapping.toString());	
+		return ("label 2 gray mapping, " + mapping.toString());
 	}
 	
 }
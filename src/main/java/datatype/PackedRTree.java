@@ -0,0 +1,198 @@
+package datatype;
+
+import java.util.Arrays;
+
+/**
+ * This class is a static (bulk-loaded) packed R-tree over axis aligned bounding boxes.
+ * The tree is built once with the Sort-Tile-Recursive (STR) packing and it is stored
+ * in flat primitive arrays: the leaf level holds the item boxes and the upper levels hold
+ * the node boxes, each node covering NODE_CAPACITY consecutive entries of the level below.
+ *
+ * The items are identified by their index in the input arrays (e.g., the index of an annotation
+ * in the ArrayList of annotations) and the queries return the indices in ascending order
+ * so that the drawing order of the annotations is preserved.
+ *
+ * @author pnb
+ *
+ */
+public class PackedRTree {
+
+	public static final int NODE_CAPACITY = 16;
+
+	private int _numItems;
+	// 4 values per entry (minX, minY, maxX, maxY) for all levels (leaves first)
+	private double[] _boxes;
+	// item index (leaf level) or position of the first child (upper levels)
+	private int[] _indices;
+	// end position of each level in the entry arrays (the last level is the root)
+	private int[] _levelEnds;
+
+	/**
+	 * The constructor bulk-loads the tree
+	 *
+	 * @param minX - left of each item
+	 * @param minY - top of each item
+	 * @param maxX - right of each item
+	 * @param maxY - bottom of each item
+	 * @param numItems - number of items
+	 */
+	public PackedRTree(double[] minX, double[] minY, double[] maxX, double[] maxY, int numItems) {
+		_numItems = numItems;
+
+		// count the entries of all levels
+		int numLevels = 1;
+		int total = numItems;
+		int n = numItems;
+		while(n > 1){
+			n = (n + NODE_CAPACITY - 1) / NODE_CAPACITY;
+			total += n;
+			numLevels++;
+		}
+		_boxes = new double[4 * Math.max(total, 1)];
+		_indices = new int[Math.max(total, 1)];
+		_levelEnds = new int[numLevels];
+
+		for(int i = 0; i < numItems; i++){
+			_boxes[4 * i] = minX[i];
+			_boxes[4 * i + 1] = minY[i];
+			_boxes[4 * i + 2] = maxX[i];
+			_boxes[4 * i + 3] = maxY[i];
+			_indices[i] = i;
+		}
+		_levelEnds[0] = numItems;
+
+		// pack the levels bottom-up
+		int levelStart = 0;
+		int levelEnd = numItems;
+		int level = 1;
+		while(levelEnd - levelStart > 1){
+			sortTileRecursive(levelStart, levelEnd);
+			int parent = levelEnd;
+			for(int child = levelStart; child < levelEnd; child += NODE_CAPACITY){
+				int childEnd = Math.min(child + NODE_CAPACITY, levelEnd);
+				double x0 = Double.POSITIVE_INFINITY, y0 = Double.POSITIVE_INFINITY;
+				double x1 = Double.NEGATIVE_INFINITY, y1 = Double.NEGATIVE_INFINITY;
+				for(int c = child; c < childEnd; c++){
+					x0 = Math.min(x0, _boxes[4 * c]);
+					y0 = Math.min(y0, _boxes[4 * c + 1]);
+					x1 = Math.max(x1, _boxes[4 * c + 2]);
+					y1 = Math.max(y1, _boxes[4 * c + 3]);
+				}
+				_boxes[4 * parent] = x0;
+				_boxes[4 * parent + 1] = y0;
+				_boxes[4 * parent + 2] = x1;
+				_boxes[4 * parent + 3] = y1;
+				_indices[parent] = child;
+				parent++;
+			}
+			levelStart = levelEnd;
+			levelEnd = parent;
+			_levelEnds[level++] = levelEnd;
+		}
+	}
+
+	/**
+	 * @return number of items in the tree
+	 */
+	public int size(){
+		return _numItems;
+	}
+
+	/**
+	 * This method finds all items whose bounding boxes intersect the query rectangle
+	 * (the boundaries are inclusive)
+	 *
+	 * @param minX - left of the query rectangle
+	 * @param minY - top of the query rectangle
+	 * @param maxX - right of the query rectangle
+	 * @param maxY - bottom of the query rectangle
+	 * @return indices of the intersecting items in ascending order
+	 */
+	public int[] query(double minX, double minY, double maxX, double maxY){
+		if(_numItems == 0){
+			return new int[0];
+		}
+		int[] result = new int[16];
+		int numResults = 0;
+		// stack of (entry position, level)
+		int[] stack = new int[2 * 64];
+		int top = 0;
+		int rootLevel = _levelEnds.length - 1;
+		stack[top++] = _levelEnds[rootLevel] - 1;
+		stack[top++] = rootLevel;
+		while(top > 0){
+			int level = stack[--top];
+			int entry = stack[--top];
+			if(_boxes[4 * entry] > maxX || _boxes[4 * entry + 1] > maxY || _boxes[4 * entry + 2] < minX || _boxes[4 * entry + 3] < minY){
+				continue;
+			}
+			if(level == 0){
+				if(numResults == result.length){
+					result = Arrays.copyOf(result, 2 * numResults);
+				}
+				result[numResults++] = _indices[entry];
+				continue;
+			}
+			int childStart = _indices[entry];
+			int childEnd = Math.min(childStart + NODE_CAPACITY, _levelEnds[level - 1]);
+			if(top + 2 * (childEnd - childStart) > stack.length){
+				stack = Arrays.copyOf(stack, 2 * stack.length + 2 * NODE_CAPACITY);
+			}
+			for(int c = childStart; c < childEnd; c++){
+				stack[top++] = c;
+				stack[top++] = level - 1;
+			}
+		}
+		result = Arrays.copyOf(result, numResults);
+		Arrays.sort(result);
+		return result;
+	}
+
+	/**
+	 * This is a helper method that reorders the entries [start, end) of one level
+	 * with the STR packing: sort by the center x, cut into vertical slices of
+	 * sliceSize entries and sort each slice by the center y
+	 */
+	private void sortTileRecursive(int start, int end){
+		int n = end - start;
+		int numNodes = (n + NODE_CAPACITY - 1) / NODE_CAPACITY;
+		int numSlices = (int) Math.ceil(Math.sqrt(numNodes));
+		int sliceSize = numSlices * NODE_CAPACITY;
+
+		long[] keys = new long[n];
+		for(int i = 0; i < n; i++){
+			int e = start + i;
+			keys[i] = sortKey(_boxes[4 * e] + _boxes[4 * e + 2], i);
+		}
+		Arrays.sort(keys);
+		for(int s = 0; s < n; s += sliceSize){
+			int sliceEnd = Math.min(s + sliceSize, n);
+			for(int i = s; i < sliceEnd; i++){
+				int e = start + (int) keys[i];
+				keys[i] = sortKey(_boxes[4 * e + 1] + _boxes[4 * e + 3], (int) keys[i]);
+			}
+			Arrays.sort(keys, s, sliceEnd);
+		}
+
+		// apply the permutation
+		double[] boxes = Arrays.copyOfRange(_boxes, 4 * start, 4 * end);
+		int[] indices = Arrays.copyOfRange(_indices, start, end);
+		for(int i = 0; i < n; i++){
+			int from = (int) keys[i];
+			System.arraycopy(boxes, 4 * from, _boxes, 4 * (start + i), 4);
+			_indices[start + i] = indices[from];
+		}
+	}
+
+	/**
+	 * This is a helper method that packs a float sort value and a position into one long
+	 * so that the primitive sort orders by the value (the position is in the low 32 bits)
+	 */
+	private static long sortKey(double value, int position){
+		int bits = Float.floatToIntBits((float) value);
+		// map the float bits to a signed int with the same order
+		bits ^= (bits >> 31) & 0x7fffffff;
+		return ((long) bits << 32) | position;
+	}
+
+}
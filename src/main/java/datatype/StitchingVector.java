@@ -0,0 +1,227 @@
+package datatype;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * This class holds the tiles of one stitching vector (img-global-positions file)
+ * in flat primitive arrays: file name, correlation, global position in the mosaic and grid coordinates.
+ *
+ * The tiles can be found by the file name and by the grid coordinates (hash maps)
+ * and by the mosaic coordinates (packed R-tree over the tile rectangles).
+ * The spatial lookup requires the tile sizes that are not stored in the stitching vector
+ * (see setTileSize).
+ *
+ * @author pnb
+ *
+ */
+public class StitchingVector {
+
+	private int _numTiles = 0;
+	private String[] _fileNames = new String[16];
+	private double[] _correlations = new double[16];
+	// top left corner of each tile in the mosaic
+	private int[] _xs = new int[16];
+	private int[] _ys = new int[16];
+	// grid coordinates (column, row)
+	private int[] _gridXs = new int[16];
+	private int[] _gridYs = new int[16];
+	// tile sizes (0 until set)
+	private int[] _widths = new int[16];
+	private int[] _heights = new int[16];
+
+	// file name -> tile index
+	private HashMap<String, Integer> _nameIndex = new HashMap<String, Integer>();
+	// grid coordinates -> tile index
+	private HashMap<Long, Integer> _gridIndex = new HashMap<Long, Integer>();
+	// built on demand for the spatial lookup
+	private PackedRTree _spatialIndex = null;
+
+	/**
+	 * This method adds one tile
+	 *
+	 * @param fileName - file name of the tile image
+	 * @param correlation - stitching correlation
+	 * @param x - left of the tile in the mosaic
+	 * @param y - top of the tile in the mosaic
+	 * @param gridX - grid column
+	 * @param gridY - grid row
+	 * @return index of the tile
+	 */
+	public int add(String fileName, double correlation, int x, int y, int gridX, int gridY) {
+		if(_numTiles == _fileNames.length){
+			int capacity = 2 * _numTiles;
+			_fileNames = Arrays.copyOf(_fileNames, capacity);
+			_correlations = Arrays.copyOf(_correlations, capacity);
+			_xs = Arrays.copyOf(_xs, capacity);
+			_ys = Arrays.copyOf(_ys, capacity);
+			_gridXs = Arrays.copyOf(_gridXs, capacity);
+			_gridYs = Arrays.copyOf(_gridYs, capacity);
+			_widths = Arrays.copyOf(_widths, capacity);
+			_heights = Arrays.copyOf(_heights, capacity);
+		}
+		int index = _numTiles++;
+		_fileNames[index] = fileName;
+		_correlations[index] = correlation;
+		_xs[index] = x;
+		_ys[index] = y;
+		_gridXs[index] = gridX;
+		_gridYs[index] = gridY;
+		if(_nameIndex.put(fileName, index) != null){
+			System.err.println("ERROR: the file " + fileName + " is listed more than once in the stitching vector, using the last one");
+		}
+		_gridIndex.put(gridKey(gridX, gridY), index);
+		_spatialIndex = null;
+		return index;
+	}
+
+	public int size() {
+		return _numTiles;
+	}
+	public boolean isEmpty() {
+		return _numTiles == 0;
+	}
+	public String getFileName(int index) {
+		return _fileNames[index];
+	}
+	public double getCorrelation(int index) {
+		return _correlations[index];
+	}
+	public int getX(int index) {
+		return _xs[index];
+	}
+	public int getY(int index) {
+		return _ys[index];
+	}
+	public int getGridX(int index) {
+		return _gridXs[index];
+	}
+	public int getGridY(int index) {
+		return _gridYs[index];
+	}
+	public int getWidth(int index) {
+		return _widths[index];
+	}
+	public int getHeight(int index) {
+		return _heights[index];
+	}
+
+	/**
+	 * This method sets the same size for all tiles (e.g., read from the metadata of the first tile)
+	 */
+	public void setTileSize(int width, int height) {
+		Arrays.fill(_widths, 0, _numTiles, width);
+		Arrays.fill(_heights, 0, _numTiles, height);
+		_spatialIndex = null;
+	}
+
+	/**
+	 * This method sets the size of one tile
+	 */
+	public void setTileSize(int index, int width, int height) {
+		_widths[index] = width;
+		_heights[index] = height;
+		_spatialIndex = null;
+	}
+
+	/**
+	 * @param fileName - file name of a tile image
+	 * @return index of the tile or -1 if the file is not in the stitching vector
+	 */
+	public int indexOf(String fileName) {
+		Integer index = _nameIndex.get(fileName);
+		return index == null ? -1 : index;
+	}
+
+	/**
+	 * @param gridX - grid column
+	 * @param gridY - grid row
+	 * @return index of the tile or -1 if there is no tile at the grid coordinates
+	 */
+	public int indexOfGrid(int gridX, int gridY) {
+		Integer index = _gridIndex.get(gridKey(gridX, gridY));
+		return index == null ? -1 : index;
+	}
+
+	/**
+	 * This method finds the tiles that overlap a rectangle of the mosaic
+	 *
+	 * @param x - left of the rectangle
+	 * @param y - top of the rectangle
+	 * @param width - width of the rectangle
+	 * @param height - height of the rectangle
+	 * @return indices of the overlapping tiles in ascending order
+	 */
+	public int[] findTiles(double x, double y, double width, double height) {
+		int[] candidates = getSpatialIndex().query(x, y, x + width, y + height);
+		// the tile rectangles are half open [x, x + width)
+		int numTiles = 0;
+		for(int index : candidates){
+			if(_xs[index] < x + width && x < _xs[index] + _widths[index]
+					&& _ys[index] < y + height && y < _ys[index] + _heights[index]){
+				candidates[numTiles++] = index;
+			}
+		}
+		return Arrays.copyOf(candidates, numTiles);
+	}
+
+	/**
+	 * This method finds the tile that contains a point of the mosaic
+	 *
+	 * @param x - mosaic x coordinate
+	 * @param y - mosaic y coordinate
+	 * @return index of the first tile (in the order of the stitching vector) containing the point or -1
+	 */
+	public int findTile(double x, double y) {
+		for(int index : getSpatialIndex().query(x, y, x, y)){
+			if(x >= _xs[index] && x < _xs[index] + _widths[index] && y >= _ys[index] && y < _ys[index] + _heights[index]){
+				return index;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return width of the mosaic (right edge of the right most tile)
+	 */
+	public int getMosaicWidth() {
+		int width = 0;
+		for(int i = 0; i < _numTiles; i++){
+			width = Math.max(width, _xs[i] + _widths[i]);
+		}
+		return width;
+	}
+
+	/**
+	 * @return height of the mosaic (bottom edge of the bottom most tile)
+	 */
+	public int getMosaicHeight() {
+		int height = 0;
+		for(int i = 0; i < _numTiles; i++){
+			height = Math.max(height, _ys[i] + _heights[i]);
+		}
+		return height;
+	}
+
+	private PackedRTree getSpatialIndex() {
+		if(_spatialIndex == null){
+			double[] minX = new double[_numTiles];
+			double[] minY = new double[_numTiles];
+			double[] maxX = new double[_numTiles];
+			double[] maxY = new double[_numTiles];
+			for(int i = 0; i < _numTiles; i++){
+				minX[i] = _xs[i];
+				minY[i] = _ys[i];
+				maxX[i] = _xs[i] + _widths[i];
+				maxY[i] = _ys[i] + _heights[i];
+			}
+			_spatialIndex = new PackedRTree(minX, minY, maxX, maxY, _numTiles);
+		}
+		return _spatialIndex;
+	}
+
+	private static long gridKey(int gridX, int gridY) {
+		return ((long) gridX << 32) | (gridY & 0xffffffffL);
+	}
+
+}
@@ -1,12 +1,15 @@
 package io;
 import java.awt.Color;
+import java.awt.Rectangle;
+import java.awt.geom.Rectangle2D;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -17,9 +20,16 @@ import javax.json.Json;
 import javax.json.JsonArray;
 import javax.json.JsonNumber;
 import javax.json.JsonObject;
-import javax.json.JsonReader;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+import javax.json.stream.JsonParser;
+import javax.json.stream.JsonParser.Event;
+import javax.json.JsonException;
 
 import datatype.Annotation;
+import datatype.AnnotationBatch;
+import datatype.LabelDictionary;
+import datatype.PackedRTree;
 import ij.gui.OvalRoi;
 import ij.gui.PolygonRoi;
 import ij.gui.Roi;
@@ -52,63 +62,331 @@ import util.FileOper;
 public class AnnotationLoader {
 
 	ArrayList<Annotation> _annotations = new ArrayList<Annotation>();
+	// spatial index over the annotation bounding boxes (built on demand)
+	private PackedRTree _spatialIndex = null;
+	// shapes of the annotations when the spatial index was built (detects a changed annotation list)
+	private Roi[] _indexedShapes = null;
+	// compact container that receives the annotations instead of _annotations (see readJSONtoBatch)
+	private AnnotationBatch _batch = null;
+	// decoder of the freehand paths (re-used buffers)
+	private PathDecoder _pathDecoder = new PathDecoder();
+	// textual annotation of the last parsed shape (see parseTextualAnnotation)
+	private String _parsedId = "";
+	private String _parsedAuthor = "";
+	private String _parsedLabel = "";
 	private boolean _debug = false;
 
 	public ArrayList<Annotation> getAnnotations(){
 		return _annotations;
 	}
+
+	/**
+	 * This method returns the packed R-tree over the bounding boxes of the loaded annotations
+	 * The tree is built on the first call after reading a JSON file and it is rebuilt
+	 * if an annotation or its shape was added, removed or replaced since then
+	 * 
+	 * @return spatial index where the item i is the annotation getAnnotations().get(i)
+	 */
+	public PackedRTree getSpatialIndex(){
+		if(_spatialIndex == null || !isSpatialIndexCurrent()){
+			_spatialIndex = buildSpatialIndex(_annotations);
+			_indexedShapes = new Roi[_annotations.size()];
+			for(int i = 0; i < _indexedShapes.length; i++){
+				_indexedShapes[i] = _annotations.get(i).shape;
+			}
+		}
+		return _spatialIndex;
+	}
+
+	/**
+	 * This is a helper method that compares the annotation shapes with the indexed shapes by identity
+	 */
+	private boolean isSpatialIndexCurrent(){
+		if(_indexedShapes == null || _indexedShapes.length != _annotations.size()){
+			return false;
+		}
+		for(int i = 0; i < _indexedShapes.length; i++){
+			if(_annotations.get(i).shape != _indexedShapes[i]){
+				return false;
+			}
+		}
+		return true;
+	}
 	// reset all annotations
 	private void removeAllAnnotations(){
+		_spatialIndex = null;
+		_indexedShapes = null;
 		if( !_annotations.isEmpty()){
 			while(_annotations.size() != 0){
 				_annotations.remove(0);
 			}			
 		}
 	}
+	/**
+	 * This method reads a JSON file from WIPP into a compact AnnotationBatch
+	 * instead of an array of Annotation objects (useful for large collections of annotations)
+	 * 
+	 * @param JSONfileName - input JSON file
+	 * @return AnnotationBatch with the annotations in the file order
+	 * @throws IOException
+	 */
+	public AnnotationBatch readJSONtoBatch(String JSONfileName) throws IOException{
+		removeAllAnnotations();
+		_batch = new AnnotationBatch();
+		try {
+			parseJSONfromWIPP(JSONfileName);
+			return _batch;
+		} finally {
+			_batch = null;
+		}
+	}
+
 	// this method is never used. it was only prototyped as an alternative approach
 	public ArrayList<Annotation>  readJSONfromWIPP(String JSONfileName) throws IOException{
 		
 		removeAllAnnotations();
+		parseJSONfromWIPP(JSONfileName);
+		return _annotations;
+	}
+
+	/**
+	 * This is a helper method that parses the JSON objects and adds them as annotations
+	 * (to the AnnotationBatch if it is set, otherwise to the array of Annotation objects)
+	 */
+	private void parseJSONfromWIPP(String JSONfileName) throws IOException{
 		
-		// Create Json and print
-		InputStream is = new FileInputStream(JSONfileName);
-		String result = org.apache.commons.io.IOUtils.toString(is, "UTF-8");
-		//System.out.println(result);
-
-		JsonReader jsonReader = Json.createReader(new StringReader(result));
-		//javax.json.JsonStructure test = jsonReader.read();
-		//System.out.println("json struct = " + test.toString());
-		//json = json.replaceAll("\r?\n", "");
-
-		JsonObject jobj = jsonReader.readObject();        
-		//System.out.println(jobj);
-				
-		JsonArray arrObj = jobj.getJsonArray("objects");
-		for (int i = 0; i < arrObj.size(); i++)	{
-		    String objType = arrObj.getJsonObject(i).getString("type");    
-		    //System.out.println("objType i = " + i + " objType = " + objType);
-		    
-		    switch(objType){
-		    case "rect":	    	
-		    	addRectAnnotation(arrObj.getJsonObject(i));
-		    	break;
-		    case "circle":
-		    	addCircleAnnotation(arrObj.getJsonObject(i));
-		    	break;
-		    case "path":
-		      	addFreehandAnnotation(arrObj.getJsonObject(i));  	
-		    	break;	    	
-		    default:
-		    	System.err.println("ERROR: unrecognized type =" + objType);
-		    	break;
-		 
-		    
-		    }
+		// stream the file event by event: neither the whole file content
+		// nor the whole JSON tree is kept in memory, only one element of "objects" at a time
+		try (InputStream is = new BufferedInputStream(new FileInputStream(JSONfileName), 1 << 16);
+				JsonParser parser = Json.createParser(is)) {
+			if(!parser.hasNext() || parser.next() != Event.START_OBJECT){
+				System.err.println("ERROR: the JSON root is not an object in " + JSONfileName);
+				return;
+			}
+			while(parser.hasNext()){
+				Event event = parser.next();
+				if(event == Event.END_OBJECT){
+					// end of the root object
+					break;
+				}
+				if(event != Event.KEY_NAME){
+					continue;
+				}
+				String key = parser.getString();
+				event = parser.next();
+				if(key.equals("objects") && event == Event.START_ARRAY){
+					while(parser.hasNext()){
+						event = parser.next();
+						if(event == Event.END_ARRAY){
+							break;
+						}
+						if(event == Event.START_OBJECT){
+							addJSONObject(parser.getObject());
+						}else if(event == Event.START_ARRAY){
+							parser.skipArray();
+						}
+					}
+				}else if(event == Event.START_OBJECT){
+					parser.skipObject();
+				}else if(event == Event.START_ARRAY){
+					parser.skipArray();
+				}
+			}
+		} catch (JsonException ex) {
+			throw new IOException("Cannot parse the JSON file " + JSONfileName, ex);
 		}
-		
-		return _annotations;
 
 	}
+
+	/**
+	 * This is a helper method that adds one element of the "objects" array
+	 *  
+	 * @param obj - JsonObject of type "rect", "circle" or "path"
+	 */
+	private void addJSONObject(JsonObject obj){
+		String objType = obj.getString("type");    
+		//System.out.println("objType = " + objType);
+
+		switch(objType){
+		case "rect":	    	
+			addRectAnnotation(obj);
+			break;
+		case "circle":
+			addCircleAnnotation(obj);
+			break;
+		case "path":
+			addFreehandAnnotation(obj);  	
+			break;	    	
+		default:
+			System.err.println("ERROR: unrecognized type =" + objType);
+			break;
+		}
+	}
+
+	/**
+	 * This is a helper method that adds one parsed annotation
+	 */
+	private void addAnnotation(Annotation localAnnot){
+		if(_batch != null){
+			// the Annotation object is dropped and only the compact arrays are kept
+			_batch.add(localAnnot);
+		}else{
+			_annotations.add(localAnnot);
+		}
+	}
+	/**
+	 * This is a helper method that returns a numeric field with a single lookup
+	 *  
+	 * @param obj - JsonObject
+	 * @param key - name of the field
+	 * @param defaultValue - value returned if the field is missing or not a number
+	 * @return value of the field
+	 */
+	private static double getNumber(JsonObject obj, String key, double defaultValue){
+		JsonValue value = obj.get(key);
+		if(value instanceof JsonNumber){
+			return ((JsonNumber) value).doubleValue();
+		}
+		return defaultValue;
+	}
+
+	/**
+	 * This method decodes a fill or stroke color string of the WIPP JSON files
+	 * without regular expressions or intermediate strings.
+	 * Supported formats: "rgba(r,g,b,a)", "rgb(r,g,b)", "#rgb", "#rrggbb" and "#rrggbbaa".
+	 * 
+	 * Note: the rgba alpha value is converted as the other channels (value/255 as a float
+	 * passed to java.awt.Color) to keep the colors of the existing annotations unchanged,
+	 * e.g., "rgba(0,255,255,0.5)" has the alpha 0.
+	 *  
+	 * @param color - color string
+	 * @return packed ARGB color (as in Color.getRGB())
+	 */
+	public static int decodeColor(String color){
+		if(color == null){
+			throw new IllegalArgumentException("ERROR: missing color");
+		}
+		int length = color.length();
+		int pos = 0;
+		while(pos < length && color.charAt(pos) == ' '){
+			pos++;
+		}
+		if(pos < length && color.charAt(pos) == '#'){
+			return decodeHexColor(color, pos + 1, length);
+		}
+		if(color.startsWith("rgba", pos)){
+			pos += 4;
+		}else if(color.startsWith("rgb", pos)){
+			pos += 3;
+		}
+		int[] channels = {0, 0, 0, 255};
+		int numChannels = 0;
+		while(pos < length && numChannels < 4){
+			char c = color.charAt(pos);
+			if(c == '(' || c == ')' || c == ',' || c == ' '){
+				pos++;
+				continue;
+			}
+			// parse one number: [-]digits[.digits]
+			int start = pos;
+			boolean negative = false;
+			if(c == '-' || c == '+'){
+				negative = (c == '-');
+				pos++;
+			}
+			long mantissa = 0;
+			int scale = 0;
+			int digits = 0;
+			boolean fraction = false;
+			while(pos < length){
+				c = color.charAt(pos);
+				if(c >= '0' && c <= '9'){
+					if(digits < 18){
+						mantissa = 10 * mantissa + (c - '0');
+						digits++;
+						if(fraction){
+							scale++;
+						}
+					}else if(!fraction){
+						throw new IllegalArgumentException("ERROR: cannot decode color " + color);
+					}
+				}else if(c == '.' && !fraction){
+					fraction = true;
+				}else{
+					break;
+				}
+				pos++;
+			}
+			if(pos < length && (c == 'e' || c == 'E')){
+				// rare exponent notation: fall back to the standard parser
+				while(pos < length && color.charAt(pos) != ',' && color.charAt(pos) != ')' && color.charAt(pos) != ' '){
+					pos++;
+				}
+				try {
+					channels[numChannels++] = toColorComponent(Float.parseFloat(color.substring(start, pos)), color);
+				} catch (NumberFormatException ex) {
+					throw new IllegalArgumentException("ERROR: cannot decode color " + color, ex);
+				}
+				continue;
+			}
+			if(pos == start || (pos == start + 1 && (negative || color.charAt(start) == '+'))){
+				throw new IllegalArgumentException("ERROR: cannot decode color " + color);
+			}
+			double value = (scale == 0) ? mantissa : mantissa / POWERS_OF_TEN[scale];
+			channels[numChannels++] = toColorComponent((float) (negative ? -value : value), color);
+		}
+		if(numChannels < 3){
+			throw new IllegalArgumentException("ERROR: cannot decode color " + color);
+		}
+		return (channels[3] << 24) | (channels[0] << 16) | (channels[1] << 8) | channels[2];
+	}
+
+	private static final double[] POWERS_OF_TEN = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9,
+			1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18};
+
+	/**
+	 * This is a helper method that converts one channel value the same way as
+	 * new Color(value/255, ...) with float components
+	 */
+	private static int toColorComponent(float value, String color){
+		float f = value / 255;
+		int component = (int) (f * 255 + 0.5);
+		if(component < 0 || component > 255){
+			throw new IllegalArgumentException("ERROR: color value out of range in " + color);
+		}
+		return component;
+	}
+
+	/**
+	 * This is a helper method that decodes #rgb, #rrggbb and #rrggbbaa
+	 */
+	private static int decodeHexColor(String color, int start, int end){
+		while(end > start && color.charAt(end - 1) == ' '){
+			end--;
+		}
+		int n = end - start;
+		int value = 0;
+		for(int k = start; k < end; k++){
+			int digit = Character.digit(color.charAt(k), 16);
+			if(digit < 0){
+				throw new IllegalArgumentException("ERROR: cannot decode color " + color);
+			}
+			value = (value << 4) | digit;
+		}
+		switch(n){
+		case 3:
+			int r = (value >> 8) & 0xf, g = (value >> 4) & 0xf, b = value & 0xf;
+			return 0xff000000 | (r * 17 << 16) | (g * 17 << 8) | (b * 17);
+		case 6:
+			return 0xff000000 | value;
+		case 8:
+			// rrggbbaa -> aarrggbb
+			return (value << 24) | (value >>> 8);
+		default:
+			throw new IllegalArgumentException("ERROR: cannot decode color " + color);
+		}
+	}
+
 	/**
 	 * This method extract info from the circle object
 	 *  
@@ -117,7 +395,6 @@ public class AnnotationLoader {
 	private void addCircleAnnotation(JsonObject obj){
 		
 		//Setting up variables
-		Annotation localAnnot = new Annotation();
 		double x = 0;
 		double y = 0;
 		double height = 0;
@@ -126,72 +403,45 @@ public class AnnotationLoader {
 		//String shape = "circle";
 		
 		//Get x coordinate of upper left corner of circle
-		JsonNumber left = obj.getJsonNumber("left");
-		if(left != null){
-			x = obj.getJsonNumber("left").doubleValue();
-		}
+		x = getNumber(obj, "left", 0);
 
 		//Get y coordinate of upper left corner of circle
-		JsonNumber top = obj.getJsonNumber("top");
-		if(top != null){
-			y = obj.getJsonNumber("top").doubleValue();
-		}
+		y = getNumber(obj, "top", 0);
 
 		//Get width of circle
-		JsonNumber widthJ = obj.getJsonNumber("width");
-		if(widthJ != null){
-			width = obj.getJsonNumber("width").doubleValue();
-		}
+		width = getNumber(obj, "width", 0);
 
 		//Get height of circle
-		JsonNumber heightJ = obj.getJsonNumber("height");
-		if(heightJ != null ){
-			height = obj.getJsonNumber("height").doubleValue();
-		}
+		height = getNumber(obj, "height", 0);
 		
 		//Get fill color
-		String temp = obj.getString("fill");
-		temp = temp.replaceAll("[()]", "");
-		temp = temp.replaceAll("rgba", "");
-		String[] rgba = temp.split(",");
-		float[] frgba = new float[rgba.length];
-		int i = 0;
-		for (String st : rgba) {
-			float d = Float.parseFloat(st);
-			frgba[i] = d/255;
-			i++;
-		}
+		int argb = decodeColor(obj.getString("fill"));
 
 		//Find coordinates of center of circle for drawing purposes
 		double centerX = x-(width/2);
 		double centerY = y-(height/2);
 
+		// extract textual annotations
+		parseTextualAnnotation(obj);
+
+		if(_batch != null){
+			// the oval goes directly into the compact arrays without an ImageJ ROI
+			int index = _batch.addOval(centerX, centerY, width, height, argb, _parsedLabel, _parsedAuthor);
+			_batch.setId(index, _parsedId);
+			return;
+		}
+
 		//Create ROI and add to rois arraylist
+		Annotation localAnnot = new Annotation();
 		OvalRoi circle1 = new OvalRoi(centerX, centerY, width, height);
-		circle1.setFillColor(new Color(frgba[0], frgba[1], frgba[2], frgba[3]));
-		localAnnot.shape = (Roi)circle1.clone();
+		circle1.setFillColor(new Color(argb, true));
+		localAnnot.shape = circle1;
 		localAnnot.setShapeName(Annotation.CIRCLE);
+		localAnnot.label = _parsedLabel;
+		localAnnot.author = _parsedAuthor;
+		localAnnot.id = _parsedId;
 		
-		//ArrayList<Roi> rois = new ArrayList<Roi>();
-		
-		JsonObject wdzt = obj.getJsonObject("wdzt");
-		if(wdzt != null && !wdzt.isEmpty()){
-			JsonObject labels = wdzt.getJsonObject("labels");
-			if(labels != null && !labels.isEmpty()){
-				// if textual annotation is missing then skip and use the default values ""
-				String author = labels.getString("author");
-				if(author != null && !author.isEmpty())
-					localAnnot.author = author;
-					
-				String annotationText = labels.getString("annotationText");
-				if(annotationText != null && !annotationText.isEmpty())
-					localAnnot.label = annotationText;				
-			}
-			
-			
-		}
-		
-		_annotations.add(localAnnot);
+		addAnnotation(localAnnot);
 		if(_debug)
 			System.out.println("INFO: added annotation: circle = " + localAnnot.shape.toString() + "\n text=" + localAnnot.label);
 		
@@ -205,7 +455,6 @@ public class AnnotationLoader {
 	private void addRectAnnotation(JsonObject obj){
 		
 		//Setting up variables
-		Annotation localAnnot = new Annotation();
 		double x = 0;
 		double y = 0;
 		double height = 0;
@@ -214,64 +463,41 @@ public class AnnotationLoader {
 		//String shape = "circle";
 		
 		//Get x coordinate of upper left corner of circle
-		JsonNumber left = obj.getJsonNumber("left");
-		if(left != null){
-			x = obj.getJsonNumber("left").doubleValue();
-		}
+		x = getNumber(obj, "left", 0);
 
 		//Get y coordinate of upper left corner of circle
-		JsonNumber top = obj.getJsonNumber("top");
-		if(top != null){
-			y = obj.getJsonNumber("top").doubleValue();
-		}
+		y = getNumber(obj, "top", 0);
 
 		//Get width of circle
-		JsonNumber widthJ = obj.getJsonNumber("width");
-		if(widthJ != null){
-			width = obj.getJsonNumber("width").doubleValue();
-		}
+		width = getNumber(obj, "width", 0);
 
 		//Get height of circle
-		JsonNumber heightJ = obj.getJsonNumber("height");
-		if(heightJ != null ){
-			height = obj.getJsonNumber("height").doubleValue();
-		}
+		height = getNumber(obj, "height", 0);
 		
 		//Get fill color
-		String temp = obj.getString("fill");
-		temp = temp.replaceAll("[()]", "");
-		temp = temp.replaceAll("rgba", "");
-		String[] rgba = temp.split(",");
-		float[] frgba = new float[rgba.length];
-		int i = 0;
-		for (String st : rgba) {
-			float d = Float.parseFloat(st);
-			frgba[i] = d/255;
-			i++;
+		int argb = decodeColor(obj.getString("fill"));
+
+		// extract textual annotations
+		parseTextualAnnotation(obj);
+
+		if(_batch != null){
+			// the rectangle goes directly into the compact arrays without an ImageJ ROI
+			int index = _batch.addRectangle(x, y, width, height, argb, _parsedLabel, _parsedAuthor);
+			_batch.setId(index, _parsedId);
+			return;
 		}
 
 		// create the ROI 
+		Annotation localAnnot = new Annotation();
 		Roi rect1 = new Roi(x, y, width, height);
-		rect1.setFillColor(new Color(frgba[0],frgba[1],frgba[2],frgba[3]));
-		localAnnot.shape = (Roi)rect1.clone();
+		rect1.setFillColor(new Color(argb, true));
+		localAnnot.shape = rect1;
 		localAnnot.setShapeName(Annotation.RECTANGLE);
+		localAnnot.label = _parsedLabel;
+		localAnnot.author = _parsedAuthor;
+		localAnnot.id = _parsedId;
 
-		// extract textual annotations
-		JsonObject wdzt = obj.getJsonObject("wdzt");
-		if(wdzt != null && !wdzt.isEmpty()){
-			JsonObject labels = wdzt.getJsonObject("labels");
-			if(labels != null && !labels.isEmpty()){
-				// if textual annotation is missing then skip and use the default values ""
-				String author = labels.getString("author");
-				if(author != null && !author.isEmpty())
-					localAnnot.author = author;
-					
-				String annotationText = labels.getString("annotationText");
-				if(annotationText != null && !annotationText.isEmpty())
-					localAnnot.label = annotationText;				
-			}	
-		}
-		_annotations.add(localAnnot);
+		addAnnotation(localAnnot);
 		if(_debug)
 			System.out.println("INFO: added annotation: rect = " + localAnnot.shape.toString() + "\n text=" + localAnnot.label);
 		
@@ -285,139 +511,96 @@ public class AnnotationLoader {
 	private void addFreehandAnnotation(JsonObject obj){
 
 		//Setting up variables
-		Annotation localAnnot = new Annotation();
 		double x = 0;
 		double y = 0;
 		double height = 0;
 		double width = 0;
 
 		//Get x coordinate of upper left corner of circle
-		JsonNumber left = obj.getJsonNumber("left");
-		if(left != null){
-			x = obj.getJsonNumber("left").doubleValue();
-		}
+		x = getNumber(obj, "left", 0);
 
 		//Get y coordinate of upper left corner of circle
-		JsonNumber top = obj.getJsonNumber("top");
-		if(top != null){
-			y = obj.getJsonNumber("top").doubleValue();
-		}
+		y = getNumber(obj, "top", 0);
 
 		//Get width of circle
-		JsonNumber widthJ = obj.getJsonNumber("width");
-		if(widthJ != null){
-			width = obj.getJsonNumber("width").doubleValue();
-		}
+		width = getNumber(obj, "width", 0);
 
 		//Get height of circle
-		JsonNumber heightJ = obj.getJsonNumber("height");
-		if(heightJ != null ){
-			height = obj.getJsonNumber("height").doubleValue();
-		}
+		height = getNumber(obj, "height", 0);
 
 		//Get fill color
-		String temp = obj.getString("fill");
-		temp = temp.replaceAll("[()]", "");
-		temp = temp.replaceAll("rgba", "");
-		String[] rgba = temp.split(",");
-		float[] frgba = new float[rgba.length];
-		int i = 0;
-		for (String st : rgba) {
-			float d = Float.parseFloat(st);
-			frgba[i] = d/255;
-			i++;
-		}
+		int argb = decodeColor(obj.getString("fill"));
 
 
 		/////////////////////////// extract the free hand shape
-		ArrayList<Float> xpoints = new ArrayList<Float>();
-		ArrayList<Float> ypoints = new ArrayList<Float>();
-		//Resetting all fields and lists used
-		xpoints.clear();
-		ypoints.clear();
-
-		//End of list of coordinates marked with "z"
-		boolean zFound = false;
-		float val; 
-		String character = new String();
-		JsonArray bndpoints = obj.getJsonArray("path");
-		for (int j = 0; !zFound && j < bndpoints.size(); j++)	{
-			JsonArray pts = bndpoints.getJsonArray(j);
-			//System.out.println("path j = " + j + " pts.get(0) = " + pts.get(0).toString());
-			character = pts.get(0).toString().substring(1, pts.get(0).toString().length()-1);
-			//System.out.println("path j = " + j + " character = " + character);
-			switch(character){
-			case "M":
-				// beginning 
-				val = Float.parseFloat(pts.get(1).toString());
-				xpoints.add(val);
-				val = Float.parseFloat(pts.get(2).toString());
-				ypoints.add(val);
-				break;
-			case "Q":
-				// middle 
-				val = Float.parseFloat(pts.get(1).toString());
-				xpoints.add(val);
-				val = Float.parseFloat(pts.get(2).toString());
-				ypoints.add(val);				
-				break;
-			case "L":
-				// end
-				val = Float.parseFloat(pts.get(1).toString());
-				xpoints.add(val);
-				val = Float.parseFloat(pts.get(2).toString());
-				ypoints.add(val);	
-				// exit after the last point or change the for loop upper limit to -1
-				zFound = true;	
-				break;				
-			case "z":
-				// finished with path
-				zFound = true;	
-				break;			
-			}
-		}
+		// the M/Q/L/z commands are decoded into a polygon and the quadratic curves are flattened
+		int numPoints = _pathDecoder.decode(obj.getJsonArray("path"));
+		// the self-intersecting paths are filled according to the fill rule
+		int fillRule = Annotation.parseFillRule(obj.getString("fillRule", "evenodd"));
 
-		//Create arrays from arraylist (toArray didn't seem to work so I had to manually create the array)
-		i = 0;
-		float[] xpoints1 = new float[xpoints.size()];
-		for (Float f : xpoints) {
-			xpoints1[i++] = f;
-		}
+		// extract textual annotations
+		parseTextualAnnotation(obj);
 
-		i = 0;
-		float[] ypoints1 = new float[ypoints.size()];
-		for (Float f : ypoints) {
-			ypoints1[i++] = f;
+		if(_batch != null){
+			// the polygon goes directly into the compact arrays without an ImageJ ROI
+			int index = _batch.addPolygon(_pathDecoder.getXPoints(), _pathDecoder.getYPoints(), numPoints, Roi.FREEROI,
+					fillRule, argb, _parsedLabel, _parsedAuthor);
+			_batch.setId(index, _parsedId);
+			return;
 		}
 
 		//Create Freehand object Roi with arrays
-		PolygonRoi freehand = new PolygonRoi(xpoints1, ypoints1, Roi.FREEROI);
+		Annotation localAnnot = new Annotation();
+		PolygonRoi freehand = new PolygonRoi(Arrays.copyOf(_pathDecoder.getXPoints(), numPoints),
+				Arrays.copyOf(_pathDecoder.getYPoints(), numPoints), numPoints, Roi.FREEROI);
 
 		//Set color and add to rois arraylist
-		freehand.setFillColor(new Color(frgba[0],frgba[1],frgba[2],frgba[3]));
-		localAnnot.shape = (PolygonRoi)freehand.clone();
+		freehand.setFillColor(new Color(argb, true));
+		localAnnot.shape = freehand;
 		localAnnot.setShapeName(Annotation.FREEHAND);
+		localAnnot.fillRule = fillRule;
+		localAnnot.label = _parsedLabel;
+		localAnnot.author = _parsedAuthor;
+		localAnnot.id = _parsedId;
 
-		// extract textual annotations
+		addAnnotation(localAnnot);
+		if(_debug)
+			System.out.println("INFO: added annotation: path = " + localAnnot.shape.toString() + "\n text=" + localAnnot.label);
+
+	}
+
+	/**
+	 * This is a helper method that extracts the textual annotation ("wdzt" - "id", "author"
+	 * and "annotationText") of a shape into _parsedId, _parsedAuthor and _parsedLabel
+	 * (the missing values are "")
+	 *
+	 * @param obj - JsonObject of a shape
+	 */
+	private void parseTextualAnnotation(JsonObject obj){
+		_parsedId = "";
+		_parsedAuthor = "";
+		_parsedLabel = "";
 		JsonObject wdzt = obj.getJsonObject("wdzt");
 		if(wdzt != null && !wdzt.isEmpty()){
+			// the id is a string or a number depending on the annotation tool
+			JsonValue id = wdzt.get("id");
+			if(id instanceof JsonString){
+				_parsedId = ((JsonString) id).getString();
+			}else if(id instanceof JsonNumber){
+				_parsedId = id.toString();
+			}
 			JsonObject labels = wdzt.getJsonObject("labels");
 			if(labels != null && !labels.isEmpty()){
 				// if textual annotation is missing then skip and use the default values ""
 				String author = labels.getString("author");
 				if(author != null && !author.isEmpty())
-					localAnnot.author = author;
+					_parsedAuthor = author;
 
 				String annotationText = labels.getString("annotationText");
 				if(annotationText != null && !annotationText.isEmpty())
-					localAnnot.label = annotationText;				
-			}	
+					_parsedLabel = annotationText;
+			}
 		}
-
-		_annotations.add(localAnnot);
-		if(_debug)
-			System.out.println("INFO: added annotation: path = " + localAnnot.shape.toString() + "\n text=" + localAnnot.label);
-
 	}
 
 	/**
@@ -444,6 +627,76 @@ public class AnnotationLoader {
 		return labels;
 	}
 
+	/**
+	 * This method is the AnnotationBatch version of getUniqueLabels
+	 * @param batch - input annotations
+	 * @return unique labels in the order of their first occurrence
+	 */
+	public static ArrayList<String> getUniqueLabels(AnnotationBatch batch) {
+		// sanity check
+		if(batch == null || batch.size() < 1){
+			System.err.println("ERROR: missing annotations");
+			return null;
+		}
+		ArrayList<String> labels = new ArrayList<>();
+		boolean[] found = new boolean[batch.getNumClasses()];
+		for (int i = 0; i < batch.size(); i++) {
+			if (!found[batch.getClassId(i)]) {
+				found[batch.getClassId(i)] = true;
+				System.out.println(batch.getLabel(i) + ", " + new Color(batch.getColor(i), true).toString());
+				labels.add(batch.getLabel(i));
+			}
+		}
+		System.out.println("Number of unique labels = " + labels.size());
+		return labels;
+	}
+
+	/**
+	 * This method bulk-loads a packed R-tree (STR) from the bounding boxes of the annotations
+	 * 
+	 * @param annotations - an array of Annotation objects
+	 * @return spatial index where the item i is the annotation annotations.get(i)
+	 */
+	public static PackedRTree buildSpatialIndex(ArrayList<Annotation> annotations) {
+		int num = annotations.size();
+		double[] minX = new double[num];
+		double[] minY = new double[num];
+		double[] maxX = new double[num];
+		double[] maxY = new double[num];
+		for(int i = 0; i < num; i++){
+			// the float bounds are used since the polygon vertices can be sub-pixel
+			Rectangle2D.Double bounds = annotations.get(i).shape.getFloatBounds();
+			minX[i] = bounds.x;
+			minY[i] = bounds.y;
+			maxX[i] = bounds.x + bounds.width;
+			maxY[i] = bounds.y + bounds.height;
+		}
+		return new PackedRTree(minX, minY, maxX, maxY, num);
+	}
+
+	/**
+	 * This method selects the annotations whose bounding boxes intersect a rectangle
+	 * (e.g., for cropping annotations to a tile or for overlap checks)
+	 * 
+	 * @param annotations - an array of Annotation objects
+	 * @param spatialIndex - spatial index built from the annotations (see buildSpatialIndex)
+	 * @param region - rectangle in image coordinates
+	 * @return annotations intersecting the region in their original order
+	 */
+	public static ArrayList<Annotation> getAnnotationsInRectangle(ArrayList<Annotation> annotations, PackedRTree spatialIndex, Rectangle region) {
+		// sanity check
+		if(annotations == null || spatialIndex == null || region == null){
+			System.err.println("ERROR: missing annotations, spatialIndex or region");
+			return null;
+		}
+		int[] indices = spatialIndex.query(region.x, region.y, region.x + region.width, region.y + region.height);
+		ArrayList<Annotation> selected = new ArrayList<Annotation>(indices.length);
+		for(int i : indices){
+			selected.add(annotations.get(i));
+		}
+		return selected;
+	}
+
 	
 	public static boolean cleanupLabels(ArrayList<Annotation> annotations) {
 		// sanity check
@@ -453,11 +706,8 @@ public class AnnotationLoader {
 		}
 
 		for (Annotation a : annotations) {
-			// clean-up the annotations from , ;
-			a.label = a.label.replaceAll("[\\p{Punct}&&[^.-]]", "_");
-			a.label = a.label.replace(" ", "");
-			// this is specific to concrete since Steve included some arbitrary commas in the text
-			a.label = a.label.replace(",", "");
+			// clean-up the annotations from , ; (punctuation except . and - becomes _ and the spaces are removed)
+			a.label = LabelDictionary.cleanupLabel(a.label);
 		}
 		return true;
 	}
@@ -487,6 +737,29 @@ public class AnnotationLoader {
 
 	}
 
+	/**
+	 * This method is the AnnotationBatch version of getUniqueColors
+	 * @param batch - input annotations
+	 * @return ArrayList<Color>
+	 */
+	public static ArrayList<Color> getUniqueColors(AnnotationBatch batch) {
+		// sanity check
+		if(batch == null || batch.size() < 1){
+			System.err.println("ERROR: missing annotations");
+			return null;
+		}
+		ArrayList<Color> unique = new ArrayList<>();
+		for (int i = 0; i < batch.size(); i++) {
+			Color color = new Color(batch.getColor(i), true);
+			if (!unique.contains(color)) {
+				System.out.println(color + ", " + batch.getLabel(i));
+				unique.add(color);
+			}
+		}
+		System.out.println("Number of unique colors = " + unique.size());
+		return unique;
+	}
+
 	/**
 	 * This method returns a list of unique shapes
 	 * @param annotations - input array of Annotations objects
@@ -516,6 +789,28 @@ public class AnnotationLoader {
 		return unique;
 
 	}
+
+	/**
+	 * This method is the AnnotationBatch version of getUniqueShapes
+	 * @param batch - input annotations
+	 * @return ArrayList<String>
+	 */
+	public static ArrayList<String> getUniqueShapes(AnnotationBatch batch) {
+		// sanity check
+		if(batch == null || batch.size() < 1){
+			System.err.println("ERROR: missing annotations");
+			return null;
+		}
+		ArrayList<String> unique = new ArrayList<>();
+		for (int i = 0; i < batch.size(); i++) {
+			if (!unique.contains(batch.getShapeName(i))) {
+				System.out.println("shape name = " + batch.getShapeName(i));
+				unique.add(batch.getShapeName(i));
+			}
+		}
+		System.out.println("Number of unique shapes = " + unique.size());
+		return unique;
+	}
 	
 	/**
 	 * This method removes an element from an array list of Color objects
@@ -822,6 +1117,23 @@ public class AnnotationLoader {
 		return;	
 	}
 
+	/**
+	 * This method is the AnnotationBatch version of printArrayListAnnot
+	 * @param batch
+	 */
+	public static void printAnnotationBatch(AnnotationBatch batch){
+		// sanity check
+		if(batch == null || batch.size() < 1){
+			System.err.println("ERROR: missing annotations");
+			return;
+		}
+		for (int i = 0; i < batch.size(); i++) {
+			System.out.println("idx=" + i + ":shape=" + batch.getShapeName(i) + "[x=" + batch.getX(i) + ", y=" + batch.getY(i)
+					+ ", width=" + batch.getWidth(i) + ", height=" + batch.getHeight(i) + "], color " + new Color(batch.getColor(i), true).toString()
+					+ "\n annotationText= " + batch.getLabel(i) + ", author =" + batch.getAuthor(i));
+		}
+	}
+
 	public static void printArrayListColor(ArrayList<Color> colors){
 		// sanity check
 		if(colors == null || colors.size() < 1){
@@ -0,0 +1,420 @@
+package io;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import datatype.AnnotationBatch;
+
+/**
+ * This class is a binary store of all annotations of a folder with WIPP JSON files.
+ * The store is compiled once from the JSON files and then memory-mapped, so that
+ * the annotations of one frame (JSON file) are read without parsing any JSON.
+ *
+ * The file layout (big endian) is:
+ * header (magic, version, number of frames, strings, annotations and vertices),
+ * string table (labels and authors as UTF-8),
+ * frame index (path of the JSON file relative to the JSON folder, last modification time, length,
+ * first annotation, number of annotations),
+ * annotation records (shape type, ROI type, fill rule, label, author, WDZT id, color, bounding box, vertices),
+ * and the vertex pool (all x coordinates followed by all y coordinates).
+ *
+ * The store is bound to its JSON folder and a JSON file is looked up by its path relative to the folder,
+ * so that a file with the same name in another folder is not mistaken for a frame of the store.
+ * Each frame remembers the modification time and the length of its JSON file.
+ * A frame whose JSON file changed is reported as missing (readFrame returns null) and
+ * openOrCompile re-compiles the store when any JSON file of the folder changed, was added or removed.
+ *
+ * The store is read-only after opening and can be shared by multiple threads.
+ *
+ * @author pnb
+ *
+ */
+public class AnnotationStore {
+
+	private static final int MAGIC = 0x57415331; // "WAS1"
+	private static final int VERSION = 2;
+	private static final int HEADER_SIZE = 4 * 4 + 2 * 8;
+	private static final int ANNOTATION_RECORD_SIZE = 4 + 4 + 4 + 4 + 4 + 4 * 8 + 8 + 4;
+
+	private String _storeFileName;
+	// absolute normalized path of the JSON folder (the frames are keyed relative to it)
+	private Path _jsonFolder;
+	private MappedByteBuffer _buffer;
+	private String[] _strings;
+	private String[] _frameNames;
+	private long[] _frameModified;
+	private long[] _frameLengths;
+	private long[] _frameFirstAnnotation;
+	private int[] _frameNumAnnotations;
+	private HashMap<String, Integer> _frameIndex = new HashMap<String, Integer>();
+	private long _annotationsPosition;
+	private long _xPoolPosition;
+	private long _yPoolPosition;
+
+	private AnnotationStore() {
+	}
+
+	/**
+	 * This method opens the store if it is up to date with the JSON folder
+	 * and otherwise compiles it from the JSON files first
+	 *
+	 * @param inputJSONFileFolder - folder with WIPP JSON files
+	 * @param storeFileName - binary store file
+	 * @return AnnotationStore
+	 * @throws IOException
+	 */
+	public static AnnotationStore openOrCompile(String inputJSONFileFolder, String storeFileName) throws IOException {
+		File storeFile = new File(storeFileName);
+		if(storeFile.exists()){
+			try {
+				AnnotationStore store = open(storeFileName, inputJSONFileFolder);
+				if(store.isUpToDate()){
+					return store;
+				}
+				System.out.println("INFO: the annotation store is out of date: " + storeFileName);
+			} catch (IOException ex) {
+				System.err.println("ERROR: cannot open the annotation store " + storeFileName + ": " + ex.getMessage());
+			}
+		}
+		compile(inputJSONFileFolder, storeFileName);
+		return open(storeFileName, inputJSONFileFolder);
+	}
+
+	/**
+	 * This method compiles all JSON files of a folder into one binary store
+	 *
+	 * @param inputJSONFileFolder - folder with WIPP JSON files
+	 * @param storeFileName - output binary store file
+	 * @throws IOException
+	 */
+	public static void compile(String inputJSONFileFolder, String storeFileName) throws IOException {
+		File[] jsonFiles = listJSONFiles(inputJSONFileFolder);
+		if(jsonFiles == null){
+			throw new IOException("ERROR: cannot list the JSON folder " + inputJSONFileFolder);
+		}
+		AnnotationLoader loader = new AnnotationLoader();
+		ArrayList<String> strings = new ArrayList<String>();
+		HashMap<String, Integer> stringIds = new HashMap<String, Integer>();
+		AnnotationBatch[] batches = new AnnotationBatch[jsonFiles.length];
+		String[] frameKeys = new String[jsonFiles.length];
+		Path jsonFolder = getFolderPath(inputJSONFileFolder);
+		int numAnnotations = 0;
+		long numVertices = 0;
+		for(int f = 0; f < jsonFiles.length; f++){
+			batches[f] = loader.readJSONtoBatch(jsonFiles[f].getPath());
+			numAnnotations += batches[f].size();
+			for(int i = 0; i < batches[f].size(); i++){
+				numVertices += batches[f].getNumVertices(i);
+			}
+			frameKeys[f] = getFrameKey(jsonFolder, jsonFiles[f]);
+			internString(strings, stringIds, frameKeys[f]);
+		}
+		if(numVertices > Integer.MAX_VALUE / 8){
+			throw new IOException("ERROR: too many vertices for one annotation store: " + numVertices);
+		}
+
+		// write to a temporary file and move it over the store at the end
+		File storeFile = new File(storeFileName).getAbsoluteFile();
+		File tempFile = new File(storeFile.getPath() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 1 << 16))) {
+			// the labels, authors and ids of all frames
+			for(AnnotationBatch batch : batches){
+				for(int i = 0; i < batch.size(); i++){
+					internString(strings, stringIds, batch.getLabel(i));
+					internString(strings, stringIds, batch.getAuthor(i));
+					internString(strings, stringIds, batch.getId(i));
+				}
+			}
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(jsonFiles.length);
+			out.writeInt(strings.size());
+			out.writeLong(numAnnotations);
+			out.writeLong(numVertices);
+			for(String s : strings){
+				byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+				out.writeInt(bytes.length);
+				out.write(bytes);
+			}
+			long firstAnnotation = 0;
+			for(int f = 0; f < jsonFiles.length; f++){
+				out.writeInt(stringIds.get(frameKeys[f]));
+				out.writeLong(jsonFiles[f].lastModified());
+				out.writeLong(jsonFiles[f].length());
+				out.writeLong(firstAnnotation);
+				out.writeInt(batches[f].size());
+				firstAnnotation += batches[f].size();
+			}
+			long vertexOffset = 0;
+			for(AnnotationBatch batch : batches){
+				for(int i = 0; i < batch.size(); i++){
+					out.writeByte(batch.getShapeType(i));
+					out.writeByte(batch.getRoiType(i));
+					out.writeByte(batch.getFillRule(i));
+					out.writeByte(0);
+					out.writeInt(stringIds.get(batch.getLabel(i)));
+					out.writeInt(stringIds.get(batch.getAuthor(i)));
+					out.writeInt(stringIds.get(batch.getId(i)));
+					out.writeInt(batch.getColor(i));
+					out.writeDouble(batch.getX(i));
+					out.writeDouble(batch.getY(i));
+					out.writeDouble(batch.getWidth(i));
+					out.writeDouble(batch.getHeight(i));
+					out.writeLong(vertexOffset);
+					out.writeInt(batch.getNumVertices(i));
+					vertexOffset += batch.getNumVertices(i);
+				}
+			}
+			for(AnnotationBatch batch : batches){
+				float[] xs = batch.getXPool();
+				for(int i = 0; i < batch.size(); i++){
+					int offset = batch.getVertexOffset(i);
+					for(int v = 0; v < batch.getNumVertices(i); v++){
+						out.writeFloat(xs[offset + v]);
+					}
+				}
+			}
+			for(AnnotationBatch batch : batches){
+				float[] ys = batch.getYPool();
+				for(int i = 0; i < batch.size(); i++){
+					int offset = batch.getVertexOffset(i);
+					for(int v = 0; v < batch.getNumVertices(i); v++){
+						out.writeFloat(ys[offset + v]);
+					}
+				}
+			}
+		}
+		Files.move(tempFile.toPath(), storeFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		System.out.println("INFO: compiled " + jsonFiles.length + " JSON files with " + numAnnotations + " annotations into " + storeFileName);
+	}
+
+	/**
+	 * This method memory-maps an existing store
+	 *
+	 * @param storeFileName - binary store file
+	 * @param inputJSONFileFolder - folder with the WIPP JSON files the store was compiled from
+	 * @return AnnotationStore
+	 * @throws IOException if the file is not a valid store
+	 */
+	public static AnnotationStore open(String storeFileName, String inputJSONFileFolder) throws IOException {
+		AnnotationStore store = new AnnotationStore();
+		store._storeFileName = storeFileName;
+		store._jsonFolder = getFolderPath(inputJSONFileFolder);
+		try (RandomAccessFile file = new RandomAccessFile(storeFileName, "r");
+				FileChannel channel = file.getChannel()) {
+			if(channel.size() > Integer.MAX_VALUE){
+				throw new IOException("ERROR: the annotation store is too large to be mapped: " + storeFileName);
+			}
+			// the mapping stays valid after the channel is closed
+			store._buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		ByteBuffer buffer = store._buffer.duplicate();
+		if(buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC || buffer.getInt() != VERSION){
+			throw new IOException("ERROR: not an annotation store: " + storeFileName);
+		}
+		try {
+			int numFrames = buffer.getInt();
+			int numStrings = buffer.getInt();
+			long numAnnotations = buffer.getLong();
+			long numVertices = buffer.getLong();
+			store._strings = new String[numStrings];
+			for(int s = 0; s < numStrings; s++){
+				byte[] bytes = new byte[buffer.getInt()];
+				buffer.get(bytes);
+				store._strings[s] = new String(bytes, StandardCharsets.UTF_8);
+			}
+			store._frameNames = new String[numFrames];
+			store._frameModified = new long[numFrames];
+			store._frameLengths = new long[numFrames];
+			store._frameFirstAnnotation = new long[numFrames];
+			store._frameNumAnnotations = new int[numFrames];
+			for(int f = 0; f < numFrames; f++){
+				store._frameNames[f] = store._strings[buffer.getInt()];
+				store._frameModified[f] = buffer.getLong();
+				store._frameLengths[f] = buffer.getLong();
+				store._frameFirstAnnotation[f] = buffer.getLong();
+				store._frameNumAnnotations[f] = buffer.getInt();
+				store._frameIndex.put(store._frameNames[f], f);
+			}
+			store._annotationsPosition = buffer.position();
+			store._xPoolPosition = store._annotationsPosition + numAnnotations * ANNOTATION_RECORD_SIZE;
+			store._yPoolPosition = store._xPoolPosition + 4 * numVertices;
+			if(store._yPoolPosition + 4 * numVertices != buffer.limit()){
+				throw new IOException("ERROR: truncated annotation store: " + storeFileName);
+			}
+		} catch (RuntimeException ex) {
+			throw new IOException("ERROR: corrupted annotation store: " + storeFileName, ex);
+		}
+		return store;
+	}
+
+	/**
+	 * This method checks that the store contains exactly the JSON files of its folder
+	 * with the same modification times and lengths
+	 *
+	 * @return true if the store is up to date
+	 */
+	public boolean isUpToDate(){
+		File[] jsonFiles = listJSONFiles(_jsonFolder.toString());
+		if(jsonFiles == null || jsonFiles.length != _frameNames.length){
+			return false;
+		}
+		for(File file : jsonFiles){
+			Integer f = _frameIndex.get(getFrameKey(_jsonFolder, file));
+			if(f == null || !isFrameUpToDate(f, file)){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean isFrameUpToDate(int f, File jsonFile){
+		return jsonFile.lastModified() == _frameModified[f] && jsonFile.length() == _frameLengths[f];
+	}
+
+	/**
+	 * @return paths of the JSON files in the store relative to the JSON folder
+	 */
+	public String[] getFrameNames(){
+		return Arrays.copyOf(_frameNames, _frameNames.length);
+	}
+
+	public String getStoreFileName(){
+		return _storeFileName;
+	}
+
+	/**
+	 * This method reads the annotations of one frame
+	 *
+	 * @param JSONfileName - path to the JSON file of the frame
+	 * @return AnnotationBatch or null if the frame is not in the store or its JSON file changed
+	 */
+	public AnnotationBatch readFrame(String JSONfileName){
+		File jsonFile = new File(JSONfileName);
+		Integer f = _frameIndex.get(getFrameKey(_jsonFolder, jsonFile));
+		if(f == null || !isFrameUpToDate(f, jsonFile)){
+			return null;
+		}
+		// independent positions so that the store can be shared by multiple threads
+		ByteBuffer records = _buffer.duplicate();
+		FloatBuffer xPool = ((ByteBuffer) _buffer.duplicate().position((int) _xPoolPosition)).asFloatBuffer();
+		FloatBuffer yPool = ((ByteBuffer) _buffer.duplicate().position((int) _yPoolPosition)).asFloatBuffer();
+		records.position((int) (_annotationsPosition + _frameFirstAnnotation[f] * ANNOTATION_RECORD_SIZE));
+
+		AnnotationBatch batch = new AnnotationBatch();
+		float[] xs = new float[256];
+		float[] ys = new float[256];
+		for(int i = 0; i < _frameNumAnnotations[f]; i++){
+			byte shapeType = records.get();
+			int roiType = records.get();
+			int fillRule = records.get();
+			records.get();
+			String label = _strings[records.getInt()];
+			String author = _strings[records.getInt()];
+			String id = _strings[records.getInt()];
+			int argb = records.getInt();
+			double x = records.getDouble();
+			double y = records.getDouble();
+			double width = records.getDouble();
+			double height = records.getDouble();
+			int vertexOffset = (int) records.getLong();
+			int n = records.getInt();
+			if(n > xs.length){
+				xs = new float[n];
+				ys = new float[n];
+			}
+			xPool.position(vertexOffset);
+			xPool.get(xs, 0, n);
+			yPool.position(vertexOffset);
+			yPool.get(ys, 0, n);
+			int index = batch.add(shapeType, roiType, fillRule, argb, label, author, x, y, width, height, xs, ys, 0, n);
+			batch.setId(index, id);
+		}
+		return batch;
+	}
+
+	/**
+	 * This method reads the annotations of one frame from the store if it is up to date
+	 * and otherwise parses the JSON file (no Annotation objects are created in either case)
+	 *
+	 * @param store - annotation store or null
+	 * @param JSONfileName - path to the JSON file of the frame
+	 * @return AnnotationBatch with the annotations of the frame
+	 * @throws IOException
+	 */
+	public static AnnotationBatch readBatch(AnnotationStore store, String JSONfileName) throws IOException {
+		if(store != null){
+			AnnotationBatch batch = store.readFrame(JSONfileName);
+			if(batch != null){
+				return batch;
+			}
+			System.out.println("INFO: " + JSONfileName + " is not in the annotation store, parsing JSON");
+		}
+		return new AnnotationLoader().readJSONtoBatch(JSONfileName);
+	}
+
+	/**
+	 * This is a helper method that returns the key of a JSON file in the frame index:
+	 * the path relative to the JSON folder with / as separator (null if the file is outside of the folder)
+	 */
+	private static String getFrameKey(Path jsonFolder, File jsonFile){
+		Path relative = jsonFolder.relativize(jsonFile.toPath().toAbsolutePath().normalize());
+		if(relative.startsWith("..")){
+			return null;
+		}
+		StringBuilder key = new StringBuilder();
+		for(Path name : relative){
+			if(key.length() > 0){
+				key.append('/');
+			}
+			key.append(name.toString());
+		}
+		return key.toString();
+	}
+
+	private static Path getFolderPath(String inputJSONFileFolder){
+		return new File(inputJSONFileFolder).toPath().toAbsolutePath().normalize();
+	}
+
+	private static File[] listJSONFiles(String inputJSONFileFolder){
+		File[] files = new File(inputJSONFileFolder).listFiles();
+		if(files == null){
+			return null;
+		}
+		ArrayList<File> jsonFiles = new ArrayList<File>();
+		for(File file : files){
+			if(file.isFile() && file.getName().toLowerCase().endsWith(".json")){
+				jsonFiles.add(file);
+			}
+		}
+		File[] sorted = jsonFiles.toArray(new File[jsonFiles.size()]);
+		Arrays.sort(sorted);
+		return sorted;
+	}
+
+	private static int internString(ArrayList<String> strings, HashMap<String, Integer> ids, String value){
+		Integer id = ids.get(value);
+		if(id == null){
+			id = strings.size();
+			strings.add(value);
+			ids.put(value, id);
+		}
+		return id;
+	}
+
+}
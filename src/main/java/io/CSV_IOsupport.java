@@ -420,6 +420,25 @@ public class CSV_IOsupport {
 		return true;
 	}
 
+	/**
+	 * this method quotes a field of a CSV line if it contains the separator, a quote,
+	 * a line break or leading/trailing spaces (the quotes inside the field are doubled)
+	 * 
+	 * @param field
+	 *            - input field (null is an empty field)
+	 * @return - field that can be written into a CSV line
+	 */
+	public static String quoteField(String field) {
+		if (field == null) {
+			return "";
+		}
+		if (field.indexOf(',') < 0 && field.indexOf('"') < 0 && field.indexOf('\n') < 0
+				&& field.indexOf('\r') < 0 && field.trim().length() == field.length()) {
+			return field;
+		}
+		return "\"" + field.replace("\"", "\"\"") + "\"";
+	}
+
 	public static boolean AppendArray(double[] arr, String OutFileName)
 			throws IOException {
 		// sanity check
@@ -0,0 +1,248 @@
+package io;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+
+/**
+ * This class is a manifest of the generated masks that is stored in the metadata_files folder.
+ * For each frame it records the SHA-256 content hash of the input JSON file,
+ * the length and the modification time of the raw image, a hash of the settings
+ * (uniqueType, combineAllUnique, isMappingFixed and the fixed gray mapping),
+ * the output mask files and the lines of mappings.csv.
+ *
+ * A frame is up to date if all of the recorded inputs are unchanged and all of its
+ * output files still exist. Such frames are skipped when CMDlaunch is re-run incrementally.
+ *
+ * The manifest is a text file with one tab separated line per frame:
+ * JSON name, JSON hash, raw name, raw length, raw modification time, settings hash,
+ * number of outputs, outputs, number of mapping lines, mapping lines
+ *
+ * @author pnb
+ *
+ */
+public class MaskManifest {
+
+	public static final String MANIFEST_FILE_NAME = "manifest.tsv";
+
+	/**
+	 * This class is one frame of the manifest
+	 */
+	public static class Entry {
+		public String jsonName;
+		public String jsonHash;
+		public String rawName;
+		public long rawLength;
+		public long rawModified;
+		public String settingsHash;
+		public ArrayList<String> outputs = new ArrayList<String>();
+		public ArrayList<String> mappingLines = new ArrayList<String>();
+	}
+
+	private String _manifestFileName;
+	// JSON file name -> entry (in the order of the frames)
+	private LinkedHashMap<String, Entry> _entries = new LinkedHashMap<String, Entry>();
+
+	/**
+	 * This constructor creates an empty manifest of an output metadata folder
+	 * @param outMetadataFolder - folder with mappings.csv
+	 */
+	public MaskManifest(String outMetadataFolder) {
+		_manifestFileName = outMetadataFolder + File.separator + MANIFEST_FILE_NAME;
+	}
+
+	/**
+	 * This method loads the manifest of an output metadata folder (empty if there is none yet)
+	 *
+	 * @param outMetadataFolder - folder with mappings.csv
+	 * @return MaskManifest
+	 */
+	public static MaskManifest load(String outMetadataFolder) {
+		MaskManifest manifest = new MaskManifest(outMetadataFolder);
+		File file = new File(manifest._manifestFileName);
+		if(!file.exists()){
+			return manifest;
+		}
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+			String line;
+			while((line = reader.readLine()) != null){
+				String[] fields = line.split("\t", -1);
+				try {
+					Entry entry = new Entry();
+					int k = 0;
+					entry.jsonName = fields[k++];
+					entry.jsonHash = fields[k++];
+					entry.rawName = fields[k++];
+					entry.rawLength = Long.parseLong(fields[k++]);
+					entry.rawModified = Long.parseLong(fields[k++]);
+					entry.settingsHash = fields[k++];
+					int numOutputs = Integer.parseInt(fields[k++]);
+					entry.outputs.addAll(Arrays.asList(fields).subList(k, k + numOutputs));
+					k += numOutputs;
+					int numLines = Integer.parseInt(fields[k++]);
+					entry.mappingLines.addAll(Arrays.asList(fields).subList(k, k + numLines));
+					manifest._entries.put(entry.jsonName, entry);
+				} catch (RuntimeException ex) {
+					System.err.println("ERROR: skipping a malformed manifest line in " + manifest._manifestFileName);
+				}
+			}
+		} catch (IOException ex) {
+			System.err.println("ERROR: cannot read the manifest " + manifest._manifestFileName + ", all frames will be processed");
+			manifest._entries.clear();
+		}
+		return manifest;
+	}
+
+	/**
+	 * This method creates the entry of a frame with the current state of its inputs
+	 * (the outputs and mapping lines are added after processing the frame)
+	 *
+	 * @param JSONfileName - input JSON file
+	 * @param rawFileName - matching raw image file
+	 * @param settingsHash - hash of the settings (see hashString)
+	 * @return Entry
+	 * @throws IOException
+	 */
+	public static Entry createEntry(String JSONfileName, String rawFileName, String settingsHash) throws IOException {
+		Entry entry = new Entry();
+		File jsonFile = new File(JSONfileName);
+		File rawFile = new File(rawFileName);
+		entry.jsonName = jsonFile.getName();
+		entry.jsonHash = hashFile(jsonFile);
+		entry.rawName = rawFile.getName();
+		entry.rawLength = rawFile.length();
+		entry.rawModified = rawFile.lastModified();
+		entry.settingsHash = settingsHash;
+		return entry;
+	}
+
+	/**
+	 * This method finds the recorded entry of a frame if the frame is up to date
+	 *
+	 * @param current - entry with the current state of the inputs (see createEntry)
+	 * @return recorded entry (with the outputs and mapping lines) or null if the frame has to be processed
+	 */
+	public Entry findUpToDate(Entry current) {
+		Entry recorded = _entries.get(current.jsonName);
+		if(recorded == null
+				|| !recorded.jsonHash.equals(current.jsonHash)
+				|| !recorded.rawName.equals(current.rawName)
+				|| recorded.rawLength != current.rawLength
+				|| recorded.rawModified != current.rawModified
+				|| !recorded.settingsHash.equals(current.settingsHash)){
+			return null;
+		}
+		for(String output : recorded.outputs){
+			if(!new File(output).isFile()){
+				return null;
+			}
+		}
+		return recorded;
+	}
+
+	/**
+	 * @return number of frames in the manifest
+	 */
+	public int size() {
+		return _entries.size();
+	}
+
+	/**
+	 * This method records a processed (or skipped) frame
+	 * @param entry - entry with outputs and mapping lines
+	 */
+	public void put(Entry entry) {
+		_entries.put(entry.jsonName, entry);
+	}
+
+	/**
+	 * This method saves the manifest (written to a temporary file and moved over the manifest)
+	 * @throws IOException
+	 */
+	public void save() throws IOException {
+		File file = new File(_manifestFileName);
+		File tempFile = new File(_manifestFileName + ".tmp");
+		try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), StandardCharsets.UTF_8))) {
+			for(Entry entry : _entries.values()){
+				StringBuilder sb = new StringBuilder();
+				sb.append(entry.jsonName).append('\t').append(entry.jsonHash).append('\t');
+				sb.append(entry.rawName).append('\t').append(entry.rawLength).append('\t').append(entry.rawModified).append('\t');
+				sb.append(entry.settingsHash).append('\t').append(entry.outputs.size());
+				for(String output : entry.outputs){
+					sb.append('\t').append(clean(output));
+				}
+				sb.append('\t').append(entry.mappingLines.size());
+				for(String line : entry.mappingLines){
+					sb.append('\t').append(clean(line));
+				}
+				writer.write(sb.toString());
+				writer.newLine();
+			}
+		}
+		Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private static String clean(String value){
+		return value.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+	}
+
+	/**
+	 * This method computes the SHA-256 hash of the content of a file
+	 *
+	 * @param file - input file
+	 * @return hexadecimal hash
+	 * @throws IOException
+	 */
+	public static String hashFile(File file) throws IOException {
+		MessageDigest digest = createDigest();
+		byte[] buffer = new byte[1 << 16];
+		try (InputStream is = new FileInputStream(file)) {
+			int n;
+			while((n = is.read(buffer)) > 0){
+				digest.update(buffer, 0, n);
+			}
+		}
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * This method computes the SHA-256 hash of a string (e.g., of the settings)
+	 *
+	 * @param value - input string
+	 * @return hexadecimal hash
+	 */
+	public static String hashString(String value) {
+		return toHex(createDigest().digest(value.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	private static MessageDigest createDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException ex) {
+			throw new RuntimeException("SHA-256 is not available", ex);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder(2 * bytes.length);
+		for(byte b : bytes){
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return sb.toString();
+	}
+
+}
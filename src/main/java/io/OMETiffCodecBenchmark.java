@@ -0,0 +1,349 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package io;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import ij.ImagePlus;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import loci.formats.FormatException;
+import loci.formats.ome.OMEXMLMetadata;
+import maskgen.MaskFromAnnotations;
+import ome.xml.model.enums.PixelType;
+import ome.xml.model.primitives.PositiveInteger;
+import util.BioFormatsUtils;
+import util.FileOper;
+import util.FilePairIndex;
+import util.OMEMetadataCache;
+
+/**
+ * This class measures the encoding throughput and the output size of the OMETiffTileWriter
+ * codec settings (none, PackBits, LZW and deflate with several levels, with and without the predictor)
+ * on a folder of 8 or 16-bit mask images. The masks can also be generated from the data/ samples
+ * (the JSON annotations, stitching vectors and raw images, see generateMasks): one 8-bit label mask
+ * and one 16-bit instance mask per frame.
+ *
+ * The masks are read once into memory and written to the output folder with each setting,
+ * so the measured time includes the compression and the file output of the storage
+ * where the output folder is located (e.g., a local disk versus a network file system).
+ * The throughput is the uncompressed mask size divided by the best time of the repeated runs.
+ *
+ * @author pnb
+ *
+ */
+public class OMETiffCodecBenchmark {
+
+	/**
+	 * This is a helper class that holds one codec setting
+	 */
+	public static class CodecSetting {
+		public int compression;
+		public int compressionLevel;
+		public int predictor;
+
+		public CodecSetting(int compression, int compressionLevel, int predictor){
+			this.compression = compression;
+			this.compressionLevel = compressionLevel;
+			this.predictor = predictor;
+		}
+
+		public String toString(){
+			String name = OMETiffTileWriter.getCompressionName(compression);
+			if(compression == OMETiffTileWriter.COMPRESSION_DEFLATE){
+				name += "-" + compressionLevel;
+			}
+			if(predictor == OMETiffTileWriter.PREDICTOR_HORIZONTAL){
+				name += "+predictor";
+			}
+			return name;
+		}
+	}
+
+	/**
+	 * This is a helper class that holds one mask image in memory
+	 */
+	private static class MaskImage {
+		String name;
+		OMEXMLMetadata metadata;
+		byte[] pixels;
+		int width;
+		int height;
+		int bytesPerPixel;
+	}
+
+	// sub-folders of the data/ folder used by generateMasks
+	public static final String DATA_JSON_FOLDER = "JSON_orig";
+	public static final String DATA_STITCHING_FOLDER = "StitchingVectors";
+	public static final String DATA_RAW_FOLDER = "wippModifiedCor";
+
+	private ArrayList<MaskImage> _masks = new ArrayList<MaskImage>();
+	private long _numRawBytes = 0;
+
+	/**
+	 * This method returns the codec settings compared by default
+	 *
+	 * @return list of codec settings
+	 */
+	public static ArrayList<CodecSetting> getDefaultSettings(){
+		ArrayList<CodecSetting> settings = new ArrayList<CodecSetting>();
+		settings.add(new CodecSetting(OMETiffTileWriter.COMPRESSION_NONE, 0, OMETiffTileWriter.PREDICTOR_NONE));
+		settings.add(new CodecSetting(OMETiffTileWriter.COMPRESSION_PACKBITS, 0, OMETiffTileWriter.PREDICTOR_NONE));
+		settings.add(new CodecSetting(OMETiffTileWriter.COMPRESSION_LZW, 0, OMETiffTileWriter.PREDICTOR_NONE));
+		settings.add(new CodecSetting(OMETiffTileWriter.COMPRESSION_LZW, 0, OMETiffTileWriter.PREDICTOR_HORIZONTAL));
+		settings.add(new CodecSetting(OMETiffTileWriter.COMPRESSION_DEFLATE, 1, OMETiffTileWriter.PREDICTOR_NONE));
+		settings.add(new CodecSetting(OMETiffTileWriter.COMPRESSION_DEFLATE, 6, OMETiffTileWriter.PREDICTOR_NONE));
+		settings.add(new CodecSetting(OMETiffTileWriter.COMPRESSION_DEFLATE, 9, OMETiffTileWriter.PREDICTOR_NONE));
+		settings.add(new CodecSetting(OMETiffTileWriter.COMPRESSION_DEFLATE, 6, OMETiffTileWriter.PREDICTOR_HORIZONTAL));
+		return settings;
+	}
+
+	/**
+	 * This method reads the 8 and 16-bit single channel TIFF images of a folder into memory
+	 *
+	 * @param maskFolder - folder with the mask images
+	 * @return boolean about the execution success (at least one mask was read)
+	 */
+	public boolean loadMasks(String maskFolder){
+		File directory = new File(maskFolder);
+		if(!directory.exists()){
+			System.err.println("ERROR: mask folder does not exist: " + maskFolder);
+			return false;
+		}
+		Collection<String> dirFiles = FileOper.readFileDirectory(maskFolder);
+		if(dirFiles.isEmpty()){
+			System.err.println("ERROR: mask folder is empty: " + maskFolder);
+			return false;
+		}
+		Collection<String> sortedMaskFiles = FileOper.sort(FileOper.selectFileType(dirFiles, ".tif"), FileOper.SORT_ASCENDING);
+		for(String fileName : sortedMaskFiles){
+			ImagePlus imp = BioFormatsUtils.readImage(fileName);
+			if(imp == null){
+				System.err.println("ERROR: cannot read the mask " + fileName);
+				continue;
+			}
+			ImageProcessor ip = imp.getProcessor();
+			if(!(ip instanceof ByteProcessor) && !(ip instanceof ShortProcessor)){
+				System.err.println("ERROR: only 8 and 16-bit single channel masks are supported, skipping " + fileName);
+				continue;
+			}
+			addMask(new File(fileName).getName(), OMEMetadataCache.getMetadata(fileName), ip);
+		}
+		if(_masks.isEmpty()){
+			System.err.println("ERROR: no 8 or 16-bit TIFF masks found in " + maskFolder);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * This method generates the label masks (8-bit) and the instance masks (16-bit) of the annotated frames
+	 * of a data folder into maskFolder/labels and maskFolder/instances and reads them into memory.
+	 * The JSON files are paired with the raw images by the stitching vectors as in MaskFromAnnotations.main.
+	 *
+	 * @param dataFolder - folder with the sub-folders DATA_JSON_FOLDER, DATA_STITCHING_FOLDER and DATA_RAW_FOLDER (e.g., data/)
+	 * @param maskFolder - output folder for the generated masks and their mappings
+	 * @return boolean about the execution success
+	 */
+	public boolean generateMasks(String dataFolder, String maskFolder){
+		String inputJSONFileFolder = dataFolder + File.separator + DATA_JSON_FOLDER;
+		String inputStitchingFileFolder = dataFolder + File.separator + DATA_STITCHING_FOLDER;
+		String inputRawFileFolder = dataFolder + File.separator + DATA_RAW_FOLDER;
+		String outMetadataFolder = maskFolder + File.separator + "metadata";
+		String[] outImagesFolders = {maskFolder + File.separator + "labels", maskFolder + File.separator + "instances"};
+		int[] uniqueTypes = {MaskFromAnnotations.UNIQUE_TYPE_LABEL, MaskFromAnnotations.UNIQUE_TYPE_INSTANCE};
+		try {
+			LinkedHashMap<String, String> renamedJSONFiles = StitchingLoader.mapAnnotationFilenames(inputJSONFileFolder, inputStitchingFileFolder);
+			if(renamedJSONFiles == null){
+				System.err.println("ERROR: cannot pair the JSON files of " + inputJSONFileFolder + " with the stitching vectors of " + inputStitchingFileFolder);
+				return false;
+			}
+			new File(outMetadataFolder).mkdirs();
+			for(int t = 0; t < uniqueTypes.length; t++){
+				new File(outImagesFolders[t]).mkdirs();
+				MaskFromAnnotations maskGenerator = new MaskFromAnnotations();
+				maskGenerator.renamedJSONFiles = new HashMap<String, String>();
+				for(Map.Entry<String, String> entry : renamedJSONFiles.entrySet()){
+					maskGenerator.renamedJSONFiles.put(FilePairIndex.getName(entry.getKey()), entry.getValue());
+				}
+				if(!maskGenerator.CMDlaunch(inputJSONFileFolder, uniqueTypes[t], true, false, inputRawFileFolder, outImagesFolders[t], outMetadataFolder)){
+					System.err.println("ERROR: cannot generate the masks from " + dataFolder);
+					return false;
+				}
+			}
+		} catch (IOException | FormatException ex) {
+			System.err.println("ERROR: cannot generate the masks from " + dataFolder + ": " + ex.getMessage());
+			return false;
+		}
+		for(String outImagesFolder : outImagesFolders){
+			if(!loadMasks(outImagesFolder)){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * This method adds one mask image held in memory
+	 *
+	 * @param name - name of the mask
+	 * @param metadata - OME metadata of the mask (the pixel type is set by the processor)
+	 * @param ip - 8-bit or 16-bit image processor
+	 */
+	public void addMask(String name, OMEXMLMetadata metadata, ImageProcessor ip){
+		MaskImage mask = new MaskImage();
+		mask.name = name;
+		mask.width = ip.getWidth();
+		mask.height = ip.getHeight();
+		if(ip instanceof ShortProcessor){
+			// the writer expects the little endian bytes of the 16-bit pixels
+			short[] values = (short[]) ip.getPixels();
+			mask.bytesPerPixel = 2;
+			mask.pixels = new byte[values.length * 2];
+			for(int i = 0; i < values.length; i++){
+				mask.pixels[2 * i] = (byte) values[i];
+				mask.pixels[2 * i + 1] = (byte) (values[i] >>> 8);
+			}
+			metadata.setPixelsType(PixelType.UINT16, 0);
+			metadata.setPixelsSignificantBits(new PositiveInteger(16), 0);
+		}else{
+			mask.bytesPerPixel = 1;
+			mask.pixels = (byte[]) ip.getPixels();
+			metadata.setPixelsType(PixelType.UINT8, 0);
+			metadata.setPixelsSignificantBits(new PositiveInteger(8), 0);
+		}
+		metadata.setPixelsSizeC(new PositiveInteger(1), 0);
+		mask.metadata = metadata;
+		_masks.add(mask);
+		_numRawBytes += mask.pixels.length;
+	}
+
+	/**
+	 * This method writes all masks with one codec setting and returns the number of written bytes
+	 *
+	 * @param setting - codec setting
+	 * @param tileSize - width and height of the tiles
+	 * @param outFolder - folder of the output files (the files are deleted after the run)
+	 * @return total size of the output files
+	 * @throws IOException
+	 */
+	public long writeMasks(CodecSetting setting, int tileSize, String outFolder) throws IOException {
+		long numBytes = 0;
+		for(MaskImage mask : _masks){
+			String outFileName = outFolder + File.separator + "benchmark_" + mask.name;
+			// the writer updates the TiffData of its metadata
+			OMEXMLMetadata metadata = OMEMetadataCache.copyMetadata(mask.metadata);
+			try (OMETiffTileWriter writer = new OMETiffTileWriter(outFileName, metadata, tileSize,
+					setting.compression, setting.compressionLevel, setting.predictor, 1)) {
+				byte[] tileBuffer = new byte[0];
+				for(int tileY = 0; tileY < mask.height; tileY += tileSize){
+					for(int tileX = 0; tileX < mask.width; tileX += tileSize){
+						int effTileSizeX = Math.min(tileSize, mask.width - tileX);
+						int effTileSizeY = Math.min(tileSize, mask.height - tileY);
+						int rowBytes = effTileSizeX * mask.bytesPerPixel;
+						if(tileBuffer.length != rowBytes * effTileSizeY){
+							tileBuffer = new byte[rowBytes * effTileSizeY];
+						}
+						for(int y = 0; y < effTileSizeY; y++){
+							System.arraycopy(mask.pixels, ((tileY + y) * mask.width + tileX) * mask.bytesPerPixel, tileBuffer, y * rowBytes, rowBytes);
+						}
+						writer.writeTile(tileX, tileY, tileBuffer, effTileSizeX, effTileSizeY);
+					}
+				}
+			}
+			File outFile = new File(outFileName);
+			numBytes += outFile.length();
+			if(!outFile.delete()){
+				System.err.println("ERROR: cannot delete the benchmark file " + outFileName);
+			}
+		}
+		return numBytes;
+	}
+
+	/**
+	 * This method runs all codec settings and tile sizes and prints one line per combination
+	 *
+	 * @param settings - codec settings
+	 * @param tileSizes - tile sizes (multiples of 16)
+	 * @param numRepeats - number of timed runs per combination (the best run is reported)
+	 * @param outFolder - folder of the output files
+	 * @return boolean about the execution success
+	 */
+	public boolean run(ArrayList<CodecSetting> settings, int[] tileSizes, int numRepeats, String outFolder) {
+		double rawMB = _numRawBytes / (1024.0 * 1024.0);
+		System.out.println(String.format(Locale.ROOT, "INFO: %d masks, %.1f MB uncompressed, output folder %s", _masks.size(), rawMB, outFolder));
+		System.out.println(String.format(Locale.ROOT, "%-20s %8s %12s %14s %8s", "codec", "tile", "MB/s", "bytes", "ratio"));
+		try {
+			for(int tileSize : tileSizes){
+				for(CodecSetting setting : settings){
+					// the first run warms up the JIT and the file system cache
+					long numBytes = writeMasks(setting, tileSize, outFolder);
+					long bestTime = Long.MAX_VALUE;
+					for(int r = 0; r < numRepeats; r++){
+						long start = System.nanoTime();
+						numBytes = writeMasks(setting, tileSize, outFolder);
+						bestTime = Math.min(bestTime, System.nanoTime() - start);
+					}
+					System.out.println(String.format(Locale.ROOT, "%-20s %8d %12.1f %14d %8.2f", setting, tileSize,
+							rawMB / (bestTime * 1e-9), numBytes, (double) _numRawBytes / numBytes));
+				}
+			}
+		} catch (IOException | IllegalArgumentException ex) {
+			System.err.println("ERROR: benchmark failed: " + ex.getMessage());
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * This is the main for the codec benchmark
+	 * @param args - String maskFolder or data folder (with the sub-folder DATA_JSON_FOLDER, the masks are generated
+	 * into outFolder/masks), String outFolder, optional comma separated tile sizes (default 1024),
+	 * optional number of repeats (default 3)
+	 */
+	public static void main(String[] args) {
+		if(args == null || args.length < 2) {
+			System.err.println("ERROR: input arguments are String maskFolder or dataFolder, String outFolder, [tile sizes, e.g., 256,512,1024], [number of repeats]");
+			return;
+		}
+		String[] tileSizeStr = (args.length > 2 ? args[2] : "1024").split(",");
+		int[] tileSizes = new int[tileSizeStr.length];
+		for(int i = 0; i < tileSizes.length; i++){
+			tileSizes[i] = Integer.parseInt(tileSizeStr[i].trim());
+		}
+		int numRepeats = args.length > 3 ? Math.max(1, Integer.parseInt(args[3])) : 3;
+
+		File outFolder = new File(args[1]);
+		if(!outFolder.mkdirs() && !outFolder.exists()){
+			System.err.println("ERROR: cannot create the output folder " + args[1]);
+			return;
+		}
+		OMETiffCodecBenchmark benchmark = new OMETiffCodecBenchmark();
+		if(new File(args[0], DATA_JSON_FOLDER).isDirectory()){
+			if(!benchmark.generateMasks(args[0], args[1] + File.separator + "masks")){
+				return;
+			}
+		}else if(!benchmark.loadMasks(args[0])){
+			return;
+		}
+		benchmark.run(getDefaultSettings(), tileSizes, numRepeats, args[1]);
+	}
+
+}
@@ -0,0 +1,822 @@
+package io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.Deflater;
+
+import loci.common.services.ServiceException;
+import loci.formats.FormatException;
+import loci.formats.codec.CodecOptions;
+import loci.formats.codec.LZWCodec;
+import loci.formats.ome.OMEXMLMetadata;
+import ome.xml.model.enums.PixelType;
+import ome.xml.model.primitives.NonNegativeInteger;
+import util.OMEMetadataCache;
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+
+/**
+ * This class writes a single plane 8, 16 or 32-bit (unsigned) tiled OME-TIFF file where the tiles
+ * are compressed concurrently on a shared worker pool and appended to the file
+ * in the submission order as they complete (the offset of each tile is recorded).
+ * The IFD is written at the end of the file and the header is patched to point to it,
+ * so the file is streamed with one pass and memory is bounded by the tiles in flight.
+ *
+ * The OME-XML metadata is stored in the ImageDescription tag of the IFD (as in OMETiffWriter)
+ * and BigTIFF is used when the image could exceed the 4GB limit of the classic TIFF.
+ *
+ * Optionally, reduced resolutions (each half the size of the previous one) are written
+ * as SubIFDs of the full resolution IFD (OME-TIFF pyramid). The reduced tiles are computed
+ * in the same pass from the written tiles by a label preserving 2x2 downsampling
+ * (the most frequent value, ties are resolved by the top left pixel), so no new mask values are created.
+ * One strip of tile rows is buffered per reduced resolution while the tiles are written in the row order.
+ *
+ * The pixels of the 16 and 32-bit images (e.g., instance masks) are passed as little endian bytes.
+ *
+ * The tiles are stored uncompressed or compressed by LZW, deflate (zlib with a selectable level)
+ * or PackBits. LZW and deflate can be combined with the horizontal differencing predictor.
+ *
+ * @author peter bajcsy
+ *
+ */
+public class OMETiffTileWriter implements Closeable {
+
+	// TIFF compression tag values
+	public static final int COMPRESSION_NONE = 1;
+	public static final int COMPRESSION_LZW = 5;
+	public static final int COMPRESSION_DEFLATE = 8;
+	public static final int COMPRESSION_PACKBITS = 32773;
+
+	// TIFF predictor tag values
+	public static final int PREDICTOR_NONE = 1;
+	public static final int PREDICTOR_HORIZONTAL = 2;
+
+	public static final int DEFAULT_DEFLATE_LEVEL = 6;
+
+	// TIFF tags
+	private static final int TAG_NEW_SUBFILE_TYPE = 254;
+	private static final int TAG_IMAGE_WIDTH = 256;
+	private static final int TAG_IMAGE_LENGTH = 257;
+	private static final int TAG_BITS_PER_SAMPLE = 258;
+	private static final int TAG_COMPRESSION = 259;
+	private static final int TAG_PHOTOMETRIC = 262;
+	private static final int TAG_IMAGE_DESCRIPTION = 270;
+	private static final int TAG_SAMPLES_PER_PIXEL = 277;
+	private static final int TAG_PLANAR_CONFIGURATION = 284;
+	private static final int TAG_PREDICTOR = 317;
+	private static final int TAG_TILE_WIDTH = 322;
+	private static final int TAG_TILE_LENGTH = 323;
+	private static final int TAG_TILE_OFFSETS = 324;
+	private static final int TAG_TILE_BYTE_COUNTS = 325;
+	private static final int TAG_SUB_IFDS = 330;
+	private static final int TAG_SAMPLE_FORMAT = 339;
+
+	// TIFF field types
+	private static final int TYPE_ASCII = 2;
+	private static final int TYPE_SHORT = 3;
+	private static final int TYPE_LONG = 4;
+	private static final int TYPE_IFD = 13;
+	private static final int TYPE_LONG8 = 16;
+	private static final int TYPE_IFD8 = 18;
+
+	// worker pool shared by all writers (e.g., per-class outputs and concurrent frames)
+	private static ExecutorService _compressionPool = null;
+	private static int _numCompressionThreads = Runtime.getRuntime().availableProcessors();
+
+	private String _outFileName;
+	private RandomAccessFile _out;
+	private boolean _bigTiff;
+	private int _tileSize;
+	private int _bytesPerPixel;
+	private int _compression;
+	private int _compressionLevel;
+	private int _predictor;
+	private byte[] _description;
+
+	// number of resolutions (1 = full resolution only)
+	private int _numResolutions;
+	// image size and number of tiles per resolution
+	private int[] _widths;
+	private int[] _heights;
+	private int[] _nXTiles;
+	private int[] _nYTiles;
+	// tile offsets and byte counts per resolution
+	private long[][] _tileOffsets;
+	private long[][] _tileByteCounts;
+	// reduced resolution -> strip row -> strip being downsampled
+	private HashMap<Integer, ReducedStrip>[] _strips;
+	// tiles submitted for compression but not yet written (in the submission order)
+	private ArrayDeque<PendingTile> _pending = new ArrayDeque<PendingTile>();
+	private int _maxPending;
+
+	/**
+	 * This is a helper class that holds a tile in flight
+	 */
+	private static class PendingTile {
+		int resolution;
+		int tileIndex;
+		Future<byte[]> compressed;
+
+		PendingTile(int resolution, int tileIndex, Future<byte[]> compressed){
+			this.resolution = resolution;
+			this.tileIndex = tileIndex;
+			this.compressed = compressed;
+		}
+	}
+
+	/**
+	 * This is a helper class that holds one row of tiles of a reduced resolution
+	 * until all of the tiles of the previous resolution covering it were downsampled
+	 */
+	private static class ReducedStrip {
+		byte[] pixels;
+		int height;
+		int received = 0;
+		int expected;
+
+		ReducedStrip(int width, int height, int bytesPerPixel, int expected){
+			this.pixels = new byte[width * height * bytesPerPixel];
+			this.height = height;
+			this.expected = expected;
+		}
+	}
+
+	/**
+	 * The constructor creates the output file and writes the TIFF header
+	 *
+	 * @param outFileName - path to the output OME-TIFF file
+	 * @param metadata - OME metadata of the UINT8, UINT16 or UINT32 single channel image (the TiffData is set by the writer)
+	 * @param tileSize - width and height of the tiles (multiple of 16)
+	 * @param compression - COMPRESSION_NONE, COMPRESSION_LZW, COMPRESSION_DEFLATE or COMPRESSION_PACKBITS
+	 * @throws IOException
+	 */
+	public OMETiffTileWriter(String outFileName, OMEXMLMetadata metadata, int tileSize, int compression) throws IOException {
+		this(outFileName, metadata, tileSize, compression, 1);
+	}
+
+	/**
+	 * The constructor creates the output file with reduced resolutions and writes the TIFF header
+	 *
+	 * @param outFileName - path to the output OME-TIFF file
+	 * @param metadata - OME metadata of the UINT8, UINT16 or UINT32 single channel image (the TiffData is set by the writer)
+	 * @param tileSize - width and height of the tiles (multiple of 16)
+	 * @param compression - COMPRESSION_NONE, COMPRESSION_LZW, COMPRESSION_DEFLATE or COMPRESSION_PACKBITS
+	 * @param numResolutions - number of resolutions including the full resolution (1 = no pyramid)
+	 * @throws IOException
+	 */
+	public OMETiffTileWriter(String outFileName, OMEXMLMetadata metadata, int tileSize, int compression, int numResolutions) throws IOException {
+		this(outFileName, metadata, tileSize, compression, DEFAULT_DEFLATE_LEVEL, PREDICTOR_NONE, numResolutions);
+	}
+
+	/**
+	 * The constructor creates the output file with the selected codec settings and writes the TIFF header
+	 *
+	 * @param outFileName - path to the output OME-TIFF file
+	 * @param metadata - OME metadata of the UINT8, UINT16 or UINT32 single channel image (the TiffData is set by the writer)
+	 * @param tileSize - width and height of the tiles (multiple of 16)
+	 * @param compression - COMPRESSION_NONE, COMPRESSION_LZW, COMPRESSION_DEFLATE or COMPRESSION_PACKBITS
+	 * @param compressionLevel - deflate level from 1 (fastest) to 9 (smallest), ignored by the other codecs
+	 * @param predictor - PREDICTOR_NONE or PREDICTOR_HORIZONTAL (LZW and deflate only)
+	 * @param numResolutions - number of resolutions including the full resolution (1 = no pyramid)
+	 * @throws IOException
+	 */
+	@SuppressWarnings("unchecked")
+	public OMETiffTileWriter(String outFileName, OMEXMLMetadata metadata, int tileSize, int compression, int compressionLevel, int predictor, int numResolutions) throws IOException {
+		if(tileSize <= 0 || tileSize % 16 != 0){
+			throw new IllegalArgumentException("ERROR: the TIFF tile size must be a multiple of 16, tileSize=" + tileSize);
+		}
+		if(compression != COMPRESSION_NONE && compression != COMPRESSION_LZW && compression != COMPRESSION_DEFLATE && compression != COMPRESSION_PACKBITS){
+			throw new IllegalArgumentException("ERROR: unsupported TIFF compression=" + compression);
+		}
+		if(compression == COMPRESSION_DEFLATE && (compressionLevel < 1 || compressionLevel > 9)){
+			throw new IllegalArgumentException("ERROR: the deflate level must be between 1 and 9, compressionLevel=" + compressionLevel);
+		}
+		if(predictor != PREDICTOR_NONE && predictor != PREDICTOR_HORIZONTAL){
+			throw new IllegalArgumentException("ERROR: unsupported TIFF predictor=" + predictor);
+		}
+		if(predictor == PREDICTOR_HORIZONTAL && compression != COMPRESSION_LZW && compression != COMPRESSION_DEFLATE){
+			throw new IllegalArgumentException("ERROR: the predictor requires the LZW or deflate compression, compression=" + compression);
+		}
+		if(numResolutions < 1){
+			throw new IllegalArgumentException("ERROR: the number of resolutions must be at least 1, numResolutions=" + numResolutions);
+		}
+		_outFileName = outFileName;
+		_tileSize = tileSize;
+		_bytesPerPixel = getBytesPerPixel(metadata);
+		_compression = compression;
+		_compressionLevel = compressionLevel;
+		_predictor = predictor;
+		_numResolutions = numResolutions;
+		_widths = new int[numResolutions];
+		_heights = new int[numResolutions];
+		_nXTiles = new int[numResolutions];
+		_nYTiles = new int[numResolutions];
+		_tileOffsets = new long[numResolutions][];
+		_tileByteCounts = new long[numResolutions][];
+		_strips = new HashMap[numResolutions];
+		long numTilePixels = 0;
+		for(int r = 0; r < numResolutions; r++){
+			// each reduced resolution is half of the previous one (rounded up)
+			_widths[r] = r == 0 ? metadata.getPixelsSizeX(0).getValue() : (_widths[r - 1] + 1) / 2;
+			_heights[r] = r == 0 ? metadata.getPixelsSizeY(0).getValue() : (_heights[r - 1] + 1) / 2;
+			_nXTiles[r] = (_widths[r] + tileSize - 1) / tileSize;
+			_nYTiles[r] = (_heights[r] + tileSize - 1) / tileSize;
+			_tileOffsets[r] = new long[_nXTiles[r] * _nYTiles[r]];
+			_tileByteCounts[r] = new long[_nXTiles[r] * _nYTiles[r]];
+			_strips[r] = new HashMap<Integer, ReducedStrip>();
+			numTilePixels += (long) _nXTiles[r] * _nYTiles[r] * tileSize * tileSize;
+		}
+		long numTileBytes = numTilePixels * _bytesPerPixel;
+		_maxPending = 2 * _numCompressionThreads;
+
+		// the single plane is stored in the first IFD of this file
+		metadata.setPixelsBigEndian(Boolean.FALSE, 0);
+		metadata.setTiffDataIFD(new NonNegativeInteger(0), 0, 0);
+		metadata.setTiffDataPlaneCount(new NonNegativeInteger(1), 0, 0);
+		metadata.setTiffDataFirstC(new NonNegativeInteger(0), 0, 0);
+		metadata.setTiffDataFirstZ(new NonNegativeInteger(0), 0, 0);
+		metadata.setTiffDataFirstT(new NonNegativeInteger(0), 0, 0);
+		_description = (getOMEXML(metadata) + "\0").getBytes(StandardCharsets.UTF_8);
+
+		// LZW and PackBits can expand incompressible data, hence the margin for the classic TIFF 4GB limit
+		long worstCase = numTileBytes * 3 / 2 + _description.length + 1024 * 1024;
+		_bigTiff = worstCase > 0xFFFFFFFFL;
+
+		_out = new RandomAccessFile(outFileName, "rw");
+		_out.setLength(0);
+		writeHeader(0);
+	}
+
+	/**
+	 * This method returns the number of bytes per pixel of the image of the metadata
+	 *
+	 * @param metadata - OME metadata
+	 * @return 1, 2 or 4 (1 if the pixel type is not set)
+	 */
+	public static int getBytesPerPixel(OMEXMLMetadata metadata){
+		PixelType pixelType = metadata.getPixelsType(0);
+		if(pixelType == null || pixelType == PixelType.UINT8){
+			return 1;
+		}
+		if(pixelType == PixelType.UINT16){
+			return 2;
+		}
+		if(pixelType == PixelType.UINT32){
+			return 4;
+		}
+		throw new IllegalArgumentException("ERROR: unsupported pixel type of the tiled writer = " + pixelType);
+	}
+
+	/**
+	 * This method converts a codec name to the TIFF compression value
+	 *
+	 * @param name - none, lzw, deflate or packbits (case insensitive)
+	 * @return TIFF compression value or -1 if the name is not known
+	 */
+	public static int parseCompression(String name){
+		switch(name.trim().toLowerCase(Locale.ROOT)){
+		case "none":
+			return COMPRESSION_NONE;
+		case "lzw":
+			return COMPRESSION_LZW;
+		case "deflate":
+		case "zip":
+			return COMPRESSION_DEFLATE;
+		case "packbits":
+			return COMPRESSION_PACKBITS;
+		default:
+			return -1;
+		}
+	}
+
+	/**
+	 * @param compression - TIFF compression value
+	 * @return codec name (see parseCompression)
+	 */
+	public static String getCompressionName(int compression){
+		switch(compression){
+		case COMPRESSION_NONE:
+			return "none";
+		case COMPRESSION_LZW:
+			return "lzw";
+		case COMPRESSION_DEFLATE:
+			return "deflate";
+		case COMPRESSION_PACKBITS:
+			return "packbits";
+		default:
+			return "unknown(" + compression + ")";
+		}
+	}
+
+	/**
+	 * This method sets the number of threads of the compression pool
+	 * (it has to be called before the first writer is created)
+	 *
+	 * @param numThreads - number of compression threads
+	 */
+	public static synchronized void setNumCompressionThreads(int numThreads){
+		if(_compressionPool != null){
+			System.err.println("ERROR: the compression pool is already running with " + _numCompressionThreads + " threads");
+			return;
+		}
+		_numCompressionThreads = Math.max(1, numThreads);
+	}
+
+	private static synchronized ExecutorService getCompressionPool(){
+		if(_compressionPool == null){
+			_compressionPool = Executors.newFixedThreadPool(_numCompressionThreads, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "tiff-tile-compression");
+					// the pool must not keep the JVM alive after main() returns
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return _compressionPool;
+	}
+
+	/**
+	 * This method submits one tile for compression. The pixels are copied
+	 * so the caller can re-use its tile buffer immediately.
+	 * If reduced resolutions are written, the tile is also downsampled
+	 * and the completed tiles of the reduced resolutions are submitted.
+	 *
+	 * @param tileX - left image coordinate of the tile (multiple of the tile size)
+	 * @param tileY - top image coordinate of the tile (multiple of the tile size)
+	 * @param pixels - row-major tile pixels of size width x height (little endian for 16 and 32-bit images)
+	 * @param width - width of the tile (smaller than the tile size at the right image border)
+	 * @param height - height of the tile (smaller than the tile size at the bottom image border)
+	 * @throws IOException
+	 */
+	public void writeTile(int tileX, int tileY, byte[] pixels, int width, int height) throws IOException {
+		if(tileX % _tileSize != 0 || tileY % _tileSize != 0 || tileX >= _widths[0] || tileY >= _heights[0]){
+			throw new IllegalArgumentException("ERROR: tile position is not on the tile grid: " + tileX + ", " + tileY);
+		}
+		writeResolutionTile(0, tileX, tileY, pixels, width, height);
+	}
+
+	/**
+	 * @return number of resolutions including the full resolution
+	 */
+	public int getNumResolutions() {
+		return _numResolutions;
+	}
+
+	/**
+	 * This is a helper method that submits one tile of a resolution for compression
+	 * and passes it to the next reduced resolution
+	 */
+	private void writeResolutionTile(int resolution, int tileX, int tileY, byte[] pixels, int width, int height) throws IOException {
+		// the TIFF tiles have always the full tile size (padded with zeros at the borders)
+		final byte[] tile = new byte[_tileSize * _tileSize * _bytesPerPixel];
+		for(int y = 0; y < height; y++){
+			System.arraycopy(pixels, y * width * _bytesPerPixel, tile, y * _tileSize * _bytesPerPixel, width * _bytesPerPixel);
+		}
+		int tileIndex = (tileY / _tileSize) * _nXTiles[resolution] + tileX / _tileSize;
+		Future<byte[]> compressed = getCompressionPool().submit(new Callable<byte[]>() {
+			public byte[] call() throws FormatException {
+				return compressTile(tile);
+			}
+		});
+		_pending.add(new PendingTile(resolution, tileIndex, compressed));
+
+		// write the finished tiles and bound the number of tiles in flight
+		while(!_pending.isEmpty() && (_pending.size() > _maxPending || _pending.peek().compressed.isDone())){
+			writePendingTile(_pending.poll());
+		}
+
+		if(resolution + 1 < _numResolutions){
+			reduceTile(resolution, tileX, tileY, pixels, width, height);
+		}
+	}
+
+	/**
+	 * This is a helper method that downsamples one tile into the strip of the next resolution.
+	 * When all tiles covering the strip were downsampled, the tiles of the strip are written.
+	 */
+	private void reduceTile(int resolution, int tileX, int tileY, byte[] pixels, int width, int height) throws IOException {
+		int next = resolution + 1;
+		// the tile size is even, so the 2x2 blocks never cross the tile borders
+		int reducedX = tileX / 2;
+		int reducedY = tileY / 2;
+		int reducedWidth = (width + 1) / 2;
+		int reducedHeight = (height + 1) / 2;
+		int stripRow = reducedY / _tileSize;
+		ReducedStrip strip = _strips[next].get(stripRow);
+		if(strip == null){
+			// the strip is covered by two tile rows of the previous resolution (one at the bottom border)
+			int numRows = Math.min(2, _nYTiles[resolution] - 2 * stripRow);
+			strip = new ReducedStrip(_widths[next], Math.min(_tileSize, _heights[next] - stripRow * _tileSize), _bytesPerPixel, numRows * _nXTiles[resolution]);
+			_strips[next].put(stripRow, strip);
+		}
+
+		int stripWidth = _widths[next];
+		int bpp = _bytesPerPixel;
+		for(int y = 0; y < reducedHeight; y++){
+			int row0 = 2 * y * width;
+			// the missing pixels at the borders are replaced by their nearest neighbors
+			int row1 = Math.min(2 * y + 1, height - 1) * width;
+			int dst = (reducedY - stripRow * _tileSize + y) * stripWidth + reducedX;
+			for(int x = 0; x < reducedWidth; x++){
+				int x0 = 2 * x;
+				int x1 = Math.min(x0 + 1, width - 1);
+				if(bpp == 1){
+					strip.pixels[dst + x] = (byte) mode(pixels[row0 + x0], pixels[row0 + x1], pixels[row1 + x0], pixels[row1 + x1]);
+				}else{
+					setPixel(strip.pixels, dst + x, bpp, mode(getPixel(pixels, row0 + x0, bpp), getPixel(pixels, row0 + x1, bpp),
+							getPixel(pixels, row1 + x0, bpp), getPixel(pixels, row1 + x1, bpp)));
+				}
+			}
+		}
+
+		strip.received++;
+		if(strip.received < strip.expected){
+			return;
+		}
+		_strips[next].remove(stripRow);
+		byte[] tile = new byte[0];
+		for(int l = 0; l < _nXTiles[next]; l++){
+			int x0 = l * _tileSize;
+			int effTileSizeX = Math.min(_tileSize, stripWidth - x0);
+			if(tile.length != effTileSizeX * strip.height * bpp){
+				tile = new byte[effTileSizeX * strip.height * bpp];
+			}
+			for(int y = 0; y < strip.height; y++){
+				System.arraycopy(strip.pixels, (y * stripWidth + x0) * bpp, tile, y * effTileSizeX * bpp, effTileSizeX * bpp);
+			}
+			writeResolutionTile(next, x0, stripRow * _tileSize, tile, effTileSizeX, strip.height);
+		}
+	}
+
+	/**
+	 * This is a helper method that returns the most frequent value of a 2x2 block
+	 * (ties are resolved by the top left value a)
+	 */
+	private static int mode(int a, int b, int c, int d){
+		if(a == b || a == c || a == d){
+			return a;
+		}
+		if(b == c || b == d){
+			return b;
+		}
+		if(c == d){
+			return c;
+		}
+		return a;
+	}
+
+	/**
+	 * This is a helper method that reads a little endian pixel of 2 or 4 bytes
+	 */
+	private static int getPixel(byte[] pixels, int index, int bytesPerPixel){
+		int offset = index * bytesPerPixel;
+		int value = 0;
+		for(int b = bytesPerPixel - 1; b >= 0; b--){
+			value = (value << 8) | (pixels[offset + b] & 0xff);
+		}
+		return value;
+	}
+
+	private static void setPixel(byte[] pixels, int index, int bytesPerPixel, int value){
+		int offset = index * bytesPerPixel;
+		for(int b = 0; b < bytesPerPixel; b++){
+			pixels[offset + b] = (byte) (value >>> (8 * b));
+		}
+	}
+
+	/**
+	 * This method writes the remaining tiles, the IFD and patches the header
+	 */
+	public void close() throws IOException {
+		if(_out == null){
+			return;
+		}
+		try {
+			while(!_pending.isEmpty()){
+				writePendingTile(_pending.poll());
+			}
+			for(int r = 0; r < _numResolutions; r++){
+				for(int t = 0; t < _tileOffsets[r].length; t++){
+					if(_tileOffsets[r][t] == 0){
+						throw new IOException("ERROR: tile " + t + " of resolution " + r + " was not written to " + _outFileName);
+					}
+				}
+			}
+			// the reduced resolutions are written before the full resolution IFD that points to them
+			long[] subIFDOffsets = new long[_numResolutions - 1];
+			for(int r = 1; r < _numResolutions; r++){
+				subIFDOffsets[r - 1] = writeIFD(r, null);
+			}
+			long ifdOffset = writeIFD(0, subIFDOffsets);
+			writeHeader(ifdOffset);
+		} finally {
+			for(PendingTile p : _pending){
+				p.compressed.cancel(true);
+			}
+			_pending.clear();
+			for(HashMap<Integer, ReducedStrip> strips : _strips){
+				strips.clear();
+			}
+			_out.close();
+			_out = null;
+		}
+	}
+
+	/**
+	 * This is a helper method that compresses one tile (the tile is a private copy, so the predictor
+	 * is applied in place)
+	 */
+	private byte[] compressTile(byte[] tile) throws FormatException {
+		if(_predictor == PREDICTOR_HORIZONTAL){
+			applyHorizontalPredictor(tile);
+		}
+		switch(_compression){
+		case COMPRESSION_LZW:
+			CodecOptions options = new CodecOptions();
+			options.width = _tileSize;
+			options.height = _tileSize;
+			options.bitsPerSample = 8 * _bytesPerPixel;
+			options.channels = 1;
+			return new LZWCodec().compress(tile, options);
+		case COMPRESSION_DEFLATE:
+			return deflate(tile, _compressionLevel);
+		case COMPRESSION_PACKBITS:
+			return packBits(tile, _tileSize * _bytesPerPixel);
+		default:
+			return tile;
+		}
+	}
+
+	/**
+	 * This is a helper method that replaces each sample of a row by its difference
+	 * to the previous sample of the row (TIFF predictor 2, modulo 2^bits)
+	 */
+	private void applyHorizontalPredictor(byte[] tile){
+		int rowBytes = _tileSize * _bytesPerPixel;
+		for(int rowStart = 0; rowStart < tile.length; rowStart += rowBytes){
+			// from right to left, so the previous sample is not modified yet
+			if(_bytesPerPixel == 1){
+				for(int p = rowStart + rowBytes - 1; p > rowStart; p--){
+					tile[p] -= tile[p - 1];
+				}
+			}else if(_bytesPerPixel == 2){
+				for(int p = rowStart + rowBytes - 2; p > rowStart; p -= 2){
+					int diff = (tile[p] & 0xff | (tile[p + 1] & 0xff) << 8) - (tile[p - 2] & 0xff | (tile[p - 1] & 0xff) << 8);
+					tile[p] = (byte) diff;
+					tile[p + 1] = (byte) (diff >>> 8);
+				}
+			}else{
+				for(int p = rowStart + rowBytes - 4; p > rowStart; p -= 4){
+					setPixel(tile, p / 4, 4, getPixel(tile, p / 4, 4) - getPixel(tile, p / 4 - 1, 4));
+				}
+			}
+		}
+	}
+
+	/**
+	 * This is a helper method that compresses the data by zlib (TIFF Adobe deflate)
+	 */
+	private static byte[] deflate(byte[] data, int level){
+		Deflater deflater = new Deflater(level);
+		try {
+			deflater.setInput(data);
+			deflater.finish();
+			ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 4 + 64);
+			byte[] buffer = new byte[1 << 16];
+			while(!deflater.finished()){
+				int n = deflater.deflate(buffer);
+				out.write(buffer, 0, n);
+			}
+			return out.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * This is a helper method that compresses the data by PackBits, each row is packed separately
+	 * (a header n in [0, 127] is followed by n+1 literal bytes, n in [-127, -1] by one byte repeated 1-n times)
+	 */
+	private static byte[] packBits(byte[] data, int rowBytes){
+		// the worst case is one header per 128 literal bytes of each row
+		byte[] out = new byte[data.length + (data.length / rowBytes) * (rowBytes / 128 + 1)];
+		int o = 0;
+		for(int rowStart = 0; rowStart < data.length; rowStart += rowBytes){
+			int rowEnd = rowStart + rowBytes;
+			int p = rowStart;
+			while(p < rowEnd){
+				// length of the run starting at p
+				int run = 1;
+				while(p + run < rowEnd && run < 128 && data[p + run] == data[p]){
+					run++;
+				}
+				if(run >= 2){
+					out[o++] = (byte) (1 - run);
+					out[o++] = data[p];
+					p += run;
+					continue;
+				}
+				// literal bytes until the next run of at least 3 bytes (a run of 2 is not worth a new header)
+				int literalStart = p;
+				while(p < rowEnd && p - literalStart < 128){
+					if(p + 2 < rowEnd && data[p] == data[p + 1] && data[p] == data[p + 2]){
+						break;
+					}
+					p++;
+				}
+				out[o++] = (byte) (p - literalStart - 1);
+				System.arraycopy(data, literalStart, out, o, p - literalStart);
+				o += p - literalStart;
+			}
+		}
+		return Arrays.copyOf(out, o);
+	}
+
+	private void writePendingTile(PendingTile p) throws IOException {
+		byte[] data;
+		try {
+			data = p.compressed.get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while compressing a tile of " + _outFileName, ex);
+		} catch (ExecutionException ex) {
+			throw new IOException("Cannot compress a tile of " + _outFileName, ex.getCause());
+		}
+		long offset = _out.getFilePointer();
+		_out.write(data);
+		_tileOffsets[p.resolution][p.tileIndex] = offset;
+		_tileByteCounts[p.resolution][p.tileIndex] = data.length;
+	}
+
+	private void writeHeader(long ifdOffset) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(_bigTiff ? 16 : 8).order(ByteOrder.LITTLE_ENDIAN);
+		header.put((byte) 'I').put((byte) 'I');
+		if(_bigTiff){
+			header.putShort((short) 43).putShort((short) 8).putShort((short) 0).putLong(ifdOffset);
+		}else{
+			header.putShort((short) 42).putInt((int) ifdOffset);
+		}
+		_out.seek(0);
+		_out.write(header.array());
+	}
+
+	/**
+	 * This is a helper method that writes the IFD of one resolution (and the values that do not fit into
+	 * the IFD entries) at the end of the file. Only the full resolution IFD has the OME-XML description
+	 * and the SubIFDs pointing to the reduced resolutions.
+	 *
+	 * @param resolution - resolution (0 = full resolution)
+	 * @param subIFDOffsets - offsets of the reduced resolution IFDs (or null)
+	 * @return offset of the IFD
+	 */
+	private long writeIFD(int resolution, long[] subIFDOffsets) throws IOException {
+		long[] tileOffsets = _tileOffsets[resolution];
+		long[] tileByteCounts = _tileByteCounts[resolution];
+		int numTiles = tileOffsets.length;
+		int numSubIFDs = subIFDOffsets == null ? 0 : subIFDOffsets.length;
+		byte[] description = resolution == 0 ? _description : new byte[0];
+		boolean hasPredictor = _predictor != PREDICTOR_NONE;
+		int numEntries = 13 + (description.length > 0 ? 1 : 0) + (hasPredictor ? 1 : 0) + (numSubIFDs > 0 ? 1 : 0);
+		int entrySize = _bigTiff ? 20 : 12;
+		int arrayItemSize = _bigTiff ? 8 : 4;
+
+		// the IFD starts on a word boundary
+		long ifdOffset = _out.getFilePointer();
+		if(ifdOffset % 2 != 0){
+			ifdOffset++;
+		}
+		long ifdSize = (_bigTiff ? 8 : 2) + (long) numEntries * entrySize + (_bigTiff ? 8 : 4);
+		// the values that do not fit follow the IFD
+		long descriptionOffset = ifdOffset + ifdSize;
+		long offsetsOffset = descriptionOffset + description.length + (description.length % 2);
+		long byteCountsOffset = offsetsOffset + (long) numTiles * arrayItemSize;
+		long subIFDsOffset = byteCountsOffset + (long) numTiles * arrayItemSize;
+
+		ByteBuffer ifd = ByteBuffer.allocate((int) (subIFDsOffset + (long) numSubIFDs * arrayItemSize - ifdOffset)).order(ByteOrder.LITTLE_ENDIAN);
+		if(_bigTiff){
+			ifd.putLong(numEntries);
+		}else{
+			ifd.putShort((short) numEntries);
+		}
+		// the entries are sorted by the tag
+		// full resolution image (0) or reduced resolution image (1)
+		putEntry(ifd, TAG_NEW_SUBFILE_TYPE, TYPE_LONG, 1, resolution == 0 ? 0 : 1);
+		putEntry(ifd, TAG_IMAGE_WIDTH, TYPE_LONG, 1, _widths[resolution]);
+		putEntry(ifd, TAG_IMAGE_LENGTH, TYPE_LONG, 1, _heights[resolution]);
+		putEntry(ifd, TAG_BITS_PER_SAMPLE, TYPE_SHORT, 1, 8 * _bytesPerPixel);
+		putEntry(ifd, TAG_COMPRESSION, TYPE_SHORT, 1, _compression);
+		// BlackIsZero
+		putEntry(ifd, TAG_PHOTOMETRIC, TYPE_SHORT, 1, 1);
+		if(description.length > 0){
+			putEntry(ifd, TAG_IMAGE_DESCRIPTION, TYPE_ASCII, description.length, descriptionOffset);
+		}
+		putEntry(ifd, TAG_SAMPLES_PER_PIXEL, TYPE_SHORT, 1, 1);
+		putEntry(ifd, TAG_PLANAR_CONFIGURATION, TYPE_SHORT, 1, 1);
+		if(hasPredictor){
+			putEntry(ifd, TAG_PREDICTOR, TYPE_SHORT, 1, _predictor);
+		}
+		putEntry(ifd, TAG_TILE_WIDTH, TYPE_LONG, 1, _tileSize);
+		putEntry(ifd, TAG_TILE_LENGTH, TYPE_LONG, 1, _tileSize);
+		int arrayType = _bigTiff ? TYPE_LONG8 : TYPE_LONG;
+		// a single value is stored inline
+		putEntry(ifd, TAG_TILE_OFFSETS, arrayType, numTiles, numTiles == 1 ? tileOffsets[0] : offsetsOffset);
+		putEntry(ifd, TAG_TILE_BYTE_COUNTS, arrayType, numTiles, numTiles == 1 ? tileByteCounts[0] : byteCountsOffset);
+		if(numSubIFDs > 0){
+			putEntry(ifd, TAG_SUB_IFDS, _bigTiff ? TYPE_IFD8 : TYPE_IFD, numSubIFDs, numSubIFDs == 1 ? subIFDOffsets[0] : subIFDsOffset);
+		}
+		// unsigned integer
+		putEntry(ifd, TAG_SAMPLE_FORMAT, TYPE_SHORT, 1, 1);
+		// no next IFD
+		if(_bigTiff){
+			ifd.putLong(0);
+		}else{
+			ifd.putInt(0);
+		}
+
+		// values
+		ifd.put(description);
+		if(description.length % 2 != 0){
+			ifd.put((byte) 0);
+		}
+		if(numTiles > 1){
+			putArray(ifd, tileOffsets);
+			putArray(ifd, tileByteCounts);
+		}
+		if(numSubIFDs > 1){
+			putArray(ifd, subIFDOffsets);
+		}
+
+		_out.seek(ifdOffset);
+		_out.write(ifd.array());
+		return ifdOffset;
+	}
+
+	private void putArray(ByteBuffer ifd, long[] values){
+		for(long value : values){
+			if(_bigTiff) ifd.putLong(value); else ifd.putInt((int) value);
+		}
+	}
+
+	/**
+	 * This is a helper method that writes one IFD entry with a single value
+	 * or an offset (the value is left justified in the value field)
+	 */
+	private void putEntry(ByteBuffer ifd, int tag, int type, long count, long value){
+		ifd.putShort((short) tag);
+		ifd.putShort((short) type);
+		if(_bigTiff){
+			ifd.putLong(count);
+			if(type == TYPE_SHORT){
+				ifd.putShort((short) value).putShort((short) 0).putInt(0);
+			}else if(type == TYPE_LONG && count == 1){
+				ifd.putInt((int) value).putInt(0);
+			}else{
+				ifd.putLong(value);
+			}
+		}else{
+			ifd.putInt((int) count);
+			if(type == TYPE_SHORT){
+				ifd.putShort((short) value).putShort((short) 0);
+			}else{
+				ifd.putInt((int) value);
+			}
+		}
+	}
+
+	/**
+	 * This is a helper method that serializes the OME metadata to the OME-XML string
+	 */
+	private static String getOMEXML(OMEXMLMetadata metadata) {
+		try {
+			return OMEMetadataCache.getOMEXMLService().getOMEXML(metadata);
+		} catch (ServiceException ex) {
+			throw new RuntimeException("Cannot create OME-XML", ex);
+		}
+	}
+
+}
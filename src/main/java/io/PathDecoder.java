@@ -0,0 +1,181 @@
+package io;
+
+import java.util.Arrays;
+
+import javax.json.JsonArray;
+import javax.json.JsonNumber;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+
+/**
+ * This class decodes the "path" array of the fabric.js freehand objects in the WIPP JSON files
+ * (e.g., [["M",x,y],["Q",cx,cy,x,y],...,["L",x,y],"z"]) into a closed polygon.
+ *
+ * The vertices are collected in growable float[] buffers (no boxing) and
+ * the quadratic Bezier curves ("Q") are flattened adaptively so that the distance between
+ * the polygon and the curve is at most the tolerance in pixels.
+ *
+ * Note: the buffers are re-used between calls and therefore one instance
+ * should not be shared by multiple threads.
+ *
+ * @author pnb
+ *
+ */
+public class PathDecoder {
+
+	// default maximum distance between the flattened polygon and the curves in pixels
+	public static final double DEFAULT_TOLERANCE = 0.1;
+	// limit on the number of segments of one curve
+	private static final int MAX_SEGMENTS = 256;
+
+	private double _tolerance = DEFAULT_TOLERANCE;
+	private float[] _xs = new float[256];
+	private float[] _ys = new float[256];
+	private int _numPoints = 0;
+	private double _currentX = 0;
+	private double _currentY = 0;
+
+	public PathDecoder() {
+	}
+
+	public PathDecoder(double tolerance) {
+		setTolerance(tolerance);
+	}
+
+	public void setTolerance(double tolerance){
+		if(tolerance <= 0){
+			System.err.println("ERROR: the flattening tolerance must be positive: " + tolerance);
+			return;
+		}
+		_tolerance = tolerance;
+	}
+	public double getTolerance(){
+		return _tolerance;
+	}
+
+	/**
+	 * @return x coordinates of the polygon (the first getNumPoints() values are valid)
+	 */
+	public float[] getXPoints(){
+		return _xs;
+	}
+	/**
+	 * @return y coordinates of the polygon (the first getNumPoints() values are valid)
+	 */
+	public float[] getYPoints(){
+		return _ys;
+	}
+	public int getNumPoints(){
+		return _numPoints;
+	}
+
+	/**
+	 * This method decodes one fabric.js path into the polygon buffers
+	 * Supported commands: M (move to), L (line to), Q (quadratic curve to) and z (close)
+	 *
+	 * @param path - JsonArray of path commands
+	 * @return number of polygon vertices
+	 */
+	public int decode(JsonArray path){
+		_numPoints = 0;
+		_currentX = 0;
+		_currentY = 0;
+		if(path == null){
+			return 0;
+		}
+		for(int j = 0; j < path.size(); j++){
+			JsonValue element = path.get(j);
+			if(element.getValueType() == JsonValue.ValueType.STRING){
+				// bare command without coordinates, e.g., "z"
+				if(isClose(((JsonString) element).getString())){
+					break;
+				}
+				continue;
+			}
+			if(element.getValueType() != JsonValue.ValueType.ARRAY){
+				continue;
+			}
+			JsonArray command = (JsonArray) element;
+			if(command.isEmpty() || command.get(0).getValueType() != JsonValue.ValueType.STRING){
+				continue;
+			}
+			String name = command.getString(0);
+			switch(name){
+			case "M":
+			case "L":
+				if(command.size() >= 3){
+					lineTo(getCoordinate(command, 1), getCoordinate(command, 2));
+				}
+				break;
+			case "Q":
+				if(command.size() >= 5){
+					quadTo(getCoordinate(command, 1), getCoordinate(command, 2), getCoordinate(command, 3), getCoordinate(command, 4));
+				}
+				break;
+			default:
+				if(isClose(name)){
+					return _numPoints;
+				}
+				System.err.println("ERROR: unsupported path command = " + name);
+				break;
+			}
+		}
+		return _numPoints;
+	}
+
+	private static boolean isClose(String name){
+		return name.equals("z") || name.equals("Z");
+	}
+
+	private static double getCoordinate(JsonArray command, int index){
+		JsonValue value = command.get(index);
+		if(value instanceof JsonNumber){
+			return ((JsonNumber) value).doubleValue();
+		}
+		return 0;
+	}
+
+	/**
+	 * This method adds a vertex (straight segment from the current point)
+	 */
+	public void lineTo(double x, double y){
+		if(_numPoints == _xs.length){
+			_xs = Arrays.copyOf(_xs, 2 * _numPoints);
+			_ys = Arrays.copyOf(_ys, 2 * _numPoints);
+		}
+		_xs[_numPoints] = (float) x;
+		_ys[_numPoints] = (float) y;
+		_numPoints++;
+		_currentX = x;
+		_currentY = y;
+	}
+
+	/**
+	 * This method flattens the quadratic Bezier curve from the current point
+	 * through the control point (cx,cy) to (x,y).
+	 * The distance between a curve and n uniform chords is at most |P0 - 2*P1 + P2| / (4*n*n)
+	 * and therefore n = ceil(sqrt(|P0 - 2*P1 + P2| / (4*tolerance))) segments are used.
+	 */
+	public void quadTo(double cx, double cy, double x, double y){
+		if(_numPoints == 0){
+			// a curve without a start point starts at its control point
+			lineTo(cx, cy);
+		}
+		double x0 = _currentX;
+		double y0 = _currentY;
+		double ddx = x0 - 2 * cx + x;
+		double ddy = y0 - 2 * cy + y;
+		double deviation = Math.sqrt(ddx * ddx + ddy * ddy);
+		int n = (int) Math.ceil(Math.sqrt(deviation / (4 * _tolerance)));
+		if(n > MAX_SEGMENTS){
+			n = MAX_SEGMENTS;
+		}
+		for(int k = 1; k < n; k++){
+			double t = (double) k / n;
+			double u = 1 - t;
+			lineTo(u * u * x0 + 2 * u * t * cx + t * t * x, u * u * y0 + 2 * u * t * cy + t * t * y);
+		}
+		lineTo(x, y);
+	}
+
+}
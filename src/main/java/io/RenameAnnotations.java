@@ -27,6 +27,19 @@ public class RenameAnnotations {
 	 * @throws FormatException
 	 */
 	public static boolean CMD_renameAnnotJSONbasedOnStitching(String inputJSONFileFolder, String inputStitchingFileFolder, String outFileFolder) throws IOException, FormatException {
+		return CMD_renameAnnotJSONbasedOnStitching(inputJSONFileFolder, inputStitchingFileFolder, outFileFolder, false);
+	}
+
+	/**
+	 * This is the same method as above but the renamed files can be symbolic links 
+	 * to the input JSON files instead of copies
+	 * 
+	 * @param useSymbolicLinks - true for creating symbolic links, false for copying the JSON files
+	 * @return boolean based on success
+	 * @throws IOException
+	 * @throws FormatException
+	 */
+	public static boolean CMD_renameAnnotJSONbasedOnStitching(String inputJSONFileFolder, String inputStitchingFileFolder, String outFileFolder, boolean useSymbolicLinks) throws IOException, FormatException {
 		//sanity checks
 		if(inputJSONFileFolder == null || inputStitchingFileFolder==null ) {
 			System.err.println("ERROR: input directories for JSON annotations or  TXT Stitching vectors are null");
@@ -58,7 +71,7 @@ public class RenameAnnotations {
 									renamedJSONFileFolder); return false; }
 
 		}
-		boolean ret = StitchingLoader.renameAnnotationFilenames(inputJSONFileFolder, inputStitchingFileFolder, renamedJSONFileFolder);
+		boolean ret = StitchingLoader.renameAnnotationFilenames(inputJSONFileFolder, inputStitchingFileFolder, renamedJSONFileFolder, useSymbolicLinks);
 		// stop if failed renaming files
 		if(!ret){
 			System.err.println("failed to rename annotations in " + inputJSONFileFolder);
@@ -69,7 +82,7 @@ public class RenameAnnotations {
 
 	/**
 	 * This is the main for a command line execution
-	 * @param args - String inputJSONFileFolder, String inputStitchingFileFolder, String outFileFolder
+	 * @param args - String inputJSONFileFolder, String inputStitchingFileFolder, String outFileFolder, optional boolean useSymbolicLinks
 	 * @throws IOException
 	 * @throws FormatException
 	 */
@@ -85,7 +98,8 @@ public class RenameAnnotations {
 		String inputJSONFileFolder = new String(args[0]);
 		String inputStitchingFileFolder = new String(args[1]);
 		String outFileFolder = new String(args[2]);
-		if(!RenameAnnotations.CMD_renameAnnotJSONbasedOnStitching(inputJSONFileFolder, inputStitchingFileFolder, outFileFolder)) {
+		boolean useSymbolicLinks = args.length > 3 && Boolean.parseBoolean(args[3]);
+		if(!RenameAnnotations.CMD_renameAnnotJSONbasedOnStitching(inputJSONFileFolder, inputStitchingFileFolder, outFileFolder, useSymbolicLinks)) {
 			System.err.println("ERROR: failed renaming "+ inputJSONFileFolder + " based on "+ inputStitchingFileFolder + " into " + outFileFolder);
 			return;
 		}
@@ -0,0 +1,286 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package io;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonException;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.json.stream.JsonGenerator;
+
+import ij.ImagePlus;
+import ij.io.FileSaver;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import maskgen.RunLengthMask;
+
+/**
+ * This class reads and writes the sparse run-length masks (see RunLengthMask) in two formats:
+ *
+ * RLE (extension .rle) - the row-wise runs of the mask values (class ids) in a binary file (big endian):
+ * magic, version, width, height, number of non-empty rows and for each non-empty row
+ * the row, the number of runs and the runs (start column, length, value).
+ *
+ * COCO RLE (extension .json) - one COCO compatible binary mask per mask value:
+ * {"image": name, "width": w, "height": h, "annotations": [{"category_id": value,
+ * "segmentation": {"size": [h, w], "counts": compressed counts string}}, ...]}
+ * The segmentation objects can be decoded by the COCO API (pycocotools.mask.decode).
+ *
+ * The main method is the decoder utility that converts both formats to a dense 8, 16 or 32-bit TIFF.
+ *
+ * @author pnb
+ *
+ */
+public class RunLengthMaskIO {
+
+	public static final String RLE_EXTENSION = ".rle";
+	public static final String COCO_EXTENSION = ".json";
+
+	private static final int MAGIC = 0x524C4D31; // "RLM1"
+	private static final int VERSION = 1;
+
+	/**
+	 * This method writes the row-wise runs of a mask
+	 *
+	 * @param mask - run-length mask
+	 * @param outFileName - output .rle file
+	 * @throws IOException
+	 */
+	public static void writeRLE(RunLengthMask mask, String outFileName) throws IOException {
+		int numRows = 0;
+		for(int y = 0; y < mask.getHeight(); y++){
+			if(mask.getNumRuns(y) > 0){
+				numRows++;
+			}
+		}
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(outFileName), 1 << 16))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(mask.getWidth());
+			out.writeInt(mask.getHeight());
+			out.writeInt(numRows);
+			for(int y = 0; y < mask.getHeight(); y++){
+				int numRuns = mask.getNumRuns(y);
+				if(numRuns == 0){
+					continue;
+				}
+				out.writeInt(y);
+				out.writeInt(numRuns);
+				for(int k = 0; k < numRuns; k++){
+					out.writeInt(mask.getRunStart(y, k));
+					out.writeInt(mask.getRunEnd(y, k) - mask.getRunStart(y, k));
+					out.writeInt(mask.getRunValue(y, k));
+				}
+			}
+		}
+	}
+
+	/**
+	 * This method reads the row-wise runs of a mask
+	 *
+	 * @param fileName - input .rle file
+	 * @return RunLengthMask
+	 * @throws IOException
+	 */
+	public static RunLengthMask readRLE(String fileName) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileName), 1 << 16))) {
+			if(in.readInt() != MAGIC){
+				throw new IOException("ERROR: " + fileName + " is not a run-length mask file");
+			}
+			int version = in.readInt();
+			if(version != VERSION){
+				throw new IOException("ERROR: unsupported run-length mask version " + version + " in " + fileName);
+			}
+			int width = in.readInt();
+			int height = in.readInt();
+			RunLengthMask mask = new RunLengthMask(width, height);
+			int numRows = in.readInt();
+			for(int r = 0; r < numRows; r++){
+				int y = in.readInt();
+				int numRuns = in.readInt();
+				for(int k = 0; k < numRuns; k++){
+					int start = in.readInt();
+					int length = in.readInt();
+					mask.addRun(y, start, start + length, in.readInt());
+				}
+			}
+			return mask;
+		}
+	}
+
+	/**
+	 * This method writes one COCO run-length encoded binary mask per mask value
+	 *
+	 * @param mask - run-length mask
+	 * @param imageName - name of the image stored with the masks (e.g., the mask TIFF name)
+	 * @param outFileName - output .json file
+	 * @throws IOException
+	 */
+	public static void writeCOCO(RunLengthMask mask, String imageName, String outFileName) throws IOException {
+		try (OutputStream os = new BufferedOutputStream(new FileOutputStream(outFileName), 1 << 16);
+				JsonGenerator generator = Json.createGenerator(os)) {
+			generator.writeStartObject();
+			generator.write("image", imageName);
+			generator.write("width", mask.getWidth());
+			generator.write("height", mask.getHeight());
+			generator.writeStartArray("annotations");
+			for(int value : mask.getValues()){
+				generator.writeStartObject();
+				generator.write("category_id", value);
+				generator.writeStartObject("segmentation");
+				// the COCO size is (height, width)
+				generator.writeStartArray("size").write(mask.getHeight()).write(mask.getWidth()).writeEnd();
+				generator.write("counts", RunLengthMask.encodeCOCOCounts(mask.getCOCOCounts(value)));
+				generator.writeEnd();
+				generator.writeEnd();
+			}
+			generator.writeEnd();
+			generator.writeEnd();
+		} catch (JsonException ex) {
+			throw new IOException("Cannot write the COCO masks " + outFileName, ex);
+		}
+	}
+
+	/**
+	 * This method reads the COCO run-length encoded masks (see writeCOCO) into one mask,
+	 * the foreground of each annotation is set to its category_id
+	 *
+	 * @param fileName - input .json file
+	 * @return RunLengthMask
+	 * @throws IOException
+	 */
+	public static RunLengthMask readCOCO(String fileName) throws IOException {
+		try (InputStream is = new BufferedInputStream(new FileInputStream(fileName), 1 << 16);
+				JsonReader reader = Json.createReader(is)) {
+			JsonObject root = reader.readObject();
+			RunLengthMask mask = new RunLengthMask(root.getInt("width"), root.getInt("height"));
+			JsonArray annotations = root.getJsonArray("annotations");
+			for(int i = 0; i < annotations.size(); i++){
+				JsonObject annotation = annotations.getJsonObject(i);
+				JsonObject segmentation = annotation.getJsonObject("segmentation");
+				long[] counts;
+				if(segmentation.get("counts") instanceof JsonArray){
+					// uncompressed COCO counts
+					JsonArray array = segmentation.getJsonArray("counts");
+					counts = new long[array.size()];
+					for(int k = 0; k < counts.length; k++){
+						counts[k] = array.getJsonNumber(k).longValue();
+					}
+				}else{
+					counts = RunLengthMask.decodeCOCOCounts(segmentation.getString("counts"));
+				}
+				mask.addCOCOCounts(counts, annotation.getInt("category_id", 255));
+			}
+			return mask;
+		} catch (JsonException | ClassCastException | NullPointerException ex) {
+			throw new IOException("ERROR: " + fileName + " is not a COCO run-length mask file", ex);
+		}
+	}
+
+	/**
+	 * This method reads a mask in either format (by the file extension)
+	 *
+	 * @param fileName - input .rle or .json file
+	 * @return RunLengthMask
+	 * @throws IOException
+	 */
+	public static RunLengthMask read(String fileName) throws IOException {
+		if(fileName.toLowerCase(Locale.ROOT).endsWith(COCO_EXTENSION)){
+			return readCOCO(fileName);
+		}
+		return readRLE(fileName);
+	}
+
+	/**
+	 * This method decodes a run-length mask into a dense TIFF: 8-bit for the mask values up to 255,
+	 * 16-bit up to 65535 (e.g., the instance masks) and 32-bit float above (exact up to RunLengthMask.MAX_FLOAT_VALUE)
+	 *
+	 * @param inFileName - input .rle or .json file
+	 * @param outFileName - output TIFF file
+	 * @return boolean about the execution success
+	 */
+	public static boolean decodeToTiff(String inFileName, String outFileName) {
+		try {
+			RunLengthMask mask = read(inFileName);
+			int width = mask.getWidth();
+			if((long) width * mask.getHeight() > Integer.MAX_VALUE){
+				System.err.println("ERROR: the mask " + inFileName + " is too large to be decoded into one image");
+				return false;
+			}
+			int maxValue = mask.getMaxValue();
+			if(maxValue < 0 || maxValue > RunLengthMask.MAX_FLOAT_VALUE){
+				System.err.println("ERROR: the mask " + inFileName + " has the value " + maxValue + " that cannot be stored exactly in a TIFF");
+				return false;
+			}
+			ImageProcessor ip;
+			if(maxValue <= 255){
+				ip = new ByteProcessor(width, mask.getHeight());
+				byte[] pixels = (byte[]) ip.getPixels();
+				byte[] row = new byte[width];
+				for(int y = 0; y < mask.getHeight(); y++){
+					mask.getRow(y, row);
+					System.arraycopy(row, 0, pixels, y * width, width);
+				}
+			}else if(maxValue <= 65535){
+				ip = new ShortProcessor(width, mask.getHeight());
+				short[] pixels = (short[]) ip.getPixels();
+				short[] row = new short[width];
+				for(int y = 0; y < mask.getHeight(); y++){
+					mask.getRow(y, row);
+					System.arraycopy(row, 0, pixels, y * width, width);
+				}
+			}else{
+				ip = new FloatProcessor(width, mask.getHeight());
+				float[] pixels = (float[]) ip.getPixels();
+				float[] row = new float[width];
+				for(int y = 0; y < mask.getHeight(); y++){
+					mask.getRow(y, row);
+					System.arraycopy(row, 0, pixels, y * width, width);
+				}
+			}
+			ip.resetMinAndMax();
+			return new FileSaver(new ImagePlus(inFileName, ip)).saveAsTiff(outFileName);
+		} catch (IOException ex) {
+			System.err.println("ERROR: cannot decode the mask " + inFileName + ": " + ex.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * This is the main for the decoder utility
+	 * @param args - String inFileName (.rle or .json), String outFileName (TIFF)
+	 */
+	public static void main(String[] args) {
+		if(args == null || args.length < 2) {
+			System.err.println("ERROR: input arguments are String inFileName (.rle or .json), String outFileName (TIFF)");
+			return;
+		}
+		if(!decodeToTiff(args[0], args[1])){
+			System.err.println("ERROR: failed decoding " + args[0]);
+		}
+	}
+
+}
@@ -8,18 +8,23 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import org.apache.commons.io.FileUtils;
 
 import com.csvreader.CsvWriter;
 
 import datatype.Annotation;
+import datatype.StitchingVector;
 import loci.formats.FormatException;
 import maskgen.MaskFromAnnotations;
 import util.FileOper;
+import util.FilePairIndex;
 
 /**
  * @author pnb
@@ -67,6 +72,89 @@ public class StitchingLoader {
 		return result;		
 	}
 	
+	/**
+	 * This method reads all tiles of a stitching vector (img-global-positions file) with lines like
+	 * file: img_r001_c001.ome.tif; corr: 0.95; position: (1024, 0); grid: (1, 0);
+	 * The lines are scanned without regular expressions and the lines without a file are skipped.
+	 * 
+	 * @param StitchingfileName - stitching vector file
+	 * @return StitchingVector with the file names, correlations, positions and grid coordinates
+	 * @throws IOException
+	 */
+	public static StitchingVector readStitchingVector(String StitchingfileName) throws IOException{
+		StitchingVector vector = new StitchingVector();
+		try (BufferedReader reader = new BufferedReader(new FileReader(StitchingfileName), 1 << 16)) {
+			int[] pair = new int[2];
+			String line;
+			int lineNumber = 0;
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				String fileName = null;
+				double corr = 0;
+				int x = 0, y = 0, gridX = 0, gridY = 0;
+				int start = 0;
+				int length = line.length();
+				try {
+					while(start < length){
+						int end = line.indexOf(';', start);
+						if(end < 0){
+							end = length;
+						}
+						int colon = line.indexOf(':', start);
+						if(colon > 0 && colon < end){
+							String key = line.substring(start, colon).trim();
+							String value = line.substring(colon + 1, end).trim();
+							if(key.equalsIgnoreCase("file")){
+								fileName = value;
+							}else if(key.equalsIgnoreCase("corr")){
+								corr = Double.parseDouble(value);
+							}else if(key.equalsIgnoreCase("position")){
+								parsePair(value, pair);
+								x = pair[0];
+								y = pair[1];
+							}else if(key.equalsIgnoreCase("grid")){
+								parsePair(value, pair);
+								gridX = pair[0];
+								gridY = pair[1];
+							}
+						}
+						start = end + 1;
+					}
+				} catch (NumberFormatException e) {
+					System.err.println("ERROR: cannot parse line " + lineNumber + " of the stitching vector " + StitchingfileName + ": " + line);
+					continue;
+				}
+				if(fileName == null || fileName.isEmpty()){
+					continue;
+				}
+				vector.add(fileName, corr, x, y, gridX, gridY);
+			}
+		}
+		return vector;
+	}
+
+	/**
+	 * This is a helper method that parses "(a, b)" into two integers (decimal values are rounded)
+	 */
+	private static void parsePair(String value, int[] pair){
+		int open = value.indexOf('(');
+		int comma = value.indexOf(',');
+		int close = value.lastIndexOf(')');
+		if(open < 0 || comma < open || close < comma){
+			throw new NumberFormatException("not a pair: " + value);
+		}
+		pair[0] = parseCoordinate(value.substring(open + 1, comma).trim());
+		pair[1] = parseCoordinate(value.substring(comma + 1, close).trim());
+	}
+
+	private static int parseCoordinate(String value){
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			return (int) Math.round(Double.parseDouble(value));
+		}
+	}
+	
 	/**
 	 * This is a helper method for the 
 	 * 
@@ -139,37 +227,29 @@ public class StitchingLoader {
 		return res;		
 	}
 	/**
-	 * This method is for renaming JSON annotation files according to the raw file name stored in a matching stitching vector
-	 * the matching of JSON and stitching vector files is performed based on the index
+	 * This method pairs JSON annotation files (annotations-frame<index>.json) with the stitching vector files 
+	 * (img-global-positions-<index>.txt or stitching-vector<index>.txt) based on the index
 	 * 
-	 * @param inputJSONFileFolder
-	 * @param inputStitchingFileFolder
-	 * @param outFileFolder
-	 * @return
-	 * @throws IOException
-	 * @throws FormatException
+	 * @param inputJSONFileFolder - input folder with JSON annotations
+	 * @param inputStitchingFileFolder - input folder with TXT stitching vector files
+	 * @return map from the JSON file path to the stitching vector file path (in the sorted order of the JSON files) or null if the folders do not exist
 	 */
-	public static boolean renameAnnotationFilenames(String inputJSONFileFolder, String inputStitchingFileFolder, String outFileFolder ) throws IOException, FormatException{
+	public static LinkedHashMap<String, String> mapStitchingVectors(String inputJSONFileFolder, String inputStitchingFileFolder){
 		// sanity check
-		if (inputJSONFileFolder == null || inputStitchingFileFolder == null || outFileFolder == null) {
-			System.err.println("Error: null inputFileFolder, inputStitchingFileFolder or outFileFolder ");
-			return false;
+		if (inputJSONFileFolder == null || inputStitchingFileFolder == null) {
+			System.err.println("Error: null inputFileFolder or inputStitchingFileFolder ");
+			return null;
 		}
 		/*Check directory if exist*/
 		File directory=new File(inputJSONFileFolder);
 		if(!directory.exists()){
 			System.out.println("Input JSON Directory does not exist: " + inputJSONFileFolder);
-			return false;
+			return null;
 		}
 		directory=new File(inputStitchingFileFolder);
 		if(!directory.exists()){
 			System.out.println("Input Directory with stitching vectors does not exist: " + inputStitchingFileFolder);
-			return false;
-		}
-		directory=new File(outFileFolder);
-		if(!directory.exists()){
-			System.out.println("output Directory does not exist: " + outFileFolder);
-			return false;
+			return null;
 		}
 		///////////////////////////////////////////////////////////
 		// getting JSON files to process
@@ -195,98 +275,126 @@ public class StitchingLoader {
 				FileOper.SORT_ASCENDING);
 			
 		//////////////////////////////////////////////////////
-		//AnnotationLoader annotClass = new AnnotationLoader();
-		
 		String JSONfileName = new String();	
 		String stitchFileName = new String();
-		//String outFileName = new String();
 		
-		String rootJSON = new String("annotations-frame");
-		String rootTXT = new String("stitching-vector");
-		String rootTXT2 = new String("img-global-positions-");
+		final String rootJSON = new String("annotations-frame");
+		final String rootTXT = new String("stitching-vector");
+		final String rootTXT2 = new String("img-global-positions-");
 		
-			
-		// store metadata about the execution
-		//ArrayList<String> strSaveMapping = new ArrayList<String>();
+		// the JSON and stitching vector files are matched by the index following the file name root
+		FilePairIndex.KeyFunction stitchKey = new FilePairIndex.KeyFunction() {
+			public String getKey(String nameTXT) {
+				int indexTXT = StitchingLoader.getFilenameIndex(nameTXT, rootTXT2);
+				if(indexTXT == -1) {
+					// if the stitching vector file name follows a different naming convention then try the rootTXT2
+					indexTXT = StitchingLoader.getFilenameIndex(nameTXT, rootTXT);
+				}
+				return indexTXT == -1 ? null : String.valueOf(indexTXT);
+			}
+		};
+		FilePairIndex stitchIndex = new FilePairIndex(sortedStitchInFolder, stitchKey);
 		
-		boolean success = true;
-		boolean foundMatch = false;
+		LinkedHashMap<String, String> stitchingVectors = new LinkedHashMap<String, String>();
 		for (Iterator<String> k = sortedJSONInFolder.iterator(); k.hasNext();) {
 			JSONfileName = k.next();
-			String nameJSON = (new File(JSONfileName)).getName();
+			String nameJSON = FilePairIndex.getName(JSONfileName);
 			int indexJSON = StitchingLoader.getFilenameIndex(nameJSON, rootJSON);//nameJSON.substring(0, nameJSON.length()-5);
 			if(indexJSON == -1) {
 				System.err.println("ERROR: the JSON file name " + nameJSON + " does not follow the convention: file name should start with "+ rootJSON);
 				continue;
 			}
 			// find matching stitchFileName
-			foundMatch = false;
-			for(Iterator<String> r = sortedStitchInFolder.iterator(); !foundMatch && r.hasNext(); ){
-				stitchFileName = r.next();
-				String nameTXT = (new File(stitchFileName)).getName();
-				int indexTXT = StitchingLoader.getFilenameIndex(nameTXT, rootTXT2);
-				if(indexTXT == -1) {
-					// if the stitching vector file name follows a different naming convention then try the rootTXT2
-					indexTXT = StitchingLoader.getFilenameIndex(nameTXT, rootTXT);
-				}
-				
-				if(indexJSON == indexTXT){				
-					foundMatch = true;
-				}
-			}
-			if(!foundMatch){
+			stitchFileName = stitchIndex.find(String.valueOf(indexJSON));
+			if(stitchFileName == null){
 				System.err.println("ERROR: could not find a matching stitching vector TXT file to the JSON file");
 				continue;
 			}
-			
-			//ArrayList<Annotation> annotations =  annotClass.readJSONfromWIPP(JSONfileName);
-			//AnnotationLoader.printArrayListAnnot(annotations);
+			stitchingVectors.put(JSONfileName, stitchFileName);
+		}
+		return stitchingVectors;
+	}
 
-			//MaskFromAnnotations myClass = new MaskFromAnnotations();
+	/**
+	 * This method maps JSON annotation files to the names derived from the raw file name stored in a matching stitching vector
+	 * (e.g., annotations-frame12.json -> img_r001_c002.ome.json) without copying the files.
+	 * The matching of JSON and stitching vector files is performed based on the index
+	 * 
+	 * @param inputJSONFileFolder - input folder with JSON annotations
+	 * @param inputStitchingFileFolder - input folder with TXT stitching vector files
+	 * @return map from the JSON file path to the renamed JSON file name (in the sorted order of the JSON files) or null if the folders do not exist
+	 * @throws IOException
+	 */
+	public static LinkedHashMap<String, String> mapAnnotationFilenames(String inputJSONFileFolder, String inputStitchingFileFolder) throws IOException{
+		LinkedHashMap<String, String> stitchingVectors = mapStitchingVectors(inputJSONFileFolder, inputStitchingFileFolder);
+		if(stitchingVectors == null){
+			return null;
+		}
+		LinkedHashMap<String, String> renamedJSONFiles = new LinkedHashMap<String, String>();
+		for(Map.Entry<String, String> entry : stitchingVectors.entrySet()){
 			// retrieve the file name for the renamed annotation JSON file to construct the output file name
-			
-			
-			
-			String name = readFilenamefromStitch(stitchFileName);//(new File(JSONfileName)).getName();
+			String name = readFilenamefromStitch(entry.getValue());//(new File(JSONfileName)).getName();
 			name = name.substring(0, name.length()-4) + ".json";
-			System.out.println("INFO: matching pair: JSON = " +  JSONfileName + " TXT = " + stitchFileName + " IMAGE = " + name);
-			
-			
-	        File file = new File(JSONfileName);           
-	        String outFilenameJSON = new String(outFileFolder);
-	        if(!outFileFolder.endsWith(File.separator)){
-	        	outFilenameJSON += File.separator;
-	        }
-	        outFilenameJSON += name;
-	        
-	        // copying the JSON annotation file after renaming the file 
-	        FileUtils.copyFile(file, new File(outFilenameJSON));
+			System.out.println("INFO: matching pair: JSON = " +  entry.getKey() + " TXT = " + entry.getValue() + " IMAGE = " + name);
+			renamedJSONFiles.put(entry.getKey(), name);
+		}
+		return renamedJSONFiles;
+	}
+
+	/**
+	 * This method is for renaming JSON annotation files according to the raw file name stored in a matching stitching vector
+	 * the matching of JSON and stitching vector files is performed based on the index
+	 * 
+	 * @param inputJSONFileFolder
+	 * @param inputStitchingFileFolder
+	 * @param outFileFolder
+	 * @return
+	 * @throws IOException
+	 * @throws FormatException
+	 */
+	public static boolean renameAnnotationFilenames(String inputJSONFileFolder, String inputStitchingFileFolder, String outFileFolder ) throws IOException, FormatException{
+		return renameAnnotationFilenames(inputJSONFileFolder, inputStitchingFileFolder, outFileFolder, false);
+	}
 
-	        /*
-	        file = new File(stitchFileName);           
-	        String outFilenameTXT = new String(outFileFolder);
-	        if(!outFileFolder.endsWith("\\") && !outFileFolder.endsWith("/")){
-	        	outFilenameTXT += "\\";
+	/**
+	 * This method is the same as renameAnnotationFilenames above but the renamed files
+	 * can be symbolic links to the input JSON files instead of copies
+	 * 
+	 * @param useSymbolicLinks - true for creating symbolic links, false for copying the JSON files
+	 * @return boolean based on success
+	 * @throws IOException
+	 * @throws FormatException
+	 */
+	public static boolean renameAnnotationFilenames(String inputJSONFileFolder, String inputStitchingFileFolder, String outFileFolder, boolean useSymbolicLinks ) throws IOException, FormatException{
+		// sanity check
+		if (outFileFolder == null) {
+			System.err.println("Error: null outFileFolder ");
+			return false;
+		}
+		File directory=new File(outFileFolder);
+		if(!directory.exists()){
+			System.out.println("output Directory does not exist: " + outFileFolder);
+			return false;
+		}
+		LinkedHashMap<String, String> renamedJSONFiles = mapAnnotationFilenames(inputJSONFileFolder, inputStitchingFileFolder);
+		if(renamedJSONFiles == null){
+			return false;
+		}
+		
+		for(Map.Entry<String, String> entry : renamedJSONFiles.entrySet()){
+	        File file = new File(entry.getKey());           
+	        File outFile = new File(outFileFolder, entry.getValue());
+	        if(useSymbolicLinks){
+	        	// linking the JSON annotation file under the new name
+	        	Files.deleteIfExists(outFile.toPath());
+	        	Files.createSymbolicLink(outFile.toPath(), file.getAbsoluteFile().toPath());
+	        }else{
+	        	// copying the JSON annotation file after renaming the file 
+	        	FileUtils.copyFile(file, outFile);
 	        }
-	        outFilenameTXT += name;
-	        
-	        // copying the TXT stitching file that matches the  renamed JSON file 
-	        FileUtils.copyFile(file, new File(outFilenameTXT));
-	        */
-	        
-	        
-	     // renaming the JSON annotation file and moving it to a new location 
-/*	        if(file.renameTo(new File(outFilename))) { 
-	            // if file copied successfully then delete the original file 
-	            //file.delete(); 
-	            System.out.println("File moved successfully " + name); 
-	        } else { 
-	            System.out.println("Failed to move the file = " + name); 
-	            success = false;
-	        } 		*/
 		}
 		
-		return success;
+		return true;
 	}
 	
 	/**
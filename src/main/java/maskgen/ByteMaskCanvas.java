@@ -0,0 +1,75 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package maskgen;
+
+import java.util.Arrays;
+
+/**
+ * This class is an 8-bit mask canvas backed by a row-major byte[] array.
+ * The canvas covers the image region [originX, originX+width) x [originY, originY+height)
+ * so that it can represent either a full frame (origin = 0,0) or one tile of a frame.
+ *
+ * @author peter bajcsy
+ *
+ */
+public class ByteMaskCanvas implements SpanSink {
+
+	private byte[] _pixels;
+	private int _originX;
+	private int _originY;
+	private int _width;
+	private int _height;
+
+	public ByteMaskCanvas(int width, int height) {
+		this(new byte[width * height], 0, 0, width, height);
+	}
+
+	public ByteMaskCanvas(byte[] pixels, int originX, int originY, int width, int height) {
+		if(pixels == null || pixels.length < width * height){
+			throw new IllegalArgumentException("ERROR: pixel buffer is smaller than " + width + "x" + height);
+		}
+		_pixels = pixels;
+		_originX = originX;
+		_originY = originY;
+		_width = width;
+		_height = height;
+	}
+
+	public byte[] getPixels(){
+		return _pixels;
+	}
+	public int getOriginX(){
+		return _originX;
+	}
+	public int getOriginY(){
+		return _originY;
+	}
+	public int getWidth(){
+		return _width;
+	}
+	public int getHeight(){
+		return _height;
+	}
+
+	/**
+	 * This method sets all pixels of the canvas to zero (background)
+	 */
+	public void clear(){
+		Arrays.fill(_pixels, 0, _width * _height, (byte)0);
+	}
+
+	public void span(int y, int xStart, int xEnd, int value){
+		int offset = (y - _originY) * _width - _originX;
+		Arrays.fill(_pixels, offset + xStart, offset + xEnd, (byte)value);
+	}
+
+}
@@ -0,0 +1,81 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package maskgen;
+
+/**
+ * This class passes the filled spans to a target SpanSink and records the pixels covered by the fills
+ * (as runs of a RunLengthMask), so that the pixels outside of the union of the fills can be cleared.
+ *
+ * The ImageJ masks drew the outline of each annotation before the fill and then filled the complement
+ * of the union of the annotation shapes with black (ShapeRoi.or + xor with the image rectangle).
+ * The outline pixels that are not covered by any fill (e.g., on the right and bottom side of a shape)
+ * are therefore background. The outlines are drawn directly into the target and the fills through
+ * this sink; clearUncovered then sets the remaining outline pixels to 0.
+ *
+ * @author pnb
+ *
+ */
+public class CoverageSpanSink implements SpanSink {
+
+	private SpanSink _target;
+	private RunLengthMask _coverage;
+
+	/**
+	 * @param target - receiver of the filled spans (e.g., a mask tile)
+	 */
+	public CoverageSpanSink(SpanSink target) {
+		_target = target;
+		_coverage = new RunLengthMask(target.getOriginX(), target.getOriginY(), target.getWidth(), target.getHeight());
+	}
+
+	public int getOriginX(){
+		return _target.getOriginX();
+	}
+	public int getOriginY(){
+		return _target.getOriginY();
+	}
+	public int getWidth(){
+		return _target.getWidth();
+	}
+	public int getHeight(){
+		return _target.getHeight();
+	}
+
+	public void span(int y, int xStart, int xEnd, int value){
+		_target.span(y, xStart, xEnd, value);
+		_coverage.span(y, xStart, xEnd, 1);
+	}
+
+	/**
+	 * This method sets all pixels of the target that are not covered by a filled span to 0
+	 * (the complement of the union of the fills)
+	 */
+	public void clearUncovered(){
+		int originX = _coverage.getOriginX();
+		int originY = _coverage.getOriginY();
+		int width = _coverage.getWidth();
+		for(int y = 0; y < _coverage.getHeight(); y++){
+			// the runs of a row are sorted, merged and not touching (single value)
+			int x = 0;
+			for(int k = 0; k < _coverage.getNumRuns(y); k++){
+				if(x < _coverage.getRunStart(y, k)){
+					_target.span(originY + y, originX + x, originX + _coverage.getRunStart(y, k), 0);
+				}
+				x = _coverage.getRunEnd(y, k);
+			}
+			if(x < width){
+				_target.span(originY + y, originX + x, originX + width, 0);
+			}
+		}
+	}
+
+}
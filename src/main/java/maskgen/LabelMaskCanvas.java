@@ -0,0 +1,109 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package maskgen;
+
+import java.util.Arrays;
+
+/**
+ * This class is a 16 or 32-bit label canvas (e.g., an instance mask) backed by a row-major byte[] array
+ * with little endian pixels, so that the buffer can be passed directly to the OMETiffTileWriter.
+ * As ByteMaskCanvas, the canvas covers the image region [originX, originX+width) x [originY, originY+height).
+ *
+ * @author pnb
+ *
+ */
+public class LabelMaskCanvas implements SpanSink {
+
+	private byte[] _pixels;
+	private int _bytesPerPixel;
+	private int _originX;
+	private int _originY;
+	private int _width;
+	private int _height;
+
+	public LabelMaskCanvas(byte[] pixels, int bytesPerPixel, int originX, int originY, int width, int height) {
+		if(bytesPerPixel != 2 && bytesPerPixel != 4){
+			throw new IllegalArgumentException("ERROR: the label canvas supports 2 or 4 bytes per pixel, bytesPerPixel=" + bytesPerPixel);
+		}
+		if(pixels == null || pixels.length < width * height * bytesPerPixel){
+			throw new IllegalArgumentException("ERROR: pixel buffer is smaller than " + width + "x" + height + "x" + bytesPerPixel);
+		}
+		_pixels = pixels;
+		_bytesPerPixel = bytesPerPixel;
+		_originX = originX;
+		_originY = originY;
+		_width = width;
+		_height = height;
+	}
+
+	public byte[] getPixels(){
+		return _pixels;
+	}
+	public int getBytesPerPixel(){
+		return _bytesPerPixel;
+	}
+	public int getOriginX(){
+		return _originX;
+	}
+	public int getOriginY(){
+		return _originY;
+	}
+	public int getWidth(){
+		return _width;
+	}
+	public int getHeight(){
+		return _height;
+	}
+
+	/**
+	 * This method sets all pixels of the canvas to zero (background)
+	 */
+	public void clear(){
+		Arrays.fill(_pixels, 0, _width * _height * _bytesPerPixel, (byte)0);
+	}
+
+	/**
+	 * @param x - image column
+	 * @param y - image row
+	 * @return label of the pixel
+	 */
+	public int getLabel(int x, int y){
+		int offset = ((y - _originY) * _width + x - _originX) * _bytesPerPixel;
+		int value = _pixels[offset] & 0xff | (_pixels[offset + 1] & 0xff) << 8;
+		if(_bytesPerPixel == 4){
+			value |= (_pixels[offset + 2] & 0xff) << 16 | (_pixels[offset + 3] & 0xff) << 24;
+		}
+		return value;
+	}
+
+	public void span(int y, int xStart, int xEnd, int value){
+		int offset = ((y - _originY) * _width - _originX) * _bytesPerPixel;
+		byte b0 = (byte) value;
+		byte b1 = (byte) (value >>> 8);
+		if(_bytesPerPixel == 2){
+			for(int p = offset + 2 * xStart; p < offset + 2 * xEnd; p += 2){
+				_pixels[p] = b0;
+				_pixels[p + 1] = b1;
+			}
+			return;
+		}
+		byte b2 = (byte) (value >>> 16);
+		byte b3 = (byte) (value >>> 24);
+		for(int p = offset + 4 * xStart; p < offset + 4 * xEnd; p += 4){
+			_pixels[p] = b0;
+			_pixels[p + 1] = b1;
+			_pixels[p + 2] = b2;
+			_pixels[p + 3] = b3;
+		}
+	}
+
+}
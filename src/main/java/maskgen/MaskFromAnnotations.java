@@ -16,12 +16,20 @@ import java.awt.Color;
 import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.nio.ByteBuffer;
 
 import org.apache.commons.cli.CommandLine;
@@ -33,35 +41,34 @@ import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 
 import datatype.Annotation;
+import datatype.AnnotationBatch;
 import datatype.ConcreteMaskColorMap;
 import datatype.ConcreteMaskLabelMap;
+import datatype.LabelDictionary;
 import datatype.MaskColorMap;
+import datatype.PackedRTree;
+import datatype.StitchingVector;
 import ij.IJ;
-import ij.ImagePlus;
-import ij.gui.Roi;
-import ij.gui.ShapeRoi;
-import ij.process.ByteProcessor;
-import ij.process.ImageProcessor;
 
 import io.AnnotationLoader;
+import io.AnnotationStore;
+import io.CSV_IOsupport;
 import io.CsvMyWriter;
-import io.RenameAnnotations;
-import loci.common.services.DependencyException;
-import loci.common.services.ServiceException;
-import loci.common.services.ServiceFactory;
+import io.MaskManifest;
+import io.OMETiffTileWriter;
+import io.RunLengthMaskIO;
+import io.StitchingLoader;
 import loci.formats.FormatException;
-import loci.formats.ImageReader;
-import loci.formats.services.OMEXMLService;
 
 import java.util.logging.Logger;
-import util.BioFormatsUtils;
 
-import loci.formats.IFormatReader;
-import loci.formats.codec.CompressionType;
 import loci.formats.ome.OMEXMLMetadata;
-import loci.formats.out.OMETiffWriter;
+import ome.xml.model.enums.PixelType;
+import ome.xml.model.primitives.PositiveInteger;
 
 import util.FileOper;
+import util.FilePairIndex;
+import util.OMEMetadataCache;
 
 /**
  * This class converts annotations extracted from a JSON file from WIPP
@@ -77,53 +84,92 @@ import util.FileOper;
 public class MaskFromAnnotations {
 
 	// these are the mappings between unique labels/colors/shapes and their corresponding grayscale mask values
-	protected HashMap<String, Integer> _label2grayMapping = new HashMap<String, Integer>();
+	protected LabelDictionary _labelDictionary = new LabelDictionary();
 	protected HashMap<Color, Integer> _color2grayMapping = new HashMap<Color, Integer>();
 	protected HashMap<String, Integer> _shape2grayMapping = new HashMap<String, Integer>();
 	
 	public static final int UNIQUE_TYPE_LABEL = 1;
 	public static final int UNIQUE_TYPE_COLOR = 2;
 	public static final int UNIQUE_TYPE_SHAPE = 3;
+	// each annotation gets its own mask value (instance id) in a 16 or 32-bit mask
+	public static final int UNIQUE_TYPE_INSTANCE = 4;
+	// largest instance id of the 16-bit instance masks (the 32-bit masks are used above)
+	public static final int MAX_INSTANCES_16BIT = 65535;
+
+	// output format of the masks
+	public static final int MASK_FORMAT_TIFF = 0;
+	// row-wise runs of the mask values (see RunLengthMaskIO)
+	public static final int MASK_FORMAT_RLE = 1;
+	// COCO run-length encoded binary mask per mask value (see RunLengthMaskIO)
+	public static final int MASK_FORMAT_COCO_RLE = 2;
 	
 	// Tile size used in WIPP
-	private static final int TILE_SIZE = 1024;
+	public static final int DEFAULT_TILE_SIZE = 1024;
 	private int width;
 	private int height;
 	
 	// input images folder
 	public String inputRawFileFolder;
+	// optional binary store of the annotations (compiled from the JSON folder, see AnnotationStore)
+	public String annotationStoreFileName = null;
+	private AnnotationStore _annotationStore = null;
+	// skip the frames whose outputs are up to date according to the manifest in the metadata folder (see MaskManifest)
+	public boolean incremental = false;
+	// optional JSON file name -> JSON file name derived from the stitching vectors (see StitchingLoader.mapAnnotationFilenames)
+	// the JSON files are paired with the raw images and the masks are named by the derived names without copying the files
+	public Map<String, String> renamedJSONFiles = null;
+	// number of resolutions of the mask OME-TIFF files (1 = full resolution only, more = SubIFD pyramid, see OMETiffTileWriter)
+	public int numResolutions = 1;
+	// MASK_FORMAT_TIFF (dense tiled OME-TIFF), MASK_FORMAT_RLE or MASK_FORMAT_COCO_RLE (sparse, no dense canvas)
+	public int maskFormat = MASK_FORMAT_TIFF;
+	// codec settings of the mask OME-TIFF files (see OMETiffTileWriter), e.g., uncompressed or PackBits
+	// for fast local disks and deflate for network file systems
+	public int tileSize = DEFAULT_TILE_SIZE;
+	public int compression = OMETiffTileWriter.COMPRESSION_LZW;
+	public int compressionLevel = OMETiffTileWriter.DEFAULT_DEFLATE_LEVEL;
+	public int predictor = OMETiffTileWriter.PREDICTOR_NONE;
+	// mask files written by the last processed frame (recorded in the manifest)
+	private ArrayList<String> _writtenFiles = new ArrayList<String>();
+	
+	// scanline rasterizer that fills the annotation shapes into the mask pixels
+	private ScanlineRasterizer _rasterizer = new ScanlineRasterizer();
 	
 	/////////////////////////////////////
 	// getters and setters for the mappings
 	// between unique labels/colors/shapes and their corresponding grayscale mask values
 	public HashMap<String, Integer> getLabel2grayMapping(){
-		return _label2grayMapping;
+		return _labelDictionary.toLabel2grayMapping();
 	}
 	@SuppressWarnings("unchecked")
 	public boolean setLabel2grayMapping(HashMap<String, Integer> val){
 		if(val.isEmpty()){
 			return false;
 		}
-		_label2grayMapping.clear();
+		_labelDictionary.clear();
+		boolean success = true;
 		Iterator<String> keySetIterator = val.keySet().iterator();
 		while(keySetIterator.hasNext()){
 		  String key = keySetIterator.next();
-		  _label2grayMapping.put(key,val.get(key));
+		  // two keys that differ only by case, spaces or punctuation are reported by the dictionary
+		  if(_labelDictionary.put(key,val.get(key)) < 0){
+			  success = false;
+		  }
 		}
 		//test
 		printLabel2grayMapping();
-		return true;
+		return success;
 	}
 	public void resetLabel2grayMapping(){
-		_label2grayMapping.clear();
+		_labelDictionary.clear();
 	}	
 	public String printLabel2grayMapping(){
-		if(_label2grayMapping.isEmpty()){
+		if(_labelDictionary.isEmpty()){
 			System.out.println("INFO: there is no label 2 gray mapping ");
 			return "NA";
 		}
-		System.out.println("label 2 gray mapping: " + _label2grayMapping.toString());
-		return ("label 2 gray mapping, " + _label2grayMapping.toString());
+		HashMap<String, Integer> mapping = _labelDictionary.toLabel2grayMapping();
+		System.out.println("label 2 gray mapping: " + mapping.toString());
+		return ("label 2 gray mapping, " + mapping.toString());
 	}
 	/////////////////
 	public HashMap<Color, Integer> getColor2grayMapping(){
@@ -200,6 +246,14 @@ public class MaskFromAnnotations {
 	 * @throws FormatException
 	 */
 	public boolean convertUniqueLabelsToMask(ArrayList<Annotation> annotations, ArrayList<String> uniqueLabels, boolean isMappingFixed, String rawImageName, String outFileName) throws IOException, FormatException {
+		return convertUniqueLabelsToMask(annotations == null ? null : AnnotationBatch.fromAnnotations(annotations), uniqueLabels, isMappingFixed, rawImageName, outFileName);
+	}
+
+	/**
+	 * This method is the AnnotationBatch version of convertUniqueLabelsToMask
+	 * (the annotations are selected from the batch without creating ImageJ ROIs)
+	 */
+	public boolean convertUniqueLabelsToMask(AnnotationBatch annotations, ArrayList<String> uniqueLabels, boolean isMappingFixed, String rawImageName, String outFileName) throws IOException, FormatException {
 		// sanity check
 		if(annotations == null || annotations.size() < 1){
 			System.err.println("ERROR: missing annotations");
@@ -243,82 +297,36 @@ public class MaskFromAnnotations {
 		ImageProcessor ip3 = (ImageProcessor) ip2.getObject(0);
 */		
 		
-		//Reading a tiled tiff with Bioformats and converting it to an ImagePlus 
-		ImagePlus imgPlus = BioFormatsUtils.readImage(rawImageName);
-		ImageProcessor ip3 = imgPlus.getProcessor();
-		
-		// reset values and min and max values
-		ip3.set(0);
-		ip3.resetMinAndMax();
+		// read only the header of the raw image (dimensions and metadata), the raw pixels are not needed
+		OMEXMLMetadata metadata = getMaskMetadata(rawImageName);
 
-		// any any input image that is different from grayscale
-		// based on the grayColor set to true
-		boolean grayColor = true;
+		// the selected annotations and their mask values are rasterized tile by tile by writeTiledMask
+		AnnotationBatch selected = new AnnotationBatch();
+		int[] grayValues = new int[annotations.size()];
 	    	
-		int grayValueCounter = 1;
-//		If commented out, then the mask won't be drawn
-		for(Annotation a : annotations){
-	
-			boolean signal = false;
-			for(String unique :  uniqueLabels){
-				
-				if (!signal && a.label.toLowerCase().equalsIgnoreCase(unique.toLowerCase())){
-					signal = true;
-					ip3.draw(a.shape);
-					if(!grayColor){
-						ip3.setColor(a.shape.getFillColor());
-					}else{
-						grayValueCounter = findGrayColorForUniqueLabel(unique,isMappingFixed);
-						System.out.println("label=" + unique + ", assigned gray value =" + grayValueCounter);
-						
-						ip3.setColor(new Color(grayValueCounter,grayValueCounter,grayValueCounter));						
-					}
-					ip3.fill(a.shape);
-										
-				}
+		// intern the unique labels once: the first matching unique label wins
+		LabelDictionary uniqueDictionary = new LabelDictionary();
+		for(String unique :  uniqueLabels){
+			if(uniqueDictionary.lookup(unique) < 0){
+				int gray = findGrayColorForUniqueLabel(unique,isMappingFixed);
+				System.out.println("label=" + unique + ", assigned gray value =" + gray);
+				uniqueDictionary.put(unique, gray);
 			}
 		}
-
-		//Define ROI 
-		ShapeRoi compositeRoi = new ShapeRoi(annotations.get(0).shape);
-
-		//Select everything that wasn't drawn and fill in black
-		for (int i = 1; i < annotations.size(); i++) {
-			boolean signal = false;
-			for(String unique :  uniqueLabels){
-				
-				if (!signal && annotations.get(i).label.toLowerCase().equalsIgnoreCase(unique.toLowerCase())){
-					signal = true;	
-					compositeRoi = compositeRoi.or(new ShapeRoi(annotations.get(i).shape));
-				}
+	    	
+		for(int i = 0; i < annotations.size(); i++){
+			int id = uniqueDictionary.lookup(annotations.getLabel(i));
+			if(id < 0){
+				continue;
 			}
+			grayValues[selected.size()] = uniqueDictionary.getGrayValue(id);
+			selected.add(annotations, i);
 		}
-		compositeRoi = compositeRoi.xor(new ShapeRoi(new Roi(0,0,ip3.getWidth(),ip3.getHeight())));
-		ip3.setRoi(compositeRoi);
-		//	ip3.draw(compositeRoi);
-		ip3.setColor(Color.BLACK);
-		ip3.fill(compositeRoi);
 
-		// For short and float images, recalculates the min and max image values needed to correctly display the image. For ByteProcessors, resets the LUT.
-		ip3.resetMinAndMax();		
-		System.out.println("min = "+ ip3.getMin() +", max="+ ip3.getMax() );
-		
-		ImagePlus imp = new ImagePlus("Result", ip3);
-		// any any input image that is different from grayscale
-		// based on the grayColor set to true
-		//final ByteProcessor src;
-		if (grayColor && imp.getType() != ImagePlus.GRAY8){
-/*			ImageConverter conv = new ImageConverter(imp);
-			conv.setDoScaling(false);
-			conv.convertToGray8();*/
-
-			// false argument for no scaling
-	        ip3 = (ByteProcessor) ip3.convertToByte(false).duplicate();
-		}
-		
-		OMEXMLMetadata metadata = getMetadata(rawImageName);		
-		byte[] bytesArr = (byte[]) ip3.getPixels();
-		writeTiledOMETiff(metadata, bytesArr, outFileName);
+		// the background is implicit: each tile starts cleared to zero and only
+		// the annotation spans are written, so no union of the shapes is needed
+		// (the outline of each annotation is drawn before its fill as in ImageJ draw + fill)
+		writeTiledMask(metadata, selected, grayValues, getOutlineValues(grayValues, selected.size()), outFileName);
 		System.out.println("Done!");
 
 		return true;
@@ -340,6 +348,14 @@ public class MaskFromAnnotations {
 	 * @throws FormatException
 	 */
 	public boolean convertUniqueColorsToMask(ArrayList<Annotation> annotations, ArrayList<Color> uniqueColors, boolean isMappingFixed, String rawImageName, String outFileName) throws IOException, FormatException {
+		return convertUniqueColorsToMask(annotations == null ? null : AnnotationBatch.fromAnnotations(annotations), uniqueColors, isMappingFixed, rawImageName, outFileName);
+	}
+
+	/**
+	 * This method is the AnnotationBatch version of convertUniqueColorsToMask
+	 * (the annotations are selected from the batch without creating ImageJ ROIs)
+	 */
+	public boolean convertUniqueColorsToMask(AnnotationBatch annotations, ArrayList<Color> uniqueColors, boolean isMappingFixed, String rawImageName, String outFileName) throws IOException, FormatException {
 		// sanity check
 		if(annotations == null || annotations.size() < 1){
 			System.err.println("ERROR: missing annotations");
@@ -384,65 +400,28 @@ public class MaskFromAnnotations {
 		ImageProcessor ip3 = (ImageProcessor) ip2.getObject(0);		
 		*/
 		
-		//Reading a tiled tiff with Bioformats and converting it to an ImagePlus 
-		ImagePlus imgPlus = BioFormatsUtils.readImage(rawImageName);
-		ImageProcessor ip3 = imgPlus.getProcessor();
-		
-		// reset values and min and max values
-		ip3.set(0);
-		ip3.resetMinAndMax();
-
-		boolean grayColor = true;
-		int grayValue = 1;
-		for(Annotation a : annotations){
-			
-			boolean signal = false;
-			for(Color unique :  uniqueColors){
-				
-				if (!signal && a.getFillColor().equals(unique)){
-					signal = true;
-					ip3.draw(a.shape);
-					if(!grayColor){
-						ip3.setColor(a.shape.getFillColor());
-					}else{
-						// for each unique shape fill color, find a unique gray scale value for the mask
-						grayValue = findGrayColorForUniqueRGBColor(a.shape.getFillColor(),isMappingFixed);
-						ip3.setColor(new Color(grayValue,grayValue,grayValue));
-					}
-					ip3.fill(a.shape);
-										
-				}
-			}
-		}
+		// read only the header of the raw image (dimensions and metadata), the raw pixels are not needed
+		OMEXMLMetadata metadata = getMaskMetadata(rawImageName);
 
-		//Define ROI 
-		ShapeRoi compositeRoi = new ShapeRoi(annotations.get(0).shape);
+		// the selected annotations and their mask values are rasterized tile by tile by writeTiledMask
+		AnnotationBatch selected = new AnnotationBatch();
+		int[] grayValues = new int[annotations.size()];
 
-		//Select everything that wasn't drawn and fill in black
-		for (int i = 1; i < annotations.size(); i++) {
-			boolean signal = false;
+		for(int i = 0; i < annotations.size(); i++){
 			for(Color unique :  uniqueColors){
-				
-				if (!signal && annotations.get(i).shape.getFillColor().equals(unique)){
-					signal = true;	
-					compositeRoi = compositeRoi.or(new ShapeRoi(annotations.get(i).shape));
-
+				if (annotations.getColor(i) == unique.getRGB()){
+					// for each unique shape fill color, find a unique gray scale value for the mask
+					grayValues[selected.size()] = findGrayColorForUniqueRGBColor(unique,isMappingFixed);
+					selected.add(annotations, i);
+					break;
 				}
 			}
 		}
-		compositeRoi = compositeRoi.xor(new ShapeRoi(new Roi(0,0,ip3.getWidth(),ip3.getHeight())));
-		ip3.setRoi(compositeRoi);
-		//	ip3.draw(compositeRoi);
-		ip3.setColor(Color.BLACK);
-		ip3.fill(compositeRoi);
 
-		// For short and float images, recalculates the min and max image values needed to correctly display the image. For ByteProcessors, resets the LUT.
-		ip3.resetMinAndMax();		
-		System.out.println("min = "+ ip3.getMin() +", max="+ ip3.getMax() );
-		
-		OMEXMLMetadata metadata = getMetadata(rawImageName);
-		byte[] bytesArr = (byte[]) ip3.getPixels();
-		writeTiledOMETiff(metadata, bytesArr, outFileName);
+		// the background is implicit: each tile starts cleared to zero and only
+		// the annotation spans are written, so no union of the shapes is needed
+		// (the outline of each annotation is drawn before its fill as in ImageJ draw + fill)
+		writeTiledMask(metadata, selected, grayValues, getOutlineValues(grayValues, selected.size()), outFileName);
 		System.out.println("Done!");
 
 		return true;
@@ -464,6 +443,14 @@ public class MaskFromAnnotations {
 	 * @throws FormatException
 	 */
 	public boolean convertUniqueShapesToMask(ArrayList<Annotation> annotations, ArrayList<String> uniqueShapes, boolean isMappingFixed, String rawImageName, String outFileName) throws IOException, FormatException {
+		return convertUniqueShapesToMask(annotations == null ? null : AnnotationBatch.fromAnnotations(annotations), uniqueShapes, isMappingFixed, rawImageName, outFileName);
+	}
+
+	/**
+	 * This method is the AnnotationBatch version of convertUniqueShapesToMask
+	 * (the annotations are selected from the batch without creating ImageJ ROIs)
+	 */
+	public boolean convertUniqueShapesToMask(AnnotationBatch annotations, ArrayList<String> uniqueShapes, boolean isMappingFixed, String rawImageName, String outFileName) throws IOException, FormatException {
 		// sanity check
 		if(annotations == null || annotations.size() < 1){
 			System.err.println("ERROR: missing annotations");
@@ -508,76 +495,312 @@ public class MaskFromAnnotations {
 		ImageProcessorSource ip2 = new ImageProcessorSource(reader);
 		ImageProcessor ip3 = (ImageProcessor) ip2.getObject(0);*/
 		
-		//Reading a tiled tiff with Bioformats and converting it to an ImagePlus 
-		ImagePlus imgPlus = BioFormatsUtils.readImage(rawImageName);
-		ImageProcessor ip3 = imgPlus.getProcessor();
-		
-		// reset values and min and max values
-		ip3.set(0);
-		ip3.resetMinAndMax();
+		// read only the header of the raw image (dimensions and metadata), the raw pixels are not needed
+		OMEXMLMetadata metadata = getMaskMetadata(rawImageName);
+
+		// the selected annotations and their mask values are rasterized tile by tile by writeTiledMask
+		AnnotationBatch selected = new AnnotationBatch();
+		int[] grayValues = new int[annotations.size()];
 		
-		boolean grayColor = true;
-		int grayValueCounter = 1;
-		//		If commented out, then the mask won't be drawn
-		for(Annotation a : annotations){
-			
-			boolean signal = false;
+		for(int i = 0; i < annotations.size(); i++){
+			String shapeName = annotations.getShapeName(i);
 			for(String unique :  uniqueShapes){
-				
-				if (!signal && a.getShapeName().equalsIgnoreCase(unique)){
-					signal = true;
-					ip3.draw(a.shape);
-					if(!grayColor){
-						ip3.setColor(a.shape.getFillColor());
-					}else{
-						grayValueCounter = findGrayColorForUniqueShape(unique,isMappingFixed);
-						System.out.println("label=" + unique + ", assigned gray value =" + grayValueCounter);
-						if(grayValueCounter < 0){
-							System.err.println("label=" + unique + ", assigned gray value =" + grayValueCounter);
-							ip3.setColor(Color.BLACK);
-						}else{							
-							ip3.setColor(new Color(grayValueCounter,grayValueCounter,grayValueCounter));
-						}
-						
+				if (shapeName.equalsIgnoreCase(unique)){
+					int grayValueCounter = findGrayColorForUniqueShape(unique,isMappingFixed);
+					System.out.println("label=" + unique + ", assigned gray value =" + grayValueCounter);
+					if(grayValueCounter < 0){
+						System.err.println("label=" + unique + ", assigned gray value =" + grayValueCounter);
+						grayValueCounter = 0;
 					}
-					ip3.fill(a.shape);
-										
+					grayValues[selected.size()] = grayValueCounter;
+					selected.add(annotations, i);
+					break;
 				}
 			}
 		}
 
-		//Define ROI 
-		ShapeRoi compositeRoi = new ShapeRoi(annotations.get(0).shape);
+		// the background is implicit: each tile starts cleared to zero and only
+		// the annotation spans are written, so no union of the shapes is needed
+		// (the outline of each annotation is drawn before its fill as in ImageJ draw + fill)
+		writeTiledMask(metadata, selected, grayValues, getOutlineValues(grayValues, selected.size()), outFileName);
+		System.out.println("Done!");
+
+		return true;
+	}
 
-		//Select everything that wasn't drawn and fill in black
-		for (int i = 1; i < annotations.size(); i++) {
-			boolean signal = false;
-			for(String unique :  uniqueShapes){
-				
-				if (!signal && annotations.get(i).getShapeName().equalsIgnoreCase(unique)){
-					signal = true;	
-					compositeRoi = compositeRoi.or(new ShapeRoi(annotations.get(i).shape));
+	/**
+	 * This method creates an instance mask in which each annotation has its own mask value (instance id),
+	 * so that the touching annotations of the same label, color or shape remain separated.
+	 * The instance id of the i-th annotation is i+1 (in the drawing order, later annotations overwrite
+	 * earlier ones). The mask is 16-bit for up to MAX_INSTANCES_16BIT annotations and 32-bit otherwise.
+	 * 
+	 * @param annotations - an array of Annotation objects
+	 * @param rawImageName - path to a raw image
+	 * @param outFileName - path to an output location for the mask image
+	 * @param instanceTable - output lines of the instance table: mask name, instance id, label, color, shape, WDZT id
+	 *  (CSV fields quoted by CSV_IOsupport.quoteField)
+	 * @return - boolean about the execution success
+	 */
+	public boolean convertAnnotationsToInstanceMask(ArrayList<Annotation> annotations, String rawImageName, String outFileName, ArrayList<String> instanceTable) {
+		return convertAnnotationsToInstanceMask(annotations == null ? null : AnnotationBatch.fromAnnotations(annotations), rawImageName, outFileName, instanceTable);
+	}
+
+	/**
+	 * This method is the AnnotationBatch version of convertAnnotationsToInstanceMask
+	 * (the annotations are selected from the batch without creating ImageJ ROIs)
+	 */
+	public boolean convertAnnotationsToInstanceMask(AnnotationBatch annotations, String rawImageName, String outFileName, ArrayList<String> instanceTable) {
+		// sanity check
+		if(annotations == null || annotations.size() < 1){
+			System.err.println("ERROR: missing annotations");
+			return false;
+		}
+		OMEXMLMetadata metadata = getMaskMetadata(rawImageName);
+		int bits = annotations.size() <= MAX_INSTANCES_16BIT ? 16 : 32;
+		metadata.setPixelsType(bits == 16 ? PixelType.UINT16 : PixelType.UINT32, 0);
+		metadata.setPixelsSignificantBits(new PositiveInteger(bits), 0);
+		System.out.println("INFO: instance mask with " + annotations.size() + " annotations, " + bits + "-bit");
+
+		int[] instanceIds = new int[annotations.size()];
+		String maskName = new File(outFileName).getName();
+		for(int i = 0; i < annotations.size(); i++){
+			instanceIds[i] = i + 1;
+			if(instanceTable != null){
+				// the label and the WDZT id are free text (quoted if they contain a comma or a quote)
+				instanceTable.add(CSV_IOsupport.quoteField(maskName) + ", " + instanceIds[i] + ", " + CSV_IOsupport.quoteField(annotations.getLabel(i)) + ", "
+						+ CSV_IOsupport.quoteField(AnnotationLoader.mapColorValue2ColorName(new Color(annotations.getColor(i), true))) + ", "
+						+ annotations.getShapeName(i) + ", " + CSV_IOsupport.quoteField(annotations.getId(i)));
+			}
+		}
+		writeTiledMasks(metadata, annotations, new int[annotations.size()], instanceIds, new String[]{outFileName});
+		System.out.println("Done!");
+		return true;
+	}
+
+	/**
+	 * This method creates one mask image per unique label in a single pass over the annotations
+	 * (the combineAllUnique = false case). The mask image j contains only the annotations
+	 * with the exact label uniqueLabels.get(j), i.e., each annotation is in one mask image
+	 * even if several unique labels differ only by case, spaces or punctuation.
+	 * The raw image header is read once and all masks are rendered and written together tile by tile.
+	 * 
+	 * @param annotations - an array of Annotation objects
+	 * @param uniqueLabels - an array of unique labels in the Annotation object
+	 * @param isMappingFixed - true if the label to gray mapping is pre-defined
+	 * @param rawImageName - path to a raw image
+	 * @param outFileNames - path to an output location for each mask image (same index as uniqueLabels)
+	 * @param mappings - output array with the label to gray mapping used for each mask image (same index as uniqueLabels)
+	 * @return - boolean about the execution success
+	 */
+	public boolean convertEachUniqueLabelToMask(ArrayList<Annotation> annotations, ArrayList<String> uniqueLabels, boolean isMappingFixed, String rawImageName, String[] outFileNames, String[] mappings) {
+		return convertEachUniqueLabelToMask(annotations == null ? null : AnnotationBatch.fromAnnotations(annotations), uniqueLabels, isMappingFixed, rawImageName, outFileNames, mappings);
+	}
+
+	/**
+	 * This method is the AnnotationBatch version of convertEachUniqueLabelToMask
+	 * (the annotations are selected from the batch without creating ImageJ ROIs)
+	 */
+	public boolean convertEachUniqueLabelToMask(AnnotationBatch annotations, ArrayList<String> uniqueLabels, boolean isMappingFixed, String rawImageName, String[] outFileNames, String[] mappings) {
+		// sanity check
+		if(annotations == null || annotations.size() < 1){
+			System.err.println("ERROR: missing annotations");
+			return false;
+		}
+		if(uniqueLabels == null || uniqueLabels.size() < 1 || outFileNames == null || outFileNames.length != uniqueLabels.size()){
+			System.err.println("ERROR: missing uniqueLabels or outFileNames");
+			return false;
+		}
+		// the gray value of each mask image
+		int[] classGrayValues = new int[uniqueLabels.size()];
+		for(int j = 0; j < uniqueLabels.size(); j++){
+			if(!isMappingFixed){
+				// each mask image has its own mapping
+				resetLabel2grayMapping();
+			}
+			classGrayValues[j] = findGrayColorForUniqueLabel(uniqueLabels.get(j), isMappingFixed);
+			System.out.println("label=" + uniqueLabels.get(j) + ", assigned gray value =" + classGrayValues[j]);
+			if(mappings != null){
+				mappings[j] = printLabel2grayMapping();
+			}
+		}
+
+		// each annotation is routed to the mask image of its exact label (one mask image per unique label;
+		// unique labels that differ only by case, spaces or punctuation are separate mask images)
+		HashMap<String, Integer> outputIndex = new HashMap<String, Integer>();
+		for(int j = 0; j < uniqueLabels.size(); j++){
+			if(!outputIndex.containsKey(uniqueLabels.get(j))){
+				outputIndex.put(uniqueLabels.get(j), j);
+			}
+		}
+		int[] classOutputs = new int[annotations.getNumClasses()];
+		for(int c = 0; c < classOutputs.length; c++){
+			Integer j = outputIndex.get(annotations.getClassLabel(c));
+			classOutputs[c] = (j == null) ? -1 : j;
+		}
+		MaskRouting routing = new MaskRouting(annotations.size());
+		for(int i = 0; i < annotations.size(); i++){
+			int j = classOutputs[annotations.getClassId(i)];
+			if(j < 0){
+				continue;
+			}
+			routing.add(annotations, i, j, classGrayValues[j]);
+		}
+
+		OMEXMLMetadata metadata = getMaskMetadata(rawImageName);
+		writeTiledMasks(metadata, routing.annotations, routing.outputIndices, routing.grayValues, outFileNames);
+		System.out.println("Done!");
+		return true;
+	}
+
+	/**
+	 * This method creates one mask image per unique color in a single pass over the annotations
+	 * (the combineAllUnique = false case). See convertEachUniqueLabelToMask
+	 * 
+	 * @param annotations - an array of Annotation objects
+	 * @param uniqueColors - an array of unique colors in the Annotation object
+	 * @param isMappingFixed - true if the color to gray mapping is pre-defined
+	 * @param rawImageName - path to a raw image
+	 * @param outFileNames - path to an output location for each mask image (same index as uniqueColors)
+	 * @param mappings - output array with the color to gray mapping used for each mask image (same index as uniqueColors)
+	 * @return - boolean about the execution success
+	 */
+	public boolean convertEachUniqueColorToMask(ArrayList<Annotation> annotations, ArrayList<Color> uniqueColors, boolean isMappingFixed, String rawImageName, String[] outFileNames, String[] mappings) {
+		return convertEachUniqueColorToMask(annotations == null ? null : AnnotationBatch.fromAnnotations(annotations), uniqueColors, isMappingFixed, rawImageName, outFileNames, mappings);
+	}
+
+	/**
+	 * This method is the AnnotationBatch version of convertEachUniqueColorToMask
+	 * (the annotations are selected from the batch without creating ImageJ ROIs)
+	 */
+	public boolean convertEachUniqueColorToMask(AnnotationBatch annotations, ArrayList<Color> uniqueColors, boolean isMappingFixed, String rawImageName, String[] outFileNames, String[] mappings) {
+		// sanity check
+		if(annotations == null || annotations.size() < 1){
+			System.err.println("ERROR: missing annotations");
+			return false;
+		}
+		if(uniqueColors == null || uniqueColors.size() < 1 || outFileNames == null || outFileNames.length != uniqueColors.size()){
+			System.err.println("ERROR: missing uniqueColors or outFileNames");
+			return false;
+		}
+		// the gray value of each mask image
+		int[] classGrayValues = new int[uniqueColors.size()];
+		for(int j = 0; j < uniqueColors.size(); j++){
+			if(!isMappingFixed){
+				// each mask image has its own mapping
+				resetColor2grayMapping();
+			}
+			classGrayValues[j] = findGrayColorForUniqueRGBColor(uniqueColors.get(j), isMappingFixed);
+			if(mappings != null){
+				mappings[j] = printColor2grayMapping();
+			}
+		}
+
+		// route each annotation to the mask image of its color
+		MaskRouting routing = new MaskRouting(annotations.size());
+		for(int i = 0; i < annotations.size(); i++){
+			for(int j = 0; j < uniqueColors.size(); j++){
+				if (annotations.getColor(i) == uniqueColors.get(j).getRGB()){
+					routing.add(annotations, i, j, classGrayValues[j]);
 				}
 			}
 		}
-		compositeRoi = compositeRoi.xor(new ShapeRoi(new Roi(0,0,ip3.getWidth(),ip3.getHeight())));
-		ip3.setRoi(compositeRoi);
-		//	ip3.draw(compositeRoi);
-		ip3.setColor(Color.BLACK);
-		ip3.fill(compositeRoi);
 
-		// For short and float images, recalculates the min and max image values needed to correctly display the image. For ByteProcessors, resets the LUT.
-		ip3.resetMinAndMax();		
-		System.out.println("min = "+ ip3.getMin() +", max="+ ip3.getMax() );
-		
-		OMEXMLMetadata metadata = getMetadata(rawImageName);
-		byte[] bytesArr = (byte[]) ip3.getPixels();
-		writeTiledOMETiff(metadata, bytesArr, outFileName);
+		OMEXMLMetadata metadata = getMaskMetadata(rawImageName);
+		writeTiledMasks(metadata, routing.annotations, routing.outputIndices, routing.grayValues, outFileNames);
 		System.out.println("Done!");
+		return true;
+	}
+
+	/**
+	 * This method creates one mask image per unique shape in a single pass over the annotations
+	 * (the combineAllUnique = false case). See convertEachUniqueLabelToMask
+	 * 
+	 * @param annotations - an array of Annotation objects
+	 * @param uniqueShapes - an array of unique shapes in the Annotation object
+	 * @param isMappingFixed - true if the shape to gray mapping is pre-defined
+	 * @param rawImageName - path to a raw image
+	 * @param outFileNames - path to an output location for each mask image (same index as uniqueShapes)
+	 * @param mappings - output array with the shape to gray mapping used for each mask image (same index as uniqueShapes)
+	 * @return - boolean about the execution success
+	 */
+	public boolean convertEachUniqueShapeToMask(ArrayList<Annotation> annotations, ArrayList<String> uniqueShapes, boolean isMappingFixed, String rawImageName, String[] outFileNames, String[] mappings) {
+		return convertEachUniqueShapeToMask(annotations == null ? null : AnnotationBatch.fromAnnotations(annotations), uniqueShapes, isMappingFixed, rawImageName, outFileNames, mappings);
+	}
+
+	/**
+	 * This method is the AnnotationBatch version of convertEachUniqueShapeToMask
+	 * (the annotations are selected from the batch without creating ImageJ ROIs)
+	 */
+	public boolean convertEachUniqueShapeToMask(AnnotationBatch annotations, ArrayList<String> uniqueShapes, boolean isMappingFixed, String rawImageName, String[] outFileNames, String[] mappings) {
+		// sanity check
+		if(annotations == null || annotations.size() < 1){
+			System.err.println("ERROR: missing annotations");
+			return false;
+		}
+		if(uniqueShapes == null || uniqueShapes.size() < 1 || outFileNames == null || outFileNames.length != uniqueShapes.size()){
+			System.err.println("ERROR: missing uniqueShapes or outFileNames");
+			return false;
+		}
+		// the gray value of each mask image
+		int[] classGrayValues = new int[uniqueShapes.size()];
+		for(int j = 0; j < uniqueShapes.size(); j++){
+			if(!isMappingFixed){
+				// each mask image has its own mapping
+				resetShape2grayMapping();
+			}
+			classGrayValues[j] = findGrayColorForUniqueShape(uniqueShapes.get(j), isMappingFixed);
+			System.out.println("label=" + uniqueShapes.get(j) + ", assigned gray value =" + classGrayValues[j]);
+			if(classGrayValues[j] < 0){
+				classGrayValues[j] = 0;
+			}
+			if(mappings != null){
+				mappings[j] = printShape2grayMapping();
+			}
+		}
+
+		// route each annotation to the mask image of its shape
+		MaskRouting routing = new MaskRouting(annotations.size());
+		for(int i = 0; i < annotations.size(); i++){
+			for(int j = 0; j < uniqueShapes.size(); j++){
+				if (annotations.getShapeName(i).equalsIgnoreCase(uniqueShapes.get(j))){
+					routing.add(annotations, i, j, classGrayValues[j]);
+				}
+			}
+		}
 
+		OMEXMLMetadata metadata = getMaskMetadata(rawImageName);
+		writeTiledMasks(metadata, routing.annotations, routing.outputIndices, routing.grayValues, outFileNames);
+		System.out.println("Done!");
 		return true;
 	}
 
+	/**
+	 * This is a helper class that holds the annotations routed to the mask images
+	 * together with the output index and the gray value of each of them (in the drawing order)
+	 */
+	private static class MaskRouting {
+		AnnotationBatch annotations;
+		int[] outputIndices;
+		int[] grayValues;
+
+		MaskRouting(int capacity){
+			annotations = new AnnotationBatch();
+			outputIndices = new int[Math.max(capacity, 1)];
+			grayValues = new int[Math.max(capacity, 1)];
+		}
+
+		void add(AnnotationBatch source, int index, int outputIndex, int grayValue){
+			int i = annotations.size();
+			if(i == outputIndices.length){
+				outputIndices = Arrays.copyOf(outputIndices, 2 * i);
+				grayValues = Arrays.copyOf(grayValues, 2 * i);
+			}
+			annotations.add(source, index);
+			outputIndices[i] = outputIndex;
+			grayValues[i] = grayValue;
+		}
+	}
+
 	/**
 	 * This method is a helper for the convertUniqueLabelsToMask method
 	 * 
@@ -586,21 +809,15 @@ public class MaskFromAnnotations {
 	 */
 	public int findGrayColorForUniqueLabel(String uniqueLabel, boolean isMappingFixed){
 		int gray = -1;
-		Iterator<String> keySetIterator = _label2grayMapping.keySet().iterator();
 
 		if(uniqueLabel.equalsIgnoreCase("")){
-			System.out.println("DEBUG: _label2grayMapping.size()=" + _label2grayMapping.size());
+			System.out.println("DEBUG: _labelDictionary.size()=" + _labelDictionary.size());
 		}
-		while(keySetIterator.hasNext()){
-		  String key = keySetIterator.next();
-		  //System.out.println("Text key: " + key + " value: " + _label2grayMapping.get(key));
-		  if(key.equalsIgnoreCase(uniqueLabel)){
-			  return _label2grayMapping.get(key);
-		  }
-		  // try to match the pre-defined keys (Aggregate_damage, Paste_damage, Air_void) without underscore
-		  if(key.replace("_", "").equalsIgnoreCase(uniqueLabel)){
-			  return _label2grayMapping.get(key);
-		  }
+		// the dictionary matches the pre-defined keys (Aggregate_damage, Paste_damage, Air_void)
+		// ignoring case and underscores
+		int id = _labelDictionary.lookup(uniqueLabel);
+		if(id >= 0){
+			return _labelDictionary.getGrayValue(id);
 		}
 		if(isMappingFixed){
 			// return the background color
@@ -608,8 +825,8 @@ public class MaskFromAnnotations {
 			return 0;
 		}
 		// else modify the mapping and add a new unique element
-		gray = _label2grayMapping.size()+1;
-		_label2grayMapping.put(uniqueLabel, gray);
+		gray = _labelDictionary.size()+1;
+		_labelDictionary.put(uniqueLabel, gray);
 		return gray;
 	}
 	/**
@@ -764,12 +981,27 @@ public class MaskFromAnnotations {
 	 * @throws FormatException
 	 */
 	public boolean CMDlaunch(String inputJSONFileFolder, int uniqueType, boolean combineAllUnique, boolean isMappingFixed, String inputRawFileFolder, String outImagesFolder, String outMetadataFolder) throws IOException, FormatException{
+		return CMDlaunch(inputJSONFileFolder, uniqueType, combineAllUnique, isMappingFixed, inputRawFileFolder, outImagesFolder, outMetadataFolder, 1);
+	}
+
+	/**
+	 * This method is the same as CMDlaunch above but the pairs of JSON and raw image files
+	 * (frames) are processed concurrently by numThreads workers.
+	 * The mappings.csv file is assembled in the input order.
+	 * 
+	 * @param numThreads - number of frames processed concurrently (1 = sequential)
+	 * @return boolean depending on the success
+	 * 
+	 * @throws IOException
+	 * @throws FormatException
+	 */
+	public boolean CMDlaunch(String inputJSONFileFolder, final int uniqueType, final boolean combineAllUnique, final boolean isMappingFixed, String inputRawFileFolder, final String outImagesFolder, String outMetadataFolder, int numThreads) throws IOException, FormatException{
 		// sanity check
 		if (inputJSONFileFolder == null || inputRawFileFolder == null || outImagesFolder == null || outMetadataFolder == null) {
 			System.err.println("Error: null inputFileFolder, inputRawFileFolder or outputImagesFolder ");
 			return false;
 		}
-		if (uniqueType <1 || uniqueType > 3) {
+		if (uniqueType <1 || uniqueType > UNIQUE_TYPE_INSTANCE) {
 			System.err.println("Error: uniqueType is out of bounds ");
 			return false;
 		}
@@ -789,6 +1021,10 @@ public class MaskFromAnnotations {
 			System.err.println("output images Directory does not exist: " + outImagesFolder);
 			return false;
 		}
+		if(annotationStoreFileName != null){
+			// the JSON files are parsed only if the store is missing or out of date
+			_annotationStore = AnnotationStore.openOrCompile(inputJSONFileFolder, annotationStoreFileName);
+		}
 		directory=new File(outMetadataFolder);
 		if(!directory.exists()){
 			System.err.println("output metadata Directory does not exist: " + outMetadataFolder);
@@ -828,217 +1064,874 @@ public class MaskFromAnnotations {
 				FileOper.SORT_ASCENDING);
 			
 		//////////////////////////////////////////////////////
-		AnnotationLoader annotClass = new AnnotationLoader();
+		// find the matching pairs of JSON and raw image files (e.g., a.ome.json and a.ome.tif)
+		FilePairIndex.KeyFunction JSONKey = FilePairIndex.suffixRule(".ome.json", ".json");
+		if(renamedJSONFiles != null){
+			// the JSON files without a stitching vector name are not paired
+			JSONKey = FilePairIndex.chain(new FilePairIndex.KeyFunction() {
+				public String getKey(String name) {
+					return renamedJSONFiles.get(name);
+				}
+			}, JSONKey);
+		}
+		FilePairIndex.Pairing pairing = FilePairIndex.pair(sortedJSONInFolder, JSONKey,
+				sortedImagesInFolder, FilePairIndex.suffixRule(".ome.tif", ".tif"));
+		pairing.printUnmatched("JSON file", "raw TIFF image");
+		ArrayList<String> pairedJSONFiles = pairing.queries;
+		ArrayList<String> pairedRawFiles = pairing.targets;
+		for(int i = 0; i < pairedJSONFiles.size(); i++){
+			System.out.println("INFO: matching pair: JSON = " +  pairedJSONFiles.get(i) + " TIFF = " + pairedRawFiles.get(i));
+		}
 		
-		String JSONfileName = new String();	
-		String rawFileName = new String();
 		String outFileName = new String();
-			
-		// store metadata about the execution
+
+		//////////////////////////////////////////////////////
+		// manifest of the outputs of the previous run (incremental mode)
+		MaskManifest previousManifest = null;
+		MaskManifest manifest = null;
+		String settingsHash = null;
+		if(incremental){
+			previousManifest = MaskManifest.load(outMetadataFolder);
+			manifest = new MaskManifest(outMetadataFolder);
+			settingsHash = MaskManifest.hashString(printSettings(uniqueType, combineAllUnique, isMappingFixed));
+		}
+
+		//////////////////////////////////////////////////////
+		// store metadata about the execution (in the input order)
 		ArrayList<String> strSaveMapping = new ArrayList<String>();
+		MaskManifest.Entry[] entries = new MaskManifest.Entry[pairedJSONFiles.size()];
+		int numSkipped = 0;
 		
-		boolean foundMatch = false;
-		for (Iterator<String> k = sortedJSONInFolder.iterator(); k.hasNext();) {
-			JSONfileName = k.next();
-			String nameJSON = (new File(JSONfileName)).getName();
-			nameJSON = nameJSON.substring(0, nameJSON.length()-9); // TODO check what to remove, this case is for  .ome.json
-			// find matching rawFileName
-			foundMatch = false;
-			for(Iterator<String> r = sortedImagesInFolder.iterator(); !foundMatch && r.hasNext(); ){
-				rawFileName = r.next();
-				String nameTIFF = (new File(rawFileName)).getName();
-				nameTIFF = nameTIFF.substring(0, nameTIFF.length()-8); // TODO check what to remove, this case is for  .ome.tif
-				if(nameJSON.equalsIgnoreCase(nameTIFF)){
-					
-					foundMatch = true;
+		if(numThreads <= 1){
+			// each frame starts from the initial mappings as in the concurrent case, so that the masks
+			// and the mapping lines of a frame do not depend on the previous (or skipped) frames
+			MaskFromAnnotations initialMappings = createFrameWorker();
+			for(int i = 0; i < pairedJSONFiles.size(); i++){
+				if(manifest != null){
+					entries[i] = MaskManifest.createEntry(pairedJSONFiles.get(i), pairedRawFiles.get(i), settingsHash);
+					MaskManifest.Entry recorded = previousManifest.findUpToDate(entries[i]);
+					if(recorded != null){
+						System.out.println("INFO: skipping the up to date frame: " + pairedJSONFiles.get(i));
+						strSaveMapping.addAll(recorded.mappingLines);
+						manifest.put(recorded);
+						numSkipped++;
+						continue;
+					}
+				}
+				copyMappings(initialMappings);
+				ArrayList<String> frameMapping = processFrame(pairedJSONFiles.get(i), uniqueType, combineAllUnique, isMappingFixed, pairedRawFiles.get(i), outImagesFolder);
+				strSaveMapping.addAll(frameMapping);
+				if(manifest != null){
+					entries[i].outputs.addAll(_writtenFiles);
+					entries[i].mappingLines.addAll(frameMapping);
+					manifest.put(entries[i]);
 				}
 			}
-			if(!foundMatch){
-				System.err.println("ERROR: could not find a matching raw TIFF image to the JSON file");
-				continue;
+		}else{
+			// each frame is processed by its own worker with a copy of the mappings 
+			// so that the result does not depend on the order of execution
+			ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+			ArrayList<Future<ArrayList<String>>> results = new ArrayList<Future<ArrayList<String>>>();
+			MaskFromAnnotations[] workers = new MaskFromAnnotations[pairedJSONFiles.size()];
+			for(int i = 0; i < pairedJSONFiles.size(); i++){
+				if(manifest != null){
+					entries[i] = MaskManifest.createEntry(pairedJSONFiles.get(i), pairedRawFiles.get(i), settingsHash);
+					MaskManifest.Entry recorded = previousManifest.findUpToDate(entries[i]);
+					if(recorded != null){
+						System.out.println("INFO: skipping the up to date frame: " + pairedJSONFiles.get(i));
+						entries[i] = recorded;
+						results.add(CompletableFuture.completedFuture(recorded.mappingLines));
+						numSkipped++;
+						continue;
+					}
+				}
+				final MaskFromAnnotations worker = createFrameWorker();
+				workers[i] = worker;
+				final String frameJSONFileName = pairedJSONFiles.get(i);
+				final String frameRawFileName = pairedRawFiles.get(i);
+				results.add(executor.submit(new Callable<ArrayList<String>>() {
+					public ArrayList<String> call() throws IOException, FormatException {
+						return worker.processFrame(frameJSONFileName, uniqueType, combineAllUnique, isMappingFixed, frameRawFileName, outImagesFolder);
+					}
+				}));
 			}
-			System.out.println("INFO: matching pair: JSON = " +  JSONfileName + " TIFF = " + rawFileName);
-			
-			ArrayList<Annotation> annotations =  annotClass.readJSONfromWIPP(JSONfileName);
-			System.out.println("before clean up");
-			AnnotationLoader.printArrayListAnnot(annotations);
-			// clean up annotations
-			boolean ret =  AnnotationLoader.cleanupLabels(annotations);
-			System.out.println("after clean up");
-			AnnotationLoader.printArrayListAnnot(annotations);
+			executor.shutdown();
+			try {
+				for(int i = 0; i < results.size(); i++){
+					ArrayList<String> frameMapping = results.get(i).get();
+					strSaveMapping.addAll(frameMapping);
+					if(manifest != null){
+						if(workers[i] != null){
+							entries[i].outputs.addAll(workers[i]._writtenFiles);
+							entries[i].mappingLines.addAll(frameMapping);
+						}
+						manifest.put(entries[i]);
+					}
+				}
+			} catch (InterruptedException ex) {
+				executor.shutdownNow();
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted while processing the frames", ex);
+			} catch (ExecutionException ex) {
+				executor.shutdownNow();
+				Throwable cause = ex.getCause();
+				if(cause instanceof IOException) throw (IOException) cause;
+				if(cause instanceof FormatException) throw (FormatException) cause;
+				if(cause instanceof RuntimeException) throw (RuntimeException) cause;
+				throw new RuntimeException("Failed processing the frames", cause);
+			}
+		}
 
-			// construct the output file name
-			String name = (new File(JSONfileName)).getName();
-			name = name.substring(0, name.length()-5) + ".tif";
-			
-			////////////////////////////////
-			// TODO: specify the prefix from the argument?
-			String maskPreffix = new String(); ;// or "mask_"
-			
-			switch(uniqueType){
-				case UNIQUE_TYPE_LABEL:
-					ArrayList<String> uniqueLabels = AnnotationLoader.getUniqueLabels(annotations);
-					if(combineAllUnique){
-						outFileName = new String(outImagesFolder + File.separator + maskPreffix + name);
-						convertUniqueLabelsToMask(annotations,uniqueLabels, isMappingFixed, rawFileName, outFileName);
-						strSaveMapping.add(new String(name + ", " + printLabel2grayMapping()) );
-					}else{
-						for(int j = 0; j < uniqueLabels.size(); j++){
-							ArrayList<String> oneLabel = new ArrayList<String>();
-							oneLabel.add(uniqueLabels.get(j));
-							String labelName = uniqueLabels.get(j);
-
-							outFileName = new String(outImagesFolder + File.separator + "label" + j + File.separator);
-							directory = new File(outFileName);
-							if (!directory.exists()) {
-								directory.mkdir();
-								System.out.println("output mask Directory was created: " + outFileName);
-							}
-							outFileName +=  maskPreffix + labelName + "_" + name;
-							System.out.println("outFileName="+outFileName);
-
-							// create the mask based on unique colors
-							convertUniqueLabelsToMask(annotations,oneLabel,isMappingFixed, rawFileName, outFileName);
-							strSaveMapping.add(new String(labelName + ", " + name + ", " + printLabel2grayMapping()) );
-						}			
+		// save the mappings
+		outFileName = new String(outMetadataFolder + File.separator + "mappings.csv");
+		CsvMyWriter.SaveArrayListString(strSaveMapping, outFileName);	
+
+		if(manifest != null){
+			manifest.save();
+			System.out.println("INFO: processed " + (pairedJSONFiles.size() - numSkipped) + " frames, skipped " + numSkipped + " up to date frames");
+		}
+
+		return true;
+	}
+
+	/**
+	 * This method prints the settings that determine the content of the masks
+	 * (the gray mappings are included only if they are fixed, otherwise they are reset for each frame).
+	 * The map entries are sorted so that equal mappings are printed the same way.
+	 * 
+	 * @return settings string hashed into the manifest
+	 */
+	private String printSettings(int uniqueType, boolean combineAllUnique, boolean isMappingFixed){
+		StringBuilder sb = new StringBuilder();
+		sb.append("uniqueType=").append(uniqueType);
+		sb.append(", combineAllUnique=").append(combineAllUnique);
+		sb.append(", isMappingFixed=").append(isMappingFixed);
+		if(isMappingFixed){
+			sb.append(", labels=").append(sortedEntries(getLabel2grayMapping()));
+			sb.append(", colors=").append(sortedEntries(_color2grayMapping));
+			sb.append(", shapes=").append(sortedEntries(_shape2grayMapping));
+		}
+		if(numResolutions > 1){
+			sb.append(", numResolutions=").append(numResolutions);
+		}
+		if(maskFormat != MASK_FORMAT_TIFF){
+			sb.append(", maskFormat=").append(maskFormat);
+		}
+		if(tileSize != DEFAULT_TILE_SIZE || compression != OMETiffTileWriter.COMPRESSION_LZW || predictor != OMETiffTileWriter.PREDICTOR_NONE){
+			sb.append(", tileSize=").append(tileSize);
+			sb.append(", compression=").append(OMETiffTileWriter.getCompressionName(compression));
+			sb.append(", predictor=").append(predictor);
+		}
+		if(compression == OMETiffTileWriter.COMPRESSION_DEFLATE){
+			sb.append(", compressionLevel=").append(compressionLevel);
+		}
+		return sb.toString();
+	}
+
+	private static ArrayList<String> sortedEntries(HashMap<?, Integer> mapping){
+		ArrayList<String> entries = new ArrayList<String>();
+		for(Map.Entry<?, Integer> entry : mapping.entrySet()){
+			entries.add(entry.getKey() + "=" + entry.getValue());
+		}
+		Collections.sort(entries);
+		return entries;
+	}
+
+	/**
+	 * This method creates the mask images of one pair of JSON and raw image files
+	 * 
+	 * @param JSONfileName - JSON file with annotations
+	 * @param uniqueType - integer defining whether the masks are created by label (1), color (2) or shape (3)
+	 * @param combineAllUnique - boolean flag whether to create one mask with all unique types (true) or one mask per unique type (false)
+	 * @param isMappingFixed - true if the mapping to gray values is pre-defined
+	 * @param rawFileName - matching raw image file
+	 * @param outImagesFolder - output folder for the generated masks
+	 * @return lines of the mappings.csv file for this frame
+	 * @throws IOException
+	 * @throws FormatException
+	 */
+	private ArrayList<String> processFrame(String JSONfileName, int uniqueType, boolean combineAllUnique, boolean isMappingFixed, String rawFileName, String outImagesFolder) throws IOException, FormatException {
+		ArrayList<String> strSaveMapping = new ArrayList<String>();
+		String outFileName = new String();
+		File directory;
+		_writtenFiles.clear();
+
+		// read from the annotation store if available, otherwise parse the JSON file
+		// (the annotations stay in the compact batch arrays up to the rasterization)
+		AnnotationBatch annotations =  AnnotationStore.readBatch(_annotationStore, JSONfileName);
+		System.out.println("before clean up");
+		AnnotationLoader.printAnnotationBatch(annotations);
+		// clean up annotations
+		annotations.cleanupLabels();
+		System.out.println("after clean up");
+		AnnotationLoader.printAnnotationBatch(annotations);
+
+		// construct the output file name
+		String name = getRenamedJSONName(JSONfileName);
+		name = name.substring(0, name.length()-5) + ".tif";
+		
+		////////////////////////////////
+		// TODO: specify the prefix from the argument?
+		String maskPreffix = new String(); ;// or "mask_"
+		
+		switch(uniqueType){
+			case UNIQUE_TYPE_LABEL:
+				ArrayList<String> uniqueLabels = AnnotationLoader.getUniqueLabels(annotations);
+				if(combineAllUnique){
+					outFileName = new String(outImagesFolder + File.separator + maskPreffix + name);
+					convertUniqueLabelsToMask(annotations,uniqueLabels, isMappingFixed, rawFileName, outFileName);
+					strSaveMapping.add(new String(name + ", " + printLabel2grayMapping()) );
+				}else{
+					String[] outFileNames = new String[uniqueLabels.size()];
+					String[] mappings = new String[uniqueLabels.size()];
+					for(int j = 0; j < uniqueLabels.size(); j++){
+						String labelName = uniqueLabels.get(j);
+
+						outFileName = new String(outImagesFolder + File.separator + "label" + j + File.separator);
+						directory = new File(outFileName);
+						if (!directory.exists()) {
+							directory.mkdir();
+							System.out.println("output mask Directory was created: " + outFileName);
+						}
+						outFileName +=  maskPreffix + labelName + "_" + name;
+						System.out.println("outFileName="+outFileName);
+						outFileNames[j] = outFileName;
 					}
-					break;
-				case UNIQUE_TYPE_COLOR:
-					ArrayList<Color> uniqueColors = AnnotationLoader.getUniqueColors(annotations);
-					if(combineAllUnique){
-						outFileName = new String(outImagesFolder + File.separator + maskPreffix + name);
-						convertUniqueColorsToMask(annotations,uniqueColors, isMappingFixed, rawFileName, outFileName);
-						strSaveMapping.add(new String(name + ", " + printColor2grayMapping()) );						
-					}else{
-						for(int j = 0; j < uniqueColors.size(); j++){
-							ArrayList<Color> oneColor = new ArrayList<Color>();
-							oneColor.add(uniqueColors.get(j));
-							String colorName = AnnotationLoader.mapColorValue2ColorName(uniqueColors.get(j));
-
-							outFileName = new String(outImagesFolder + File.separator + "color" + j + File.separator);
-							directory = new File(outFileName);
-							if (!directory.exists()) {
-								directory.mkdir();
-								System.out.println("output mask Directory was created: " + outFileName);
-							}
-							//outFileName +=  maskPreffix + colorName + "_" + name;
-							// This is important for automation otherwise the names have different length for downstream processing
-							outFileName +=  name;
-							System.out.println("outFileName="+outFileName);
-						
-							// create the mask based on unique colors
-							convertUniqueColorsToMask(annotations,oneColor, isMappingFixed, rawFileName, outFileName);
-							strSaveMapping.add(new String(colorName + ", " + name + ", " + printColor2grayMapping()) );
-						}			
+					// create all masks (one per unique label) in one pass
+					convertEachUniqueLabelToMask(annotations, uniqueLabels, isMappingFixed, rawFileName, outFileNames, mappings);
+					for(int j = 0; j < uniqueLabels.size(); j++){
+						strSaveMapping.add(new String(uniqueLabels.get(j) + ", " + name + ", " + mappings[j]) );
 					}
-					break;
-				case UNIQUE_TYPE_SHAPE:
-					ArrayList<String> uniqueShapes = AnnotationLoader.getUniqueShapes(annotations);
-					if(combineAllUnique){
-						outFileName = new String(outImagesFolder + File.separator + maskPreffix + name);
-						convertUniqueShapesToMask(annotations,uniqueShapes, isMappingFixed, rawFileName, outFileName);
-						strSaveMapping.add(new String(name + ", " + printShape2grayMapping()) );
-					}else{
-						for(int j = 0; j < uniqueShapes.size(); j++){
-							ArrayList<String> oneShape = new ArrayList<String>();
-							oneShape.add(uniqueShapes.get(j));
-							String shapeName = uniqueShapes.get(j);
-
-							outFileName = new String(outImagesFolder + File.separator + "shape" + j + File.separator);
-							directory = new File(outFileName);
-							if (!directory.exists()) {
-								directory.mkdir();
-								System.out.println("output mask Directory was created: " + outFileName);
-							}
-							outFileName +=  maskPreffix + shapeName + "_" + name;
-							System.out.println("outFileName="+outFileName);
-
-							// create the mask based on unique colors
-							convertUniqueShapesToMask(annotations,oneShape, isMappingFixed, rawFileName, outFileName);
-							strSaveMapping.add(new String(shapeName + ", " + name + ", " + printShape2grayMapping()) );
-						}			
-					}					
-					break;
-				default:
-					break;
+				}
+				break;
+			case UNIQUE_TYPE_COLOR:
+				ArrayList<Color> uniqueColors = AnnotationLoader.getUniqueColors(annotations);
+				if(combineAllUnique){
+					outFileName = new String(outImagesFolder + File.separator + maskPreffix + name);
+					convertUniqueColorsToMask(annotations,uniqueColors, isMappingFixed, rawFileName, outFileName);
+					strSaveMapping.add(new String(name + ", " + printColor2grayMapping()) );						
+				}else{
+					String[] outFileNames = new String[uniqueColors.size()];
+					String[] mappings = new String[uniqueColors.size()];
+					for(int j = 0; j < uniqueColors.size(); j++){
+						outFileName = new String(outImagesFolder + File.separator + "color" + j + File.separator);
+						directory = new File(outFileName);
+						if (!directory.exists()) {
+							directory.mkdir();
+							System.out.println("output mask Directory was created: " + outFileName);
+						}
+						//outFileName +=  maskPreffix + colorName + "_" + name;
+						// This is important for automation otherwise the names have different length for downstream processing
+						outFileName +=  name;
+						System.out.println("outFileName="+outFileName);
+						outFileNames[j] = outFileName;
+					}
+					// create all masks (one per unique color) in one pass
+					convertEachUniqueColorToMask(annotations, uniqueColors, isMappingFixed, rawFileName, outFileNames, mappings);
+					for(int j = 0; j < uniqueColors.size(); j++){
+						String colorName = AnnotationLoader.mapColorValue2ColorName(uniqueColors.get(j));
+						strSaveMapping.add(new String(colorName + ", " + name + ", " + mappings[j]) );
+					}
+				}
+				break;
+			case UNIQUE_TYPE_SHAPE:
+				ArrayList<String> uniqueShapes = AnnotationLoader.getUniqueShapes(annotations);
+				if(combineAllUnique){
+					outFileName = new String(outImagesFolder + File.separator + maskPreffix + name);
+					convertUniqueShapesToMask(annotations,uniqueShapes, isMappingFixed, rawFileName, outFileName);
+					strSaveMapping.add(new String(name + ", " + printShape2grayMapping()) );
+				}else{
+					String[] outFileNames = new String[uniqueShapes.size()];
+					String[] mappings = new String[uniqueShapes.size()];
+					for(int j = 0; j < uniqueShapes.size(); j++){
+						String shapeName = uniqueShapes.get(j);
+
+						outFileName = new String(outImagesFolder + File.separator + "shape" + j + File.separator);
+						directory = new File(outFileName);
+						if (!directory.exists()) {
+							directory.mkdir();
+							System.out.println("output mask Directory was created: " + outFileName);
+						}
+						outFileName +=  maskPreffix + shapeName + "_" + name;
+						System.out.println("outFileName="+outFileName);
+						outFileNames[j] = outFileName;
+					}
+					// create all masks (one per unique shape) in one pass
+					convertEachUniqueShapeToMask(annotations, uniqueShapes, isMappingFixed, rawFileName, outFileNames, mappings);
+					for(int j = 0; j < uniqueShapes.size(); j++){
+						strSaveMapping.add(new String(uniqueShapes.get(j) + ", " + name + ", " + mappings[j]) );
+					}
+				}
+				break;
+			case UNIQUE_TYPE_INSTANCE:
+				// one mask with all annotations, the instance table goes to mappings.csv
+				outFileName = new String(outImagesFolder + File.separator + maskPreffix + name);
+				convertAnnotationsToInstanceMask(annotations, rawFileName, outFileName, strSaveMapping);
+				break;
+			default:
+				break;
+		}
+
+		return strSaveMapping;
+	}
+
+	/**
+	 * This method creates one mask image per field of view (FOV) of a mosaic from the annotations 
+	 * drawn on the stitched mosaic (e.g., in WDZT). The annotations are assigned their gray values once,
+	 * indexed once and each FOV mask is rasterized only with the annotations overlapping the FOV,
+	 * translated by the global position of the FOV from the stitching vector and clipped to the FOV bounds.
+	 * No mosaic size mask is rendered.
+	 * All unique labels/colors/shapes are combined in each FOV mask (combineAllUnique = true).
+	 * 
+	 * @param annotations - annotations in the mosaic coordinates
+	 * @param uniqueType - integer defining whether the masks are created by label (1), color (2) or shape (3)
+	 * @param isMappingFixed - true if the mapping to gray values is pre-defined
+	 * @param vector - stitching vector with the global positions of the FOVs (see StitchingLoader.readStitchingVector)
+	 * @param inputRawFileFolder - folder with the raw FOV images named as in the stitching vector
+	 * @param outImagesFolder - output folder for the FOV masks (named as the raw FOV images)
+	 * @return boolean about the execution success
+	 */
+	public boolean convertMosaicAnnotationsToFOVMasks(ArrayList<Annotation> annotations, int uniqueType, boolean isMappingFixed, StitchingVector vector, String inputRawFileFolder, String outImagesFolder){
+		return convertMosaicAnnotationsToFOVMasks(annotations == null ? null : AnnotationBatch.fromAnnotations(annotations), uniqueType, isMappingFixed, vector, inputRawFileFolder, outImagesFolder);
+	}
+
+	/**
+	 * This method is the AnnotationBatch version of convertMosaicAnnotationsToFOVMasks
+	 * (the annotations are selected from the batch without creating ImageJ ROIs)
+	 */
+	public boolean convertMosaicAnnotationsToFOVMasks(AnnotationBatch annotations, int uniqueType, boolean isMappingFixed, StitchingVector vector, String inputRawFileFolder, String outImagesFolder){
+		// sanity check
+		if(annotations == null || vector == null || vector.isEmpty()){
+			System.err.println("ERROR: missing annotations or stitching vector");
+			return false;
+		}
+		if (uniqueType <1 || uniqueType > 3) {
+			System.err.println("Error: uniqueType is out of bounds ");
+			return false;
+		}
+		// assign the gray values in the order of the unique values (as in convertUnique*ToMask)
+		switch(uniqueType){
+			case UNIQUE_TYPE_LABEL:
+				if(!isMappingFixed){
+					resetLabel2grayMapping();
+				}
+				for(String unique : AnnotationLoader.getUniqueLabels(annotations)){
+					findGrayColorForUniqueLabel(unique, isMappingFixed);
+				}
+				break;
+			case UNIQUE_TYPE_COLOR:
+				if(!isMappingFixed){
+					resetColor2grayMapping();
+				}
+				break;
+			case UNIQUE_TYPE_SHAPE:
+				if(!isMappingFixed){
+					resetShape2grayMapping();
+				}
+				for(String unique : AnnotationLoader.getUniqueShapes(annotations)){
+					findGrayColorForUniqueShape(unique, isMappingFixed);
+				}
+				break;
+		}
+		AnnotationBatch batch = new AnnotationBatch();
+		int[] grayValues = new int[annotations.size()];
+		for(int i = 0; i < annotations.size(); i++){
+			int gray;
+			if(uniqueType == UNIQUE_TYPE_LABEL){
+				gray = findGrayColorForUniqueLabel(annotations.getLabel(i), isMappingFixed);
+			}else if(uniqueType == UNIQUE_TYPE_COLOR){
+				gray = findGrayColorForUniqueRGBColor(new Color(annotations.getColor(i), true), isMappingFixed);
+			}else{
+				gray = findGrayColorForUniqueShape(annotations.getShapeName(i), isMappingFixed);
+			}
+			// the background value is not drawn
+			if(gray > 0){
+				grayValues[batch.size()] = gray;
+				batch.add(annotations, i);
+			}
+		}
+		PackedRTree spatialIndex = batch.buildSpatialIndex();
+		int[] outputIndices = new int[batch.size()];
+
+		boolean ret = true;
+		for(int f = 0; f < vector.size(); f++){
+			String fovName = vector.getFileName(f);
+			String rawImageName = inputRawFileFolder + File.separator + fovName;
+			if(!new File(rawImageName).exists()){
+				System.err.println("ERROR: could not find the raw FOV image = " + rawImageName);
+				ret = false;
+				continue;
 			}
+			// the FOV size comes from the raw image header
+			OMEXMLMetadata metadata = getMaskMetadata(rawImageName);
+			vector.setTileSize(f, this.width, this.height);
+			String outFileName = outImagesFolder + File.separator + fovName;
+			System.out.println("INFO: FOV mask = " + outFileName + " at (" + vector.getX(f) + ", " + vector.getY(f) + ")");
+			writeTiledMasks(metadata, batch, spatialIndex, vector.getX(f), vector.getY(f), outputIndices, grayValues, null, new String[]{outFileName});
+		}
+		return ret;
+	}
 
+	/**
+	 * This method creates the FOV masks of all frames annotated on the stitched mosaics
+	 * (see convertMosaicAnnotationsToFOVMasks). The JSON files are paired with the stitching vectors
+	 * by their index (see StitchingLoader.mapStitchingVectors).
+	 * 
+	 * @param inputJSONFileFolder - folder with JSON annotations of the mosaics
+	 * @param inputStitchingFileFolder - folder with stitching vectors
+	 * @param uniqueType - integer defining whether the masks are created by label (1), color (2) or shape (3)
+	 * @param isMappingFixed - true if the mapping to gray values is pre-defined
+	 * @param inputRawFileFolder - folder with the raw FOV images
+	 * @param outImagesFolder - output folder for the FOV masks
+	 * @param outMetadataFolder - output folder for the mappings.csv file
+	 * @return boolean depending on the success
+	 * @throws IOException
+	 */
+	public boolean CMDlaunchMosaic(String inputJSONFileFolder, String inputStitchingFileFolder, int uniqueType, boolean isMappingFixed, String inputRawFileFolder, String outImagesFolder, String outMetadataFolder) throws IOException{
+		// sanity check
+		if (inputRawFileFolder == null || outImagesFolder == null || outMetadataFolder == null) {
+			System.err.println("Error: null inputRawFileFolder, outputImagesFolder or outMetadataFolder ");
+			return false;
 		}
+		LinkedHashMap<String, String> stitchingVectors = StitchingLoader.mapStitchingVectors(inputJSONFileFolder, inputStitchingFileFolder);
+		if(stitchingVectors == null){
+			return false;
+		}
+		if(annotationStoreFileName != null){
+			// the JSON files are parsed only if the store is missing or out of date
+			_annotationStore = AnnotationStore.openOrCompile(inputJSONFileFolder, annotationStoreFileName);
+		}
+		ArrayList<String> strSaveMapping = new ArrayList<String>();
+		boolean ret = true;
+		for(Map.Entry<String, String> entry : stitchingVectors.entrySet()){
+			System.out.println("INFO: mosaic JSON = " + entry.getKey() + " stitching vector = " + entry.getValue());
+			AnnotationBatch annotations = AnnotationStore.readBatch(_annotationStore, entry.getKey());
+			annotations.cleanupLabels();
+			StitchingVector vector = StitchingLoader.readStitchingVector(entry.getValue());
+			ret = ret & convertMosaicAnnotationsToFOVMasks(annotations, uniqueType, isMappingFixed, vector, inputRawFileFolder, outImagesFolder);
+
+			String name = FilePairIndex.getName(entry.getKey());
+			if(uniqueType == UNIQUE_TYPE_LABEL){
+				strSaveMapping.add(new String(name + ", " + printLabel2grayMapping()) );
+			}else if(uniqueType == UNIQUE_TYPE_COLOR){
+				strSaveMapping.add(new String(name + ", " + printColor2grayMapping()) );
+			}else{
+				strSaveMapping.add(new String(name + ", " + printShape2grayMapping()) );
+			}
+		}
+
 		// save the mappings
-		outFileName = new String(outMetadataFolder + File.separator + "mappings.csv");
+		String outFileName = new String(outMetadataFolder + File.separator + "mappings.csv");
 		CsvMyWriter.SaveArrayListString(strSaveMapping, outFileName);	
+		return ret;
+	}
 
-		return true;
+	/**
+	 * This method returns the name of a JSON file used for naming the masks
+	 * (the name derived from the stitching vectors if available)
+	 */
+	private String getRenamedJSONName(String JSONfileName){
+		String name = FilePairIndex.getName(JSONfileName);
+		if(renamedJSONFiles != null && renamedJSONFiles.containsKey(name)){
+			return renamedJSONFiles.get(name);
+		}
+		return name;
+	}
+
+	/**
+	 * This is a helper method that creates a worker for processing one frame on a separate thread
+	 * The worker has its own copy of the mappings and its own image dimensions
+	 */
+	private MaskFromAnnotations createFrameWorker(){
+		MaskFromAnnotations worker = new MaskFromAnnotations();
+		worker.copyMappings(this);
+		worker.inputRawFileFolder = inputRawFileFolder;
+		worker.renamedJSONFiles = renamedJSONFiles;
+		worker.numResolutions = numResolutions;
+		worker.maskFormat = maskFormat;
+		worker.tileSize = tileSize;
+		worker.compression = compression;
+		worker.compressionLevel = compressionLevel;
+		worker.predictor = predictor;
+		// the store is read-only and shared by the workers
+		worker._annotationStore = _annotationStore;
+		return worker;
+	}
+
+	/**
+	 * This is a helper method that replaces the label, color and shape mappings
+	 * by copies of the mappings of another instance
+	 */
+	private void copyMappings(MaskFromAnnotations source){
+		_labelDictionary = new LabelDictionary(source._labelDictionary);
+		_color2grayMapping = new HashMap<Color, Integer>(source._color2grayMapping);
+		_shape2grayMapping = new HashMap<String, Integer>(source._shape2grayMapping);
 	}
 	
 	
-	//Inspired from the WIPP-image-assembling-plugin
+	/**
+	 * This method returns a copy of the raw image metadata and sets the image dimensions
+	 * The header of each raw image is read only once per JVM (see OMEMetadataCache)
+	 * since all masks of one frame (and repeated runs over the same frames) share it
+	 */
 	private OMEXMLMetadata getMetadata(String tile) {
-		OMEXMLMetadata metadata;
-		try {
-			OMEXMLService omeXmlService = new ServiceFactory().getInstance(
-					OMEXMLService.class);
-			metadata = omeXmlService.createOMEXMLMetadata();
-		} catch (DependencyException ex) {
-			throw new RuntimeException("Cannot find OMEXMLService", ex);
-		} catch (ServiceException ex) {
-			throw new RuntimeException("Cannot create OME metadata", ex);
-		}
-		try (ImageReader imageReader = new ImageReader()) {
-			IFormatReader reader;
-			reader = imageReader.getReader(tile);
-			reader.setOriginalMetadataPopulated(false);
-			reader.setMetadataStore(metadata);
-			reader.setId(tile);
-			this.width = reader.getSizeX();
-			this.height = reader.getSizeY();
-		} catch (FormatException | IOException ex) {
-			throw new RuntimeException("No image reader found for file "
-					+ tile, ex);
-		}
-
+		OMEXMLMetadata metadata = OMEMetadataCache.getMetadata(tile);
+		this.width = metadata.getPixelsSizeX(0).getValue();
+		this.height = metadata.getPixelsSizeY(0).getValue();
 		return metadata;
 	}
 	
 	
+	/**
+	 * This method reads the raw image metadata (see getMetadata) and converts
+	 * the pixel metadata to the single channel 8-bit mask image
+	 * 
+	 * @param rawImageName - path to a raw image
+	 * @return OME metadata for the mask image
+	 */
+	private OMEXMLMetadata getMaskMetadata(String rawImageName) {
+		OMEXMLMetadata metadata = getMetadata(rawImageName);
+		metadata.setPixelsType(PixelType.UINT8, 0);
+		metadata.setPixelsSignificantBits(new PositiveInteger(8), 0);
+		metadata.setPixelsSizeC(new PositiveInteger(1), 0);
+		if(metadata.getChannelCount(0) > 0){
+			metadata.setChannelSamplesPerPixel(new PositiveInteger(1), 0, 0);
+		}
+		return metadata;
+	}
+	
+	/**
+	 * This method writes a full frame byte[] image as a tiled OME-TIFF
+	 * 
+	 * @param metadata - OME metadata of the mask image
+	 * @param bytesArr - row-major pixels of the full frame (little endian for the 16 and 32-bit masks)
+	 * @param outFileName - path to an output location for the mask image
+	 */
 	public void writeTiledOMETiff(OMEXMLMetadata metadata, byte[] bytesArr, String outFileName){
 		//Writing the output tiled tiff
-		try (OMETiffWriter imageWriter = new OMETiffWriter()) {
-			imageWriter.setMetadataRetrieve(metadata);
-			imageWriter.setTileSizeX(TILE_SIZE);
-			imageWriter.setTileSizeY(TILE_SIZE);
-			imageWriter.setInterleaved(metadata.getPixelsInterleaved(0));
-			imageWriter.setCompression(CompressionType.LZW.getCompression());
-			imageWriter.setId(outFileName);
+		try (OMETiffTileWriter imageWriter = openTiledWriter(metadata, outFileName)) {
 
 			// Determined the number of tiles to read and write
-			int nXTiles = this.width / TILE_SIZE;
-			int nYTiles = this.height / TILE_SIZE;
-			if (nXTiles * TILE_SIZE != this.width) nXTiles++;
-			if (nYTiles * TILE_SIZE != this.height) nYTiles++;
+			int nXTiles = this.width / tileSize;
+			int nYTiles = this.height / tileSize;
+			if (nXTiles * tileSize != this.width) nXTiles++;
+			if (nYTiles * tileSize != this.height) nYTiles++;
 
+			int bytesPerPixel = OMETiffTileWriter.getBytesPerPixel(metadata);
+			byte[] tileBuffer = new byte[0];
 			for (int k=0; k<nYTiles; k++) {
 				for (int l=0; l<nXTiles; l++) {
 					
-					int tileX = l * TILE_SIZE;
-					int tileY = k * TILE_SIZE;
+					int tileX = l * tileSize;
+					int tileY = k * tileSize;
 					
-					int effTileSizeX = (tileX + TILE_SIZE) < this.width ? TILE_SIZE : this.width - tileX;
-					int effTileSizeY = (tileY + TILE_SIZE) < this.height ? TILE_SIZE : this.height - tileY;
+					int effTileSizeX = (tileX + tileSize) < this.width ? tileSize : this.width - tileX;
+					int effTileSizeY = (tileY + tileSize) < this.height ? tileSize : this.height - tileY;
 
-					//buf = reader.openBytes(0, tileX, tileY, effTileSizeX, effTileSizeY);
-					imageWriter.saveBytes(0, bytesArr, tileX, tileY, effTileSizeX, effTileSizeY);
+					// the writer expects the pixels of the tile only
+					if(tileBuffer.length != effTileSizeX * effTileSizeY * bytesPerPixel){
+						tileBuffer = new byte[effTileSizeX * effTileSizeY * bytesPerPixel];
+					}
+					for (int y = 0; y < effTileSizeY; y++) {
+						System.arraycopy(bytesArr, ((tileY + y) * this.width + tileX) * bytesPerPixel, tileBuffer, y * effTileSizeX * bytesPerPixel, effTileSizeX * bytesPerPixel);
+					}
+					imageWriter.writeTile(tileX, tileY, tileBuffer, effTileSizeX, effTileSizeY);
 				}
 			}
-			
-			
-			//imageWriter.saveBytes(0, bytesArr);
 
-		} catch (FormatException | IOException ex) {
+		} catch (IOException ex) {
 			throw new RuntimeException("No image writer found for file "
 					+ outFileName, ex);
 		}
 	}
+
+	/**
+	 * This method rasterizes the annotations and writes the mask as a tiled OME-TIFF
+	 * one tile at a time. The annotations are first indexed by their bounding boxes
+	 * (packed R-tree), then each tile is cleared, rasterized with the intersecting annotations,
+	 * encoded and written before moving on to the next one. The memory is therefore bounded
+	 * by one tile (plus the spatial index) regardless of the image size.
+	 * 
+	 * @param metadata - OME metadata of the mask image (see getMaskMetadata)
+	 * @param annotations - annotations in the drawing order (later ones overwrite earlier ones)
+	 * @param grayValues - mask value of each annotation (same index as annotations)
+	 * @param outFileName - path to an output location for the mask image
+	 */
+	public void writeTiledMask(OMEXMLMetadata metadata, ArrayList<Annotation> annotations, int[] grayValues, String outFileName){
+		writeTiledMasks(metadata, annotations, new int[annotations.size()], grayValues, new String[]{outFileName});
+	}
+
+	/**
+	 * This method is the same as writeTiledMask above but the outline of each annotation
+	 * (ImageProcessor.draw) is drawn with its outline value before the annotation is filled.
+	 * The outline pixels that are not covered by any fill (e.g., on the right and bottom side of a shape)
+	 * are set to 0, i.e., the background is the complement of the union of the fills as in ImageJ (ShapeRoi).
+	 * 
+	 * @param metadata - OME metadata of the mask image (see getMaskMetadata)
+	 * @param annotations - annotations in the drawing order (later ones overwrite earlier ones)
+	 * @param grayValues - mask value of each annotation (same index as annotations)
+	 * @param outlineValues - outline value of each annotation (see getOutlineValues)
+	 * @param outFileName - path to an output location for the mask image
+	 */
+	public void writeTiledMask(OMEXMLMetadata metadata, ArrayList<Annotation> annotations, int[] grayValues, int[] outlineValues, String outFileName){
+		writeTiledMask(metadata, AnnotationBatch.fromAnnotations(annotations), grayValues, outlineValues, outFileName);
+	}
+
+	/**
+	 * This method is the AnnotationBatch version of writeTiledMask
+	 * 
+	 * @param metadata - OME metadata of the mask image (see getMaskMetadata)
+	 * @param batch - annotations in the drawing order (later ones overwrite earlier ones)
+	 * @param grayValues - mask value of each annotation (same index as in the batch)
+	 * @param outlineValues - outline value of each annotation (see getOutlineValues)
+	 * @param outFileName - path to an output location for the mask image
+	 */
+	public void writeTiledMask(OMEXMLMetadata metadata, AnnotationBatch batch, int[] grayValues, int[] outlineValues, String outFileName){
+		writeTiledMasks(metadata, batch, batch.buildSpatialIndex(), 0, 0, new int[batch.size()], grayValues, outlineValues, new String[]{outFileName});
+	}
+
+	/**
+	 * This method returns the outline values of the ImageJ draw + fill sequence:
+	 * the outline is drawn before the fill color is set, i.e., with the mask value
+	 * of the previous annotation (0 for the first annotation)
+	 * 
+	 * @param grayValues - mask value of each annotation
+	 * @param numAnnotations - number of annotations
+	 * @return outline value of each annotation
+	 */
+	public static int[] getOutlineValues(int[] grayValues, int numAnnotations){
+		int[] outlineValues = new int[numAnnotations];
+		for(int i = 1; i < numAnnotations; i++){
+			outlineValues[i] = grayValues[i - 1];
+		}
+		return outlineValues;
+	}
+
+	/**
+	 * This method is the multi-output version of writeTiledMask. Each annotation is routed
+	 * to one of the mask images and all mask images are rendered and written together
+	 * tile by tile, i.e., the annotations are indexed once and each tile of every output
+	 * is written before moving on to the next tile.
+	 * 
+	 * @param metadata - OME metadata of the mask images (see getMaskMetadata)
+	 * @param annotations - annotations in the drawing order (later ones overwrite earlier ones)
+	 * @param outputIndices - index into outFileNames of each annotation (same index as annotations)
+	 * @param grayValues - mask value of each annotation (same index as annotations)
+	 * @param outFileNames - path to an output location for each mask image
+	 */
+	public void writeTiledMasks(OMEXMLMetadata metadata, ArrayList<Annotation> annotations, int[] outputIndices, int[] grayValues, String[] outFileNames){
+		writeTiledMasks(metadata, AnnotationBatch.fromAnnotations(annotations), outputIndices, grayValues, outFileNames);
+	}
+
+	/**
+	 * This method is the AnnotationBatch version of writeTiledMasks
+	 * (the annotations are rasterized from the compact batch arrays)
+	 * 
+	 * @param metadata - OME metadata of the mask images (see getMaskMetadata)
+	 * @param batch - annotations in the drawing order (later ones overwrite earlier ones)
+	 * @param outputIndices - index into outFileNames of each annotation (same index as in the batch)
+	 * @param grayValues - mask value of each annotation (same index as in the batch)
+	 * @param outFileNames - path to an output location for each mask image
+	 */
+	public void writeTiledMasks(OMEXMLMetadata metadata, AnnotationBatch batch, int[] outputIndices, int[] grayValues, String[] outFileNames){
+		// only the annotations intersecting a tile are rasterized into the tile
+		writeTiledMasks(metadata, batch, batch.buildSpatialIndex(), 0, 0, outputIndices, grayValues, null, outFileNames);
+	}
+
+	/**
+	 * This method is the same as writeTiledMasks above but the mask images cover the rectangle
+	 * [originX, originX + width) x [originY, originY + height) of the annotation coordinates
+	 * (e.g., one field of view of a mosaic) and the spatial index is shared between calls
+	 * 
+	 * @param spatialIndex - spatial index of the batch (see AnnotationBatch.buildSpatialIndex)
+	 * @param originX - annotation x coordinate of the left column of the mask images
+	 * @param originY - annotation y coordinate of the top row of the mask images
+	 * @param outlineValues - outline value of each annotation or null if the outlines are not drawn
+	 * (the outlines are clipped to the mask image as in ImageJ, i.e., originX and originY must be 0)
+	 */
+	private void writeTiledMasks(OMEXMLMetadata metadata, AnnotationBatch batch, PackedRTree spatialIndex, int originX, int originY, int[] outputIndices, int[] grayValues, int[] outlineValues, String[] outFileNames){
+		if(maskFormat != MASK_FORMAT_TIFF){
+			writeRunLengthMasks(batch, spatialIndex, originX, originY, outputIndices, grayValues, outlineValues, outFileNames);
+			return;
+		}
+		// the outline pixels extend up to half a pixel beyond the bounding box of a shape
+		int margin = outlineValues == null ? 0 : 1;
+		int nXTiles = (this.width + tileSize - 1) / tileSize;
+		int nYTiles = (this.height + tileSize - 1) / tileSize;
+
+		int numOutputs = outFileNames.length;
+		// 1 byte per pixel for the semantic masks, 2 or 4 for the instance masks
+		int bytesPerPixel = OMETiffTileWriter.getBytesPerPixel(metadata);
+		OMETiffTileWriter[] imageWriters = new OMETiffTileWriter[numOutputs];
+		boolean success = false;
+		try {
+			for(int j = 0; j < numOutputs; j++){
+				// each writer updates its own metadata (TiffData, UUID) when it is closed
+				imageWriters[j] = openTiledWriter(j == 0 ? metadata : copyMetadata(metadata), outFileNames[j]);
+			}
+			byte[][] tileBuffers = new byte[numOutputs][0];
+			SpanSink[] tiles = new SpanSink[numOutputs];
+			// the fills are recorded to clear the outline pixels outside of the union of the fills
+			SpanSink[] fills = outlineValues == null ? tiles : new SpanSink[numOutputs];
+			for (int k=0; k<nYTiles; k++) {
+				for (int l=0; l<nXTiles; l++) {
+
+					int tileX = l * tileSize;
+					int tileY = k * tileSize;
+
+					int effTileSizeX = (tileX + tileSize) < this.width ? tileSize : this.width - tileX;
+					int effTileSizeY = (tileY + tileSize) < this.height ? tileSize : this.height - tileY;
+
+					for(int j = 0; j < numOutputs; j++){
+						if(tileBuffers[j].length != effTileSizeX * effTileSizeY * bytesPerPixel){
+							tileBuffers[j] = new byte[effTileSizeX * effTileSizeY * bytesPerPixel];
+						}else{
+							Arrays.fill(tileBuffers[j], (byte) 0);
+						}
+						if(bytesPerPixel == 1){
+							tiles[j] = new ByteMaskCanvas(tileBuffers[j], originX + tileX, originY + tileY, effTileSizeX, effTileSizeY);
+						}else{
+							tiles[j] = new LabelMaskCanvas(tileBuffers[j], bytesPerPixel, originX + tileX, originY + tileY, effTileSizeX, effTileSizeY);
+						}
+						if(outlineValues != null){
+							fills[j] = new CoverageSpanSink(tiles[j]);
+						}
+					}
+					for(int index : spatialIndex.query(originX + tileX - margin, originY + tileY - margin, originX + tileX + effTileSizeX, originY + tileY + effTileSizeY)){
+						if(outlineValues != null){
+							_rasterizer.drawAnnotationOutline(batch, index, outlineValues[index], this.width, this.height, tiles[outputIndices[index]]);
+						}
+						_rasterizer.fillAnnotation(batch, index, grayValues[index], fills[outputIndices[index]]);
+					}
+					for(int j = 0; j < numOutputs; j++){
+						if(outlineValues != null){
+							((CoverageSpanSink) fills[j]).clearUncovered();
+						}
+						imageWriters[j].writeTile(tileX, tileY, tileBuffers[j], effTileSizeX, effTileSizeY);
+					}
+				}
+			}
+			success = true;
+			_writtenFiles.addAll(Arrays.asList(outFileNames));
+
+		} catch (IOException ex) {
+			throw new RuntimeException("No image writer found for file "
+					+ outFileNames[0], ex);
+		} finally {
+			for(int j = 0; j < numOutputs; j++){
+				if(imageWriters[j] != null){
+					try {
+						imageWriters[j].close();
+					} catch (IOException ex) {
+						if(success){
+							throw new RuntimeException("Cannot close the image writer for file "
+									+ outFileNames[j], ex);
+						}
+						// do not hide the original exception
+						System.err.println("ERROR: cannot close the image writer for file " + outFileNames[j]);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * This method is the sparse version of writeTiledMasks: the annotation spans are collected
+	 * as row-wise runs (see RunLengthMask) and written as RLE or COCO RLE files
+	 * (the extension .tif of the output file names is replaced by .rle or .json)
+	 */
+	private void writeRunLengthMasks(AnnotationBatch batch, PackedRTree spatialIndex, int originX, int originY, int[] outputIndices, int[] grayValues, int[] outlineValues, String[] outFileNames){
+		int numOutputs = outFileNames.length;
+		RunLengthMask[] masks = new RunLengthMask[numOutputs];
+		for(int j = 0; j < numOutputs; j++){
+			masks[j] = new RunLengthMask(originX, originY, this.width, this.height);
+		}
+		// the query returns the annotations in the drawing order
+		int margin = outlineValues == null ? 0 : 1;
+		// the fills are recorded to clear the outline pixels outside of the union of the fills
+		SpanSink[] fills = masks;
+		if(outlineValues != null){
+			fills = new SpanSink[numOutputs];
+			for(int j = 0; j < numOutputs; j++){
+				fills[j] = new CoverageSpanSink(masks[j]);
+			}
+		}
+		for(int index : spatialIndex.query(originX - margin, originY - margin, originX + this.width, originY + this.height)){
+			if(outlineValues != null){
+				_rasterizer.drawAnnotationOutline(batch, index, outlineValues[index], this.width, this.height, masks[outputIndices[index]]);
+			}
+			_rasterizer.fillAnnotation(batch, index, grayValues[index], fills[outputIndices[index]]);
+		}
+		for(int j = 0; j < numOutputs; j++){
+			if(outlineValues != null){
+				((CoverageSpanSink) fills[j]).clearUncovered();
+			}
+			String outFileName = getRunLengthMaskFileName(outFileNames[j]);
+			try {
+				if(maskFormat == MASK_FORMAT_COCO_RLE){
+					RunLengthMaskIO.writeCOCO(masks[j], new File(outFileNames[j]).getName(), outFileName);
+				}else{
+					RunLengthMaskIO.writeRLE(masks[j], outFileName);
+				}
+			} catch (IOException ex) {
+				throw new RuntimeException("Cannot write the run-length mask " + outFileName, ex);
+			}
+			_writtenFiles.add(outFileName);
+		}
+	}
+
+	/**
+	 * This is a helper method that replaces the TIFF extension of a mask file name by the extension of the mask format
+	 */
+	private String getRunLengthMaskFileName(String outFileName){
+		String extension = maskFormat == MASK_FORMAT_COCO_RLE ? RunLengthMaskIO.COCO_EXTENSION : RunLengthMaskIO.RLE_EXTENSION;
+		if(outFileName.toLowerCase().endsWith(".tif")){
+			return outFileName.substring(0, outFileName.length() - 4) + extension;
+		}
+		return outFileName + extension;
+	}
+
+	/**
+	 * This is a helper method that creates an independent copy of the OME metadata
+	 */
+	private OMEXMLMetadata copyMetadata(OMEXMLMetadata metadata) {
+		return OMEMetadataCache.copyMetadata(metadata);
+	}
+
+	/**
+	 * This is a helper method that opens the tiled OME-TIFF writer with the selected codec settings
+	 * (the tiles are compressed concurrently and the reduced resolutions are computed in the same pass, see OMETiffTileWriter)
+	 */
+	private OMETiffTileWriter openTiledWriter(OMEXMLMetadata metadata, String outFileName) throws IOException {
+		return new OMETiffTileWriter(outFileName, metadata, tileSize, compression, compressionLevel, predictor, numResolutions);
+	}
+	
+	/**
+	 * This is a helper method that parses an optional integer option of the command line
+	 * 
+	 * @return the option value, defaultValue if the option is missing or Integer.MIN_VALUE if it is not an integer
+	 */
+	private static int parseIntOption(CommandLine cmd, String name, int defaultValue){
+		if(!cmd.hasOption(name)){
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(cmd.getOptionValue(name).trim());
+		} catch (NumberFormatException e) {
+			return Integer.MIN_VALUE;
+		}
+	}
+	
+	/**
+	 * This is a helper method that reports an invalid option, prints the usage message and exits with the status 1
+	 * (the same as an option parse error)
+	 */
+	private static void exitWithUsage(String message, HelpFormatter formatter, Options options){
+		System.err.println(message);
+		formatter.printHelp("the required arguments", options);
+
+		System.exit(1);
+	}
 	
 	
 	/**
@@ -1080,6 +1973,46 @@ public class MaskFromAnnotations {
 		output.setRequired(true);
 		options.addOption(output);
 
+		Option threads = new Option("th", "threads", true, "number of frames processed concurrently (default 1)");
+		threads.setRequired(false);
+		options.addOption(threads);
+
+		Option store = new Option("as", "annotationstore", true, "binary annotation store file re-used between runs (optional)");
+		store.setRequired(false);
+		options.addOption(store);
+
+		Option incremental = new Option("inc", "incremental", true, "skip the frames whose inputs did not change since the last run (true/false, default false)");
+		incremental.setRequired(false);
+		options.addOption(incremental);
+
+		Option mosaic = new Option("mo", "mosaic", true, "annotations drawn on the stitched mosaics are split into one mask per FOV (true/false, default false)");
+		mosaic.setRequired(false);
+		options.addOption(mosaic);
+
+		Option format = new Option("mf", "maskformat", true, "mask format: 0 = tiled OME-TIFF (default), 1 = row-wise RLE, 2 = COCO RLE per mask value");
+		format.setRequired(false);
+		options.addOption(format);
+
+		Option pyramid = new Option("pr", "pyramidresolutions", true, "number of resolutions of the mask pyramid written as OME-TIFF SubIFDs (default 1 = full resolution only)");
+		pyramid.setRequired(false);
+		options.addOption(pyramid);
+
+		Option compressionOpt = new Option("tc", "tiffcompression", true, "compression of the mask OME-TIFF tiles: none, lzw (default), deflate or packbits");
+		compressionOpt.setRequired(false);
+		options.addOption(compressionOpt);
+
+		Option level = new Option("cl", "compressionlevel", true, "deflate level from 1 (fastest) to 9 (smallest), default 6");
+		level.setRequired(false);
+		options.addOption(level);
+
+		Option predictorOpt = new Option("tp", "tiffpredictor", true, "TIFF predictor: 1 = none (default), 2 = horizontal differencing (lzw and deflate only)");
+		predictorOpt.setRequired(false);
+		options.addOption(predictorOpt);
+
+		Option tileSizeOpt = new Option("ts", "tilesize", true, "width and height of the mask OME-TIFF tiles, multiple of 16 (default 1024)");
+		tileSizeOpt.setRequired(false);
+		options.addOption(tileSizeOpt);
+
 		CommandLineParser parser = new DefaultParser();
 		HelpFormatter formatter = new HelpFormatter();
 		CommandLine cmd;
@@ -1102,6 +2035,48 @@ public class MaskFromAnnotations {
 		String uniqueTypeStr = cmd.getOptionValue("uniquetype");
 		String combineAllUniqueStr = cmd.getOptionValue("combineallunique");
 		String outFileFolder = cmd.getOptionValue("outputmasks");
+		int numThreads = parseIntOption(cmd, "threads", 1);
+		if(numThreads < 1){
+			exitWithUsage("ERROR: the number of threads must be an integer >= 1, threads = " + cmd.getOptionValue("threads"), formatter, options);
+			return;
+		}
+		myClass.annotationStoreFileName = cmd.getOptionValue("annotationstore");
+		myClass.incremental = Boolean.parseBoolean(cmd.getOptionValue("incremental", "false"));
+		boolean isMosaic = Boolean.parseBoolean(cmd.getOptionValue("mosaic", "false"));
+		myClass.maskFormat = parseIntOption(cmd, "maskformat", MASK_FORMAT_TIFF);
+		if(myClass.maskFormat < MASK_FORMAT_TIFF || myClass.maskFormat > MASK_FORMAT_COCO_RLE){
+			exitWithUsage("ERROR: unsupported mask format = " + cmd.getOptionValue("maskformat"), formatter, options);
+			return;
+		}
+		myClass.numResolutions = parseIntOption(cmd, "pyramidresolutions", 1);
+		if(myClass.numResolutions < 1){
+			exitWithUsage("ERROR: the number of pyramid resolutions must be an integer >= 1, pyramidResolutions = " + cmd.getOptionValue("pyramidresolutions"), formatter, options);
+			return;
+		}
+		myClass.compression = OMETiffTileWriter.parseCompression(cmd.getOptionValue("tiffcompression", "lzw"));
+		if(myClass.compression < 0){
+			exitWithUsage("ERROR: unsupported TIFF compression = " + cmd.getOptionValue("tiffcompression"), formatter, options);
+			return;
+		}
+		// the compression level is used by the deflate codec only
+		if(myClass.compression == OMETiffTileWriter.COMPRESSION_DEFLATE){
+			myClass.compressionLevel = parseIntOption(cmd, "compressionlevel", OMETiffTileWriter.DEFAULT_DEFLATE_LEVEL);
+			if(myClass.compressionLevel < 1 || myClass.compressionLevel > 9){
+				exitWithUsage("ERROR: the compression level must be an integer between 1 and 9, compressionLevel = " + cmd.getOptionValue("compressionlevel"), formatter, options);
+				return;
+			}
+		}
+		myClass.predictor = parseIntOption(cmd, "tiffpredictor", OMETiffTileWriter.PREDICTOR_NONE);
+		if(myClass.predictor != OMETiffTileWriter.PREDICTOR_NONE && (myClass.predictor != OMETiffTileWriter.PREDICTOR_HORIZONTAL
+				|| (myClass.compression != OMETiffTileWriter.COMPRESSION_LZW && myClass.compression != OMETiffTileWriter.COMPRESSION_DEFLATE))){
+			exitWithUsage("ERROR: unsupported TIFF predictor = " + cmd.getOptionValue("tiffpredictor") + " with the compression " + OMETiffTileWriter.getCompressionName(myClass.compression), formatter, options);
+			return;
+		}
+		myClass.tileSize = parseIntOption(cmd, "tilesize", DEFAULT_TILE_SIZE);
+		if(myClass.tileSize <= 0 || myClass.tileSize % 16 != 0){
+			exitWithUsage("ERROR: the tile size must be a positive multiple of 16, tileSize = " + cmd.getOptionValue("tilesize"), formatter, options);
+			return;
+		}
 		
 		File outputFolder = new File(outFileFolder);
 		boolean created = outputFolder.mkdirs();
@@ -1129,13 +2104,25 @@ public class MaskFromAnnotations {
 			
 		boolean isMappingFixed = false;
 
-		Path tempDirWithPrefix = Files.createTempDirectory("tempjson");
-		String modifiedJSONFolder = tempDirWithPrefix.toString();
-		
-		if(!RenameAnnotations.CMD_renameAnnotJSONbasedOnStitching(inputJSONFileFolder, inputStitchingFileFolder, modifiedJSONFolder)) {
-			System.err.println("ERROR: failed renaming "+ inputJSONFileFolder + " based on "+ inputStitchingFileFolder + " into " + modifiedJSONFolder);
+		if(isMosaic) {
+			// each FOV of the stitching vector gets its own mask
+			boolean ret = myClass.CMDlaunchMosaic(inputJSONFileFolder, inputStitchingFileFolder, uniqueType, isMappingFixed, myClass.inputRawFileFolder, outputImagesFolder, outputMetadataFolder);
+			if(!ret) {
+				System.err.println("ERROR: failed creating the FOV masks from "+ inputJSONFileFolder);
+			}
 			return;
 		}
+
+		// the JSON files are renamed in memory according to the stitching vectors (no copies of the JSON files)
+		LinkedHashMap<String, String> renamedJSONFiles = StitchingLoader.mapAnnotationFilenames(inputJSONFileFolder, inputStitchingFileFolder);
+		if(renamedJSONFiles == null) {
+			System.err.println("ERROR: failed renaming "+ inputJSONFileFolder + " based on "+ inputStitchingFileFolder);
+			return;
+		}
+		myClass.renamedJSONFiles = new HashMap<String, String>();
+		for(Map.Entry<String, String> entry : renamedJSONFiles.entrySet()){
+			myClass.renamedJSONFiles.put(FilePairIndex.getName(entry.getKey()), entry.getValue());
+		}
 		
 		File inputFolder = new File(myClass.inputRawFileFolder);
 		File[] tiles =  inputFolder.listFiles(new FilenameFilter() {
@@ -1154,9 +2141,9 @@ public class MaskFromAnnotations {
 			if (tiles == null || tiles.length == 0) {
 				throw new NullPointerException("Input folder is empty or no images were found.");
 			}
-			boolean ret = myClass.CMDlaunch(modifiedJSONFolder, uniqueType, combineAllUnique, isMappingFixed, myClass.inputRawFileFolder, outputImagesFolder, outputMetadataFolder);
+			boolean ret = myClass.CMDlaunch(inputJSONFileFolder, uniqueType, combineAllUnique, isMappingFixed, myClass.inputRawFileFolder, outputImagesFolder, outputMetadataFolder, numThreads);
 		}
 			
-		boolean ret = myClass.CMDlaunch(modifiedJSONFolder, uniqueType, combineAllUnique, isMappingFixed, myClass.inputRawFileFolder, outputImagesFolder, outputMetadataFolder);
+		boolean ret = myClass.CMDlaunch(inputJSONFileFolder, uniqueType, combineAllUnique, isMappingFixed, myClass.inputRawFileFolder, outputImagesFolder, outputMetadataFolder, numThreads);
 	}
 }
\ No newline at end of file
@@ -6,7 +6,6 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Iterator;
 
 import javax.imageio.ImageIO;
 
@@ -19,6 +18,7 @@ import ij.process.ImageProcessor;
 import io.AnnotationLoader;
 import loci.formats.FormatException;
 import util.FileOper;
+import util.FilePairIndex;
 import util.MathOper;
 
 /**
@@ -89,8 +89,6 @@ public class MaskJoin {
 		//////////////////////////////////////////////////////
 		AnnotationLoader annotClass = new AnnotationLoader();
 		
-		String annotFileName = new String();	
-		String modelFileName = new String();
 		String outFileName = new String(outFileFolder);
 		if(!outFileFolder.endsWith(File.separator)) {
             outFileName += File.separator;
@@ -99,40 +97,18 @@ public class MaskJoin {
 		// store metadata about the execution
 		//ArrayList<String> strSaveMapping = new ArrayList<String>();
 		
-		boolean foundMatch = false;
-		for (Iterator<String> k = sortedAnnotInFolder.iterator(); k.hasNext();) {
-			annotFileName = k.next(); //  looks like: mask_Sample__3_28_.ome.tif or Sample__13_39_.ome.tif
-			String nameAnnot = (new File(annotFileName)).getName();
-			// TODO check what to remove, this case is mask_ and  .ome.tif (mask_Sample__3_28_.ome.tif)
-			// this is for the case: mask_Sample__3_28_.ome.tif
-			//nameAnnot = nameAnnot.substring(5, nameAnnot.length()-8); 
-			// this is for the case Sample__13_39_.ome.tif
-			nameAnnot = nameAnnot.substring(0, nameAnnot.length()-8); 
-						
-			// find matching rawFileName
-			foundMatch = false;
-			for(Iterator<String> r = sortedModelsInFolder.iterator(); !foundMatch && r.hasNext(); ){
-				modelFileName = r.next(); // looks like: Sample__3_28__bySize_t68_s198.ome.tif or Sample_(1,19)_bySize_t68_s198.tif
-				String nameTIFF = (new File(modelFileName)).getName();
-				if(nameTIFF.contains("(") || nameTIFF.contains(")") || nameTIFF.contains(",") ){
-					//nameTIFF = nameTIFF.replaceAll("\\([^()]*\\)", "_");
-					nameTIFF = nameTIFF.replaceAll("\\(", "_");
-					nameTIFF = nameTIFF.replaceAll("\\)", "_");
-					nameTIFF = nameTIFF.replaceAll(",", "_");
-					nameTIFF = nameTIFF.substring(0, nameTIFF.length()-20); // TODO check what to remove Sample__3_28__bySize_t68_s198.tif
-					System.out.println("modified nameTIFF = " + nameTIFF);
-				}else{
-					nameTIFF = nameTIFF.substring(0, nameTIFF.length()-24); // TODO check what to remove Sample__3_28__bySize_t68_s198.ome.tif
-				}
-				if(nameAnnot.equalsIgnoreCase(nameTIFF)){
-					
-					foundMatch = true;
-				}
-			}
-			if(!foundMatch){
-				System.err.println("ERROR: could not find a matching annotated TIFF image to the model TIFF image");
-				continue;
-			}
+		// annotated masks look like: Sample__13_39_.ome.tif
+		FilePairIndex.KeyFunction annotKey = FilePairIndex.suffixRule(".ome.tif", ".tif");
+		// model masks look like: Sample__3_28__bySize_t68_s198.ome.tif or Sample_(1,19)_bySize_t68_s198.tif
+		FilePairIndex.KeyFunction modelKey = FilePairIndex.chain(FilePairIndex.regexRule("[(),]", "_"),
+				FilePairIndex.regexRule("_bySize_t\\d+_s\\d+(\\.ome)?\\.tif$", ""));
+		FilePairIndex.Pairing pairing = FilePairIndex.pair(sortedAnnotInFolder, annotKey, sortedModelsInFolder, modelKey);
+		pairing.printUnmatched("annotated TIFF image", "model TIFF image");
+		
+		for (int k = 0; k < pairing.size(); k++) {
+			String annotFileName = pairing.queries.get(k);
+			String modelFileName = pairing.targets.get(k);
+			String nameAnnot = annotKey.getKey(FilePairIndex.getName(annotFileName));
 			System.out.println("INFO: matching pair: annotated image = " +  annotFileName + " model binary image = " + modelFileName);
 			
 			//ArrayList<Annotation> annotations =  annotClass.readJSONfromWIPP(JSONfileName);
@@ -258,29 +234,15 @@ public class MaskJoin {
 				FileOper.SORT_ASCENDING);
 			
 		//////////////////////////////////////////////////////	
-		String mask1FileName = new String();	
-		String mask2FileName = new String();
+		// masks look like: binary_mask_Sample__3_33_.tif
+		FilePairIndex.KeyFunction maskKey = FilePairIndex.suffixRule(".tif");
+		FilePairIndex.Pairing pairing = FilePairIndex.pair(sortedMask2InFolder, maskKey, sortedMask1InFolder, maskKey);
+		pairing.printUnmatched("mask 2 image", "mask1 image");
 			
-		boolean foundMatch = false;
-		for (Iterator<String> k = sortedMask2InFolder.iterator(); k.hasNext();) {
-			mask2FileName = k.next(); //  looks like: binary_mask_Sample__3_33_.tif
-			String nameMask2 = (new File(mask2FileName)).getName();
-			nameMask2 = nameMask2.substring(0, nameMask2.length()-4); 
-			// find matching rawFileName
-			foundMatch = false;
-			for(Iterator<String> r = sortedMask1InFolder.iterator(); !foundMatch && r.hasNext(); ){
-				mask1FileName = r.next(); // looks like: Sample__3_28__bySize_t68_s198.ome.tif or Sample_(1,19)_bySize_t68_s198.tif
-				String nameMask1 = (new File(mask1FileName)).getName();
-				nameMask1 = nameMask1.substring(0, nameMask1.length()-4); 
-				
-				if(nameMask2.equalsIgnoreCase(nameMask1)){				
-					foundMatch = true;
-				}
-			}
-			if(!foundMatch){
-				System.err.println("ERROR: could not find a matching mask1 image to the mask 2 image");
-				continue;
-			}
+		for (int k = 0; k < pairing.size(); k++) {
+			String mask2FileName = pairing.queries.get(k);
+			String mask1FileName = pairing.targets.get(k);
+			String nameMask2 = maskKey.getKey(FilePairIndex.getName(mask2FileName));
 			System.out.println("INFO: matching pair: matching mask1 image = " +  mask1FileName + " , mask 2 image = " + mask2FileName);
 			
 			String outFileName = new String(outFileFolder);
@@ -19,6 +19,7 @@ import ij.process.ImageProcessor;
 import ij.process.ShortProcessor;
 import io.CSV_IOsupport;
 import util.FileOper;
+import util.FilePairIndex;
 
 public class MaskOper {
 	
@@ -514,30 +515,17 @@ public class MaskOper {
 			System.out.println("output Directory was created: " + maskOutput);
 		}
 		/////////////////////////////////////////////////////////
-		String rawFileName = null;
-		String nameTIFF = null;
-		int lastDot;
+		// the mask and raw file names match without the last extension, 
+		// e.g., B1_02_c1_p1Z0_BrightField_t001_maxXY.ome.tif
+		FilePairIndex.KeyFunction nameKey = FilePairIndex.extensionRule();
+		FilePairIndex rawIndex = new FilePairIndex(sortedRawInFolder, nameKey);
 		
 		for (Iterator<String> k = sortedMaskInFolder.iterator(); k.hasNext();) {
 			String maskFileName = k.next();
-			File maskFile = new File(maskFileName); 
-			lastDot = maskFile.getName().lastIndexOf(".");
-			//String onlyMaskFileName = maskFile.getName().substring(17, lastDot);//for cell regions: rgb_128_255_128__B1_02_c1_p1Z0_BrightField_t001_maxXY.ome.tif
-			//String onlyMaskFileName = maskFile.getName().substring(13, lastDot);// for ROI: Light_Yellow_B1_02_c1_p1Z0_BrightField_t001_maxXY.ome.tif		
+			String onlyMaskFileName = nameKey.getKey(FilePairIndex.getName(maskFileName));
 			// find matching rawFileName
-			String onlyMaskFileName = maskFile.getName().substring(0, lastDot);
-			boolean foundMatch = false;
-			for (Iterator<String> r = sortedRawInFolder.iterator(); !foundMatch && r.hasNext();) {
-				rawFileName = r.next();
-				File rawFile = new File(rawFileName);				// 
-				lastDot = rawFile.getName().lastIndexOf(".");
-				nameTIFF = rawFile.getName().substring(0, lastDot);// for raw images: B1_02_c1_p1Z0_BrightField_t001_maxXY.ome.tif
-				//nameTIFF = rawFile.getName().substring(10, lastDot);// for ROI from vesicleDetected: Segmented_B1_02_c1_p1Z0_BrightField_t001_maxXY.ome.tif
-				if (onlyMaskFileName.equalsIgnoreCase(nameTIFF)) {
-					foundMatch = true;
-				}
-			}
-			if (!foundMatch) {
+			String rawFileName = rawIndex.find(onlyMaskFileName);
+			if (rawFileName == null) {
 				System.err.println("ERROR: could not find a matching raw TIFF image to the maskTIFF  file");
 				continue;
 			}
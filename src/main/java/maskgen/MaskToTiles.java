@@ -26,6 +26,7 @@ import loci.formats.meta.IMetadata;
 import loci.formats.services.OMEXMLService;
 import loci.plugins.util.ImageProcessorSource;
 import util.FileOper;
+import util.FilePairIndex;
 
 /**
  * This class chops images and image masks into smaller tiles to be fed to AI-model training
@@ -497,37 +498,25 @@ public class MaskToTiles {
 			sortedMaskInFolder = FileOper.sort(dirSelectMaskFiles,	FileOper.SORT_ASCENDING);
 		}
 		//////////////////////////////////////////////////////	
+		// the raw and mask file names match without the last extension
+		FilePairIndex maskIndex = null;
+		if(sortedMaskInFolder != null){
+			maskIndex = new FilePairIndex(sortedMaskInFolder, FilePairIndex.extensionRule());
+		}
 		String maskFileName = new String();	
 		String rawFileName = new String();
 		//String outFileName = new String();
 				
-		boolean foundMatch = false;
 		boolean ret = true;
-		int idxDot = 0;
 		for (Iterator<String> k = sortedRawInFolder.iterator(); k.hasNext();) {
 			rawFileName = k.next();
-			String nameRaw = (new File(rawFileName)).getName();
-			idxDot = nameRaw.lastIndexOf(".");
-			//nameRaw = nameRaw.substring(0, nameRaw.length()-8); // TODO check what to remove, this case is for  .ome.tif
-			nameRaw = nameRaw.substring(0, idxDot); 
 			
-			if(sortedMaskInFolder != null){
-				// find matching rawFileName
-				foundMatch = false;
-				for(Iterator<String> r = sortedMaskInFolder.iterator(); !foundMatch && r.hasNext(); ){
-					maskFileName = r.next();
-					String nameMask = (new File(maskFileName)).getName();
-					idxDot = nameMask.lastIndexOf(".");
-					//nameMask = nameMask.substring(0, nameMask.length()-4); // TODO check what to remove, this case is for  .tif
-					nameMask = nameMask.substring(0, idxDot); 	
-					if(nameRaw.equalsIgnoreCase(nameMask)){
-						
-						foundMatch = true;
-					}
-				}
-				if(!foundMatch){
+			if(maskIndex != null){
+				// find matching maskFileName
+				maskFileName = maskIndex.findMatch(rawFileName, FilePairIndex.extensionRule());
+				if(maskFileName == null){
 					System.err.println("ERROR: could not find a matching mask image to the raw file");
-					System.err.println("raw file = " + rawFileName + ", mask file = " + maskFileName);
+					System.err.println("raw file = " + rawFileName);
 					continue;
 				}
 				System.out.println("INFO: matching pair: RAW = " +  rawFileName + " Mask = " + maskFileName);
@@ -0,0 +1,339 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package maskgen;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import datatype.StitchingVector;
+import io.OMETiffTileWriter;
+import io.StitchingLoader;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.IFormatReader;
+import loci.formats.ImageReader;
+import loci.formats.ome.OMEXMLMetadata;
+import ome.xml.model.primitives.PositiveInteger;
+import util.OMEMetadataCache;
+
+/**
+ * This class assembles the 8-bit masks of the fields of view (FOV) into one mosaic mask
+ * according to the global positions in a stitching vector.
+ *
+ * The mosaic is written as a tiled OME-TIFF tile by tile: for each output tile only the FOVs
+ * overlapping the tile are found (spatial index of the stitching vector) and only the overlapping
+ * regions of the FOV masks are read. The memory is therefore bounded by one output tile,
+ * one FOV region and a bounded number of open FOV readers regardless of the mosaic size.
+ *
+ * The overlaps of the FOVs are resolved by one of the OVERLAP_* rules
+ * (the FOV order is the order of the stitching vector).
+ *
+ * @author pnb
+ *
+ */
+public class MosaicMaskAssembler {
+
+	// a later FOV overwrites the earlier ones
+	public static final int OVERLAP_LAST = 0;
+	// the first FOV is kept
+	public static final int OVERLAP_FIRST = 1;
+	// the maximum mask value is kept
+	public static final int OVERLAP_MAX = 2;
+	// a later FOV overwrites the earlier ones only with non-zero mask values
+	public static final int OVERLAP_NONZERO = 3;
+
+	public static final int DEFAULT_TILE_SIZE = 1024;
+	public static final int DEFAULT_MAX_OPEN_READERS = 64;
+
+	private int _overlapRule = OVERLAP_LAST;
+	private int _tileSize = DEFAULT_TILE_SIZE;
+	private int _compression = OMETiffTileWriter.COMPRESSION_LZW;
+	private int _compressionLevel = OMETiffTileWriter.DEFAULT_DEFLATE_LEVEL;
+	private int _predictor = OMETiffTileWriter.PREDICTOR_NONE;
+	// true if all FOVs have the size of the first FOV (only one header is read)
+	private boolean _sameFOVSize = true;
+	private int _maxOpenReaders = DEFAULT_MAX_OPEN_READERS;
+	// number of resolutions of the mosaic (1 = full resolution only)
+	private int _numResolutions = 1;
+
+	// FOV file name -> open reader (least recently used first)
+	private LinkedHashMap<String, IFormatReader> _readers = new LinkedHashMap<String, IFormatReader>(16, 0.75f, true);
+
+	public void setOverlapRule(int overlapRule) {
+		if(overlapRule < OVERLAP_LAST || overlapRule > OVERLAP_NONZERO){
+			System.err.println("ERROR: unsupported overlap rule = " + overlapRule);
+			return;
+		}
+		_overlapRule = overlapRule;
+	}
+	public int getOverlapRule() {
+		return _overlapRule;
+	}
+	public void setTileSize(int tileSize) {
+		_tileSize = tileSize;
+	}
+	public void setCompression(int compression) {
+		_compression = compression;
+	}
+	public void setCompressionLevel(int compressionLevel) {
+		_compressionLevel = compressionLevel;
+	}
+	public void setPredictor(int predictor) {
+		_predictor = predictor;
+	}
+	public void setSameFOVSize(boolean sameFOVSize) {
+		_sameFOVSize = sameFOVSize;
+	}
+	public void setMaxOpenReaders(int maxOpenReaders) {
+		_maxOpenReaders = Math.max(1, maxOpenReaders);
+	}
+	public void setNumResolutions(int numResolutions) {
+		if(numResolutions < 1){
+			System.err.println("ERROR: the number of resolutions must be >= 1, numResolutions = " + numResolutions);
+			return;
+		}
+		_numResolutions = numResolutions;
+	}
+
+	/**
+	 * This method assembles the FOV masks listed in a stitching vector file into a mosaic mask
+	 *
+	 * @param stitchingVectorFileName - stitching vector (img-global-positions file)
+	 * @param inputMaskFolder - folder with the FOV masks named as in the stitching vector
+	 * @param outFileName - output mosaic mask (tiled OME-TIFF)
+	 * @return boolean about the execution success
+	 * @throws IOException
+	 */
+	public boolean assemble(String stitchingVectorFileName, String inputMaskFolder, String outFileName) throws IOException {
+		return assemble(StitchingLoader.readStitchingVector(stitchingVectorFileName), inputMaskFolder, outFileName);
+	}
+
+	/**
+	 * This method assembles the FOV masks of a stitching vector into a mosaic mask
+	 *
+	 * @param vector - stitching vector with the global positions of the FOVs
+	 * @param inputMaskFolder - folder with the FOV masks named as in the stitching vector
+	 * @param outFileName - output mosaic mask (tiled OME-TIFF)
+	 * @return boolean about the execution success
+	 * @throws IOException
+	 */
+	public boolean assemble(StitchingVector vector, String inputMaskFolder, String outFileName) throws IOException {
+		// sanity check
+		if(vector == null || vector.isEmpty() || inputMaskFolder == null || outFileName == null){
+			System.err.println("ERROR: missing stitching vector, input mask folder or output file name");
+			return false;
+		}
+		// the FOV sizes are read from the OME headers of the masks
+		OMEXMLMetadata metadata = null;
+		for(int i = 0; i < vector.size(); i++){
+			String maskFileName = getMaskFileName(inputMaskFolder, vector, i);
+			if(!new File(maskFileName).exists()){
+				System.err.println("ERROR: could not find the FOV mask = " + maskFileName);
+				continue;
+			}
+			if(metadata == null || !_sameFOVSize){
+				OMEXMLMetadata fovMetadata = OMEMetadataCache.getMetadata(maskFileName);
+				if(metadata == null){
+					metadata = fovMetadata;
+					if(_sameFOVSize){
+						vector.setTileSize(fovMetadata.getPixelsSizeX(0).getValue(), fovMetadata.getPixelsSizeY(0).getValue());
+						break;
+					}
+				}
+				vector.setTileSize(i, fovMetadata.getPixelsSizeX(0).getValue(), fovMetadata.getPixelsSizeY(0).getValue());
+			}
+		}
+		if(metadata == null){
+			System.err.println("ERROR: none of the FOV masks was found in " + inputMaskFolder);
+			return false;
+		}
+		int width = vector.getMosaicWidth();
+		int height = vector.getMosaicHeight();
+		metadata.setPixelsSizeX(new PositiveInteger(width), 0);
+		metadata.setPixelsSizeY(new PositiveInteger(height), 0);
+		System.out.println("INFO: mosaic mask " + outFileName + " size = " + width + "x" + height + " from " + vector.size() + " FOVs");
+
+		int nXTiles = (width + _tileSize - 1) / _tileSize;
+		int nYTiles = (height + _tileSize - 1) / _tileSize;
+		byte[] tile = new byte[0];
+		byte[] region = new byte[0];
+		boolean ret = true;
+		try (OMETiffTileWriter imageWriter = new OMETiffTileWriter(outFileName, metadata, _tileSize, _compression, _compressionLevel, _predictor, _numResolutions)) {
+			for (int k = 0; k < nYTiles; k++) {
+				for (int l = 0; l < nXTiles; l++) {
+					int tileX = l * _tileSize;
+					int tileY = k * _tileSize;
+					int effTileSizeX = Math.min(_tileSize, width - tileX);
+					int effTileSizeY = Math.min(_tileSize, height - tileY);
+					if(tile.length != effTileSizeX * effTileSizeY){
+						tile = new byte[effTileSizeX * effTileSizeY];
+					}else{
+						Arrays.fill(tile, (byte) 0);
+					}
+					int[] fovs = vector.findTiles(tileX, tileY, effTileSizeX, effTileSizeY);
+					for(int n = 0; n < fovs.length; n++){
+						// the first FOV wins if the FOVs are pasted in the reverse order
+						int f = _overlapRule == OVERLAP_FIRST ? fovs[fovs.length - 1 - n] : fovs[n];
+						int x0 = Math.max(tileX, vector.getX(f));
+						int y0 = Math.max(tileY, vector.getY(f));
+						int x1 = Math.min(tileX + effTileSizeX, vector.getX(f) + vector.getWidth(f));
+						int y1 = Math.min(tileY + effTileSizeY, vector.getY(f) + vector.getHeight(f));
+						if(x1 <= x0 || y1 <= y0){
+							continue;
+						}
+						if(region.length < (x1 - x0) * (y1 - y0)){
+							region = new byte[(x1 - x0) * (y1 - y0)];
+						}
+						if(!readRegion(getMaskFileName(inputMaskFolder, vector, f), x0 - vector.getX(f), y0 - vector.getY(f), x1 - x0, y1 - y0, region)){
+							ret = false;
+							continue;
+						}
+						paste(region, x1 - x0, y1 - y0, tile, effTileSizeX, x0 - tileX, y0 - tileY);
+					}
+					imageWriter.writeTile(tileX, tileY, tile, effTileSizeX, effTileSizeY);
+				}
+			}
+		} finally {
+			closeReaders();
+		}
+		return ret;
+	}
+
+	/**
+	 * This is a helper method that pastes one FOV region into the output tile according to the overlap rule
+	 */
+	private void paste(byte[] region, int regionWidth, int regionHeight, byte[] tile, int tileWidth, int offsetX, int offsetY) {
+		for(int y = 0; y < regionHeight; y++){
+			int src = y * regionWidth;
+			int dst = (offsetY + y) * tileWidth + offsetX;
+			switch(_overlapRule){
+				case OVERLAP_MAX:
+					for(int x = 0; x < regionWidth; x++){
+						if((region[src + x] & 0xff) > (tile[dst + x] & 0xff)){
+							tile[dst + x] = region[src + x];
+						}
+					}
+					break;
+				case OVERLAP_NONZERO:
+					for(int x = 0; x < regionWidth; x++){
+						if(region[src + x] != 0){
+							tile[dst + x] = region[src + x];
+						}
+					}
+					break;
+				default:
+					// OVERLAP_LAST and OVERLAP_FIRST (pasted in the reverse order)
+					System.arraycopy(region, src, tile, dst, regionWidth);
+					break;
+			}
+		}
+	}
+
+	/**
+	 * This is a helper method that reads a region of a FOV mask with a cached reader
+	 * (for tiled TIFF files only the TIFF tiles overlapping the region are decoded)
+	 */
+	private boolean readRegion(String maskFileName, int x, int y, int width, int height, byte[] region) {
+		try {
+			IFormatReader reader = _readers.get(maskFileName);
+			if(reader == null){
+				reader = new ImageReader();
+				reader.setId(maskFileName);
+				if(reader.getPixelType() != FormatTools.UINT8 && reader.getPixelType() != FormatTools.INT8){
+					System.err.println("ERROR: the FOV mask is not an 8-bit image = " + maskFileName);
+					reader.close();
+					return false;
+				}
+				_readers.put(maskFileName, reader);
+				if(_readers.size() > _maxOpenReaders){
+					Map.Entry<String, IFormatReader> eldest = _readers.entrySet().iterator().next();
+					_readers.remove(eldest.getKey());
+					eldest.getValue().close();
+				}
+			}
+			reader.openBytes(0, region, x, y, width, height);
+			return true;
+		} catch (FormatException | IOException ex) {
+			System.err.println("ERROR: cannot read the FOV mask = " + maskFileName + ": " + ex.getMessage());
+			return false;
+		}
+	}
+
+	private void closeReaders() {
+		for(IFormatReader reader : _readers.values()){
+			try {
+				reader.close();
+			} catch (IOException ex) {
+				System.err.println("ERROR: cannot close a FOV mask reader: " + ex.getMessage());
+			}
+		}
+		_readers.clear();
+	}
+
+	private static String getMaskFileName(String inputMaskFolder, StitchingVector vector, int index) {
+		return inputMaskFolder + File.separator + vector.getFileName(index);
+	}
+
+	/**
+	 * This is a helper method that parses an integer argument of the command line
+	 * @return the value or Integer.MIN_VALUE if the argument is not an integer
+	 */
+	private static int parseIntArgument(String arg) {
+		try {
+			return Integer.parseInt(arg.trim());
+		} catch (NumberFormatException e) {
+			return Integer.MIN_VALUE;
+		}
+	}
+
+	/**
+	 * This is the main for a command line execution
+	 * @param args - String stitchingVectorFileName, String inputMaskFolder, String outFileName, optional int overlapRule (0 = last, 1 = first, 2 = max, 3 = non-zero),
+	 * optional int numResolutions (pyramid levels)
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		String usage = "ERROR: input arguments are String stitchingVectorFileName, String inputMaskFolder, String outFileName, optional int overlapRule, optional int numResolutions";
+		if(args == null || args.length < 3) {
+			System.err.println(usage);
+			return;
+		}
+		MosaicMaskAssembler assembler = new MosaicMaskAssembler();
+		if(args.length > 3){
+			int overlapRule = parseIntArgument(args[3]);
+			if(overlapRule < OVERLAP_LAST || overlapRule > OVERLAP_NONZERO){
+				System.err.println("ERROR: the overlap rule must be 0 (last), 1 (first), 2 (max) or 3 (non-zero), overlapRule = " + args[3]);
+				System.err.println(usage);
+				System.exit(1);
+				return;
+			}
+			assembler.setOverlapRule(overlapRule);
+		}
+		if(args.length > 4){
+			int numResolutions = parseIntArgument(args[4]);
+			if(numResolutions < 1){
+				System.err.println("ERROR: the number of resolutions must be an integer >= 1, numResolutions = " + args[4]);
+				System.err.println(usage);
+				System.exit(1);
+				return;
+			}
+			assembler.setNumResolutions(numResolutions);
+		}
+		if(!assembler.assemble(args[0], args[1], args[2])){
+			System.err.println("ERROR: failed assembling the mosaic mask " + args[2]);
+		}
+	}
+
+}
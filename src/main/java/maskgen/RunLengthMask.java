@@ -0,0 +1,481 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package maskgen;
+
+import java.util.Arrays;
+import java.util.TreeSet;
+
+/**
+ * This class is a sparse mask stored as row-wise runs of mask values (class ids).
+ * It receives the spans of the ScanlineRasterizer directly, so the dense pixel array
+ * is never created and the memory is proportional to the number of runs (the background is implicit).
+ *
+ * The spans overwrite the previous runs (the same drawing order as ByteMaskCanvas),
+ * the adjacent runs of the same value are merged and a span with the value 0 erases the runs.
+ * The mask covers the image region [originX, originX+width) x [originY, originY+height)
+ * and the runs are stored in the mask coordinates (relative to the origin).
+ *
+ * The runs of one value can be converted to the COCO run-length encoding of a binary mask
+ * (column-major counts starting with the background, see getCOCOCounts and encodeCOCOCounts).
+ *
+ * @author pnb
+ *
+ */
+public class RunLengthMask implements SpanSink {
+
+	// largest mask value that is exact in the dense 32-bit float mask (2^24)
+	public static final int MAX_FLOAT_VALUE = 1 << 24;
+
+	private int _originX;
+	private int _originY;
+	private int _width;
+	private int _height;
+	// per row: (start, end, value) triples sorted by start (null for empty rows)
+	private int[][] _runs;
+	private int[] _numRuns;
+
+	public RunLengthMask(int width, int height) {
+		this(0, 0, width, height);
+	}
+
+	public RunLengthMask(int originX, int originY, int width, int height) {
+		if(width <= 0 || height <= 0){
+			throw new IllegalArgumentException("ERROR: invalid mask size " + width + "x" + height);
+		}
+		_originX = originX;
+		_originY = originY;
+		_width = width;
+		_height = height;
+		_runs = new int[height][];
+		_numRuns = new int[height];
+	}
+
+	public int getOriginX(){
+		return _originX;
+	}
+	public int getOriginY(){
+		return _originY;
+	}
+	public int getWidth(){
+		return _width;
+	}
+	public int getHeight(){
+		return _height;
+	}
+
+	/**
+	 * This method removes all runs (background only)
+	 */
+	public void clear(){
+		Arrays.fill(_runs, null);
+		Arrays.fill(_numRuns, 0);
+	}
+
+	/**
+	 * @return total number of runs
+	 */
+	public long getNumRuns(){
+		long numRuns = 0;
+		for(int n : _numRuns){
+			numRuns += n;
+		}
+		return numRuns;
+	}
+
+	/**
+	 * @param y - mask row (relative to the origin)
+	 * @return number of runs of the row
+	 */
+	public int getNumRuns(int y){
+		return _numRuns[y];
+	}
+	public int getRunStart(int y, int k){
+		return _runs[y][3 * k];
+	}
+	public int getRunEnd(int y, int k){
+		return _runs[y][3 * k + 1];
+	}
+	public int getRunValue(int y, int k){
+		return _runs[y][3 * k + 2];
+	}
+
+	/**
+	 * @return largest mask value (0 for an empty mask)
+	 */
+	public int getMaxValue(){
+		int maxValue = 0;
+		for(int y = 0; y < _height; y++){
+			for(int k = 0; k < _numRuns[y]; k++){
+				maxValue = Math.max(maxValue, _runs[y][3 * k + 2]);
+			}
+		}
+		return maxValue;
+	}
+
+	/**
+	 * @return sorted distinct non-zero values of the mask
+	 */
+	public int[] getValues(){
+		TreeSet<Integer> values = new TreeSet<Integer>();
+		for(int y = 0; y < _height; y++){
+			for(int k = 0; k < _numRuns[y]; k++){
+				values.add(_runs[y][3 * k + 2]);
+			}
+		}
+		int[] ret = new int[values.size()];
+		int i = 0;
+		for(int value : values){
+			ret[i++] = value;
+		}
+		return ret;
+	}
+
+	public void span(int y, int xStart, int xEnd, int value){
+		addRun(y - _originY, xStart - _originX, xEnd - _originX, value);
+	}
+
+	/**
+	 * This method sets the pixels [xStart, xEnd) of one row to a value (in the mask coordinates)
+	 *
+	 * @param y - mask row
+	 * @param xStart - first mask column (inclusive)
+	 * @param xEnd - last mask column (exclusive)
+	 * @param value - mask value (0 = background)
+	 */
+	public void addRun(int y, int xStart, int xEnd, int value){
+		if(xStart >= xEnd){
+			return;
+		}
+		int[] runs = _runs[y];
+		int n = _numRuns[y];
+		// the spans of the rasterizer mostly arrive from left to right
+		if(n == 0 || runs[3 * (n - 1) + 1] <= xStart){
+			if(value == 0){
+				return;
+			}
+			if(n > 0 && runs[3 * (n - 1) + 1] == xStart && runs[3 * (n - 1) + 2] == value){
+				runs[3 * (n - 1) + 1] = xEnd;
+				return;
+			}
+			runs = ensureCapacity(y, n + 1);
+			runs[3 * n] = xStart;
+			runs[3 * n + 1] = xEnd;
+			runs[3 * n + 2] = value;
+			_numRuns[y] = n + 1;
+			return;
+		}
+
+		// runs [first, last) overlap the span
+		int first = findFirstRunEndingAfter(runs, n, xStart);
+		int last = first;
+		while(last < n && runs[3 * last] < xEnd){
+			last++;
+		}
+		// the replacement of the runs [lo, hi) including the neighbors for merging
+		int lo = Math.max(0, first - 1);
+		int hi = Math.min(n, last + 1);
+		int[] pieces = new int[3 * 5];
+		int numPieces = 0;
+		if(lo < first){
+			numPieces = addPiece(pieces, numPieces, runs[3 * lo], runs[3 * lo + 1], runs[3 * lo + 2]);
+		}
+		if(first < last && runs[3 * first] < xStart){
+			numPieces = addPiece(pieces, numPieces, runs[3 * first], xStart, runs[3 * first + 2]);
+		}
+		if(value != 0){
+			numPieces = addPiece(pieces, numPieces, xStart, xEnd, value);
+		}
+		if(first < last && runs[3 * (last - 1) + 1] > xEnd){
+			numPieces = addPiece(pieces, numPieces, xEnd, runs[3 * (last - 1) + 1], runs[3 * (last - 1) + 2]);
+		}
+		if(last < hi){
+			numPieces = addPiece(pieces, numPieces, runs[3 * last], runs[3 * last + 1], runs[3 * last + 2]);
+		}
+
+		int newN = n - (hi - lo) + numPieces;
+		runs = ensureCapacity(y, newN);
+		System.arraycopy(runs, 3 * hi, runs, 3 * (lo + numPieces), 3 * (n - hi));
+		System.arraycopy(pieces, 0, runs, 3 * lo, 3 * numPieces);
+		_numRuns[y] = newN;
+	}
+
+	/**
+	 * This is a helper method that appends a run to the replacement pieces
+	 * and merges it with the previous piece if they touch and have the same value
+	 */
+	private static int addPiece(int[] pieces, int numPieces, int start, int end, int value){
+		if(numPieces > 0 && pieces[3 * (numPieces - 1) + 1] == start && pieces[3 * (numPieces - 1) + 2] == value){
+			pieces[3 * (numPieces - 1) + 1] = end;
+			return numPieces;
+		}
+		pieces[3 * numPieces] = start;
+		pieces[3 * numPieces + 1] = end;
+		pieces[3 * numPieces + 2] = value;
+		return numPieces + 1;
+	}
+
+	/**
+	 * This is a helper method that finds the first run with the end after x (binary search)
+	 */
+	private static int findFirstRunEndingAfter(int[] runs, int n, int x){
+		int lo = 0;
+		int hi = n;
+		while(lo < hi){
+			int mid = (lo + hi) >>> 1;
+			if(runs[3 * mid + 1] <= x){
+				lo = mid + 1;
+			}else{
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	private int[] ensureCapacity(int y, int numRuns){
+		int[] runs = _runs[y];
+		if(runs == null){
+			runs = new int[3 * Math.max(4, numRuns)];
+			_runs[y] = runs;
+		}else if(runs.length < 3 * numRuns){
+			runs = Arrays.copyOf(runs, 3 * Math.max(numRuns, 2 * runs.length / 3));
+			_runs[y] = runs;
+		}
+		return runs;
+	}
+
+	/**
+	 * This method fills one row of the dense 8-bit mask (the mask values up to 255)
+	 *
+	 * @param y - mask row
+	 * @param row - output pixels of the row (at least width)
+	 */
+	public void getRow(int y, byte[] row){
+		Arrays.fill(row, 0, _width, (byte) 0);
+		for(int k = 0; k < _numRuns[y]; k++){
+			Arrays.fill(row, _runs[y][3 * k], _runs[y][3 * k + 1], (byte) _runs[y][3 * k + 2]);
+		}
+	}
+
+	/**
+	 * This method fills one row of the dense 16-bit mask (e.g., for decoding the instance masks)
+	 *
+	 * @param y - mask row
+	 * @param row - output pixels of the row (at least width)
+	 */
+	public void getRow(int y, short[] row){
+		Arrays.fill(row, 0, _width, (short) 0);
+		for(int k = 0; k < _numRuns[y]; k++){
+			Arrays.fill(row, _runs[y][3 * k], _runs[y][3 * k + 1], (short) _runs[y][3 * k + 2]);
+		}
+	}
+
+	/**
+	 * This method fills one row of the dense 32-bit float mask
+	 * (the values are exact up to MAX_FLOAT_VALUE)
+	 *
+	 * @param y - mask row
+	 * @param row - output pixels of the row (at least width)
+	 */
+	public void getRow(int y, float[] row){
+		Arrays.fill(row, 0, _width, 0f);
+		for(int k = 0; k < _numRuns[y]; k++){
+			Arrays.fill(row, _runs[y][3 * k], _runs[y][3 * k + 1], (float) _runs[y][3 * k + 2]);
+		}
+	}
+
+	/////////////////////////////////////
+	// COCO run-length encoding
+
+	/**
+	 * This method computes the COCO run-length counts of the binary mask of one value.
+	 * The counts alternate between background and foreground pixels in the column-major order
+	 * (the first count is the background). The rows are transposed run by run in two sweeps
+	 * (count and fill) so that the work is proportional to the foreground pixels.
+	 *
+	 * @param value - mask value of the foreground (0 = all non-zero values)
+	 * @return counts
+	 */
+	public long[] getCOCOCounts(int value){
+		int[] numPerColumn = new int[_width];
+		sweepColumns(value, numPerColumn, null, null);
+		// the vertical runs of each column follow the runs of the previous columns
+		int[] columnCounts = new int[_width + 1];
+		for(int x = 0; x < _width; x++){
+			columnCounts[x + 1] = columnCounts[x] + numPerColumn[x];
+		}
+		int numVerticalRuns = columnCounts[_width];
+		int[] starts = new int[numVerticalRuns];
+		int[] ends = new int[numVerticalRuns];
+		int[] cursors = Arrays.copyOf(columnCounts, _width);
+		sweepColumns(value, cursors, starts, ends);
+
+		long[] counts = new long[16];
+		int numCounts = 0;
+		long position = 0;
+		for(int x = 0; x < _width; x++){
+			long column = (long) x * _height;
+			for(int r = columnCounts[x]; r < columnCounts[x + 1]; r++){
+				long background = column + starts[r] - position;
+				if(numCounts + 2 > counts.length){
+					counts = Arrays.copyOf(counts, 2 * counts.length);
+				}
+				if(background == 0 && numCounts > 0){
+					// the run continues from the bottom of the previous column
+					counts[numCounts - 1] += ends[r] - starts[r];
+				}else{
+					counts[numCounts++] = background;
+					counts[numCounts++] = ends[r] - starts[r];
+				}
+				position = column + ends[r];
+			}
+		}
+		long size = (long) _width * _height;
+		if(position < size || numCounts == 0){
+			if(numCounts == counts.length){
+				counts = Arrays.copyOf(counts, numCounts + 1);
+			}
+			counts[numCounts++] = size - position;
+		}
+		return Arrays.copyOf(counts, numCounts);
+	}
+
+	/**
+	 * This is a helper method that sweeps the rows and finds the vertical runs of each column.
+	 * Without starts/ends it counts the vertical runs per column,
+	 * otherwise it stores them at the column cursors.
+	 */
+	private void sweepColumns(int value, int[] columnCursors, int[] starts, int[] ends){
+		// start and end row of the open vertical run of each column (end = -1 if none)
+		int[] openStarts = new int[_width];
+		int[] openEnds = new int[_width];
+		Arrays.fill(openEnds, -1);
+		for(int y = 0; y < _height; y++){
+			for(int k = 0; k < _numRuns[y]; k++){
+				int v = _runs[y][3 * k + 2];
+				if(value != 0 && v != value){
+					continue;
+				}
+				for(int x = _runs[y][3 * k]; x < _runs[y][3 * k + 1]; x++){
+					if(openEnds[x] == y){
+						openEnds[x] = y + 1;
+						continue;
+					}
+					if(openEnds[x] >= 0){
+						closeVerticalRun(x, openStarts[x], openEnds[x], columnCursors, starts, ends);
+					}
+					openStarts[x] = y;
+					openEnds[x] = y + 1;
+				}
+			}
+		}
+		for(int x = 0; x < _width; x++){
+			if(openEnds[x] >= 0){
+				closeVerticalRun(x, openStarts[x], openEnds[x], columnCursors, starts, ends);
+			}
+		}
+	}
+
+	private static void closeVerticalRun(int x, int start, int end, int[] columnCursors, int[] starts, int[] ends){
+		if(starts == null){
+			columnCursors[x]++;
+			return;
+		}
+		starts[columnCursors[x]] = start;
+		ends[columnCursors[x]] = end;
+		columnCursors[x]++;
+	}
+
+	/**
+	 * This method sets the foreground pixels of COCO run-length counts to a value
+	 *
+	 * @param counts - column-major counts starting with the background
+	 * @param value - mask value of the foreground pixels
+	 */
+	public void addCOCOCounts(long[] counts, int value){
+		long position = 0;
+		for(int i = 0; i < counts.length; i++){
+			if(i % 2 == 1){
+				for(long p = position; p < position + counts[i]; p++){
+					int x = (int) (p / _height);
+					int y = (int) (p % _height);
+					addRun(y, x, x + 1, value);
+				}
+			}
+			position += counts[i];
+		}
+	}
+
+	/**
+	 * This method encodes the COCO counts into the compressed string of the COCO API
+	 * (the counts after the second one are stored as differences to the count two positions back,
+	 * 5 bits per character with a continuation bit, offset by the character '0')
+	 *
+	 * @param counts - COCO run-length counts
+	 * @return compressed counts string
+	 */
+	public static String encodeCOCOCounts(long[] counts){
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < counts.length; i++){
+			long x = counts[i];
+			if(i > 2){
+				x -= counts[i - 2];
+			}
+			boolean more = true;
+			while(more){
+				int c = (int) (x & 0x1f);
+				x >>= 5;
+				more = (c & 0x10) != 0 ? x != -1 : x != 0;
+				if(more){
+					c |= 0x20;
+				}
+				sb.append((char) (c + 48));
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * This method decodes the compressed COCO counts string (see encodeCOCOCounts)
+	 *
+	 * @param s - compressed counts string
+	 * @return COCO run-length counts
+	 */
+	public static long[] decodeCOCOCounts(String s){
+		long[] counts = new long[16];
+		int numCounts = 0;
+		int p = 0;
+		while(p < s.length()){
+			long x = 0;
+			int k = 0;
+			boolean more = true;
+			while(more){
+				int c = s.charAt(p) - 48;
+				x |= (long) (c & 0x1f) << (5 * k);
+				more = (c & 0x20) != 0;
+				p++;
+				k++;
+				if(!more && (c & 0x10) != 0){
+					x |= -1L << (5 * k);
+				}
+			}
+			if(numCounts > 2){
+				x += counts[numCounts - 2];
+			}
+			if(numCounts == counts.length){
+				counts = Arrays.copyOf(counts, 2 * numCounts);
+			}
+			counts[numCounts++] = x;
+		}
+		return Arrays.copyOf(counts, numCounts);
+	}
+
+}
@@ -0,0 +1,503 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package maskgen;
+
+import java.awt.Polygon;
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+import datatype.Annotation;
+import datatype.AnnotationBatch;
+import ij.gui.Roi;
+import ij.process.FloatPolygon;
+
+/**
+ * This class is a scanline polygon rasterizer (edge table + active edge list)
+ * that fills annotation shapes directly into a SpanSink (e.g., the byte[] of a mask canvas)
+ * instead of going through ImageProcessor.fill(Roi) and the AWT shape masks.
+ *
+ * The rows are sampled at their centers (y+0.5) and the crossings are rounded to the pixel
+ * boundaries in the same way as the ImageJ PolygonFiller, i.e., the filled pixels are the same
+ * as ImageProcessor.fill(Roi) for both integer and sub-pixel vertices.
+ * Both the "evenodd" (ImageJ) and "nonzero" fill rules from the JSON "fillRule" field are supported.
+ *
+ * The outline methods draw the same pixels as ImageProcessor.draw(Roi) with a line width of 1
+ * (the outline pixels on the right and bottom side of a shape are not covered by the fill
+ * and must be cleared by the caller, see CoverageSpanSink).
+ *
+ * Note: the edge buffers are re-used between calls and therefore one instance
+ * should not be shared by multiple threads.
+ *
+ * @author peter bajcsy
+ *
+ */
+public class ScanlineRasterizer {
+
+	// edge table
+	private int _numEdges = 0;
+	private int[] _edgeRowStart = new int[64];
+	private int[] _edgeRowEnd = new int[64];
+	private int[] _edgeWinding = new int[64];
+	private double[] _edgeX0 = new double[64];
+	private double[] _edgeY0 = new double[64];
+	private double[] _edgeSlope = new double[64];
+	private long[] _sortKeys = new long[64];
+
+	// active edge list
+	private int _numActive = 0;
+	private int[] _active = new int[64];
+	private double[] _crossX = new double[64];
+	private int[] _crossWinding = new int[64];
+
+	// buffers for integer polygons
+	private float[] _xBuffer = new float[64];
+	private float[] _yBuffer = new float[64];
+
+	// ImageJ PolygonFiller adds this offset to the crossings before rounding
+	private static final double CROSSING_BIAS = 1e-8;
+
+	/**
+	 * This method fills an annotation ROI (Roi rectangle, OvalRoi or an area PolygonRoi)
+	 *
+	 * @param roi - ImageJ ROI in image coordinates
+	 * @param fillRule - Annotation.FILL_RULE_NONZERO or FILL_RULE_EVENODD
+	 * @param value - value assigned to the inside pixels
+	 * @param sink - receiver of the filled spans
+	 */
+	public void fillRoi(Roi roi, int fillRule, int value, SpanSink sink){
+		// sanity check
+		if(roi == null || sink == null){
+			System.err.println("ERROR: missing roi or sink");
+			return;
+		}
+		int type = roi.getType();
+		if(type == Roi.RECTANGLE && roi.getCornerDiameter() == 0){
+			Rectangle r = roi.getBounds();
+			fillRectangle(r.x, r.y, r.width, r.height, value, sink);
+			return;
+		}
+		if(type == Roi.OVAL){
+			// the oval polygon traces the pixel corners of the ImageJ oval mask
+			Polygon p = roi.getPolygon();
+			fillPolygon(p.xpoints, p.ypoints, p.npoints, fillRule, value, sink);
+			return;
+		}
+		if(!roi.isArea()){
+			System.err.println("ERROR: ROI type is not an area and cannot be filled: " + roi.getTypeAsString());
+			return;
+		}
+		FloatPolygon fp = roi.getFloatPolygon();
+		fillPolygon(fp.xpoints, fp.ypoints, fp.npoints, fillRule, value, sink);
+	}
+
+	/**
+	 * This method fills an axis aligned rectangle with integer coordinates
+	 *
+	 * @param x - left
+	 * @param y - top
+	 * @param width - width
+	 * @param height - height
+	 * @param value - value assigned to the inside pixels
+	 * @param sink - receiver of the filled spans
+	 */
+	public void fillRectangle(int x, int y, int width, int height, int value, SpanSink sink){
+		int xStart = Math.max(x, sink.getOriginX());
+		int xEnd = Math.min(x + width, sink.getOriginX() + sink.getWidth());
+		int yStart = Math.max(y, sink.getOriginY());
+		int yEnd = Math.min(y + height, sink.getOriginY() + sink.getHeight());
+		if(xStart >= xEnd){
+			return;
+		}
+		for(int row = yStart; row < yEnd; row++){
+			sink.span(row, xStart, xEnd, value);
+		}
+	}
+
+	/**
+	 * This method fills a closed polygon with integer vertices
+	 *
+	 * @param xs - x coordinates
+	 * @param ys - y coordinates
+	 * @param n - number of vertices
+	 * @param fillRule - Annotation.FILL_RULE_NONZERO or FILL_RULE_EVENODD
+	 * @param value - value assigned to the inside pixels
+	 * @param sink - receiver of the filled spans
+	 */
+	public void fillPolygon(int[] xs, int[] ys, int n, int fillRule, int value, SpanSink sink){
+		if(_xBuffer.length < n){
+			_xBuffer = new float[n];
+			_yBuffer = new float[n];
+		}
+		for(int i = 0; i < n; i++){
+			_xBuffer[i] = xs[i];
+			_yBuffer[i] = ys[i];
+		}
+		fillPolygon(_xBuffer, _yBuffer, n, fillRule, value, sink);
+	}
+
+	/**
+	 * This method fills a closed polygon (the last vertex is connected to the first one)
+	 *
+	 * @param xs - x coordinates
+	 * @param ys - y coordinates
+	 * @param n - number of vertices
+	 * @param fillRule - Annotation.FILL_RULE_NONZERO or FILL_RULE_EVENODD
+	 * @param value - value assigned to the inside pixels
+	 * @param sink - receiver of the filled spans
+	 */
+	public void fillPolygon(float[] xs, float[] ys, int n, int fillRule, int value, SpanSink sink){
+		fillPolygon(xs, ys, 0, n, fillRule, value, sink);
+	}
+
+	/**
+	 * This method fills the annotation i of a batch with its fill polygon
+	 *
+	 * @param batch - annotations
+	 * @param i - index of the annotation in the batch
+	 * @param value - value assigned to the inside pixels
+	 * @param sink - receiver of the filled spans
+	 */
+	public void fillAnnotation(AnnotationBatch batch, int i, int value, SpanSink sink){
+		fillPolygon(batch.getXPool(), batch.getYPool(), batch.getVertexOffset(i), batch.getNumVertices(i), batch.getFillRule(i), value, sink);
+	}
+
+	/**
+	 * This method fills a closed polygon stored at an offset of the coordinate arrays
+	 * (e.g., in the vertex pool of an AnnotationBatch)
+	 *
+	 * @param xs - x coordinates
+	 * @param ys - y coordinates
+	 * @param offset - index of the first vertex
+	 * @param n - number of vertices
+	 * @param fillRule - Annotation.FILL_RULE_NONZERO or FILL_RULE_EVENODD
+	 * @param value - value assigned to the inside pixels
+	 * @param sink - receiver of the filled spans
+	 */
+	public void fillPolygon(float[] xs, float[] ys, int offset, int n, int fillRule, int value, SpanSink sink){
+		if(n < 3){
+			return;
+		}
+		int clipTop = sink.getOriginY();
+		int clipBottom = clipTop + sink.getHeight();
+		int clipLeft = sink.getOriginX();
+		int clipRight = clipLeft + sink.getWidth();
+
+		//////////////////////////////////
+		// build the edge table
+		ensureEdgeCapacity(n);
+		_numEdges = 0;
+		int minRow = Integer.MAX_VALUE;
+		int maxRow = Integer.MIN_VALUE;
+		for(int i = 0; i < n; i++){
+			int j = (i + 1 == n) ? 0 : i + 1;
+			double x0 = xs[offset + i], y0 = ys[offset + i];
+			double x1 = xs[offset + j], y1 = ys[offset + j];
+			if(y0 == y1){
+				// horizontal edges never cross a sampling row
+				continue;
+			}
+			int winding = 1;
+			if(y0 > y1){
+				double t = x0; x0 = x1; x1 = t;
+				t = y0; y0 = y1; y1 = t;
+				winding = -1;
+			}
+			// the edge is sampled at rows y with y0 <= y+0.5 < y1
+			int rowStart = (int)Math.ceil(y0 - 0.5);
+			int rowEnd = (int)Math.ceil(y1 - 0.5);
+			if(rowStart >= rowEnd || rowEnd <= clipTop || rowStart >= clipBottom){
+				continue;
+			}
+			int e = _numEdges++;
+			_edgeRowStart[e] = rowStart;
+			_edgeRowEnd[e] = rowEnd;
+			_edgeWinding[e] = winding;
+			_edgeX0[e] = x0;
+			_edgeY0[e] = y0;
+			_edgeSlope[e] = (x1 - x0) / (y1 - y0);
+			if(rowStart < minRow) minRow = rowStart;
+			if(rowEnd > maxRow) maxRow = rowEnd;
+		}
+		if(_numEdges < 2){
+			return;
+		}
+		// sort the edges by the first row (primitive sort of packed keys)
+		for(int e = 0; e < _numEdges; e++){
+			_sortKeys[e] = ((long)(_edgeRowStart[e] - minRow) << 32) | e;
+		}
+		Arrays.sort(_sortKeys, 0, _numEdges);
+
+		//////////////////////////////////
+		// walk the scanlines with the active edge list
+		int rowFirst = Math.max(minRow, clipTop);
+		int rowLast = Math.min(maxRow, clipBottom);
+		int next = 0;
+		_numActive = 0;
+		for(int row = rowFirst; row < rowLast; row++){
+			// add the edges that start at (or were clipped above) this row
+			while(next < _numEdges){
+				int e = (int)(_sortKeys[next] & 0xffffffffL);
+				if(_edgeRowStart[e] > row){
+					break;
+				}
+				if(_edgeRowEnd[e] > row){
+					_active[_numActive++] = e;
+				}
+				next++;
+			}
+			// remove the edges that ended above this row
+			int k = 0;
+			for(int a = 0; a < _numActive; a++){
+				if(_edgeRowEnd[_active[a]] > row){
+					_active[k++] = _active[a];
+				}
+			}
+			_numActive = k;
+			if(_numActive == 0){
+				if(next == _numEdges){
+					break;
+				}
+				continue;
+			}
+
+			// intersections with the sampling line through the pixel centers
+			double yc = row + 0.5;
+			for(int a = 0; a < _numActive; a++){
+				int e = _active[a];
+				double x = _edgeX0[e] + (yc - _edgeY0[e]) * _edgeSlope[e] + CROSSING_BIAS;
+				int w = _edgeWinding[e];
+				// insertion sort since the order changes little between rows
+				int b = a - 1;
+				while(b >= 0 && _crossX[b] > x){
+					_crossX[b + 1] = _crossX[b];
+					_crossWinding[b + 1] = _crossWinding[b];
+					b--;
+				}
+				_crossX[b + 1] = x;
+				_crossWinding[b + 1] = w;
+			}
+
+			// emit the inside spans
+			if(fillRule == Annotation.FILL_RULE_EVENODD){
+				for(int a = 0; a + 1 < _numActive; a += 2){
+					emitSpan(row, _crossX[a], _crossX[a + 1], clipLeft, clipRight, value, sink);
+				}
+			}else{
+				int winding = 0;
+				double start = 0;
+				for(int a = 0; a < _numActive; a++){
+					int previous = winding;
+					winding += _crossWinding[a];
+					if(previous == 0 && winding != 0){
+						start = _crossX[a];
+					}else if(previous != 0 && winding == 0){
+						emitSpan(row, start, _crossX[a], clipLeft, clipRight, value, sink);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * This is a helper method that rounds the crossing interval [xa, xb)
+	 * to the pixel boundaries (as ImageJ does) and clips it to the sink
+	 */
+	private static void emitSpan(int row, double xa, double xb, int clipLeft, int clipRight, int value, SpanSink sink){
+		int xStart = (int)Math.floor(xa + 0.5);
+		int xEnd = (int)Math.floor(xb + 0.5);
+		if(xStart < clipLeft) xStart = clipLeft;
+		if(xEnd > clipRight) xEnd = clipRight;
+		if(xStart < xEnd){
+			sink.span(row, xStart, xEnd, value);
+		}
+	}
+
+	/**
+	 * This method draws the outline of an annotation ROI (Roi rectangle, OvalRoi or an area PolygonRoi)
+	 * with the same pixels as ImageProcessor.draw(Roi) into an image of the given size
+	 *
+	 * @param roi - ImageJ ROI in image coordinates
+	 * @param value - value assigned to the outline pixels
+	 * @param imageWidth - width of the image (the lines are clipped to the image as in ImageJ)
+	 * @param imageHeight - height of the image
+	 * @param sink - receiver of the outline pixels
+	 */
+	public void drawRoiOutline(Roi roi, int value, int imageWidth, int imageHeight, SpanSink sink){
+		// sanity check
+		if(roi == null || sink == null){
+			System.err.println("ERROR: missing roi or sink");
+			return;
+		}
+		int type = roi.getType();
+		if(type == Roi.RECTANGLE && roi.getCornerDiameter() == 0){
+			// ImageJ draws the rectangle one pixel wider and higher than its bounds
+			Rectangle r = roi.getBounds();
+			float[] xs = {r.x, r.x + r.width, r.x + r.width, r.x};
+			float[] ys = {r.y, r.y, r.y + r.height, r.y + r.height};
+			drawPolygonOutline(xs, ys, 0, 4, value, imageWidth, imageHeight, sink);
+			return;
+		}
+		if(type == Roi.OVAL){
+			Polygon p = roi.getPolygon();
+			if(_xBuffer.length < p.npoints){
+				_xBuffer = new float[p.npoints];
+				_yBuffer = new float[p.npoints];
+			}
+			for(int i = 0; i < p.npoints; i++){
+				_xBuffer[i] = p.xpoints[i];
+				_yBuffer[i] = p.ypoints[i];
+			}
+			drawPolygonOutline(_xBuffer, _yBuffer, 0, p.npoints, value, imageWidth, imageHeight, sink);
+			return;
+		}
+		FloatPolygon fp = roi.getFloatPolygon();
+		drawPolygonOutline(fp.xpoints, fp.ypoints, 0, fp.npoints, value, imageWidth, imageHeight, sink);
+	}
+
+	/**
+	 * This method draws the outline of the annotation i of a batch
+	 * (the rectangles and ovals are stored with the vertices of their ImageJ outline)
+	 *
+	 * @param batch - annotations
+	 * @param i - index of the annotation in the batch
+	 * @param value - value assigned to the outline pixels
+	 * @param imageWidth - width of the image (the lines are clipped to the image as in ImageJ)
+	 * @param imageHeight - height of the image
+	 * @param sink - receiver of the outline pixels
+	 */
+	public void drawAnnotationOutline(AnnotationBatch batch, int i, int value, int imageWidth, int imageHeight, SpanSink sink){
+		drawPolygonOutline(batch.getXPool(), batch.getYPool(), batch.getVertexOffset(i), batch.getNumVertices(i), value, imageWidth, imageHeight, sink);
+	}
+
+	/**
+	 * This method draws a closed polygon outline: the vertices are rounded to the nearest pixel
+	 * and connected by the ImageJ lines (ImageProcessor.moveTo and lineTo)
+	 *
+	 * @param xs - x coordinates
+	 * @param ys - y coordinates
+	 * @param offset - index of the first vertex
+	 * @param n - number of vertices
+	 * @param value - value assigned to the outline pixels
+	 * @param imageWidth - width of the image (the lines are clipped to the image as in ImageJ)
+	 * @param imageHeight - height of the image
+	 * @param sink - receiver of the outline pixels
+	 */
+	public void drawPolygonOutline(float[] xs, float[] ys, int offset, int n, int value, int imageWidth, int imageHeight, SpanSink sink){
+		if(n < 1){
+			return;
+		}
+		// ImageJ stores the vertices relative to the top left corner of the float bounds
+		// and rounds the sum of the corner and the relative vertex
+		float minX = xs[offset];
+		float minY = ys[offset];
+		for(int i = 1; i < n; i++){
+			minX = Math.min(minX, xs[offset + i]);
+			minY = Math.min(minY, ys[offset + i]);
+		}
+		int x0 = (int)Math.round((double)minX + (xs[offset] - minX));
+		int y0 = (int)Math.round((double)minY + (ys[offset] - minY));
+		int cx = x0, cy = y0;
+		for(int i = 1; i <= n; i++){
+			int x, y;
+			if(i < n){
+				x = (int)Math.round((double)minX + (xs[offset + i] - minX));
+				y = (int)Math.round((double)minY + (ys[offset + i] - minY));
+			}else{
+				x = x0;
+				y = y0;
+			}
+			drawLine(cx, cy, x, y, value, imageWidth, imageHeight, sink);
+			cx = x;
+			cy = y;
+		}
+	}
+
+	/**
+	 * This is a helper method that draws the pixels of ImageProcessor.lineTo (line width 1)
+	 * from (x1,y1) to (x2,y2), including the clipping of the line to the image
+	 * that determines where the incremental coordinates start
+	 */
+	private static void drawLine(int x1, int y1, int x2, int y2, int value, int imageWidth, int imageHeight, SpanSink sink){
+		int clipLeft = Math.max(0, sink.getOriginX());
+		int clipRight = Math.min(imageWidth, sink.getOriginX() + sink.getWidth());
+		int clipTop = Math.max(0, sink.getOriginY());
+		int clipBottom = Math.min(imageHeight, sink.getOriginY() + sink.getHeight());
+		// the line does not reach the sink
+		if(Math.max(x1, x2) < clipLeft || Math.min(x1, x2) >= clipRight || Math.max(y1, y2) < clipTop || Math.min(y1, y2) >= clipBottom){
+			return;
+		}
+		int xMin = -1, xMax = imageWidth;
+		int yMin = -1, yMax = imageHeight;
+		int dx = x2 - x1;
+		int dy = y2 - y1;
+		int n = Math.max(Math.abs(dx), Math.abs(dy));
+		double xinc = dx != 0 ? (double)dx / n : 0;
+		double yinc = dy != 0 ? (double)dy / n : 0;
+		double x = x1;
+		double y = y1;
+		int first = 0;
+		if(dx > 0){
+			first = Math.max(first, (int)((xMin - x) / xinc));
+		}else if(dx < 0){
+			first = Math.max(first, (int)((xMax - x) / xinc));
+		}else if(x < xMin || x > xMax){
+			return;
+		}
+		if(dy > 0){
+			first = Math.max(first, (int)((yMin - y) / yinc));
+		}else if(dy < 0){
+			first = Math.max(first, (int)((yMax - y) / yinc));
+		}else if(y < yMin || y > yMax){
+			return;
+		}
+		int last = n;
+		if(dx > 0){
+			last = Math.min(last, (int)((xMax - x) / xinc));
+		}else if(dx < 0){
+			last = Math.min(last, (int)((xMin - x) / xinc));
+		}
+		if(dy > 0){
+			last = Math.min(last, (int)((yMax - y) / yinc));
+		}else if(dy < 0){
+			last = Math.min(last, (int)((yMin - y) / yinc));
+		}
+		x += first * xinc;
+		y += first * yinc;
+		for(int i = first; i <= last; i++){
+			int px = (int)Math.round(x);
+			int py = (int)Math.round(y);
+			if(px >= clipLeft && px < clipRight && py >= clipTop && py < clipBottom){
+				sink.span(py, px, px + 1, value);
+			}
+			x += xinc;
+			y += yinc;
+		}
+	}
+
+	private void ensureEdgeCapacity(int n){
+		if(_edgeRowStart.length >= n){
+			return;
+		}
+		int size = Math.max(n, _edgeRowStart.length * 2);
+		_edgeRowStart = new int[size];
+		_edgeRowEnd = new int[size];
+		_edgeWinding = new int[size];
+		_edgeX0 = new double[size];
+		_edgeY0 = new double[size];
+		_edgeSlope = new double[size];
+		_sortKeys = new long[size];
+		_active = new int[size];
+		_crossX = new double[size];
+		_crossWinding = new int[size];
+	}
+
+}
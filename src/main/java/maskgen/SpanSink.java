@@ -0,0 +1,54 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package maskgen;
+
+/**
+ * This interface receives the horizontal pixel spans produced by the ScanlineRasterizer.
+ * The sink defines a clipping window in image coordinates (origin + width x height)
+ * and the rasterizer never emits spans outside of this window.
+ *
+ * @author peter bajcsy
+ *
+ */
+public interface SpanSink {
+
+	/**
+	 * @return the left image coordinate of the clipping window
+	 */
+	public int getOriginX();
+
+	/**
+	 * @return the top image coordinate of the clipping window
+	 */
+	public int getOriginY();
+
+	/**
+	 * @return width of the clipping window
+	 */
+	public int getWidth();
+
+	/**
+	 * @return height of the clipping window
+	 */
+	public int getHeight();
+
+	/**
+	 * This method is called once per filled run of pixels
+	 *
+	 * @param y - image row
+	 * @param xStart - first image column of the run (inclusive)
+	 * @param xEnd - last image column of the run (exclusive)
+	 * @param value - value assigned to the pixels of the run
+	 */
+	public void span(int y, int xStart, int xEnd, int value);
+
+}
@@ -0,0 +1,242 @@
+/* This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package util;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * This class pairs the files of two collections (e.g., JSON annotations and raw images,
+ * or masks and raw images) by their normalized base names.
+ *
+ * Each file name is normalized once by a KeyFunction (e.g., by removing the suffix ".ome.tif")
+ * and the files of the target collection are indexed in a hash map, so that the pairing
+ * takes O(n + m) instead of the nested scans over both collections.
+ * The keys are compared ignoring the case. If several target files have the same key,
+ * the first one in the collection order is used.
+ *
+ * @author pnb
+ *
+ */
+public class FilePairIndex {
+
+	/**
+	 * This interface normalizes a file name (without the folder) into the key used for pairing
+	 */
+	public interface KeyFunction {
+		/**
+		 * @param name - file name without the folder
+		 * @return key of the file or null if the file cannot be paired
+		 */
+		String getKey(String name);
+	}
+
+	/**
+	 * This class holds the result of pairing two collections of files
+	 */
+	public static class Pairing {
+		// matching pairs in the order of the query collection
+		public final ArrayList<String> queries = new ArrayList<String>();
+		public final ArrayList<String> targets = new ArrayList<String>();
+		// files without a match
+		public final ArrayList<String> unmatchedQueries = new ArrayList<String>();
+		public final ArrayList<String> unmatchedTargets = new ArrayList<String>();
+
+		public int size() {
+			return queries.size();
+		}
+
+		/**
+		 * This method reports the files without a match
+		 * @param queryType - description of the query files (e.g., "JSON file")
+		 * @param targetType - description of the target files (e.g., "raw TIFF image")
+		 */
+		public void printUnmatched(String queryType, String targetType) {
+			for(String query : unmatchedQueries){
+				System.err.println("ERROR: could not find a matching " + targetType + " to the " + queryType + " = " + query);
+			}
+			for(String target : unmatchedTargets){
+				System.out.println("INFO: the " + targetType + " = " + target + " does not match any " + queryType);
+			}
+		}
+	}
+
+	// lower case key -> file
+	private HashMap<String, String> _index;
+
+	/**
+	 * This constructor indexes a collection of files by their keys
+	 *
+	 * @param files - file names (with folders)
+	 * @param keyFunction - normalization of the file names
+	 */
+	public FilePairIndex(Collection<String> files, KeyFunction keyFunction) {
+		_index = new HashMap<String, String>(2 * files.size());
+		for(String file : files){
+			String key = normalizeKey(keyFunction.getKey(getName(file)));
+			if(key == null){
+				// the file does not follow the naming convention
+				continue;
+			}
+			String previous = _index.get(key);
+			if(previous != null){
+				System.out.println("INFO: the files " + previous + " and " + file + " have the same key = " + key + ", using the first one");
+				continue;
+			}
+			_index.put(key, file);
+		}
+	}
+
+	public int size() {
+		return _index.size();
+	}
+
+	/**
+	 * @param key - key of a file
+	 * @return the indexed file with the key (ignoring the case) or null
+	 */
+	public String find(String key) {
+		key = normalizeKey(key);
+		return key == null ? null : _index.get(key);
+	}
+
+	/**
+	 * This method finds the indexed file that matches a file of another collection
+	 *
+	 * @param fileName - file name of the other collection
+	 * @param keyFunction - normalization of the file names of the other collection
+	 * @return matching indexed file or null
+	 */
+	public String findMatch(String fileName, KeyFunction keyFunction) {
+		return find(keyFunction.getKey(getName(fileName)));
+	}
+
+	/**
+	 * This method pairs each query file with the target file of the same key
+	 *
+	 * @param queryFiles - query file names (the pairs follow their order)
+	 * @param queryKey - normalization of the query file names
+	 * @param targetFiles - target file names
+	 * @param targetKey - normalization of the target file names
+	 * @return Pairing
+	 */
+	public static Pairing pair(Collection<String> queryFiles, KeyFunction queryKey, Collection<String> targetFiles, KeyFunction targetKey) {
+		FilePairIndex index = new FilePairIndex(targetFiles, targetKey);
+		Pairing pairing = new Pairing();
+		HashSet<String> used = new HashSet<String>(2 * queryFiles.size());
+		for(String query : queryFiles){
+			String target = index.findMatch(query, queryKey);
+			if(target == null){
+				pairing.unmatchedQueries.add(query);
+				continue;
+			}
+			pairing.queries.add(query);
+			pairing.targets.add(target);
+			used.add(target);
+		}
+		for(String target : targetFiles){
+			if(!used.contains(target)){
+				pairing.unmatchedTargets.add(target);
+			}
+		}
+		return pairing;
+	}
+
+	private static String normalizeKey(String key) {
+		return key == null ? null : key.toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * This method returns the file name without the folder (without creating a File)
+	 */
+	public static String getName(String fileName) {
+		int index = Math.max(fileName.lastIndexOf('/'), fileName.lastIndexOf(File.separatorChar));
+		return fileName.substring(index + 1);
+	}
+
+	/////////////////////////////////////
+	// key functions
+
+	/**
+	 * This method creates a key function that removes the first matching suffix (ignoring the case),
+	 * e.g., suffixRule(".ome.tif", ".tif") maps both a.ome.tif and a.tif to a
+	 *
+	 * @param suffixes - suffixes in the order of preference (longer suffixes first)
+	 * @return KeyFunction (the name is unchanged if no suffix matches)
+	 */
+	public static KeyFunction suffixRule(final String... suffixes) {
+		return new KeyFunction() {
+			public String getKey(String name) {
+				for(String suffix : suffixes){
+					if(name.regionMatches(true, name.length() - suffix.length(), suffix, 0, suffix.length())){
+						return name.substring(0, name.length() - suffix.length());
+					}
+				}
+				return name;
+			}
+		};
+	}
+
+	/**
+	 * This method creates a key function that removes the last extension (from the last dot)
+	 * @return KeyFunction
+	 */
+	public static KeyFunction extensionRule() {
+		return new KeyFunction() {
+			public String getKey(String name) {
+				int dot = name.lastIndexOf('.');
+				return dot < 0 ? name : name.substring(0, dot);
+			}
+		};
+	}
+
+	/**
+	 * This method creates a key function that replaces all matches of a regular expression
+	 * (the pattern is compiled once)
+	 *
+	 * @param regex - regular expression
+	 * @param replacement - replacement of each match
+	 * @return KeyFunction
+	 */
+	public static KeyFunction regexRule(String regex, final String replacement) {
+		final Pattern pattern = Pattern.compile(regex);
+		return new KeyFunction() {
+			public String getKey(String name) {
+				return pattern.matcher(name).replaceAll(replacement);
+			}
+		};
+	}
+
+	/**
+	 * This method creates a key function that applies the key functions one after the other
+	 * @param keyFunctions - key functions in the order of application
+	 * @return KeyFunction
+	 */
+	public static KeyFunction chain(final KeyFunction... keyFunctions) {
+		return new KeyFunction() {
+			public String getKey(String name) {
+				for(KeyFunction keyFunction : keyFunctions){
+					if(name == null){
+						return null;
+					}
+					name = keyFunction.getKey(name);
+				}
+				return name;
+			}
+		};
+	}
+
+}
@@ -0,0 +1,147 @@
+/* This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import loci.common.services.DependencyException;
+import loci.common.services.ServiceException;
+import loci.common.services.ServiceFactory;
+import loci.formats.FormatException;
+import loci.formats.IFormatReader;
+import loci.formats.ImageReader;
+import loci.formats.ome.OMEXMLMetadata;
+import loci.formats.services.OMEXMLService;
+
+/**
+ * This class is a bounded (least recently used) cache of the OME metadata of raw images
+ * shared by all mask conversions in one JVM. The metadata is read with Bio-Formats
+ * only once per raw image and each caller receives its own copy
+ * that can be modified (e.g., converted to the mask pixel type) and handed to a writer.
+ *
+ * The entries are keyed by the absolute path, the last modification time and the length
+ * of the raw image so that a modified image is read again.
+ * The OMEXMLService is also created only once.
+ *
+ * @author pnb
+ *
+ */
+public class OMEMetadataCache {
+
+	public static final int DEFAULT_CAPACITY = 64;
+
+	private static OMEXMLService _service = null;
+	private static int _capacity = DEFAULT_CAPACITY;
+	// key -> OME-XML of the raw image
+	private static final LinkedHashMap<String, String> _cache = new LinkedHashMap<String, String>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+			return size() > _capacity;
+		}
+	};
+
+	/**
+	 * @return the shared OMEXMLService
+	 */
+	public static synchronized OMEXMLService getOMEXMLService() {
+		if(_service == null){
+			try {
+				_service = new ServiceFactory().getInstance(OMEXMLService.class);
+			} catch (DependencyException ex) {
+				throw new RuntimeException("Cannot find OMEXMLService", ex);
+			}
+		}
+		return _service;
+	}
+
+	/**
+	 * This method sets the maximum number of raw images in the cache
+	 * @param capacity - number of cached entries (at least 1)
+	 */
+	public static synchronized void setCapacity(int capacity) {
+		_capacity = Math.max(1, capacity);
+		while(_cache.size() > _capacity){
+			_cache.remove(_cache.keySet().iterator().next());
+		}
+	}
+
+	public static synchronized void clear() {
+		_cache.clear();
+	}
+
+	/**
+	 * This method returns the OME metadata of a raw image (only the header is read)
+	 *
+	 * @param rawImageName - path to a raw image
+	 * @return a new copy of the metadata owned by the caller
+	 */
+	public static OMEXMLMetadata getMetadata(String rawImageName) {
+		File file = new File(rawImageName);
+		String key = file.getAbsolutePath() + "|" + file.lastModified() + "|" + file.length();
+		String xml;
+		synchronized(OMEMetadataCache.class){
+			xml = _cache.get(key);
+		}
+		if(xml == null){
+			// read outside of the lock so that the frames of a batch can be read in parallel
+			xml = readMetadata(rawImageName).dumpXML();
+			synchronized(OMEMetadataCache.class){
+				_cache.put(key, xml);
+			}
+		}
+		return createMetadata(xml);
+	}
+
+	/**
+	 * This method creates an independent copy of the OME metadata
+	 *
+	 * @param metadata - OME metadata
+	 * @return copy of the metadata
+	 */
+	public static OMEXMLMetadata copyMetadata(OMEXMLMetadata metadata) {
+		return createMetadata(metadata.dumpXML());
+	}
+
+	private static OMEXMLMetadata createMetadata(String xml) {
+		try {
+			return getOMEXMLService().createOMEXMLMetadata(xml);
+		} catch (ServiceException ex) {
+			throw new RuntimeException("Cannot create OME metadata", ex);
+		}
+	}
+
+	//Inspired from the WIPP-image-assembling-plugin
+	private static OMEXMLMetadata readMetadata(String tile) {
+		OMEXMLMetadata metadata;
+		try {
+			metadata = getOMEXMLService().createOMEXMLMetadata();
+		} catch (ServiceException ex) {
+			throw new RuntimeException("Cannot create OME metadata", ex);
+		}
+		try (ImageReader imageReader = new ImageReader()) {
+			IFormatReader reader;
+			reader = imageReader.getReader(tile);
+			reader.setOriginalMetadataPopulated(false);
+			reader.setMetadataStore(metadata);
+			reader.setId(tile);
+		} catch (FormatException | IOException ex) {
+			throw new RuntimeException("No image reader found for file "
+					+ tile, ex);
+		}
+		return metadata;
+	}
+
+}
@@ -0,0 +1,101 @@
+package datatype;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+
+import org.junit.Test;
+
+/**
+ * This class is for testing the label normalization, the interning and the gray values of the LabelDictionary
+ *
+ * @author pnb
+ *
+ */
+public class Test_LabelDictionary {
+
+	@Test
+	public void testNormalize() {
+		assertEquals("pastedamage", LabelDictionary.normalize("Paste_damage"));
+		assertEquals("pastedamage", LabelDictionary.normalize("paste damage"));
+		assertEquals("pastedamage", LabelDictionary.normalize("PasteDamage"));
+		assertEquals("pastedamage", LabelDictionary.normalize("paste,damage;"));
+		// . and - are kept
+		assertEquals("air-void.1", LabelDictionary.normalize("Air-Void.1"));
+		assertEquals("", LabelDictionary.normalize(null));
+	}
+
+	@Test
+	public void testCleanupLabel() {
+		assertEquals("Paste_damage", LabelDictionary.cleanupLabel("Paste,damage"));
+		assertEquals("Pastedamage", LabelDictionary.cleanupLabel("Paste damage"));
+		assertEquals("air-void.1", LabelDictionary.cleanupLabel("air-void.1"));
+		// nothing to clean up: the same instance is returned
+		String label = "Aggregate-damage.2";
+		assertSame(label, LabelDictionary.cleanupLabel(label));
+		assertNull(LabelDictionary.cleanupLabel(null));
+	}
+
+	@Test
+	public void testLookupAndPut() {
+		LabelDictionary dictionary = new LabelDictionary();
+		assertTrue(dictionary.isEmpty());
+		// the miss is cached and must be invalidated by put
+		assertEquals(-1, dictionary.lookup("paste damage"));
+		int id = dictionary.put("Paste_damage", 3);
+		assertEquals(0, id);
+		assertEquals(id, dictionary.lookup("paste damage"));
+		assertEquals(id, dictionary.lookup("PASTEDAMAGE"));
+		assertEquals(3, dictionary.getGrayValue(id));
+		assertEquals("Paste_damage", dictionary.getLabel(id));
+
+		// the same label updates the gray value of the existing id
+		assertEquals(id, dictionary.put("Paste_damage", 7));
+		assertEquals(7, dictionary.getGrayValue(id));
+		assertEquals(1, dictionary.size());
+
+		// the gray values grow beyond the initial capacity
+		for(int i = 0; i < 40; i++){
+			assertEquals(i + 1, dictionary.put("label" + i, 100 + i));
+		}
+		assertEquals(139, dictionary.getGrayValue(dictionary.lookup("Label 39")));
+		assertEquals(41, dictionary.size());
+
+		dictionary.clear();
+		assertTrue(dictionary.isEmpty());
+		assertEquals(-1, dictionary.lookup("Paste_damage"));
+	}
+
+	@Test
+	public void testCollision() {
+		LabelDictionary dictionary = new LabelDictionary();
+		int id = dictionary.put("Paste_damage", 3);
+		// a different label with the same normalized label is not added and does not overwrite the gray value
+		assertEquals(-1, dictionary.put("pastedamage", 7));
+		assertEquals(-1, dictionary.put("Paste damage", 3));
+		assertEquals(3, dictionary.getGrayValue(id));
+		assertEquals("Paste_damage", dictionary.getLabel(id));
+		assertEquals(1, dictionary.size());
+		assertEquals(id, dictionary.lookup("pastedamage"));
+	}
+
+	@Test
+	public void testCopyAndMapping() {
+		LabelDictionary dictionary = new LabelDictionary();
+		dictionary.put("Aggregate_damage", 1);
+		dictionary.put("Air_void", 2);
+		LabelDictionary copy = new LabelDictionary(dictionary);
+		copy.put("Paste_damage", 3);
+		copy.put("Air_void", 5);
+		assertEquals(2, dictionary.size());
+		assertEquals(2, dictionary.getGrayValue(dictionary.lookup("Air_void")));
+		assertEquals(-1, dictionary.lookup("Paste_damage"));
+
+		HashMap<String, Integer> mapping = copy.toLabel2grayMapping();
+		assertEquals(3, mapping.size());
+		assertEquals(Integer.valueOf(1), mapping.get("Aggregate_damage"));
+		assertEquals(Integer.valueOf(5), mapping.get("Air_void"));
+		assertEquals(Integer.valueOf(3), mapping.get("Paste_damage"));
+	}
+
+}
@@ -0,0 +1,114 @@
+package datatype;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import ij.gui.Roi;
+import io.AnnotationLoader;
+
+/**
+ * This class is for testing the PackedRTree queries against a linear scan
+ * of the bounding boxes and the rebuild of the AnnotationLoader spatial index
+ *
+ * @author pnb
+ *
+ */
+public class Test_PackedRTree {
+
+	String inputJSONFileFolder = new String("." + File.separator + "data" + File.separator + "JSON_orig");
+
+	/**
+	 * This is a helper method that returns the items intersecting a rectangle (inclusive boundaries)
+	 * by checking every box
+	 */
+	private int[] linearQuery(double[] minX, double[] minY, double[] maxX, double[] maxY, int num,
+			double qMinX, double qMinY, double qMaxX, double qMaxY){
+		int[] result = new int[num];
+		int numResults = 0;
+		for(int i = 0; i < num; i++){
+			if(minX[i] <= qMaxX && minY[i] <= qMaxY && maxX[i] >= qMinX && maxY[i] >= qMinY){
+				result[numResults++] = i;
+			}
+		}
+		return Arrays.copyOf(result, numResults);
+	}
+
+	@Test
+	public void testRandomQueries() {
+		Random random = new Random(17);
+		// sizes below, at and above several node capacities
+		int[] sizes = {1, 2, 15, 16, 17, 255, 256, 257, 3000};
+		for(int num : sizes){
+			double[] minX = new double[num];
+			double[] minY = new double[num];
+			double[] maxX = new double[num];
+			double[] maxY = new double[num];
+			for(int i = 0; i < num; i++){
+				minX[i] = random.nextDouble() * 1000;
+				minY[i] = random.nextDouble() * 1000;
+				maxX[i] = minX[i] + random.nextDouble() * 50;
+				maxY[i] = minY[i] + random.nextDouble() * 50;
+			}
+			PackedRTree tree = new PackedRTree(minX, minY, maxX, maxY, num);
+			assertEquals(num, tree.size());
+			for(int q = 0; q < 200; q++){
+				double qMinX = random.nextDouble() * 1100 - 50;
+				double qMinY = random.nextDouble() * 1100 - 50;
+				double qMaxX = qMinX + random.nextDouble() * 200;
+				double qMaxY = qMinY + random.nextDouble() * 200;
+				// the indices are returned in ascending (drawing) order
+				assertArrayEquals(linearQuery(minX, minY, maxX, maxY, num, qMinX, qMinY, qMaxX, qMaxY),
+						tree.query(qMinX, qMinY, qMaxX, qMaxY));
+			}
+		}
+	}
+
+	@Test
+	public void testBoundaries() {
+		double[] minX = {0, 10, 20};
+		double[] minY = {0, 10, 20};
+		double[] maxX = {5, 15, 25};
+		double[] maxY = {5, 15, 25};
+		PackedRTree tree = new PackedRTree(minX, minY, maxX, maxY, 3);
+		// touching boxes are reported (inclusive boundaries)
+		assertArrayEquals(new int[]{0, 1}, tree.query(5, 5, 10, 10));
+		assertArrayEquals(new int[]{}, tree.query(6, 6, 9, 9));
+		assertArrayEquals(new int[]{0, 1, 2}, tree.query(-1, -1, 100, 100));
+		assertArrayEquals(new int[]{}, new PackedRTree(new double[0], new double[0], new double[0], new double[0], 0).query(0, 0, 10, 10));
+	}
+
+	@Test
+	public void testLoaderSpatialIndex() throws IOException {
+		String[] names = new File(inputJSONFileFolder).list();
+		assertNotNull(names);
+		String fileName = null;
+		for(String name : names){
+			if(name.endsWith(".json")){
+				fileName = inputJSONFileFolder + File.separator + name;
+				break;
+			}
+		}
+		assertNotNull(fileName);
+		AnnotationLoader loader = new AnnotationLoader();
+		ArrayList<Annotation> annotations = loader.readJSONfromWIPP(fileName);
+		assertTrue(annotations.size() > 0);
+		PackedRTree tree = loader.getSpatialIndex();
+		assertEquals(annotations.size(), tree.size());
+		assertSame(tree, loader.getSpatialIndex());
+
+		// replacing an annotation keeps the size but the index must be rebuilt
+		Roi moved = new Roi(100000, 100000, 10, 10);
+		loader.getAnnotations().set(0, new Annotation(moved, "moved"));
+		PackedRTree rebuilt = loader.getSpatialIndex();
+		assertNotSame(tree, rebuilt);
+		assertArrayEquals(new int[]{0}, rebuilt.query(100001, 100001, 100002, 100002));
+	}
+
+}
@@ -0,0 +1,72 @@
+package io;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import datatype.Annotation;
+import datatype.AnnotationBatch;
+
+/**
+ * This class is for testing the parsing of the textual annotations (wdzt id, author and label)
+ * by the AnnotationLoader
+ *
+ * @author pnb
+ *
+ */
+public class Test_AnnotationLoader {
+
+	@Rule
+	public TemporaryFolder tempFolder = new TemporaryFolder();
+
+	/**
+	 * This is a helper method that creates a JSON file with one rectangle per wdzt object
+	 */
+	private String writeRectangles(String... wdzts) throws IOException {
+		StringBuilder sb = new StringBuilder("{\"objects\":[");
+		for(int i = 0; i < wdzts.length; i++){
+			if(i > 0){
+				sb.append(',');
+			}
+			sb.append("{\"type\":\"rect\",\"left\":").append(10 * i).append(",\"top\":5,\"width\":8,\"height\":6,")
+				.append("\"fill\":\"rgba(255,47,146,0.5)\",\"stroke\":\"#ff2f92\",\"fillRule\":\"nonzero\",")
+				.append("\"wdzt\":").append(wdzts[i]).append('}');
+		}
+		sb.append("]}");
+		File file = tempFolder.newFile();
+		Files.write(file.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+		return file.getPath();
+	}
+
+	@Test
+	public void testIds() throws IOException {
+		String JSONfileName = writeRectangles(
+				"{\"id\":\"0ddfca80-7913\",\"labels\":{\"author\":\"pnb\",\"annotationText\":\"Paste_damage\"}}",
+				"{\"id\":42,\"labels\":{\"author\":\"pnb\",\"annotationText\":\"Aggregate_damage\"}}",
+				"{\"id\":1.5e3,\"labels\":{}}",
+				"{\"labels\":{}}");
+		// the numeric ids are kept as their JSON text
+		String[] expectedIds = {"0ddfca80-7913", "42", "1.5E+3", ""};
+
+		AnnotationBatch batch = new AnnotationLoader().readJSONtoBatch(JSONfileName);
+		assertEquals(4, batch.size());
+		ArrayList<Annotation> annotations = new AnnotationLoader().readJSONfromWIPP(JSONfileName);
+		assertEquals(4, annotations.size());
+		for(int i = 0; i < expectedIds.length; i++){
+			assertEquals(expectedIds[i], batch.getId(i));
+			assertEquals(expectedIds[i], annotations.get(i).id);
+		}
+		assertEquals("Aggregate_damage", batch.getLabel(1));
+		assertEquals("pnb", batch.getAuthor(1));
+		assertEquals("", batch.getLabel(2));
+	}
+
+}
@@ -0,0 +1,148 @@
+package io;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import datatype.AnnotationBatch;
+
+/**
+ * This class is for testing the compilation, the per-frame reading and the invalidation
+ * of the binary AnnotationStore on the JSON files in data/JSON_orig
+ *
+ * @author pnb
+ *
+ */
+public class Test_AnnotationStore {
+
+	String inputJSONFileFolder = new String("." + File.separator + "data" + File.separator + "JSON_orig");
+
+	@Rule
+	public TemporaryFolder tempFolder = new TemporaryFolder();
+
+	File jsonFolder;
+	String storeFileName;
+
+	@Before
+	public void setUp() throws IOException {
+		// the JSON files are copied since the invalidation test modifies them
+		jsonFolder = tempFolder.newFolder("json");
+		for(File file : new File(inputJSONFileFolder).listFiles()){
+			if(file.getName().endsWith(".json")){
+				Files.copy(file.toPath(), new File(jsonFolder, file.getName()).toPath());
+			}
+		}
+		storeFileName = new File(tempFolder.getRoot(), "annotations.store").getPath();
+	}
+
+	private static void assertSameBatch(AnnotationBatch expected, AnnotationBatch actual){
+		assertEquals(expected.size(), actual.size());
+		for(int i = 0; i < expected.size(); i++){
+			assertEquals(expected.getShapeType(i), actual.getShapeType(i));
+			assertEquals(expected.getRoiType(i), actual.getRoiType(i));
+			assertEquals(expected.getFillRule(i), actual.getFillRule(i));
+			assertEquals(expected.getColor(i), actual.getColor(i));
+			assertEquals(expected.getLabel(i), actual.getLabel(i));
+			assertEquals(expected.getAuthor(i), actual.getAuthor(i));
+			assertEquals(expected.getId(i), actual.getId(i));
+			assertEquals(expected.getX(i), actual.getX(i), 0);
+			assertEquals(expected.getY(i), actual.getY(i), 0);
+			assertEquals(expected.getWidth(i), actual.getWidth(i), 0);
+			assertEquals(expected.getHeight(i), actual.getHeight(i), 0);
+			assertEquals(expected.getNumVertices(i), actual.getNumVertices(i));
+			for(int v = 0; v < expected.getNumVertices(i); v++){
+				assertEquals(expected.getXPool()[expected.getVertexOffset(i) + v], actual.getXPool()[actual.getVertexOffset(i) + v], 0f);
+				assertEquals(expected.getYPool()[expected.getVertexOffset(i) + v], actual.getYPool()[actual.getVertexOffset(i) + v], 0f);
+			}
+		}
+	}
+
+	@Test
+	public void testCompileAndRead() throws IOException {
+		AnnotationStore store = AnnotationStore.openOrCompile(jsonFolder.getPath(), storeFileName);
+		assertTrue(store.isUpToDate());
+		String[] frameNames = store.getFrameNames();
+		assertEquals(jsonFolder.list().length, frameNames.length);
+		int numAnnotations = 0;
+		for(String frameName : frameNames){
+			String JSONfileName = new File(jsonFolder, frameName).getPath();
+			AnnotationBatch batch = store.readFrame(JSONfileName);
+			assertNotNull(batch);
+			assertSameBatch(new AnnotationLoader().readJSONtoBatch(JSONfileName), batch);
+			numAnnotations += batch.size();
+		}
+		assertTrue(numAnnotations > 0);
+
+		// a second store opened on the same file reads the same frames
+		AnnotationStore reopened = AnnotationStore.open(storeFileName, jsonFolder.getPath());
+		assertTrue(reopened.isUpToDate());
+		String JSONfileName = new File(jsonFolder, frameNames[frameNames.length - 1]).getPath();
+		assertSameBatch(store.readFrame(JSONfileName), reopened.readFrame(JSONfileName));
+	}
+
+	@Test
+	public void testRelativeFrameKey() throws IOException {
+		AnnotationStore store = AnnotationStore.openOrCompile(jsonFolder.getPath(), storeFileName);
+		String frameName = store.getFrameNames()[0];
+
+		// the relative and absolute paths of the same file are the same frame
+		File jsonFile = new File(jsonFolder, frameName);
+		assertNotNull(store.readFrame(jsonFile.getAbsolutePath()));
+		assertNotNull(store.readFrame(jsonFolder.getPath() + File.separator + "." + File.separator + frameName));
+
+		// a file with the same name in another folder is not a frame of the store
+		File otherFolder = tempFolder.newFolder("other");
+		File otherFile = new File(otherFolder, frameName);
+		Files.copy(jsonFile.toPath(), otherFile.toPath());
+		otherFile.setLastModified(jsonFile.lastModified());
+		assertNull(store.readFrame(otherFile.getPath()));
+		// and readBatch parses it instead
+		assertSameBatch(new AnnotationLoader().readJSONtoBatch(otherFile.getPath()), AnnotationStore.readBatch(store, otherFile.getPath()));
+	}
+
+	@Test
+	public void testInvalidation() throws IOException {
+		AnnotationStore store = AnnotationStore.openOrCompile(jsonFolder.getPath(), storeFileName);
+		String frameName = store.getFrameNames()[0];
+		File jsonFile = new File(jsonFolder, frameName);
+
+		// a modified JSON file is reported as missing
+		Files.write(jsonFile.toPath(), " ".getBytes(), StandardOpenOption.APPEND);
+		assertNull(store.readFrame(jsonFile.getPath()));
+		assertFalse(store.isUpToDate());
+		// the other frames are still read from the store
+		assertNotNull(store.readFrame(new File(jsonFolder, store.getFrameNames()[1]).getPath()));
+
+		// openOrCompile re-compiles the out of date store
+		store = AnnotationStore.openOrCompile(jsonFolder.getPath(), storeFileName);
+		assertTrue(store.isUpToDate());
+		assertNotNull(store.readFrame(jsonFile.getPath()));
+
+		// added and removed JSON files invalidate the store
+		File addedFile = new File(jsonFolder, "added.json");
+		Files.copy(jsonFile.toPath(), addedFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		assertFalse(store.isUpToDate());
+		store = AnnotationStore.openOrCompile(jsonFolder.getPath(), storeFileName);
+		assertTrue(store.isUpToDate());
+		assertNotNull(store.readFrame(addedFile.getPath()));
+		assertTrue(addedFile.delete());
+		assertFalse(store.isUpToDate());
+	}
+
+	@Test(expected = IOException.class)
+	public void testNotAStore() throws IOException {
+		File notAStore = tempFolder.newFile("not.store");
+		Files.write(notAStore.toPath(), "not an annotation store".getBytes());
+		AnnotationStore.open(notAStore.getPath(), jsonFolder.getPath());
+	}
+
+}
@@ -0,0 +1,27 @@
+package io;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * This class is for testing the quoting of the CSV fields by CSV_IOsupport.quoteField
+ *
+ * @author pnb
+ *
+ */
+public class Test_CSV_IOsupport {
+
+	@Test
+	public void testQuoteField() {
+		assertEquals("Paste_damage", CSV_IOsupport.quoteField("Paste_damage"));
+		assertEquals("", CSV_IOsupport.quoteField(""));
+		assertEquals("", CSV_IOsupport.quoteField(null));
+		assertEquals("\"damage, severe\"", CSV_IOsupport.quoteField("damage, severe"));
+		assertEquals("\"the \"\"old\"\" crack\"", CSV_IOsupport.quoteField("the \"old\" crack"));
+		assertEquals("\"two\nlines\"", CSV_IOsupport.quoteField("two\nlines"));
+		// the leading and trailing spaces would be lost after the ", " separator
+		assertEquals("\" crack\"", CSV_IOsupport.quoteField(" crack"));
+	}
+
+}
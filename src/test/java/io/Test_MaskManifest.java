@@ -0,0 +1,126 @@
+package io;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * This class is for testing the skip decisions of the MaskManifest used by the incremental mode of CMDlaunch
+ *
+ * @author pnb
+ *
+ */
+public class Test_MaskManifest {
+
+	@Rule
+	public TemporaryFolder tempFolder = new TemporaryFolder();
+
+	String metadataFolder;
+	File jsonFile;
+	File rawFile;
+	File outputFile;
+	String settingsHash = MaskManifest.hashString("uniqueType=1, combineAllUnique=true, isMappingFixed=false");
+
+	@Before
+	public void setUp() throws IOException {
+		metadataFolder = tempFolder.newFolder("metadata_files").getPath();
+		jsonFile = tempFolder.newFile("frame1.json");
+		Files.write(jsonFile.toPath(), "{\"objects\":[]}".getBytes(StandardCharsets.UTF_8));
+		rawFile = tempFolder.newFile("frame1.ome.tif");
+		Files.write(rawFile.toPath(), new byte[128]);
+		outputFile = tempFolder.newFile("frame1.tif");
+	}
+
+	/**
+	 * This is a helper method that records the processed frame and saves the manifest as CMDlaunch does
+	 */
+	private void saveProcessedFrame() throws IOException {
+		MaskManifest manifest = new MaskManifest(metadataFolder);
+		MaskManifest.Entry entry = MaskManifest.createEntry(jsonFile.getPath(), rawFile.getPath(), settingsHash);
+		entry.outputs.add(outputFile.getPath());
+		entry.mappingLines.add("frame1.tif, label 2 gray mapping, {Paste_damage=1,\tAggregate_damage=2}");
+		manifest.put(entry);
+		manifest.save();
+	}
+
+	private MaskManifest.Entry findUpToDate() throws IOException {
+		return MaskManifest.load(metadataFolder).findUpToDate(MaskManifest.createEntry(jsonFile.getPath(), rawFile.getPath(), settingsHash));
+	}
+
+	@Test
+	public void testEmpty() throws IOException {
+		MaskManifest manifest = MaskManifest.load(metadataFolder);
+		assertEquals(0, manifest.size());
+		assertNull(manifest.findUpToDate(MaskManifest.createEntry(jsonFile.getPath(), rawFile.getPath(), settingsHash)));
+	}
+
+	@Test
+	public void testSkipUpToDate() throws IOException {
+		saveProcessedFrame();
+		MaskManifest.Entry recorded = findUpToDate();
+		assertNotNull(recorded);
+		assertEquals(1, recorded.outputs.size());
+		assertEquals(outputFile.getPath(), recorded.outputs.get(0));
+		// the tab in the mapping line is replaced by a space (tab is the field separator)
+		assertEquals(1, recorded.mappingLines.size());
+		assertEquals("frame1.tif, label 2 gray mapping, {Paste_damage=1, Aggregate_damage=2}", recorded.mappingLines.get(0));
+	}
+
+	@Test
+	public void testChangedJSON() throws IOException {
+		saveProcessedFrame();
+		// same length and modification time but different content
+		long modified = jsonFile.lastModified();
+		Files.write(jsonFile.toPath(), "{\"objects\":{}}".getBytes(StandardCharsets.UTF_8));
+		jsonFile.setLastModified(modified);
+		assertNull(findUpToDate());
+	}
+
+	@Test
+	public void testChangedRawImage() throws IOException {
+		saveProcessedFrame();
+		assertTrue(rawFile.setLastModified(rawFile.lastModified() - 10000));
+		assertNull(findUpToDate());
+
+		saveProcessedFrame();
+		assertNotNull(findUpToDate());
+		Files.write(rawFile.toPath(), new byte[1], StandardOpenOption.APPEND);
+		assertNull(findUpToDate());
+	}
+
+	@Test
+	public void testChangedSettings() throws IOException {
+		saveProcessedFrame();
+		MaskManifest manifest = MaskManifest.load(metadataFolder);
+		String otherSettings = MaskManifest.hashString("uniqueType=2, combineAllUnique=true, isMappingFixed=false");
+		assertNull(manifest.findUpToDate(MaskManifest.createEntry(jsonFile.getPath(), rawFile.getPath(), otherSettings)));
+	}
+
+	@Test
+	public void testMissingOutput() throws IOException {
+		saveProcessedFrame();
+		assertTrue(outputFile.delete());
+		assertNull(findUpToDate());
+	}
+
+	@Test
+	public void testMalformedLine() throws IOException {
+		saveProcessedFrame();
+		Files.write(new File(metadataFolder, MaskManifest.MANIFEST_FILE_NAME).toPath(),
+				"frame2.json\thash\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+		MaskManifest manifest = MaskManifest.load(metadataFolder);
+		// the malformed line is skipped and the valid frame is kept
+		assertEquals(1, manifest.size());
+		assertNotNull(findUpToDate());
+	}
+
+}
@@ -0,0 +1,271 @@
+package io;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import loci.common.services.ServiceException;
+import loci.formats.ome.OMEXMLMetadata;
+import ome.xml.model.enums.DimensionOrder;
+import ome.xml.model.enums.PixelType;
+import ome.xml.model.primitives.PositiveInteger;
+import util.OMEMetadataCache;
+
+/**
+ * This class is for testing the tiles written by the OMETiffTileWriter with the PackBits and deflate
+ * compressions and the horizontal predictor: the tiles are read back from the TIFF file, decompressed
+ * and compared with the written pixels (8 and 16-bit masks, partial tiles at the image borders)
+ *
+ * @author pnb
+ *
+ */
+public class Test_OMETiffTileWriter {
+
+	private static final int TAG_COMPRESSION = 259;
+	private static final int TAG_PREDICTOR = 317;
+	private static final int TAG_TILE_WIDTH = 322;
+	private static final int TAG_TILE_OFFSETS = 324;
+	private static final int TAG_TILE_BYTE_COUNTS = 325;
+
+	private static final int WIDTH = 70;
+	private static final int HEIGHT = 37;
+	private static final int TILE_SIZE = 32;
+
+	@Rule
+	public TemporaryFolder tempFolder = new TemporaryFolder();
+
+	private static OMEXMLMetadata createMetadata(PixelType pixelType) throws ServiceException {
+		OMEXMLMetadata metadata = OMEMetadataCache.getOMEXMLService().createOMEXMLMetadata();
+		metadata.setImageID("Image:0", 0);
+		metadata.setPixelsID("Pixels:0", 0);
+		metadata.setPixelsDimensionOrder(DimensionOrder.XYZCT, 0);
+		metadata.setPixelsType(pixelType, 0);
+		metadata.setPixelsSizeX(new PositiveInteger(WIDTH), 0);
+		metadata.setPixelsSizeY(new PositiveInteger(HEIGHT), 0);
+		metadata.setPixelsSizeZ(new PositiveInteger(1), 0);
+		metadata.setPixelsSizeC(new PositiveInteger(1), 0);
+		metadata.setPixelsSizeT(new PositiveInteger(1), 0);
+		metadata.setChannelID("Channel:0:0", 0, 0);
+		metadata.setChannelSamplesPerPixel(new PositiveInteger(1), 0, 0);
+		return metadata;
+	}
+
+	/**
+	 * This is a helper method that creates mask-like pixels: runs of a few values (compressible)
+	 * with some noise (literal bytes of PackBits), little endian for 16-bit
+	 */
+	private static byte[] createPixels(int bytesPerPixel){
+		Random random = new Random(bytesPerPixel);
+		byte[] pixels = new byte[WIDTH * HEIGHT * bytesPerPixel];
+		for(int y = 0; y < HEIGHT; y++){
+			for(int x = 0; x < WIDTH; x++){
+				int value = (x / 9 + y / 5) % 4 == 0 ? 0 : 300 * (x / 9) + y / 5;
+				if(random.nextInt(10) == 0){
+					value = random.nextInt(1 << 16);
+				}
+				int p = (y * WIDTH + x) * bytesPerPixel;
+				pixels[p] = (byte) value;
+				if(bytesPerPixel == 2){
+					pixels[p + 1] = (byte) (value >>> 8);
+				}
+			}
+		}
+		return pixels;
+	}
+
+	/**
+	 * This is a helper method that writes the pixels tile by tile
+	 */
+	private String write(String name, PixelType pixelType, byte[] pixels, int compression, int predictor) throws IOException, ServiceException {
+		String outFileName = new File(tempFolder.getRoot(), name).getPath();
+		int bytesPerPixel = pixelType == PixelType.UINT16 ? 2 : 1;
+		try (OMETiffTileWriter writer = new OMETiffTileWriter(outFileName, createMetadata(pixelType), TILE_SIZE,
+				compression, OMETiffTileWriter.DEFAULT_DEFLATE_LEVEL, predictor, 1)) {
+			for(int tileY = 0; tileY < HEIGHT; tileY += TILE_SIZE){
+				for(int tileX = 0; tileX < WIDTH; tileX += TILE_SIZE){
+					int effTileSizeX = Math.min(TILE_SIZE, WIDTH - tileX);
+					int effTileSizeY = Math.min(TILE_SIZE, HEIGHT - tileY);
+					int rowBytes = effTileSizeX * bytesPerPixel;
+					byte[] tile = new byte[rowBytes * effTileSizeY];
+					for(int y = 0; y < effTileSizeY; y++){
+						System.arraycopy(pixels, ((tileY + y) * WIDTH + tileX) * bytesPerPixel, tile, y * rowBytes, rowBytes);
+					}
+					writer.writeTile(tileX, tileY, tile, effTileSizeX, effTileSizeY);
+				}
+			}
+		}
+		return outFileName;
+	}
+
+	/**
+	 * This is a helper method that reads the values of one tag of the first IFD of a classic little endian TIFF
+	 * (SHORT or LONG values)
+	 */
+	private static long[] readTag(ByteBuffer tiff, int tag){
+		int ifdOffset = tiff.getInt(4);
+		int numEntries = tiff.getShort(ifdOffset) & 0xffff;
+		for(int e = 0; e < numEntries; e++){
+			int entry = ifdOffset + 2 + 12 * e;
+			if((tiff.getShort(entry) & 0xffff) != tag){
+				continue;
+			}
+			int type = tiff.getShort(entry + 2);
+			int count = tiff.getInt(entry + 4);
+			int typeSize = type == 3 ? 2 : 4;
+			int valueOffset = count * typeSize <= 4 ? entry + 8 : tiff.getInt(entry + 8);
+			long[] values = new long[count];
+			for(int i = 0; i < count; i++){
+				values[i] = type == 3 ? tiff.getShort(valueOffset + 2 * i) & 0xffff : tiff.getInt(valueOffset + 4 * i) & 0xffffffffL;
+			}
+			return values;
+		}
+		return null;
+	}
+
+	private static byte[] unpackBits(byte[] data, int length){
+		byte[] out = new byte[length];
+		int o = 0;
+		int p = 0;
+		while(p < data.length){
+			int n = data[p++];
+			if(n >= 0){
+				System.arraycopy(data, p, out, o, n + 1);
+				p += n + 1;
+				o += n + 1;
+			}else if(n != -128){
+				for(int k = 0; k < 1 - n; k++){
+					out[o++] = data[p];
+				}
+				p++;
+			}
+		}
+		assertEquals(length, o);
+		return out;
+	}
+
+	private static byte[] inflate(byte[] data, int length) throws DataFormatException {
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(data);
+			byte[] out = new byte[length];
+			assertEquals(length, inflater.inflate(out));
+			assertTrue(inflater.finished());
+			return out;
+		} finally {
+			inflater.end();
+		}
+	}
+
+	/**
+	 * This is a helper method that reads the tiles back, undoes the compression and the predictor
+	 * and compares them with the written pixels
+	 */
+	private void assertTiles(String fileName, byte[] pixels, int bytesPerPixel, int compression, int predictor) throws IOException, DataFormatException {
+		ByteBuffer tiff = ByteBuffer.wrap(Files.readAllBytes(new File(fileName).toPath())).order(ByteOrder.LITTLE_ENDIAN);
+		assertEquals(42, tiff.getShort(2));
+		assertEquals(compression, readTag(tiff, TAG_COMPRESSION)[0]);
+		long[] predictorTag = readTag(tiff, TAG_PREDICTOR);
+		assertEquals(predictor, predictorTag == null ? OMETiffTileWriter.PREDICTOR_NONE : predictorTag[0]);
+		assertEquals(TILE_SIZE, readTag(tiff, TAG_TILE_WIDTH)[0]);
+		long[] offsets = readTag(tiff, TAG_TILE_OFFSETS);
+		long[] byteCounts = readTag(tiff, TAG_TILE_BYTE_COUNTS);
+		int nXTiles = (WIDTH + TILE_SIZE - 1) / TILE_SIZE;
+		int nYTiles = (HEIGHT + TILE_SIZE - 1) / TILE_SIZE;
+		assertEquals(nXTiles * nYTiles, offsets.length);
+
+		int rowBytes = TILE_SIZE * bytesPerPixel;
+		for(int t = 0; t < offsets.length; t++){
+			byte[] data = new byte[(int) byteCounts[t]];
+			tiff.position((int) offsets[t]);
+			tiff.get(data);
+			byte[] tile;
+			if(compression == OMETiffTileWriter.COMPRESSION_PACKBITS){
+				tile = unpackBits(data, rowBytes * TILE_SIZE);
+			}else if(compression == OMETiffTileWriter.COMPRESSION_DEFLATE){
+				tile = inflate(data, rowBytes * TILE_SIZE);
+			}else{
+				tile = data;
+			}
+			if(predictor == OMETiffTileWriter.PREDICTOR_HORIZONTAL){
+				for(int rowStart = 0; rowStart < tile.length; rowStart += rowBytes){
+					for(int p = rowStart + bytesPerPixel; p < rowStart + rowBytes; p += bytesPerPixel){
+						int value = (tile[p] & 0xff) + (tile[p - bytesPerPixel] & 0xff);
+						tile[p] = (byte) value;
+						if(bytesPerPixel == 2){
+							tile[p + 1] = (byte) ((tile[p + 1] & 0xff) + (tile[p - 1] & 0xff) + (value >>> 8));
+						}
+					}
+				}
+			}
+			int tileX = (t % nXTiles) * TILE_SIZE;
+			int tileY = (t / nXTiles) * TILE_SIZE;
+			for(int y = 0; y < TILE_SIZE; y++){
+				for(int x = 0; x < TILE_SIZE; x++){
+					for(int b = 0; b < bytesPerPixel; b++){
+						// the tiles are padded with zeros at the image borders
+						byte expected = tileX + x < WIDTH && tileY + y < HEIGHT ? pixels[((tileY + y) * WIDTH + tileX + x) * bytesPerPixel + b] : 0;
+						assertEquals("tile " + t + " pixel (" + x + ", " + y + ")", expected, tile[y * rowBytes + x * bytesPerPixel + b]);
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testCodecs() throws IOException, ServiceException, DataFormatException {
+		int[][] settings = {
+				{OMETiffTileWriter.COMPRESSION_NONE, OMETiffTileWriter.PREDICTOR_NONE},
+				{OMETiffTileWriter.COMPRESSION_PACKBITS, OMETiffTileWriter.PREDICTOR_NONE},
+				{OMETiffTileWriter.COMPRESSION_DEFLATE, OMETiffTileWriter.PREDICTOR_NONE},
+				{OMETiffTileWriter.COMPRESSION_DEFLATE, OMETiffTileWriter.PREDICTOR_HORIZONTAL}};
+		PixelType[] pixelTypes = {PixelType.UINT8, PixelType.UINT16};
+		for(PixelType pixelType : pixelTypes){
+			int bytesPerPixel = pixelType == PixelType.UINT16 ? 2 : 1;
+			byte[] pixels = createPixels(bytesPerPixel);
+			for(int[] setting : settings){
+				String name = "mask_" + bytesPerPixel + "_" + setting[0] + "_" + setting[1] + ".ome.tif";
+				String fileName = write(name, pixelType, pixels, setting[0], setting[1]);
+				assertTiles(fileName, pixels, bytesPerPixel, setting[0], setting[1]);
+			}
+		}
+	}
+
+	@Test
+	public void testPackBitsRuns() throws IOException, ServiceException, DataFormatException {
+		// long runs (more than 128 bytes), runs of 2 bytes and literals of more than 128 bytes
+		byte[] pixels = new byte[WIDTH * HEIGHT];
+		for(int y = 0; y < HEIGHT; y++){
+			for(int x = 0; x < WIDTH; x++){
+				pixels[y * WIDTH + x] = (byte) (y % 3 == 0 ? 7 : y % 3 == 1 ? x / 2 : x);
+			}
+		}
+		String fileName = write("packbits.ome.tif", PixelType.UINT8, pixels, OMETiffTileWriter.COMPRESSION_PACKBITS, OMETiffTileWriter.PREDICTOR_NONE);
+		assertTiles(fileName, pixels, 1, OMETiffTileWriter.COMPRESSION_PACKBITS, OMETiffTileWriter.PREDICTOR_NONE);
+	}
+
+	@Test
+	public void testLZWTags() throws IOException, ServiceException {
+		// the LZW data is decoded by Bio-Formats, only the tags are checked here
+		String fileName = write("lzw.ome.tif", PixelType.UINT16, createPixels(2), OMETiffTileWriter.COMPRESSION_LZW, OMETiffTileWriter.PREDICTOR_HORIZONTAL);
+		ByteBuffer tiff = ByteBuffer.wrap(Files.readAllBytes(new File(fileName).toPath())).order(ByteOrder.LITTLE_ENDIAN);
+		assertEquals(OMETiffTileWriter.COMPRESSION_LZW, readTag(tiff, TAG_COMPRESSION)[0]);
+		assertEquals(OMETiffTileWriter.PREDICTOR_HORIZONTAL, readTag(tiff, TAG_PREDICTOR)[0]);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testPredictorRequiresLZWOrDeflate() throws IOException, ServiceException {
+		write("invalid.ome.tif", PixelType.UINT8, createPixels(1), OMETiffTileWriter.COMPRESSION_PACKBITS, OMETiffTileWriter.PREDICTOR_HORIZONTAL);
+	}
+
+}
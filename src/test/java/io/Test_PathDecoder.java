@@ -0,0 +1,122 @@
+package io;
+
+import static org.junit.Assert.*;
+
+import java.io.StringReader;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonReader;
+
+import org.junit.Test;
+
+/**
+ * This class is for testing the decoding of the fabric.js freehand paths by the PathDecoder
+ *
+ * @author pnb
+ *
+ */
+public class Test_PathDecoder {
+
+	private static JsonArray parse(String path){
+		try (JsonReader reader = Json.createReader(new StringReader(path))) {
+			return reader.readArray();
+		}
+	}
+
+	@Test
+	public void testLines() {
+		PathDecoder decoder = new PathDecoder();
+		int n = decoder.decode(parse("[[\"M\",10,20],[\"L\",30.5,20],[\"L\",30.5,40],\"z\"]"));
+		assertEquals(3, n);
+		assertEquals(n, decoder.getNumPoints());
+		float[] xs = decoder.getXPoints();
+		float[] ys = decoder.getYPoints();
+		assertEquals(10f, xs[0], 0f);
+		assertEquals(20f, ys[0], 0f);
+		assertEquals(30.5f, xs[1], 0f);
+		assertEquals(30.5f, xs[2], 0f);
+		assertEquals(40f, ys[2], 0f);
+	}
+
+	@Test
+	public void testClose() {
+		PathDecoder decoder = new PathDecoder();
+		// the commands after the close are ignored (bare string or array command)
+		assertEquals(2, decoder.decode(parse("[[\"M\",0,0],[\"L\",5,5],\"z\",[\"L\",9,9]]")));
+		assertEquals(2, decoder.decode(parse("[[\"M\",0,0],[\"L\",5,5],[\"Z\"],[\"L\",9,9]]")));
+		// a missing close keeps all vertices
+		assertEquals(3, decoder.decode(parse("[[\"M\",0,0],[\"L\",5,5],[\"L\",9,9]]")));
+	}
+
+	@Test
+	public void testMalformedCommands() {
+		PathDecoder decoder = new PathDecoder();
+		// short commands, non-numeric coordinates and unknown commands are skipped
+		int n = decoder.decode(parse("[[\"M\",1,2],[\"L\",3],[],[4,5],[\"L\",\"a\",6],[\"C\",1,2,3,4,5,6],7]"));
+		assertEquals(2, n);
+		assertEquals(0f, decoder.getXPoints()[1], 0f);
+		assertEquals(6f, decoder.getYPoints()[1], 0f);
+		assertEquals(0, decoder.decode(null));
+		assertEquals(0, decoder.decode(parse("[]")));
+	}
+
+	@Test
+	public void testQuadraticFlattening() {
+		double tolerance = 0.1;
+		PathDecoder decoder = new PathDecoder(tolerance);
+		// curve from (0,0) through the control point (50,100) to (100,0)
+		int n = decoder.decode(parse("[[\"M\",0,0],[\"Q\",50,100,100,0],\"z\"]"));
+		// |P0 - 2*P1 + P2| = 200 => ceil(sqrt(200 / 0.4)) = 23 segments
+		assertEquals(1 + 23, n);
+		float[] xs = decoder.getXPoints();
+		float[] ys = decoder.getYPoints();
+		assertEquals(100f, xs[n - 1], 0f);
+		assertEquals(0f, ys[n - 1], 0f);
+		// the vertices are on the curve and the chords are within the tolerance
+		for(int k = 0; k < n; k++){
+			double t = (double) k / (n - 1);
+			assertEquals(100 * t, xs[k], 1e-3);
+			assertEquals(2 * 100 * t * (1 - t), ys[k], 1e-3);
+		}
+		for(int k = 0; k < n - 1; k++){
+			double t = (k + 0.5) / (n - 1);
+			double midY = 0.5 * (ys[k] + ys[k + 1]);
+			assertTrue(2 * 100 * t * (1 - t) - midY <= tolerance);
+		}
+
+		// a finer tolerance uses more segments
+		decoder.setTolerance(0.01);
+		assertTrue(decoder.decode(parse("[[\"M\",0,0],[\"Q\",50,100,100,0]]")) > n);
+		// a straight curve is a single segment
+		assertEquals(2, decoder.decode(parse("[[\"M\",0,0],[\"Q\",5,5,10,10]]")));
+	}
+
+	@Test
+	public void testTolerance() {
+		PathDecoder decoder = new PathDecoder();
+		assertEquals(PathDecoder.DEFAULT_TOLERANCE, decoder.getTolerance(), 0);
+		// non-positive tolerances are rejected
+		decoder.setTolerance(0);
+		assertEquals(PathDecoder.DEFAULT_TOLERANCE, decoder.getTolerance(), 0);
+		decoder.setTolerance(0.5);
+		assertEquals(0.5, decoder.getTolerance(), 0);
+	}
+
+	@Test
+	public void testBufferGrowth() {
+		StringBuilder path = new StringBuilder("[[\"M\",0,0]");
+		for(int i = 1; i < 1000; i++){
+			path.append(",[\"L\",").append(i).append(',').append(i % 7).append(']');
+		}
+		path.append(",\"z\"]");
+		PathDecoder decoder = new PathDecoder();
+		assertEquals(1000, decoder.decode(parse(path.toString())));
+		assertEquals(999f, decoder.getXPoints()[999], 0f);
+		assertEquals(999 % 7, decoder.getYPoints()[999], 0f);
+		// the buffers are re-used by the next path
+		assertEquals(2, decoder.decode(parse("[[\"M\",3,4],[\"L\",5,6]]")));
+		assertEquals(3f, decoder.getXPoints()[0], 0f);
+	}
+
+}
@@ -0,0 +1,172 @@
+package io;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ij.IJ;
+import ij.ImagePlus;
+import maskgen.RunLengthMask;
+
+/**
+ * This class is for testing the RLE and COCO round trips of the RunLengthMaskIO
+ * and the decoding into a dense TIFF
+ *
+ * @author pnb
+ *
+ */
+public class Test_RunLengthMaskIO {
+
+	@Rule
+	public TemporaryFolder tempFolder = new TemporaryFolder();
+
+	/**
+	 * This is a helper method that creates a mask with random runs of the values 1 to numValues
+	 */
+	private static RunLengthMask createMask(int width, int height, int numValues){
+		Random random = new Random(3);
+		RunLengthMask mask = new RunLengthMask(width, height);
+		for(int i = 0; i < 500; i++){
+			int y = random.nextInt(height);
+			int xStart = random.nextInt(width);
+			int xEnd = xStart + random.nextInt(width - xStart + 1);
+			mask.addRun(y, xStart, xEnd, random.nextInt(numValues + 1));
+		}
+		return mask;
+	}
+
+	private static void assertSameMask(RunLengthMask expected, RunLengthMask actual){
+		assertEquals(expected.getWidth(), actual.getWidth());
+		assertEquals(expected.getHeight(), actual.getHeight());
+		for(int y = 0; y < expected.getHeight(); y++){
+			assertEquals(expected.getNumRuns(y), actual.getNumRuns(y));
+			for(int k = 0; k < expected.getNumRuns(y); k++){
+				assertEquals(expected.getRunStart(y, k), actual.getRunStart(y, k));
+				assertEquals(expected.getRunEnd(y, k), actual.getRunEnd(y, k));
+				assertEquals(expected.getRunValue(y, k), actual.getRunValue(y, k));
+			}
+		}
+	}
+
+	private String write(String name, String content) throws IOException {
+		File file = new File(tempFolder.getRoot(), name);
+		Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+		return file.getPath();
+	}
+
+	@Test
+	public void testRLERoundTrip() throws IOException {
+		RunLengthMask mask = createMask(64, 40, 5);
+		String fileName = new File(tempFolder.getRoot(), "mask" + RunLengthMaskIO.RLE_EXTENSION).getPath();
+		RunLengthMaskIO.writeRLE(mask, fileName);
+		assertSameMask(mask, RunLengthMaskIO.readRLE(fileName));
+		assertSameMask(mask, RunLengthMaskIO.read(fileName));
+
+		// an empty mask stores no rows
+		RunLengthMaskIO.writeRLE(new RunLengthMask(8, 3), fileName);
+		RunLengthMask empty = RunLengthMaskIO.readRLE(fileName);
+		assertEquals(8, empty.getWidth());
+		assertEquals(0, empty.getNumRuns());
+	}
+
+	@Test
+	public void testCOCORoundTrip() throws IOException {
+		RunLengthMask mask = createMask(50, 30, 3);
+		String fileName = new File(tempFolder.getRoot(), "mask" + RunLengthMaskIO.COCO_EXTENSION).getPath();
+		RunLengthMaskIO.writeCOCO(mask, "mask.tif", fileName);
+		// the values do not overlap, so the order of the annotations does not matter
+		assertSameMask(mask, RunLengthMaskIO.readCOCO(fileName));
+		assertSameMask(mask, RunLengthMaskIO.read(fileName));
+	}
+
+	@Test
+	public void testCOCOCountsFormats() throws IOException {
+		// 3 x 2 mask with the counts [1, 4, 1] as a compressed string and as an uncompressed array
+		String compressed = write("compressed.json", "{\"width\": 3, \"height\": 2, \"annotations\": ["
+				+ "{\"category_id\": 4, \"segmentation\": {\"size\": [2, 3], \"counts\": \"141\"}}]}");
+		String uncompressed = write("uncompressed.json", "{\"width\": 3, \"height\": 2, \"annotations\": ["
+				+ "{\"category_id\": 4, \"segmentation\": {\"size\": [2, 3], \"counts\": [1, 4, 1]}}]}");
+		RunLengthMask expected = new RunLengthMask(3, 2);
+		expected.addRun(0, 1, 3, 4);
+		expected.addRun(1, 0, 2, 4);
+		assertSameMask(expected, RunLengthMaskIO.readCOCO(compressed));
+		assertSameMask(expected, RunLengthMaskIO.readCOCO(uncompressed));
+	}
+
+	@Test
+	public void testInvalidFiles() {
+		try {
+			RunLengthMaskIO.readRLE(write("bad.rle", "not a run-length mask"));
+			fail("the RLE file is not valid");
+		} catch (IOException ex) {
+			// expected
+		}
+		try {
+			RunLengthMaskIO.readCOCO(write("bad.json", "{\"objects\": []}"));
+			fail("the COCO file is not valid");
+		} catch (IOException ex) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testDecodeToTiff() throws IOException {
+		RunLengthMask mask = createMask(32, 16, 7);
+		String fileName = new File(tempFolder.getRoot(), "mask" + RunLengthMaskIO.RLE_EXTENSION).getPath();
+		RunLengthMaskIO.writeRLE(mask, fileName);
+		String tiffFileName = new File(tempFolder.getRoot(), "mask.tif").getPath();
+		assertTrue(RunLengthMaskIO.decodeToTiff(fileName, tiffFileName));
+
+		ImagePlus imp = IJ.openImage(tiffFileName);
+		assertNotNull(imp);
+		assertEquals(32, imp.getWidth());
+		assertEquals(16, imp.getHeight());
+		byte[] row = new byte[32];
+		for(int y = 0; y < 16; y++){
+			mask.getRow(y, row);
+			for(int x = 0; x < 32; x++){
+				assertEquals(row[x] & 0xff, imp.getProcessor().get(x, y));
+			}
+		}
+		assertFalse(RunLengthMaskIO.decodeToTiff(new File(tempFolder.getRoot(), "missing.rle").getPath(), tiffFileName));
+	}
+
+	@Test
+	public void testDecodeInstanceIds() throws IOException {
+		// the instance ids above 255 are decoded into a 16-bit and above 65535 into a 32-bit float TIFF
+		int[][] values = {{300, 65535}, {70000, 1 << 24}};
+		int[] bitDepths = {16, 32};
+		for(int t = 0; t < values.length; t++){
+			RunLengthMask mask = new RunLengthMask(10, 3);
+			mask.addRun(0, 1, 4, values[t][0]);
+			mask.addRun(2, 5, 10, values[t][1]);
+			String fileName = new File(tempFolder.getRoot(), "instances" + t + RunLengthMaskIO.COCO_EXTENSION).getPath();
+			RunLengthMaskIO.writeCOCO(mask, "instances.tif", fileName);
+			String tiffFileName = new File(tempFolder.getRoot(), "instances" + t + ".tif").getPath();
+			assertTrue(RunLengthMaskIO.decodeToTiff(fileName, tiffFileName));
+
+			ImagePlus imp = IJ.openImage(tiffFileName);
+			assertEquals(bitDepths[t], imp.getBitDepth());
+			assertEquals(0, imp.getProcessor().getPixelValue(0, 0), 0);
+			assertEquals(values[t][0], imp.getProcessor().getPixelValue(1, 0), 0);
+			assertEquals(values[t][0], imp.getProcessor().getPixelValue(3, 0), 0);
+			assertEquals(values[t][1], imp.getProcessor().getPixelValue(9, 2), 0);
+		}
+
+		// the values that are not exact in a float TIFF are rejected
+		RunLengthMask mask = new RunLengthMask(4, 1);
+		mask.addRun(0, 0, 1, RunLengthMask.MAX_FLOAT_VALUE + 1);
+		String fileName = new File(tempFolder.getRoot(), "large" + RunLengthMaskIO.RLE_EXTENSION).getPath();
+		RunLengthMaskIO.writeRLE(mask, fileName);
+		assertFalse(RunLengthMaskIO.decodeToTiff(fileName, new File(tempFolder.getRoot(), "large.tif").getPath()));
+	}
+
+}
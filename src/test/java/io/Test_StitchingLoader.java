@@ -0,0 +1,121 @@
+package io;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import datatype.StitchingVector;
+
+/**
+ * This class is for testing the parsing of the stitching vectors by StitchingLoader.readStitchingVector
+ *
+ * @author pnb
+ *
+ */
+public class Test_StitchingLoader {
+
+	String inputStitchingFileFolder = new String("." + File.separator + "data" + File.separator + "StitchingVectors");
+
+	@Rule
+	public TemporaryFolder tempFolder = new TemporaryFolder();
+
+	private StitchingVector read(String content) throws IOException {
+		File file = tempFolder.newFile();
+		Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+		return StitchingLoader.readStitchingVector(file.getPath());
+	}
+
+	@Test
+	public void testReadSample() throws IOException {
+		StitchingVector vector = StitchingLoader.readStitchingVector(inputStitchingFileFolder + File.separator + "img-global-positions-1.txt");
+		assertFalse(vector.isEmpty());
+		assertEquals("Sample__10_10_.ome.tif", vector.getFileName(0));
+		assertEquals(-1.0, vector.getCorrelation(0), 0);
+		assertEquals(0, vector.getX(0));
+		assertEquals(0, vector.getY(0));
+		assertEquals(0, vector.indexOf("Sample__10_10_.ome.tif"));
+	}
+
+	@Test
+	public void testParseFields() throws IOException {
+		StitchingVector vector = read(
+				"file: img_r001_c001.ome.tif; corr: 0.95; position: (0, 0); grid: (0, 0);\n"
+				+ "file: img_r001_c002.ome.tif; corr: 0.87; position: (1024, 3); grid: (1, 0);\n"
+				+ "file: img_r002_c001.ome.tif; corr: 0.5; position: (-2, 1020); grid: (0, 1);\n");
+		assertEquals(3, vector.size());
+		assertEquals("img_r001_c002.ome.tif", vector.getFileName(1));
+		assertEquals(0.87, vector.getCorrelation(1), 1e-12);
+		assertEquals(1024, vector.getX(1));
+		assertEquals(3, vector.getY(1));
+		assertEquals(1, vector.getGridX(1));
+		assertEquals(0, vector.getGridY(1));
+		assertEquals(-2, vector.getX(2));
+		assertEquals(1020, vector.getY(2));
+		assertEquals(2, vector.indexOfGrid(0, 1));
+		assertEquals(-1, vector.indexOfGrid(1, 1));
+		assertEquals(-1, vector.indexOf("img_r002_c002.ome.tif"));
+	}
+
+	@Test
+	public void testFormatVariants() throws IOException {
+		// any field order and spacing, upper case keys, decimal positions (rounded) and no trailing ;
+		StitchingVector vector = read(
+				"grid:(2,3);POSITION:(10.6, -4.4);Corr : 1; File : tile.tif\n"
+				+ "file: other.tif; position: (5, 6)\r\n");
+		assertEquals(2, vector.size());
+		assertEquals("tile.tif", vector.getFileName(0));
+		assertEquals(1.0, vector.getCorrelation(0), 0);
+		assertEquals(11, vector.getX(0));
+		assertEquals(-4, vector.getY(0));
+		assertEquals(2, vector.getGridX(0));
+		assertEquals(3, vector.getGridY(0));
+		// the missing fields are 0
+		assertEquals("other.tif", vector.getFileName(1));
+		assertEquals(0, vector.getCorrelation(1), 0);
+		assertEquals(0, vector.getGridX(1));
+	}
+
+	@Test
+	public void testSkippedLines() throws IOException {
+		// empty lines, lines without a file and lines that cannot be parsed are skipped
+		StitchingVector vector = read(
+				"\n"
+				+ "# comment\n"
+				+ "corr: 0.9; position: (1, 1); grid: (0, 0);\n"
+				+ "file: ; corr: 0.9;\n"
+				+ "file: bad_corr.tif; corr: abc; position: (1, 1);\n"
+				+ "file: bad_position.tif; position: 1, 1;\n"
+				+ "file: good.tif; corr: 0.9; position: (1, 2); grid: (0, 0);\n");
+		assertEquals(1, vector.size());
+		assertEquals("good.tif", vector.getFileName(0));
+		assertTrue(read("").isEmpty());
+	}
+
+	@Test
+	public void testTileLookup() throws IOException {
+		StitchingVector vector = read(
+				"file: a.tif; corr: 0.9; position: (0, 0); grid: (0, 0);\n"
+				+ "file: b.tif; corr: 0.9; position: (90, 0); grid: (1, 0);\n");
+		vector.setTileSize(100, 50);
+		assertEquals(190, vector.getMosaicWidth());
+		assertEquals(50, vector.getMosaicHeight());
+		assertEquals(0, vector.findTile(89.5, 10));
+		assertEquals(1, vector.findTile(100, 10));
+		assertEquals(-1, vector.findTile(190, 10));
+		// the overlap of the tiles
+		assertArrayEquals(new int[]{0, 1}, vector.findTiles(95, 0, 1, 1));
+	}
+
+	@Test(expected = IOException.class)
+	public void testMissingFile() throws IOException {
+		StitchingLoader.readStitchingVector(new File(tempFolder.getRoot(), "missing.txt").getPath());
+	}
+
+}
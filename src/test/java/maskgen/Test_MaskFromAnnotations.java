@@ -110,6 +110,11 @@ public class Test_MaskFromAnnotations {
 		  i++;
 		}
 		assertTrue(testMe.setLabel2grayMapping(val) );
+
+		// "test_1" and "Test 1" are the same label after the normalization
+		val.put("test_1", 9);
+		assertFalse(testMe.setLabel2grayMapping(val) );
+		assertEquals(3, testMe.getLabel2grayMapping().size());
 			
 	}
 
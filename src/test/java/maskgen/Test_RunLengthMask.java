@@ -0,0 +1,182 @@
+package maskgen;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * This class is for testing the runs of the RunLengthMask against a dense mask
+ * and the COCO run-length encoding (counts and compressed counts strings)
+ *
+ * @author pnb
+ *
+ */
+public class Test_RunLengthMask {
+
+	/**
+	 * This is a helper method that checks all rows of the run-length mask against the dense mask
+	 * and that the runs are sorted, non-empty, non-zero and merged
+	 */
+	private static void assertSameRows(int[] expected, RunLengthMask mask){
+		int width = mask.getWidth();
+		byte[] row = new byte[width];
+		for(int y = 0; y < mask.getHeight(); y++){
+			mask.getRow(y, row);
+			for(int x = 0; x < width; x++){
+				assertEquals("pixel (" + x + ", " + y + ")", (byte) expected[y * width + x], row[x]);
+			}
+			for(int k = 0; k < mask.getNumRuns(y); k++){
+				assertTrue(mask.getRunStart(y, k) < mask.getRunEnd(y, k));
+				assertTrue(mask.getRunValue(y, k) != 0);
+				if(k > 0){
+					assertTrue(mask.getRunEnd(y, k - 1) <= mask.getRunStart(y, k));
+					assertFalse(mask.getRunEnd(y, k - 1) == mask.getRunStart(y, k)
+							&& mask.getRunValue(y, k - 1) == mask.getRunValue(y, k));
+				}
+			}
+		}
+	}
+
+	/**
+	 * This is a helper method that computes the COCO counts of a dense mask pixel by pixel (column-major)
+	 */
+	private static long[] getDenseCOCOCounts(int[] pixels, int width, int height, int value){
+		long[] counts = new long[width * height + 1];
+		int numCounts = 0;
+		boolean foreground = false;
+		long count = 0;
+		for(int x = 0; x < width; x++){
+			for(int y = 0; y < height; y++){
+				int v = pixels[y * width + x];
+				boolean isForeground = value == 0 ? v != 0 : v == value;
+				if(isForeground != foreground){
+					counts[numCounts++] = count;
+					count = 0;
+					foreground = isForeground;
+				}
+				count++;
+			}
+		}
+		counts[numCounts++] = count;
+		return Arrays.copyOf(counts, numCounts);
+	}
+
+	@Test
+	public void testRuns() {
+		RunLengthMask mask = new RunLengthMask(20, 2);
+		int[] expected = new int[20 * 2];
+		// adjacent spans of the same value are merged
+		mask.addRun(0, 2, 5, 1);
+		mask.addRun(0, 5, 8, 1);
+		assertEquals(1, mask.getNumRuns(0));
+		Arrays.fill(expected, 2, 8, 1);
+		// a span overwrites the middle of a run and splits it
+		mask.addRun(0, 4, 6, 3);
+		Arrays.fill(expected, 4, 6, 3);
+		assertEquals(3, mask.getNumRuns(0));
+		// a span of the same value re-joins the pieces
+		mask.addRun(0, 3, 7, 1);
+		Arrays.fill(expected, 3, 7, 1);
+		assertEquals(1, mask.getNumRuns(0));
+		// the background erases
+		mask.addRun(0, 0, 4, 0);
+		Arrays.fill(expected, 0, 4, 0);
+		mask.addRun(1, 10, 20, 0);
+		assertEquals(0, mask.getNumRuns(1));
+		assertSameRows(expected, mask);
+		assertArrayEquals(new int[]{1}, mask.getValues());
+		assertEquals(1, mask.getNumRuns());
+
+		mask.clear();
+		assertEquals(0, mask.getNumRuns());
+		assertEquals(0, mask.getValues().length);
+	}
+
+	@Test
+	public void testRandomSpans() {
+		Random random = new Random(1);
+		int width = 37;
+		int height = 11;
+		RunLengthMask mask = new RunLengthMask(width, height);
+		int[] expected = new int[width * height];
+		for(int i = 0; i < 2000; i++){
+			int y = random.nextInt(height);
+			int xStart = random.nextInt(width);
+			int xEnd = xStart + random.nextInt(width - xStart + 1);
+			int value = random.nextInt(4);
+			mask.addRun(y, xStart, xEnd, value);
+			Arrays.fill(expected, y * width + xStart, y * width + xEnd, value);
+		}
+		assertSameRows(expected, mask);
+		for(int value = 0; value < 4; value++){
+			assertArrayEquals(getDenseCOCOCounts(expected, width, height, value), mask.getCOCOCounts(value));
+		}
+	}
+
+	@Test
+	public void testOrigin() {
+		// the spans of the rasterizer are in the image coordinates
+		RunLengthMask mask = new RunLengthMask(100, 50, 10, 4);
+		mask.span(51, 102, 105, 7);
+		mask.span(52, 100, 100, 7);
+		assertEquals(1, mask.getNumRuns());
+		assertEquals(1, mask.getNumRuns(1));
+		assertEquals(2, mask.getRunStart(1, 0));
+		assertEquals(5, mask.getRunEnd(1, 0));
+		assertEquals(7, mask.getRunValue(1, 0));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidSize() {
+		new RunLengthMask(0, 5);
+	}
+
+	@Test
+	public void testCOCOCounts() {
+		// 3 x 2 mask (width x height):
+		// 0 1 1
+		// 1 1 0
+		RunLengthMask mask = new RunLengthMask(3, 2);
+		mask.addRun(0, 1, 3, 1);
+		mask.addRun(1, 0, 2, 1);
+		// column-major: 0 1 | 1 1 | 1 0
+		assertArrayEquals(new long[]{1, 4, 1}, mask.getCOCOCounts(1));
+		// the empty mask is one background count and the full mask starts with 0
+		assertArrayEquals(new long[]{6}, mask.getCOCOCounts(2));
+		mask.addRun(0, 0, 3, 2);
+		mask.addRun(1, 0, 3, 2);
+		assertArrayEquals(new long[]{0, 6}, mask.getCOCOCounts(2));
+
+		// addCOCOCounts restores the pixels
+		RunLengthMask decoded = new RunLengthMask(3, 2);
+		decoded.addCOCOCounts(new long[]{1, 4, 1}, 5);
+		assertSameRows(new int[]{0, 5, 5, 5, 5, 0}, decoded);
+	}
+
+	@Test
+	public void testCOCOCountsString() {
+		// the strings of the COCO API (pycocotools) encoder
+		assertEquals("532", RunLengthMask.encodeCOCOCounts(new long[]{5, 3, 2}));
+		// the fourth count is the difference 4 - 10 = -6
+		assertEquals("1:2J", RunLengthMask.encodeCOCOCounts(new long[]{1, 10, 2, 4}));
+		// more than 5 bits uses a continuation character
+		assertEquals("T3", RunLengthMask.encodeCOCOCounts(new long[]{100}));
+		assertArrayEquals(new long[]{5, 3, 2}, RunLengthMask.decodeCOCOCounts("532"));
+		assertArrayEquals(new long[]{1, 10, 2, 4}, RunLengthMask.decodeCOCOCounts("1:2J"));
+		assertArrayEquals(new long[]{100}, RunLengthMask.decodeCOCOCounts("T3"));
+		assertEquals(0, RunLengthMask.decodeCOCOCounts("").length);
+
+		Random random = new Random(2);
+		for(int i = 0; i < 100; i++){
+			long[] counts = new long[1 + random.nextInt(40)];
+			for(int k = 0; k < counts.length; k++){
+				counts[k] = random.nextInt(k % 3 == 0 ? 1000000 : 50);
+			}
+			assertArrayEquals(counts, RunLengthMask.decodeCOCOCounts(RunLengthMask.encodeCOCOCounts(counts)));
+		}
+	}
+
+}
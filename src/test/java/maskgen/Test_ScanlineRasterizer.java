@@ -0,0 +1,330 @@
+package maskgen;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.Test;
+
+import datatype.Annotation;
+import datatype.AnnotationBatch;
+import ij.gui.OvalRoi;
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+import ij.gui.ShapeRoi;
+import ij.process.ByteProcessor;
+import io.AnnotationLoader;
+
+/**
+ * This class is for testing that the ScanlineRasterizer produces the same pixels
+ * as the ImageJ ImageProcessor.fill(Roi) and the ImageJ draw + fill sequence
+ * of the masks (ImageProcessor.draw(Roi), setColor, fill(Roi) and the black fill
+ * of the complement of the ShapeRoi union)
+ *
+ * @author pnb
+ *
+ */
+public class Test_ScanlineRasterizer {
+
+	String inputJSONFileFolder = new String("." + File.separator + "data" + File.separator + "JSON_orig");
+	ScanlineRasterizer testMe = new ScanlineRasterizer();
+
+	/**
+	 * This is a helper method that counts the pixels that differ between ImageJ fill and the rasterizer
+	 */
+	private int countDifferences(Roi roi, int fillRule, int width, int height){
+		ByteProcessor ip = new ByteProcessor(width, height);
+		ip.setValue(7);
+		ip.fill(roi);
+		ByteMaskCanvas canvas = new ByteMaskCanvas(width, height);
+		testMe.fillRoi(roi, fillRule, 7, canvas);
+		byte[] expected = (byte[]) ip.getPixels();
+		byte[] actual = canvas.getPixels();
+		int diff = 0;
+		for(int i = 0; i < expected.length; i++){
+			if(expected[i] != actual[i])
+				diff++;
+		}
+		return diff;
+	}
+
+	/**
+	 * This is a helper method that renders the annotations as the ImageJ masks did:
+	 * the outline is drawn with the current color before the color of the annotation is set
+	 * and the complement of the union of the shapes (ShapeRoi) is filled with black
+	 */
+	private byte[] drawAndFill(Roi[] rois, int[] grayValues, int width, int height){
+		ByteProcessor ip = new ByteProcessor(width, height);
+		for(int i = 0; i < rois.length; i++){
+			ip.draw(rois[i]);
+			ip.setColor(new java.awt.Color(grayValues[i], grayValues[i], grayValues[i]));
+			ip.fill(rois[i]);
+		}
+		ShapeRoi compositeRoi = new ShapeRoi(rois[0]);
+		for(int i = 1; i < rois.length; i++){
+			compositeRoi = compositeRoi.or(new ShapeRoi(rois[i]));
+		}
+		compositeRoi = compositeRoi.xor(new ShapeRoi(new Roi(0, 0, width, height)));
+		ip.setColor(java.awt.Color.BLACK);
+		ip.fill(compositeRoi);
+		return (byte[]) ip.getPixels();
+	}
+
+	/**
+	 * This is a helper method that renders the annotations of the batch tile by tile
+	 * in the same way as MaskFromAnnotations.writeTiledMask with outlines
+	 */
+	private byte[] drawAndFillTiles(AnnotationBatch batch, int[] grayValues, int width, int height, int tileSize){
+		int[] outlineValues = MaskFromAnnotations.getOutlineValues(grayValues, batch.size());
+		byte[] pixels = new byte[width * height];
+		for(int ty = 0; ty < height; ty += tileSize){
+			for(int tx = 0; tx < width; tx += tileSize){
+				int tw = Math.min(tileSize, width - tx);
+				int th = Math.min(tileSize, height - ty);
+				ByteMaskCanvas tile = new ByteMaskCanvas(new byte[tw * th], tx, ty, tw, th);
+				CoverageSpanSink fills = new CoverageSpanSink(tile);
+				for(int i = 0; i < batch.size(); i++){
+					testMe.drawAnnotationOutline(batch, i, outlineValues[i], width, height, tile);
+					testMe.fillAnnotation(batch, i, grayValues[i], fills);
+				}
+				fills.clearUncovered();
+				for(int y = 0; y < th; y++){
+					System.arraycopy(tile.getPixels(), y * tw, pixels, (ty + y) * width + tx, tw);
+				}
+			}
+		}
+		return pixels;
+	}
+
+	/**
+	 * This is a helper method that creates random rectangles, ovals, integer polygons and sub-pixel polygons
+	 * (partially outside of the image); the first numTypes of these types are used
+	 */
+	private Roi randomRoi(Random random, int width, int height, int numTypes){
+		int n = 3 + random.nextInt(7);
+		switch(random.nextInt(numTypes)){
+		case 0:
+			return new Roi(random.nextInt(width + 20) - 10, random.nextInt(height + 20) - 10, 1 + random.nextInt(40), 1 + random.nextInt(40));
+		case 1:
+			return new OvalRoi(random.nextDouble() * width - 5, random.nextDouble() * height - 5, 2 + random.nextDouble() * 40, 2 + random.nextDouble() * 40);
+		case 2:
+			int[] xi = new int[n];
+			int[] yi = new int[n];
+			for(int i = 0; i < n; i++){
+				xi[i] = random.nextInt(width + 10) - 5;
+				yi[i] = random.nextInt(height + 10) - 5;
+			}
+			return new PolygonRoi(xi, yi, n, Roi.POLYGON);
+		default:
+			// half pixel coordinates put many pixel centers on the edges
+			float[] xf = new float[n];
+			float[] yf = new float[n];
+			for(int i = 0; i < n; i++){
+				xf[i] = random.nextBoolean() ? random.nextInt(2 * width) / 2.0f - 3 : random.nextFloat() * width;
+				yf[i] = random.nextBoolean() ? random.nextInt(2 * height) / 2.0f - 2 : random.nextFloat() * height;
+			}
+			return new PolygonRoi(xf, yf, n, Roi.FREEROI);
+		}
+	}
+
+	@Test
+	public void testBasicShapes() {
+		assertEquals(0, countDifferences(new Roi(10.0, 12.0, 30.0, 17.0), Annotation.FILL_RULE_NONZERO, 64, 64));
+		assertEquals(0, countDifferences(new OvalRoi(3.5, 7.25, 41.0, 29.0), Annotation.FILL_RULE_NONZERO, 64, 64));
+		float[] xs = {5.3f, 58.1f, 40.7f, 12.2f};
+		float[] ys = {4.6f, 9.9f, 55.4f, 48.8f};
+		assertEquals(0, countDifferences(new PolygonRoi(xs, ys, Roi.FREEROI), Annotation.FILL_RULE_NONZERO, 64, 64));
+	}
+
+	@Test
+	public void testFillRules() {
+		// pentagram: the center is filled with nonzero and empty with evenodd (ImageJ fills evenodd)
+		float[] xs = new float[5];
+		float[] ys = new float[5];
+		for(int i = 0; i < 5; i++){
+			double angle = Math.PI * 4 * i / 5;
+			xs[i] = (float) (32 + 25 * Math.sin(angle));
+			ys[i] = (float) (32 - 25 * Math.cos(angle));
+		}
+		PolygonRoi star = new PolygonRoi(xs, ys, Roi.FREEROI);
+		assertEquals(0, countDifferences(star, Annotation.FILL_RULE_EVENODD, 64, 64));
+
+		ByteMaskCanvas canvas = new ByteMaskCanvas(64, 64);
+		testMe.fillRoi(star, Annotation.FILL_RULE_NONZERO, 1, canvas);
+		assertEquals(1, canvas.getPixels()[32 * 64 + 32]);
+		canvas.clear();
+		testMe.fillRoi(star, Annotation.FILL_RULE_EVENODD, 1, canvas);
+		assertEquals(0, canvas.getPixels()[32 * 64 + 32]);
+	}
+
+	@Test
+	public void testTileClipping() {
+		float[] xs = {-20.5f, 90.2f, 70.9f, -5.1f};
+		float[] ys = {-10.3f, 3.7f, 80.6f, 60.2f};
+		PolygonRoi roi = new PolygonRoi(xs, ys, Roi.FREEROI);
+		ByteProcessor ip = new ByteProcessor(64, 64);
+		ip.setValue(3);
+		ip.fill(roi);
+		byte[] expected = (byte[]) ip.getPixels();
+		// render the same polygon as four 32x32 tiles
+		for(int ty = 0; ty < 64; ty += 32){
+			for(int tx = 0; tx < 64; tx += 32){
+				ByteMaskCanvas tile = new ByteMaskCanvas(new byte[32 * 32], tx, ty, 32, 32);
+				testMe.fillRoi(roi, Annotation.FILL_RULE_NONZERO, 3, tile);
+				for(int y = 0; y < 32; y++){
+					for(int x = 0; x < 32; x++){
+						assertEquals(expected[(ty + y) * 64 + tx + x], tile.getPixels()[y * 32 + x]);
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testIntegerPolygons() {
+		// the pixel centers on the edges of integer polygons are rounded as in ImageJ
+		int[] xs = {2, 30, 17, 40, 5};
+		int[] ys = {3, 3, 20, 35, 28};
+		assertEquals(0, countDifferences(new PolygonRoi(xs, ys, 5, Roi.POLYGON), Annotation.FILL_RULE_EVENODD, 48, 48));
+		Random random = new Random(7);
+		for(int t = 0; t < 200; t++){
+			int n = 3 + random.nextInt(8);
+			int[] xi = new int[n];
+			int[] yi = new int[n];
+			for(int i = 0; i < n; i++){
+				xi[i] = random.nextInt(40);
+				yi[i] = random.nextInt(40);
+			}
+			PolygonRoi roi = new PolygonRoi(xi, yi, n, Roi.POLYGON);
+			assertEquals(roi.toString(), 0, countDifferences(roi, Annotation.FILL_RULE_EVENODD, 40, 40));
+		}
+	}
+
+	@Test
+	public void testDrawAndFill() {
+		int width = 70;
+		int height = 60;
+		Random random = new Random(11);
+		for(int t = 0; t < 300; t++){
+			int numRois = 1 + random.nextInt(6);
+			Roi[] rois = new Roi[numRois];
+			int[] grayValues = new int[numRois];
+			AnnotationBatch batch = new AnnotationBatch();
+			for(int i = 0; i < numRois; i++){
+				// rectangles and ovals (the ShapeRoi union of the random polygons is tested below)
+				rois[i] = randomRoi(random, width, height, 2);
+				grayValues[i] = 1 + random.nextInt(250);
+				batch.add(new Annotation(rois[i], "label"));
+			}
+			byte[] expected = drawAndFill(rois, grayValues, width, height);
+			int[] outlineValues = MaskFromAnnotations.getOutlineValues(grayValues, numRois);
+
+			// the whole image from the ROIs
+			ByteMaskCanvas canvas = new ByteMaskCanvas(width, height);
+			CoverageSpanSink fills = new CoverageSpanSink(canvas);
+			for(int i = 0; i < numRois; i++){
+				testMe.drawRoiOutline(rois[i], outlineValues[i], width, height, canvas);
+				testMe.fillRoi(rois[i], Annotation.FILL_RULE_EVENODD, grayValues[i], fills);
+			}
+			fills.clearUncovered();
+			assertArrayEquals(expected, canvas.getPixels());
+
+			// the tiles from the batch
+			assertArrayEquals(expected, drawAndFillTiles(batch, grayValues, width, height, 16));
+		}
+	}
+
+	@Test
+	public void testDrawAndFillPolygons() {
+		// the ShapeRoi union (java.awt.geom.Area) of self-intersecting polygons can differ
+		// from the ImageJ fills in a few pixels on the edges, therefore the background
+		// of the reference is the complement of the union of the fills
+		int width = 70;
+		int height = 60;
+		Random random = new Random(13);
+		for(int t = 0; t < 300; t++){
+			int numRois = 1 + random.nextInt(6);
+			Roi[] rois = new Roi[numRois];
+			int[] grayValues = new int[numRois];
+			AnnotationBatch batch = new AnnotationBatch();
+			ByteProcessor coverage = new ByteProcessor(width, height);
+			coverage.setValue(1);
+			ByteProcessor ip = new ByteProcessor(width, height);
+			for(int i = 0; i < numRois; i++){
+				rois[i] = randomRoi(random, width, height, 4);
+				grayValues[i] = 1 + random.nextInt(250);
+				batch.add(new Annotation(rois[i], "label"));
+				ip.draw(rois[i]);
+				ip.setColor(new java.awt.Color(grayValues[i], grayValues[i], grayValues[i]));
+				ip.fill(rois[i]);
+				coverage.fill(rois[i]);
+			}
+			byte[] expected = (byte[]) ip.getPixels();
+			for(int p = 0; p < expected.length; p++){
+				if(coverage.get(p) == 0)
+					expected[p] = 0;
+			}
+			assertArrayEquals(expected, drawAndFillTiles(batch, grayValues, width, height, 16));
+		}
+	}
+
+	@Test
+	public void testBackgroundFromJSON() throws IOException {
+		// the background is the complement of the union of the fills (the ImageJ masks filled
+		// the ShapeRoi complement with black after the outlines were drawn)
+		File folder = new File(inputJSONFileFolder);
+		String[] names = folder.list();
+		assertNotNull(names);
+		AnnotationLoader loader = new AnnotationLoader();
+		for(String name : names){
+			if(!name.endsWith(".json"))
+				continue;
+			ArrayList<Annotation> annotations = loader.readJSONfromWIPP(inputJSONFileFolder + File.separator + name);
+			int width = 0;
+			int height = 0;
+			Roi[] rois = new Roi[annotations.size()];
+			int[] grayValues = new int[annotations.size()];
+			for(int i = 0; i < annotations.size(); i++){
+				rois[i] = annotations.get(i).shape;
+				grayValues[i] = 1 + (i * 37) % 250;
+				java.awt.Rectangle bounds = rois[i].getBounds();
+				width = Math.max(width, bounds.x + bounds.width + 3);
+				height = Math.max(height, bounds.y + bounds.height + 3);
+			}
+			byte[] expected = drawAndFill(rois, grayValues, width, height);
+			byte[] actual = drawAndFillTiles(AnnotationBatch.fromAnnotations(annotations), grayValues, width, height, 64);
+			assertArrayEquals(name, expected, actual);
+		}
+	}
+
+	@Test
+	public void testDefaultFillRule() {
+		// ImageJ fills evenodd: a missing JSON "fillRule" is evenodd
+		assertEquals(Annotation.FILL_RULE_EVENODD, Annotation.parseFillRule(null));
+		assertEquals(Annotation.FILL_RULE_EVENODD, Annotation.parseFillRule("evenodd"));
+		assertEquals(Annotation.FILL_RULE_NONZERO, Annotation.parseFillRule("nonzero"));
+		assertEquals(Annotation.FILL_RULE_EVENODD, new Annotation().fillRule);
+	}
+
+	@Test
+	public void testAnnotationsFromJSON() throws IOException {
+		File folder = new File(inputJSONFileFolder);
+		String[] names = folder.list();
+		assertNotNull(names);
+		AnnotationLoader loader = new AnnotationLoader();
+		for(String name : names){
+			if(!name.endsWith(".json"))
+				continue;
+			ArrayList<Annotation> annotations = loader.readJSONfromWIPP(inputJSONFileFolder + File.separator + name);
+			for(Annotation a : annotations){
+				java.awt.Rectangle bounds = a.shape.getBounds();
+				int diff = countDifferences(a.shape, Annotation.FILL_RULE_EVENODD, bounds.x + bounds.width + 2, bounds.y + bounds.height + 2);
+				assertEquals(name + ": " + a.toString(), 0, diff);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,95 @@
+package util;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * This class is for testing the key functions and the pairing of the FilePairIndex
+ *
+ * @author pnb
+ *
+ */
+public class Test_FilePairIndex {
+
+	@Test
+	public void testKeyFunctions() {
+		FilePairIndex.KeyFunction suffix = FilePairIndex.suffixRule(".ome.tif", ".tif");
+		assertEquals("frame1", suffix.getKey("frame1.ome.tif"));
+		assertEquals("frame1", suffix.getKey("frame1.TIF"));
+		// the first matching suffix wins and a name without a suffix is unchanged
+		assertEquals("frame1.ome", FilePairIndex.suffixRule(".tif", ".ome.tif").getKey("frame1.ome.tif"));
+		assertEquals("frame1.json", suffix.getKey("frame1.json"));
+		// a suffix longer than the name does not match
+		assertEquals("tif", suffix.getKey("tif"));
+
+		FilePairIndex.KeyFunction extension = FilePairIndex.extensionRule();
+		assertEquals("frame1.ome", extension.getKey("frame1.ome.tif"));
+		assertEquals("frame1", extension.getKey("frame1"));
+
+		FilePairIndex.KeyFunction regex = FilePairIndex.regexRule("^annotations-", "");
+		assertEquals("frame1.json", regex.getKey("annotations-frame1.json"));
+
+		FilePairIndex.KeyFunction chain = FilePairIndex.chain(regex, FilePairIndex.extensionRule());
+		assertEquals("frame1", chain.getKey("annotations-frame1.json"));
+		// a null key stops the chain
+		FilePairIndex.KeyFunction reject = new FilePairIndex.KeyFunction() {
+			public String getKey(String name) {
+				return null;
+			}
+		};
+		assertNull(FilePairIndex.chain(reject, FilePairIndex.extensionRule()).getKey("frame1.json"));
+	}
+
+	@Test
+	public void testGetName() {
+		assertEquals("frame1.json", FilePairIndex.getName("data/json/frame1.json"));
+		assertEquals("frame1.json", FilePairIndex.getName("data" + File.separator + "frame1.json"));
+		assertEquals("frame1.json", FilePairIndex.getName("frame1.json"));
+	}
+
+	@Test
+	public void testIndex() {
+		List<String> files = Arrays.asList("raw/Frame1.ome.tif", "raw/frame2.tif", "raw/frame1.tif");
+		FilePairIndex index = new FilePairIndex(files, FilePairIndex.suffixRule(".ome.tif", ".tif"));
+		assertEquals(2, index.size());
+		// the duplicate key frame1 keeps the first file
+		assertEquals("raw/Frame1.ome.tif", index.find("FRAME1"));
+		assertEquals("raw/frame2.tif", index.find("frame2"));
+		assertNull(index.find("frame3"));
+		assertNull(index.find(null));
+		assertEquals("raw/frame2.tif", index.findMatch("json/Frame2.json", FilePairIndex.extensionRule()));
+	}
+
+	@Test
+	public void testUnpairableFiles() {
+		// the files whose key is null are not indexed
+		FilePairIndex.KeyFunction tifOnly = new FilePairIndex.KeyFunction() {
+			public String getKey(String name) {
+				return name.endsWith(".tif") ? name.substring(0, name.length() - 4) : null;
+			}
+		};
+		FilePairIndex index = new FilePairIndex(Arrays.asList("a.tif", "b.txt", "c.tif"), tifOnly);
+		assertEquals(2, index.size());
+		assertNull(index.find("b"));
+	}
+
+	@Test
+	public void testPair() {
+		List<String> jsonFiles = Arrays.asList("json/frame3.json", "json/frame1.json", "json/frame9.json");
+		List<String> rawFiles = Arrays.asList("raw/frame1.ome.tif", "raw/frame2.ome.tif", "raw/FRAME3.ome.tif");
+		FilePairIndex.Pairing pairing = FilePairIndex.pair(jsonFiles, FilePairIndex.suffixRule(".json"),
+				rawFiles, FilePairIndex.suffixRule(".ome.tif", ".tif"));
+		// the pairs follow the order of the queries
+		assertEquals(2, pairing.size());
+		assertEquals(Arrays.asList("json/frame3.json", "json/frame1.json"), pairing.queries);
+		assertEquals(Arrays.asList("raw/FRAME3.ome.tif", "raw/frame1.ome.tif"), pairing.targets);
+		assertEquals(Arrays.asList("json/frame9.json"), pairing.unmatchedQueries);
+		assertEquals(Arrays.asList("raw/frame2.ome.tif"), pairing.unmatchedTargets);
+	}
+
+}